@@ -13,8 +13,7 @@ import io.william.renderer.shadow.ShadowRenderer;
 import io.william.renderer.shadow.SpotlightShadowRenderer;
 import io.william.renderer.sky.Sky;
 import io.william.renderer.terrain.Terrain;
-import io.william.util.Maths;
-import org.joml.Matrix4f;
+import io.william.util.JobSystem;
 import org.joml.Vector3f;
 import org.lwjgl.*;
 import io.william.renderer.primitive.UVSphere;
@@ -38,9 +37,15 @@ public class Main {
     private Scene scene;
     private GUI gui;
     private MasterRenderer masterRenderer;
+    private JobSystem jobSystem;
+
+    private static final float TICK_RATE = 60.0f;
+    private static final float TICK_DURATION = 1.0f / TICK_RATE;
+    private static final int MAX_TICKS_PER_FRAME = 5;
 
     private float deltaTime = 0.0f;
     private float lastFrame = 0.0f;
+    private float accumulator = 0.0f;
 
     private boolean firstMouse = true;
     private double lastX, lastY, lastScrollX, lastScrollY = 0;
@@ -55,6 +60,10 @@ public class Main {
         init();
         loop();
 
+        jobSystem.shutdown();
+        masterRenderer.getSceneSaver().shutdown();
+        masterRenderer.getModelLoadQueue().shutdown();
+        masterRenderer.cleanup();
         renderer.cleanup();
         for (Mesh mesh : meshes) {
             mesh.cleanup();
@@ -68,6 +77,8 @@ public class Main {
 
         renderer = new Renderer();
 
+        jobSystem = JobSystem.fromSystemProperties();
+
         meshes = new ArrayList<>();
 
         camera = new Camera(new Vector3f(0, 0, 15), 0, 0);
@@ -80,7 +91,7 @@ public class Main {
 
         gui = new GUI();
 
-        masterRenderer = new MasterRenderer();
+        masterRenderer = new MasterRenderer(jobSystem);
 
         scene = new Scene();
 
@@ -627,31 +638,24 @@ public class Main {
         deltaTime = currentFrame - lastFrame;
         lastFrame = currentFrame;
 
-        scene.getSpotLights().get(0).setPosition(camera.getPosition());
-        scene.getSpotLights().get(0).setDirection(camera.getFront());
-
-        for (int i = 0; i < scene.getEntities().size(); i++) {
-            Entity entity = scene.getEntities().get(i);
-            // Update names
-            if (entity.getName() == null) {
-                entity.setName("Entity " + i);
-            }
-
-            // Update children
-            if (entity.getParent() != null && !entity.getParent().getChildren().contains(entity)) {
-                entity.getParent().addChild(entity);
-            }
-
-            // Update transformations
-            entity.update(deltaTime);
+        // Run the simulation at a fixed rate, capping catch-up ticks so that a slow frame can't snowball
+        accumulator += deltaTime;
+        int ticks = 0;
+        while (accumulator >= TICK_DURATION && ticks < MAX_TICKS_PER_FRAME) {
+            tick(TICK_DURATION);
+            accumulator -= TICK_DURATION;
+            ticks++;
         }
-
-        // Update light positions
-        for (int i = 0; i < scene.getPointLights().size(); i++) {
-            PointLight pointLight = scene.getPointLights().get(i);
-            pointLight.update(deltaTime);
+        if (accumulator >= TICK_DURATION) {
+            accumulator %= TICK_DURATION;
         }
 
+        // Render between the previous and current tick
+        masterRenderer.setInterpolationFactor(accumulator / TICK_DURATION);
+
+        scene.getSpotLights().get(0).setPosition(camera.getPosition());
+        scene.getSpotLights().get(0).setDirection(camera.getFront());
+
         // Update directional light
         if (renderer.getShaderSettings().isUpdateDirLight()) {
             scene.getDirLight().setDirection(scene.getSky().getSunDirection());
@@ -661,172 +665,59 @@ public class Main {
         window.update();
         camera.update(deltaTime);
 
-        updateEntities();
-
         processInput();
 
+        // Autosave between frames, the snapshot is written on the saver's thread
+        masterRenderer.getSceneSaver().update(scene, camera, renderer, masterRenderer.getShadowRenderer(), masterRenderer.getOmnidirectionalShadowRenderer());
+
         System.out.print(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage() + "\r");
     }
 
-    private void updateEntities() {
-        int firstEntityIndex = -1;
-        int lastEntityIndex = -1;
-
-        int firstModelMeshInstanceIndex = -1;
-        int lastModelMeshInstanceIndex = -1;
-
-        List<Entity> entities = scene.getEntities().stream().filter(entity -> entity.getModelID() != -1).toList();
+    private void tick(float tickDuration) {
+        // Entities that moved last tick stop interpolating
+        scene.settleWorldMatrices();
 
-        // Determine first and last updated entity index
+        List<Entity> entities = scene.getEntities();
         for (int i = 0; i < entities.size(); i++) {
             Entity entity = entities.get(i);
-
-            if (entity.isUpdated()) {
-                firstEntityIndex = i;
-                break;
-            }
-        }
-
-        for (int i = entities.size() - 1; i >= 0; i--) {
-            Entity entity = entities.get(i);
-
-            if (entity.isUpdated()) {
-                lastEntityIndex = i;
-                break;
+            // Update names
+            if (entity.getName() == null) {
+                entity.setName("Entity " + i);
             }
-        }
-
-        if (firstEntityIndex == -1 || lastEntityIndex == -1) {
-            return;
-        } else {
-            masterRenderer.setSceneUpdated(true);
-        }
-
-        int count = 0;
-//        for (Entity entity : scene.getEntities()) {
-//            if (entity.isUpdated()) {
-//                firstModelMeshInstanceIndex = count;
-//                break;
-//            }
-//            count += scene.getModelByID(entity.getModelID()).getMeshDatas().size();
-//        }
-//
-//        count = -1;
-//        for (Entity entity : scene.getEntities()) {
-//            Model model = scene.getModelByID(entity.getModelID());
-//            int increment = model.getMeshDatas().size();
-//            count += increment;
-//
-//            if (entity.isUpdated()) {
-//                lastModelMeshInstanceIndex = count;
-//            }
-//        }
 
-        List<Model> models = scene.getModels().stream().filter(model -> model.getEntities().size() > 0).toList();
-
-        // Determine first and last updated model mesh instance index and map to mesh data indexes
-        Map<Integer, Integer> modelMeshInstanceIndexToMeshDataIndexes = new HashMap<>();
-
-        outerloop:
-        for (Model model : models) {
-            List<Entity> modelEntities = model.getEntities();
-            for (SceneMesh.MeshDrawData meshDrawData : model.getMeshDrawDatas()) {
-                for (Entity entity : modelEntities) {
-                    if (entity.isUpdated()) {
-                        firstModelMeshInstanceIndex = count;
-                        break outerloop;
-                    }
-                    count++;
-                }
+            // Update children
+            if (entity.getParent() != null && !entity.getParent().getChildren().contains(entity)) {
+                entity.getParent().addChild(entity);
             }
         }
 
-        count = 0;
-        for (Model model : models) {
-            List<Entity> modelEntities = model.getEntities();
-            int meshDataIndex = 0;
-            for (SceneMesh.MeshDrawData meshDrawData : model.getMeshDrawDatas()) {
-                for (Entity entity : modelEntities) {
-                    if (entity.isUpdated()) {
-                        lastModelMeshInstanceIndex = count;
-                    }
-
-                    modelMeshInstanceIndexToMeshDataIndexes.put(count, meshDataIndex);
+        // Update transformations in parallel
+        scene.simulateEntities(jobSystem, tickDuration);
 
-                    count++;
-                }
-                meshDataIndex++;
+        // Update light positions
+        List<PointLight> pointLights = scene.getPointLights();
+        jobSystem.parallelFor(pointLights.size(), 16, (start, end) -> {
+            for (int i = start; i < end; i++) {
+                pointLights.get(i).update(tickDuration);
             }
-        }
-
-        System.out.println("Updating " + (lastEntityIndex - firstEntityIndex + 1) + " entities");
-        System.out.println("First entity index: " + firstEntityIndex);
-        System.out.println("Last entity index: " + lastEntityIndex);
-        System.out.println("First model mesh instance index: " + firstModelMeshInstanceIndex);
-        System.out.println("Last model mesh instance index: " + lastModelMeshInstanceIndex);
+        });
 
-        Matrix4f[] worldMatrices = new Matrix4f[lastModelMeshInstanceIndex - firstModelMeshInstanceIndex + 1];
-        int[] materialIDs = new int[lastModelMeshInstanceIndex - firstModelMeshInstanceIndex + 1];
-        float[] emissionStrengths = new float[lastModelMeshInstanceIndex - firstModelMeshInstanceIndex + 1];
-
-//        for (int i = firstEntityIndex; i <= lastEntityIndex; i++) {
-//            System.out.println("Updating entity " + i);
-//            Entity entity = scene.getEntities().get(i);
-//
-//            // Update all model mesh instances
-//            for (int j = firstModelMeshInstanceIndex; j <= lastModelMeshInstanceIndex; j++) {
-//                System.out.println("Updating model mesh instance " + (j - firstModelMeshInstanceIndex));
-//                worldMatrices[j - firstModelMeshInstanceIndex] = Maths.calculateModelMatrix(entity.getPosition(), entity.getRotation(), entity.getScale());
-//                int materialID = scene.getModelByID(entity.getModelID()).getMeshDatas().get((j - firstModelMeshInstanceIndex) % scene.getModelByID(entity.getModelID()).getMeshDatas().size()).getMaterialID();
-////                int materialID = scene.getModelByID(entity.getModelID()).getMeshDatas().get(j - firstModelMeshInstanceIndex).getMaterialID();
-//                materialIDs[j - firstModelMeshInstanceIndex] = materialID;
-//            }
-//
-//            entity.setUpdated(false);
-//        }
-        for (int i = firstModelMeshInstanceIndex; i <= lastModelMeshInstanceIndex; i++) {
-            System.out.println("Updating model mesh instance " + i);
-            // Calculate entity index from model mesh instance index
-            int entityIndex = calculateEntityIndexFromModelMeshInstanceIndex(i);
-
-            Entity entity = scene.getEntities().get(entityIndex);
-
-            worldMatrices[i - firstModelMeshInstanceIndex] = Maths.calculateModelMatrix(entity.getPosition(), entity.getRotation(), entity.getScale());
-
-//            int meshDataIndex = (i - firstModelMeshInstanceIndex) % scene.getModelByID(entity.getModelID()).getMeshDatas().size();
-//            meshDataIndex /= scene.getModelByID(entity.getModelID()).getEntities().size();
-//            int meshDataIndex = (i - (firstModelMeshInstanceIndex - firstModelMeshInstanceIndexRelativeToModel)) / scene.getModelByID(entity.getModelID()).getEntities().size();
-
-            int meshDataIndex = modelMeshInstanceIndexToMeshDataIndexes.get(i);
-
-            int materialID = scene.getModelByID(entity.getModelID()).getMeshDatas().get(meshDataIndex).getMaterialID();
-            materialIDs[i - firstModelMeshInstanceIndex] = materialID;
-
-            float emissionStrength = scene.getModelByID(entity.getModelID()).getMeshDatas().get(meshDataIndex).getEmissionStrength();
-            emissionStrengths[i - firstModelMeshInstanceIndex] = emissionStrength;
+        updateEntities();
+    }
 
-            entity.setUpdated(false);
+    private void updateEntities() {
+        List<Entity> updatedEntities = scene.getUpdatedEntities();
+        List<Entity> settledEntities = scene.getSettledEntities();
+        if (updatedEntities.isEmpty() && settledEntities.isEmpty()) {
+            return;
         }
 
-        masterRenderer.updateModelMeshInstances(firstModelMeshInstanceIndex, lastModelMeshInstanceIndex, worldMatrices, materialIDs, emissionStrengths);
-    }
+        masterRenderer.setSceneUpdated(true);
 
-    private int calculateEntityIndexFromModelMeshInstanceIndex(int index) {
-        List<Model> models = scene.getModels().stream().filter(model -> model.getEntities().size() > 0).toList();
-        int count = 0;
-        for (Model model : models) {
-            List<Entity> entities = model.getEntities();
-            for (SceneMesh.MeshDrawData meshDrawData : model.getMeshDrawDatas()) {
-                for (Entity entity : entities) {
-                    if (count == index) {
-                        return scene.getEntities().indexOf(entity);
-                    }
-                    count++;
-                }
-            }
-        }
+        scene.updateWorldMatrices();
+        masterRenderer.updateEntityTransforms(updatedEntities, settledEntities);
 
-        return -1;
+        scene.clearUpdatedEntities();
     }
 
     private void processInput() {
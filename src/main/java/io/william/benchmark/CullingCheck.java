@@ -0,0 +1,357 @@
+package io.william.benchmark;
+
+import io.william.renderer.Entity;
+import io.william.renderer.MeshData;
+import io.william.renderer.Model;
+import io.william.renderer.Scene;
+import io.william.renderer.SceneMesh;
+import io.william.renderer.culling.ComputeCullerReference;
+import io.william.renderer.culling.Frustum;
+import io.william.renderer.culling.FrustumCuller;
+import io.william.util.JobSystem;
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Culls random scenes with FrustumCuller and checks its output against a brute force test of every instance's
+// bounding sphere against the six planes of the frustum:
+//  - every instance whose sphere is inside, where it is or where it was, is visible exactly once and nothing else is
+//  - each culled command draws one LOD of its own draw command, the one the instance's distance selects
+//  - the culled commands' base instances cover the visible instance list in order, without gaps or overlaps
+// Meshes are octahedra, whose bounding spheres fit in their boxes, so the entity tree never rejects an instance whose
+// sphere is visible and the results can be compared exactly. Instances within EPSILON of a plane may go either way
+// The same scenes are also culled by ComputeCullerReference, the CPU version of the compute shaders, whose draw
+// commands and instances have to be identical to FrustumCuller's apart from where each LOD's instances start
+// Exits with status 1 if any scene differs
+public class CullingCheck {
+
+    private static final int SCENES = 200;
+    private static final int MAX_MODELS = 8;
+    private static final int MAX_MESHES = 4;
+    private static final int MAX_ENTITIES = 400;
+    private static final float EXTENT = 100.0f;
+    private static final float LOD_THRESHOLD = 0.01f;
+    private static final float EPSILON = 1e-3f;
+    private static final int COMMAND_SIZE = 5;
+    private static final int MAX_LODS = MeshData.MAX_LODS;
+
+    // A random scene and camera, with the instances in the order of FrustumCuller's and MasterRenderer's buffers
+    public record TestScene(Scene scene, Matrix4fc viewProjection, Vector3f cameraPosition,
+                            int[] instanceCommands, Entity[] instanceEntities, int instanceCount) {}
+
+    public static void main(String[] args) {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        JobSystem jobSystem = new JobSystem(threads);
+
+        int failed = 0;
+        long visible = 0;
+        long instances = 0;
+        try {
+            for (int seed = 0; seed < SCENES; seed++) {
+                TestScene testScene = createScene(new Random(seed));
+                FrustumCuller culler = new FrustumCuller(jobSystem);
+                culler.rebuild(testScene.scene());
+                culler.cull(testScene.viewProjection(), testScene.cameraPosition(), LOD_THRESHOLD);
+
+                String difference = checkAgainstBruteForce(culler, testScene);
+                if (difference == null) {
+                    difference = checkAgainstReference(culler, testScene);
+                }
+                if (difference != null) {
+                    System.out.println("Scene " + seed + ": " + difference);
+                    failed++;
+                }
+                visible += culler.getVisibleInstanceCount();
+                instances += testScene.instanceCount();
+            }
+        } finally {
+            jobSystem.shutdown();
+        }
+
+        System.out.println(failed == 0
+            ? SCENES + " scenes match the brute force test and the compute culling reference, " + visible + " of " + instances + " instances visible"
+            : failed + " of " + SCENES + " scenes differ from the brute force test or the compute culling reference");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Returns a description of the first difference, or null if there is none
+    public static String checkAgainstBruteForce(FrustumCuller culler, TestScene testScene) {
+        Vector4f[] planes = new Vector4f[6];
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = testScene.viewProjection().frustumPlane(i, new Vector4f());
+        }
+
+        int[] commands = culler.getCommands();
+        float[] spheres = culler.getSpheres();
+        int[] lods = culler.getLods();
+        float[] lodErrors = culler.getLodErrors();
+        int[] culledCommands = culler.getCulledCommands();
+        int[] visibleInstances = culler.getVisibleInstances();
+
+        // LOD each instance is drawn with, -1 if it isn't
+        int[] drawnLods = new int[testScene.instanceCount()];
+        Arrays.fill(drawnLods, -1);
+
+        int next = 0;
+        for (int c = 0; c < culler.getCulledCommandCount(); c++) {
+            int culled = c * COMMAND_SIZE;
+            if (culledCommands[culled + 4] != next) {
+                return "culled command " + c + " starts at instance " + culledCommands[culled + 4] + " instead of " + next;
+            }
+            if (culledCommands[culled + 1] <= 0) {
+                return "culled command " + c + " has no instances";
+            }
+
+            for (int i = next; i < next + culledCommands[culled + 1]; i++) {
+                int instance = visibleInstances[i];
+                if (instance < 0 || instance >= testScene.instanceCount() || drawnLods[instance] != -1) {
+                    return "instance " + instance + " is drawn twice or doesn't exist";
+                }
+
+                // The culled command has to be one of the LODs of the instance's own command
+                int command = testScene.instanceCommands()[instance];
+                int lod = findLod(lods, command, culledCommands[culled + 2], culledCommands[culled]);
+                if (lod == -1 || culledCommands[culled + 3] != commands[command * COMMAND_SIZE + 3]) {
+                    return "instance " + instance + " is drawn by culled command " + c + ", which isn't one of command " + command + "'s LODs";
+                }
+                drawnLods[instance] = lod;
+            }
+            next += culledCommands[culled + 1];
+        }
+        if (next != culler.getVisibleInstanceCount()) {
+            return "the culled commands cover " + next + " of " + culler.getVisibleInstanceCount() + " visible instances";
+        }
+
+        float[] sphere = new float[4];
+        for (int instance = 0; instance < testScene.instanceCount(); instance++) {
+            int command = testScene.instanceCommands()[instance];
+            Entity entity = testScene.instanceEntities()[instance];
+
+            float distance = Math.max(
+                signedDistance(planes, entity.getWorldMatrix(), spheres, command, sphere),
+                signedDistance(planes, entity.getPreviousWorldMatrix(), spheres, command, sphere)
+            );
+            if (distance > EPSILON && drawnLods[instance] == -1) {
+                return "instance " + instance + " is inside the frustum by " + distance + " but was culled";
+            }
+            if (distance < -EPSILON && drawnLods[instance] != -1) {
+                return "instance " + instance + " is outside the frustum by " + -distance + " but is drawn";
+            }
+
+            // Distances near a LOD's switching point may round either way
+            if (drawnLods[instance] != -1) {
+                int finer = selectLod(lodErrors, command, entity.getWorldMatrix(), spheres, testScene.cameraPosition(), 1.0f - EPSILON);
+                int coarser = selectLod(lodErrors, command, entity.getWorldMatrix(), spheres, testScene.cameraPosition(), 1.0f + EPSILON);
+                if (drawnLods[instance] < finer || drawnLods[instance] > coarser) {
+                    return "instance " + instance + " is drawn with LOD " + drawnLods[instance] + " instead of " + finer;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    // Culls the same instances with ComputeCullerReference and compares its compacted commands and their instances
+    // The reference leaves room for every instance in each LOD, so only its base instances differ
+    public static String checkAgainstReference(FrustumCuller culler, TestScene testScene) {
+        int commandCount = culler.getCommandCount();
+        int instanceCount = testScene.instanceCount();
+
+        int[] instanceTransforms = new int[instanceCount];
+        Matrix4fc[] previousTransforms = new Matrix4fc[instanceCount];
+        Matrix4fc[] currentTransforms = new Matrix4fc[instanceCount];
+        for (int i = 0; i < instanceCount; i++) {
+            Entity entity = testScene.instanceEntities()[i];
+            instanceTransforms[i] = entity.getTransformIndex();
+            previousTransforms[entity.getTransformIndex()] = entity.getPreviousWorldMatrix();
+            currentTransforms[entity.getTransformIndex()] = entity.getWorldMatrix();
+        }
+
+        int[] commandState = new int[commandCount * MAX_LODS * COMMAND_SIZE];
+        int[] referenceInstances = new int[instanceCount * MAX_LODS];
+        int[] referenceCommands = new int[commandCount * MAX_LODS * COMMAND_SIZE];
+        int drawCount = ComputeCullerReference.cull(new Frustum().set(testScene.viewProjection()), culler.getCommands(), culler.getSpheres(),
+            culler.getLods(), culler.getLodErrors(), commandCount, testScene.cameraPosition(), LOD_THRESHOLD,
+            testScene.instanceCommands(), instanceTransforms, instanceCount, previousTransforms, currentTransforms,
+            commandState, referenceInstances, referenceCommands);
+
+        if (drawCount != culler.getCulledCommandCount()) {
+            return "the reference draws " + drawCount + " commands and FrustumCuller " + culler.getCulledCommandCount();
+        }
+
+        int[] culledCommands = culler.getCulledCommands();
+        int[] visibleInstances = culler.getVisibleInstances();
+        for (int c = 0; c < drawCount; c++) {
+            int d = c * COMMAND_SIZE;
+            for (int i = 0; i < 4; i++) {
+                if (referenceCommands[d + i] != culledCommands[d + i]) {
+                    return "command " + c + " differs from the reference's: " + Arrays.toString(Arrays.copyOfRange(culledCommands, d, d + COMMAND_SIZE))
+                        + " and " + Arrays.toString(Arrays.copyOfRange(referenceCommands, d, d + COMMAND_SIZE));
+                }
+            }
+            for (int i = 0; i < culledCommands[d + 1]; i++) {
+                int instance = visibleInstances[culledCommands[d + 4] + i];
+                int referenceInstance = referenceInstances[referenceCommands[d + 4] + i];
+                if (instance != referenceInstance) {
+                    return "instance " + i + " of command " + c + " is " + instance + " and " + referenceInstance + " in the reference";
+                }
+            }
+        }
+
+        return null;
+    }
+
+    // Smallest distance of the world space sphere's surface inside any of the planes, negative if it is outside one
+    private static float signedDistance(Vector4f[] planes, Matrix4fc m, float[] spheres, int command, float[] sphere) {
+        worldSphere(m, spheres, command, sphere);
+        float distance = Float.POSITIVE_INFINITY;
+        for (Vector4f plane : planes) {
+            distance = Math.min(distance, plane.x * sphere[0] + plane.y * sphere[1] + plane.z * sphere[2] + plane.w + sphere[3]);
+        }
+        return distance;
+    }
+
+    private static void worldSphere(Matrix4fc m, float[] spheres, int command, float[] sphere) {
+        Vector3f center = m.transformPosition(new Vector3f(spheres[command * 4], spheres[command * 4 + 1], spheres[command * 4 + 2]));
+        Vector3f scale = m.getScale(new Vector3f());
+        sphere[0] = center.x;
+        sphere[1] = center.y;
+        sphere[2] = center.z;
+        sphere[3] = spheres[command * 4 + 3] * Math.max(scale.x, Math.max(scale.y, scale.z));
+    }
+
+    // Coarsest LOD whose world space error is at most LOD_THRESHOLD times the distance to the sphere's surface
+    private static int selectLod(float[] lodErrors, int command, Matrix4fc m, float[] spheres, Vector3f cameraPosition, float slack) {
+        float[] sphere = new float[4];
+        worldSphere(m, spheres, command, sphere);
+        float distance = Math.max(cameraPosition.distance(sphere[0], sphere[1], sphere[2]) - sphere[3], 0.0f);
+        float scale = sphere[3] / spheres[command * 4 + 3];
+
+        int selected = 0;
+        for (int lod = 1; lod < MAX_LODS; lod++) {
+            if (lodErrors[command * MAX_LODS + lod] * scale <= distance * LOD_THRESHOLD * slack) {
+                selected = lod;
+            }
+        }
+        return selected;
+    }
+
+    private static int findLod(int[] lods, int command, int firstIndex, int count) {
+        for (int lod = 0; lod < MAX_LODS; lod++) {
+            int l = command * MAX_LODS + lod;
+            if (lods[l * 2 + 1] > 0 && lods[l * 2] == firstIndex && lods[l * 2 + 1] == count) {
+                return lod;
+            }
+        }
+        return -1;
+    }
+
+    public static TestScene createScene(Random random) {
+        Scene scene = new Scene();
+        List<Integer> instanceCommands = new ArrayList<>();
+        List<Entity> instanceEntities = new ArrayList<>();
+
+        int command = 0;
+        int firstIndex = 0;
+        int baseVertex = 0;
+        int transformIndex = 0;
+        int models = 1 + random.nextInt(MAX_MODELS);
+        for (int m = 0; m < models; m++) {
+            List<MeshData> meshDatas = new ArrayList<>();
+            int meshes = 1 + random.nextInt(MAX_MESHES);
+            for (int i = 0; i < meshes; i++) {
+                meshDatas.add(octahedron(random));
+            }
+
+            Model model = new Model(meshDatas, null, "Model " + m);
+            scene.addModel(model);
+
+            // Index ranges are only compared, so they don't have to point at real geometry
+            for (MeshData meshData : meshDatas) {
+                List<SceneMesh.Lod> lods = new ArrayList<>();
+                int lodCount = 1 + random.nextInt(MAX_LODS);
+                int count = 3 * (100 + random.nextInt(1000));
+                for (int lod = 0; lod < lodCount; lod++) {
+                    float error = lod == 0 ? 0.0f : meshData.getBoundingSphereRadius() * 0.05f * lod * lod;
+                    lods.add(new SceneMesh.Lod(firstIndex, count, error));
+                    firstIndex += count;
+                    count = Math.max(3, count / 6 * 3);
+                }
+                model.getMeshDrawDatas().add(new SceneMesh.MeshDrawData(0, 0, 1.0f, baseVertex, lods.get(0).count(), lods.get(0).firstIndex(), lods));
+                baseVertex += 6;
+            }
+
+            // Some models have no entities and get no commands
+            int entities = random.nextInt(4) == 0 ? 0 : random.nextInt(MAX_ENTITIES);
+            for (int i = 0; i < entities; i++) {
+                Vector3f position = new Vector3f(coordinate(random), coordinate(random), coordinate(random));
+                Vector3f rotation = new Vector3f(random.nextFloat() * 360.0f, random.nextFloat() * 360.0f, random.nextFloat() * 360.0f);
+                // Uniformly scaled, as a non-uniform scale would make the culler's sphere bigger than the box
+                Entity entity = new Entity(position, rotation, 0.5f + random.nextFloat() * 2.5f, "Entity " + i);
+                entity.setModelID(model.getID());
+                entity.setTransformIndex(transformIndex++);
+                model.addEntity(entity);
+                scene.addEntity(entity);
+            }
+
+            for (int i = 0; i < meshDatas.size() && entities > 0; i++) {
+                for (Entity entity : model.getEntities()) {
+                    instanceCommands.add(command);
+                    instanceEntities.add(entity);
+                }
+                command++;
+            }
+        }
+
+        // Settle every entity, then move a third of them so that their previous and current transforms differ
+        scene.updateWorldMatrices();
+        scene.clearUpdatedEntities();
+        scene.settleWorldMatrices();
+        for (Entity entity : scene.getEntities()) {
+            if (random.nextInt(3) == 0) {
+                entity.setPosition(new Vector3f(entity.getPosition()).add(coordinate(random) * 0.1f, coordinate(random) * 0.1f, coordinate(random) * 0.1f));
+                entity.setUpdated(true);
+            }
+        }
+        scene.updateWorldMatrices();
+        scene.clearUpdatedEntities();
+
+        Vector3f cameraPosition = new Vector3f(coordinate(random), coordinate(random), coordinate(random)).mul(0.5f);
+        Vector3f target = new Vector3f(coordinate(random), coordinate(random), coordinate(random));
+        Matrix4f viewProjection = new Matrix4f()
+            .perspective((float) Math.toRadians(40.0f + random.nextFloat() * 50.0f), 0.5f + random.nextFloat() * 1.5f, 0.1f, 50.0f + random.nextFloat() * 250.0f)
+            .lookAt(cameraPosition, target, new Vector3f(0, 1, 0));
+
+        int[] commands = new int[instanceCommands.size()];
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = instanceCommands.get(i);
+        }
+        return new TestScene(scene, viewProjection, cameraPosition, commands, instanceEntities.toArray(new Entity[0]), commands.length);
+    }
+
+    // Vertices at the ends of each axis around a random center, so that the bounding sphere is inside the box
+    private static MeshData octahedron(Random random) {
+        float x = random.nextFloat() * 4.0f - 2.0f;
+        float y = random.nextFloat() * 4.0f - 2.0f;
+        float z = random.nextFloat() * 4.0f - 2.0f;
+        float r = 0.5f + random.nextFloat() * 4.5f;
+        float[] positions = {
+            x - r, y, z,  x + r, y, z,
+            x, y - r, z,  x, y + r, z,
+            x, y, z - r,  x, y, z + r
+        };
+        return new MeshData(positions, new float[positions.length], new float[0], new float[0], new float[12], new int[0]);
+    }
+
+    private static float coordinate(Random random) {
+        return (random.nextFloat() * 2.0f - 1.0f) * EXTENT;
+    }
+}
@@ -0,0 +1,132 @@
+package io.william.benchmark;
+
+import io.william.renderer.culling.DynamicAabbTree;
+import io.william.renderer.culling.Frustum;
+import org.joml.Matrix4f;
+
+import java.util.Random;
+
+// Measures DynamicAabbTree query times for 1k to 1M static boxes against a linear scan
+// The boxes are spread with constant density, so every query returns about the same number of hits at each size
+// and the remaining growth is the cost of walking the tree
+public class DynamicAabbTreeBenchmark {
+
+    private static final int[] SIZES = { 1_000, 10_000, 100_000, 1_000_000 };
+    private static final int QUERIES = 2_000;
+    private static final int LINEAR_QUERIES = 50;
+    private static final float SPACING = 10.0f;
+
+    private static int hits;
+
+    public static void main(String[] args) {
+        System.out.println(String.format("%10s %10s %12s %12s %12s %12s %12s %8s", "Entities", "Build ms", "AABB ns", "Sphere ns", "Frustum ns", "Ray ns", "Linear ns", "Height"));
+
+        for (int size : SIZES) {
+            run(size);
+        }
+    }
+
+    private static void run(int size) {
+        Random random = new Random(size);
+        float extent = (float) Math.cbrt(size) * SPACING;
+
+        float[] boxes = new float[size * 6];
+        for (int i = 0; i < size; i++) {
+            float x = random.nextFloat() * extent;
+            float y = random.nextFloat() * extent;
+            float z = random.nextFloat() * extent;
+            float half = 0.5f + random.nextFloat();
+            boxes[i * 6] = x - half;
+            boxes[i * 6 + 1] = y - half;
+            boxes[i * 6 + 2] = z - half;
+            boxes[i * 6 + 3] = x + half;
+            boxes[i * 6 + 4] = y + half;
+            boxes[i * 6 + 5] = z + half;
+        }
+
+        long buildStart = System.nanoTime();
+        DynamicAabbTree<Integer> tree = new DynamicAabbTree<>();
+        for (int i = 0; i < size; i++) {
+            tree.insert(i, boxes[i * 6], boxes[i * 6 + 1], boxes[i * 6 + 2], boxes[i * 6 + 3], boxes[i * 6 + 4], boxes[i * 6 + 5]);
+        }
+        tree.rebuild();
+        long buildTime = System.nanoTime() - buildStart;
+
+        DynamicAabbTree.Visitor<Integer> visitor = value -> hits++;
+        DynamicAabbTree.RayVisitor<Integer> rayVisitor = (value, distance) -> {
+            hits++;
+            return Float.POSITIVE_INFINITY;
+        };
+
+        // Query positions, shared by every query type
+        float[] points = new float[QUERIES * 6];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = random.nextFloat() * (i % 6 < 3 ? extent : 2.0f) - (i % 6 < 3 ? 0 : 1.0f);
+        }
+
+        Frustum[] frustums = new Frustum[QUERIES];
+        Matrix4f projection = new Matrix4f().perspective((float) Math.toRadians(60.0f), 16.0f / 9.0f, 0.1f, 50.0f);
+        Matrix4f view = new Matrix4f();
+        for (int i = 0; i < QUERIES; i++) {
+            int p = i * 6;
+            view.setLookAt(points[p], points[p + 1], points[p + 2],
+                points[p] + points[p + 3], points[p + 1] + points[p + 4], points[p + 2] + points[p + 5], 0, 1, 0);
+            frustums[i] = new Frustum().set(new Matrix4f(projection).mul(view));
+        }
+
+        // Warm up
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < QUERIES; i++) {
+                int p = i * 6;
+                tree.queryAabb(points[p] - 10, points[p + 1] - 10, points[p + 2] - 10, points[p] + 10, points[p + 1] + 10, points[p + 2] + 10, visitor);
+                tree.querySphere(points[p], points[p + 1], points[p + 2], 10, visitor);
+                tree.queryFrustum(frustums[i], visitor);
+                tree.raycast(points[p], points[p + 1], points[p + 2], points[p + 3], points[p + 4], points[p + 5], 100, rayVisitor);
+            }
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            int p = i * 6;
+            tree.queryAabb(points[p] - 10, points[p + 1] - 10, points[p + 2] - 10, points[p] + 10, points[p + 1] + 10, points[p + 2] + 10, visitor);
+        }
+        long aabbTime = (System.nanoTime() - start) / QUERIES;
+
+        start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            int p = i * 6;
+            tree.querySphere(points[p], points[p + 1], points[p + 2], 10, visitor);
+        }
+        long sphereTime = (System.nanoTime() - start) / QUERIES;
+
+        start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            tree.queryFrustum(frustums[i], visitor);
+        }
+        long frustumTime = (System.nanoTime() - start) / QUERIES;
+
+        start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            int p = i * 6;
+            tree.raycast(points[p], points[p + 1], points[p + 2], points[p + 3], points[p + 4], points[p + 5], 100, rayVisitor);
+        }
+        long rayTime = (System.nanoTime() - start) / QUERIES;
+
+        // The same AABB query without the tree
+        start = System.nanoTime();
+        for (int i = 0; i < LINEAR_QUERIES; i++) {
+            int p = i * 6;
+            float minX = points[p] - 10, minY = points[p + 1] - 10, minZ = points[p + 2] - 10;
+            float maxX = points[p] + 10, maxY = points[p + 1] + 10, maxZ = points[p + 2] + 10;
+            for (int j = 0; j < size; j++) {
+                int b = j * 6;
+                if (boxes[b] <= maxX && boxes[b + 1] <= maxY && boxes[b + 2] <= maxZ && boxes[b + 3] >= minX && boxes[b + 4] >= minY && boxes[b + 5] >= minZ) {
+                    hits++;
+                }
+            }
+        }
+        long linearTime = (System.nanoTime() - start) / LINEAR_QUERIES;
+
+        System.out.println(String.format("%10d %10.1f %12d %12d %12d %12d %12d %8d", size, buildTime / 1e6, aabbTime, sphereTime, frustumTime, rayTime, linearTime, tree.getHeight()));
+    }
+}
@@ -0,0 +1,206 @@
+package io.william.benchmark;
+
+import io.william.io.MeshSimplifier;
+import io.william.renderer.MeshData;
+
+import java.util.Arrays;
+
+// Simplifies UV spheres (closed, with a texture coordinate seam) and height field grids (open borders) and checks:
+//  - simplify stops at its triangle target, never above it and at most one collapse below it
+//  - simplify and generateLods give the same output every run
+//  - every LOD has fewer triangles than the one before it and no degenerate ones, and errors never shrink
+//  - reported errors are at least the largest distance of any of the mesh's vertices from the simplified surface,
+//    measured against every triangle
+// Exits with status 1 if any mesh fails
+public class MeshSimplifierCheck {
+
+    private static final float[] TARGET_RATIOS = { 0.5f, 0.25f, 0.1f };
+    // A collapse on a seam merges both of its sides, removing up to two triangles each
+    private static final int MAX_TRIANGLES_PER_COLLAPSE = 4;
+    private static final float MIN_LOD_REDUCTION = 0.8f;
+
+    public static void main(String[] args) {
+        String[] names = { "sphere 64x32", "sphere 32x16", "grid 60x60", "grid 30x30" };
+        boolean passed = true;
+        for (String name : names) {
+            String failure = check(createMesh(name), createMesh(name));
+            System.out.println(name + ": " + (failure == null ? "passed" : "FAILED, " + failure));
+            passed &= failure == null;
+        }
+
+        System.out.println(passed ? "All meshes passed" : "Some meshes failed");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    // Takes two copies of the same mesh, to compare generateLods across runs. Returns the first failure or null
+    public static String check(MeshData meshData, MeshData copy) {
+        float[] positions = meshData.getPositions();
+        int[] indices = meshData.getIndices();
+        float extent = MeshSimplifier.extent(positions);
+
+        for (float ratio : TARGET_RATIOS) {
+            int targetTriangles = (int) (indices.length / 3 * ratio);
+            float[] error = new float[1];
+            int[] result = MeshSimplifier.simplify(positions, meshData.getNormals(), meshData.getTexCoords(), indices, targetTriangles * 3, 1.0f, error);
+            int triangles = result.length / 3;
+
+            if (triangles > targetTriangles || triangles < targetTriangles - MAX_TRIANGLES_PER_COLLAPSE) {
+                return "simplify reached " + triangles + " triangles for a target of " + targetTriangles;
+            }
+            int[] again = MeshSimplifier.simplify(positions, meshData.getNormals(), meshData.getTexCoords(), indices, targetTriangles * 3, 1.0f, new float[1]);
+            if (!Arrays.equals(result, again)) {
+                return "simplify gave different results for a target of " + targetTriangles;
+            }
+            double distance = maxDistance(positions, indices, result) / extent;
+            if (error[0] < distance) {
+                return "simplify reported an error of " + error[0] + " for a target of " + targetTriangles + ", but a vertex is " + distance + " away";
+            }
+        }
+
+        MeshSimplifier.generateLods(meshData);
+        MeshSimplifier.generateLods(copy);
+        if (meshData.getLodCount() < 2) {
+            return "no LODs were generated";
+        }
+        if (meshData.getLodCount() != copy.getLodCount()) {
+            return "generateLods gave " + meshData.getLodCount() + " and " + copy.getLodCount() + " LODs";
+        }
+
+        for (int lod = 1; lod < meshData.getLodCount(); lod++) {
+            int[] lodIndices = meshData.getLodIndices(lod);
+            int[] previous = meshData.getLodIndices(lod - 1);
+            if (!Arrays.equals(lodIndices, copy.getLodIndices(lod)) || meshData.getLodError(lod) != copy.getLodError(lod)) {
+                return "generateLods gave different results for LOD " + lod;
+            }
+            if (lodIndices.length > previous.length * MIN_LOD_REDUCTION) {
+                return "LOD " + lod + " has " + lodIndices.length / 3 + " triangles, LOD " + (lod - 1) + " " + previous.length / 3;
+            }
+            if (meshData.getLodError(lod) < meshData.getLodError(lod - 1)) {
+                return "LOD " + lod + "'s error is below LOD " + (lod - 1) + "'s";
+            }
+            for (int i = 0; i < lodIndices.length; i += 3) {
+                if (lodIndices[i] == lodIndices[i + 1] || lodIndices[i + 1] == lodIndices[i + 2] || lodIndices[i + 2] == lodIndices[i]) {
+                    return "LOD " + lod + " has a degenerate triangle";
+                }
+            }
+
+            double distance = maxDistance(positions, indices, lodIndices);
+            if (meshData.getLodError(lod) < distance) {
+                return "LOD " + lod + " reports an error of " + meshData.getLodError(lod) + ", but a vertex is " + distance + " away";
+            }
+        }
+
+        return null;
+    }
+
+    // Largest distance of a vertex of indices from the closest of all triangles of simplified
+    public static double maxDistance(float[] positions, int[] indices, int[] simplified) {
+        boolean[] measured = new boolean[positions.length / 3];
+        double maxDistance = 0;
+        for (int index : indices) {
+            if (measured[index]) {
+                continue;
+            }
+            measured[index] = true;
+
+            double distance = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < simplified.length; i += 3) {
+                distance = Math.min(distance, MeshSimplifier.pointTriangleDistance(positions, index, simplified[i], simplified[i + 1], simplified[i + 2]));
+            }
+            maxDistance = Math.max(maxDistance, distance);
+        }
+        return maxDistance;
+    }
+
+    private static MeshData createMesh(String name) {
+        String[] size = name.substring(name.indexOf(' ') + 1).split("x");
+        int a = Integer.parseInt(size[0]);
+        int b = Integer.parseInt(size[1]);
+        return name.startsWith("sphere") ? sphere(a, b) : grid(a, b);
+    }
+
+    // Unit sphere whose first and last columns share positions but not texture coordinates. Pole triangles, which
+    // would be degenerate, are left out
+    private static MeshData sphere(int segments, int rings) {
+        int vertexCount = (segments + 1) * (rings + 1);
+        float[] positions = new float[vertexCount * 3];
+        float[] normals = new float[vertexCount * 3];
+        float[] texCoords = new float[vertexCount * 2];
+
+        for (int r = 0; r <= rings; r++) {
+            for (int s = 0; s <= segments; s++) {
+                int v = r * (segments + 1) + s;
+                double theta = Math.PI * r / rings;
+                double phi = 2.0 * Math.PI * (s % segments) / segments;
+                boolean pole = r == 0 || r == rings;
+
+                positions[v * 3] = pole ? 0.0f : (float) (Math.sin(theta) * Math.cos(phi));
+                positions[v * 3 + 1] = (float) Math.cos(theta);
+                positions[v * 3 + 2] = pole ? 0.0f : (float) (Math.sin(theta) * Math.sin(phi));
+                System.arraycopy(positions, v * 3, normals, v * 3, 3);
+                texCoords[v * 2] = (float) s / segments;
+                texCoords[v * 2 + 1] = (float) r / rings;
+            }
+        }
+
+        int[] indices = new int[segments * (rings - 1) * 6];
+        int index = 0;
+        for (int r = 0; r < rings; r++) {
+            for (int s = 0; s < segments; s++) {
+                int v = r * (segments + 1) + s;
+                int below = v + segments + 1;
+                if (r > 0) {
+                    indices[index++] = v;
+                    indices[index++] = v + 1;
+                    indices[index++] = below;
+                }
+                if (r < rings - 1) {
+                    indices[index++] = below;
+                    indices[index++] = v + 1;
+                    indices[index++] = below + 1;
+                }
+            }
+        }
+
+        return new MeshData(positions, normals, new float[0], new float[0], texCoords, Arrays.copyOf(indices, index));
+    }
+
+    // Unit square with gentle waves, whose border vertices can't be collapsed
+    private static MeshData grid(int columns, int rows) {
+        int vertexCount = (columns + 1) * (rows + 1);
+        float[] positions = new float[vertexCount * 3];
+        float[] normals = new float[vertexCount * 3];
+        float[] texCoords = new float[vertexCount * 2];
+
+        for (int y = 0; y <= rows; y++) {
+            for (int x = 0; x <= columns; x++) {
+                int v = y * (columns + 1) + x;
+                positions[v * 3] = (float) x / columns;
+                positions[v * 3 + 1] = (float) (0.02 * Math.sin(x * 0.3) * Math.cos(y * 0.2));
+                positions[v * 3 + 2] = (float) y / rows;
+                normals[v * 3 + 1] = 1.0f;
+                texCoords[v * 2] = (float) x / columns;
+                texCoords[v * 2 + 1] = (float) y / rows;
+            }
+        }
+
+        int[] indices = new int[columns * rows * 6];
+        int index = 0;
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < columns; x++) {
+                int v = y * (columns + 1) + x;
+                int below = v + columns + 1;
+                indices[index++] = v;
+                indices[index++] = below;
+                indices[index++] = v + 1;
+                indices[index++] = v + 1;
+                indices[index++] = below;
+                indices[index++] = below + 1;
+            }
+        }
+
+        return new MeshData(positions, normals, new float[0], new float[0], texCoords, indices);
+    }
+}
@@ -0,0 +1,214 @@
+package io.william.benchmark;
+
+import io.william.io.JsonReader;
+import io.william.io.SceneImporter;
+import io.william.renderer.Entity;
+import io.william.renderer.Scene;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+
+// Compares SceneImporter's streaming JSON path against building the json-simple tree first, as importScene used to,
+// on generated 10 MB and 100 MB scenes in the exporter's layout
+// The scenes only hold what can be built without a GL context: entities (a fifth of them with controllers, a third
+// parented) and untextured materials. Run with a heap large enough for the tree of the largest scene, e.g. -Xmx4g
+public class SceneImportBenchmark {
+
+    private static final long[] SIZES = { 10L << 20, 100L << 20 };
+    private static final int RUNS = 3;
+    private static final int MATERIALS = 64;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(String.format("%8s %10s %8s %10s %10s %12s %12s", "Size MB", "Entities", "Path", "Best ms", "MB/s", "Alloc MB", "Peak heap MB"));
+
+        for (long size : SIZES) {
+            Path path = Files.createTempFile("scene", ".json");
+            try {
+                int entities = generate(path, size);
+                double megabytes = Files.size(path) / (double) (1 << 20);
+
+                long treeChecksum = 0;
+                long streamChecksum = 0;
+                for (boolean stream : new boolean[] { false, true }) {
+                    long best = Long.MAX_VALUE;
+                    long allocated = 0;
+                    long peak = 0;
+                    for (int run = 0; run < RUNS; run++) {
+                        Scene scene = new Scene();
+                        System.gc();
+                        resetPeaks();
+                        long allocatedBefore = getAllocatedBytes();
+
+                        long start = System.nanoTime();
+                        if (stream) {
+                            importStreamed(path, scene);
+                        } else {
+                            importTree(path, scene);
+                        }
+                        long time = System.nanoTime() - start;
+
+                        allocated = getAllocatedBytes() - allocatedBefore;
+                        peak = getPeakHeap();
+                        best = Math.min(best, time);
+
+                        if (scene.getEntities().size() != entities) {
+                            throw new IllegalStateException("Imported " + scene.getEntities().size() + " of " + entities + " entities");
+                        }
+                        if (stream) {
+                            streamChecksum = checksum(scene);
+                        } else {
+                            treeChecksum = checksum(scene);
+                        }
+                    }
+
+                    System.out.println(String.format(Locale.ROOT, "%8.1f %10d %8s %10.1f %10.1f %12.1f %12.1f", megabytes, entities, stream ? "stream" : "tree",
+                        best / 1e6, megabytes / (best / 1e9), allocated / (double) (1 << 20), peak / (double) (1 << 20)));
+                }
+
+                if (treeChecksum != streamChecksum) {
+                    throw new IllegalStateException("The streamed scene differs from the tree's");
+                }
+            } finally {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // The sections of SceneImporter.parseScene that don't need a GL context, from the whole document's tree
+    private static void importTree(Path path, Scene scene) throws Exception {
+        try (FileReader reader = new FileReader(path.toFile())) {
+            JSONObject sceneJson = (JSONObject) ((JSONObject) new JSONParser().parse(reader)).get("scene");
+            scene.clear();
+            SceneImporter.parseEntities((JSONObject) sceneJson.get("entities"), scene);
+            SceneImporter.parseMaterials((JSONObject) sceneJson.get("materials"), scene);
+            SceneImporter.parseDirLight((JSONObject) sceneJson.get("dirLight"), scene);
+        }
+    }
+
+    private static void importStreamed(Path path, Scene scene) throws Exception {
+        try (JsonReader reader = new JsonReader(new FileReader(path.toFile()))) {
+            SceneImporter.streamJson(reader, Files.size(path), progress -> {}, scene, null, null, null, null, null);
+        }
+    }
+
+    // Hash of every entity's state, to check that both paths built the same scene
+    private static long checksum(Scene scene) {
+        long checksum = 0;
+        for (Entity entity : scene.getEntities()) {
+            long hash = entity.getID();
+            hash = hash * 31 + entity.getModelID();
+            hash = hash * 31 + entity.getName().hashCode();
+            hash = hash * 31 + Float.floatToIntBits(entity.getPosition().x);
+            hash = hash * 31 + Float.floatToIntBits(entity.getPosition().y);
+            hash = hash * 31 + Float.floatToIntBits(entity.getPosition().z);
+            hash = hash * 31 + Float.floatToIntBits(entity.getRotation().x);
+            hash = hash * 31 + Float.floatToIntBits(entity.getRotation().y);
+            hash = hash * 31 + Float.floatToIntBits(entity.getRotation().z);
+            hash = hash * 31 + Float.floatToIntBits(entity.getScale());
+            hash = hash * 31 + (entity.getParent() != null ? entity.getParent().getID() : -1);
+            hash = hash * 31 + entity.getChildren().size();
+            hash = hash * 31 + (entity.getMovementController() != null ? entity.getMovementController().getType().ordinal() : -1);
+            hash = hash * 31 + (entity.getRotationController() != null ? entity.getRotationController().getMode().ordinal() : -1);
+            checksum += hash;
+        }
+        return checksum;
+    }
+
+    // Writes a scene of about size bytes and returns its entity count
+    private static int generate(Path path, long size) throws IOException {
+        Random random = new Random(size);
+        int entities = 0;
+        try (Writer writer = Files.newBufferedWriter(path)) {
+            writer.write("{\"scene\":{\"models\":{},\"materials\":{");
+            for (int i = 0; i < MATERIALS; i++) {
+                writer.write((i > 0 ? "," : "") + "\"" + i + "\":{\"name\":\"Material " + i + "\",\"albedoColor\":" + vector(random)
+                    + ",\"metallicFactor\":" + random.nextFloat() + ",\"roughnessFactor\":" + random.nextFloat() + ",\"emissiveColor\":" + vector(random) + "}");
+            }
+            writer.write("},\"dirLight\":{\"direction\":" + vector(random) + ",\"color\":" + vector(random) + "},\"entities\":{");
+
+            long written = 0;
+            StringBuilder entity = new StringBuilder();
+            while (written < size) {
+                int id = entities++;
+                // Every third entity is the child of the one before it
+                boolean child = id % 3 == 1;
+                boolean parent = id % 3 == 0;
+
+                entity.setLength(0);
+                entity.append(id > 0 ? "," : "").append('"').append(id).append("\":{")
+                    .append("\"id\":").append(id)
+                    .append(",\"name\":\"Entity ").append(id).append('"')
+                    .append(",\"modelID\":").append(random.nextInt(16))
+                    .append(",\"position\":").append(vector(random.nextFloat() * 1000.0f - 500.0f, random.nextFloat() * 100.0f, random.nextFloat() * 1000.0f - 500.0f))
+                    .append(",\"rotation\":").append(vector(0.0f, random.nextFloat() * 360.0f, 0.0f))
+                    .append(",\"scale\":").append(0.5f + random.nextFloat())
+                    .append(",\"parent\":").append(child ? String.valueOf(id - 1) : "null")
+                    .append(",\"children\":[").append(parent ? String.valueOf(id + 1) : "").append(']');
+                if (id % 5 == 0) {
+                    entity.append(",\"movementController\":{\"type\":\"ORBIT\",\"mode\":\"CONSTANT\",\"speed\":").append(random.nextFloat())
+                        .append(",\"center\":").append(vector(random)).append(",\"axis\":").append(vector(0.0f, 1.0f, 0.0f))
+                        .append(",\"radius\":").append(1.0f + random.nextFloat() * 10.0f).append('}')
+                        .append(",\"rotationController\":{\"mode\":\"CONSTANT\",\"speed\":").append(vector(random))
+                        .append(",\"acceleration\":").append(vector(0.0f, 0.0f, 0.0f)).append(",\"stopAtZeroSpeed\":false}");
+                } else {
+                    entity.append(",\"movementController\":null,\"rotationController\":null");
+                }
+                entity.append('}');
+
+                writer.append(entity);
+                written += entity.length();
+            }
+
+            // The last parent's child wasn't written
+            if (entities % 3 == 1) {
+                writer.write(",\"" + entities + "\":{\"id\":" + entities + ",\"name\":\"Entity " + entities + "\",\"modelID\":0,\"position\":"
+                    + vector(0.0f, 0.0f, 0.0f) + ",\"rotation\":" + vector(0.0f, 0.0f, 0.0f) + ",\"scale\":1.0,\"parent\":" + (entities - 1)
+                    + ",\"children\":[],\"movementController\":null,\"rotationController\":null}");
+                entities++;
+            }
+            writer.write("}}}");
+        }
+        return entities;
+    }
+
+    private static String vector(Random random) {
+        return vector(random.nextFloat(), random.nextFloat(), random.nextFloat());
+    }
+
+    private static String vector(float x, float y, float z) {
+        return "{\"x\":" + x + ",\"y\":" + y + ",\"z\":" + z + "}";
+    }
+
+    private static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void resetPeaks() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    // The sum of the heap pools' peaks, an upper bound on the heap in use at any one time
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
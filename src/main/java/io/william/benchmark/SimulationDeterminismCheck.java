@@ -0,0 +1,138 @@
+package io.william.benchmark;
+
+import io.william.game.component.MovementController;
+import io.william.game.component.RotationController;
+import io.william.renderer.Entity;
+import io.william.renderer.Scene;
+import io.william.util.JobSystem;
+import org.joml.Vector3f;
+
+import java.util.List;
+import java.util.Random;
+
+// Simulates the same scene of orbiting, rotating entities on one thread and on a pool, as Main.tick does, and checks
+// that every tick gives bit-identical positions and rotations and the same updated queue order
+// A tenth of the entities are children of the one before them, so that updates also propagate down hierarchies
+// Run with the number of threads as the argument, all of the processors by default
+// Exits with status 1 if the results differ
+public class SimulationDeterminismCheck {
+
+    private static final int ENTITIES = 100_000;
+    private static final int TICKS = 60;
+    private static final float TICK_DURATION = 1.0f / 60.0f;
+
+    public static void main(String[] args) {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        Scene serialScene = createScene();
+        Scene parallelScene = createScene();
+        JobSystem serial = new JobSystem(1);
+        JobSystem parallel = new JobSystem(threads);
+
+        int[] serialOrder = new int[ENTITIES];
+        int[] parallelOrder = new int[ENTITIES];
+        boolean passed = true;
+        try {
+            for (int tick = 0; tick < TICKS && passed; tick++) {
+                int serialCount = tick(serialScene, serial, serialOrder);
+                int parallelCount = tick(parallelScene, parallel, parallelOrder);
+
+                String difference = compare(serialScene, parallelScene, serialOrder, serialCount, parallelOrder, parallelCount);
+                if (difference != null) {
+                    System.out.println("Tick " + tick + ": " + difference);
+                    passed = false;
+                }
+            }
+        } finally {
+            parallel.shutdown();
+        }
+
+        System.out.println(passed
+            ? ENTITIES + " entities over " + TICKS + " ticks are identical on 1 and " + parallel.getThreads() + " threads"
+            : "Serial and parallel simulation differ");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    // Main.tick without the lights and rendering, returns the number of updated entities written to order
+    private static int tick(Scene scene, JobSystem jobSystem, int[] order) {
+        scene.settleWorldMatrices();
+        scene.simulateEntities(jobSystem, TICK_DURATION);
+
+        List<Entity> updatedEntities = scene.getUpdatedEntities();
+        for (int i = 0; i < updatedEntities.size(); i++) {
+            order[i] = updatedEntities.get(i).getID();
+        }
+        int count = updatedEntities.size();
+
+        scene.updateWorldMatrices();
+        scene.clearUpdatedEntities();
+        return count;
+    }
+
+    private static String compare(Scene a, Scene b, int[] orderA, int countA, int[] orderB, int countB) {
+        if (countA != countB) {
+            return countA + " and " + countB + " updated entities";
+        }
+        for (int i = 0; i < countA; i++) {
+            if (orderA[i] != orderB[i]) {
+                return "updated entity " + i + " is " + orderA[i] + " and " + orderB[i];
+            }
+        }
+
+        List<Entity> entitiesA = a.getEntities();
+        List<Entity> entitiesB = b.getEntities();
+        for (int i = 0; i < entitiesA.size(); i++) {
+            Entity entityA = entitiesA.get(i);
+            Entity entityB = entitiesB.get(i);
+            if (!bitEquals(entityA.getRelativePosition(), entityB.getRelativePosition())) {
+                return "entity " + entityA.getID() + " is at " + entityA.getRelativePosition() + " and " + entityB.getRelativePosition();
+            }
+            if (!bitEquals(entityA.getRotation(), entityB.getRotation())) {
+                return "entity " + entityA.getID() + " is rotated " + entityA.getRotation() + " and " + entityB.getRotation();
+            }
+        }
+        return null;
+    }
+
+    private static boolean bitEquals(Vector3f a, Vector3f b) {
+        return Float.floatToRawIntBits(a.x) == Float.floatToRawIntBits(b.x)
+            && Float.floatToRawIntBits(a.y) == Float.floatToRawIntBits(b.y)
+            && Float.floatToRawIntBits(a.z) == Float.floatToRawIntBits(b.z);
+    }
+
+    private static Scene createScene() {
+        Scene scene = new Scene();
+        Random random = new Random(42);
+
+        Entity previous = null;
+        for (int i = 0; i < ENTITIES; i++) {
+            Vector3f center = new Vector3f(random.nextFloat() * 1000.0f - 500.0f, random.nextFloat() * 100.0f, random.nextFloat() * 1000.0f - 500.0f);
+            float radius = 1.0f + random.nextFloat() * 10.0f;
+
+            Entity entity;
+            if (i % 10 == 1) {
+                // Only rotates, and moves with the orbiting parent
+                entity = new Entity(new Vector3f(radius, 0, 0), "Entity " + i, previous);
+                previous.addChild(entity);
+            } else {
+                entity = new Entity(new Vector3f(center).add(radius, 0, 0), new Vector3f(), 1.0f, "Entity " + i);
+                entity.setMovementController(MovementController.orbit(scene, MovementController.Mode.CONSTANT, center,
+                    new Vector3f(0, 1, 0), radius, random.nextFloat() * 2.0f));
+            }
+
+            RotationController rotationController = new RotationController(new Vector3f(random.nextFloat() * 90.0f, random.nextFloat() * 90.0f, 0));
+            rotationController.setMode(RotationController.Mode.CONSTANT);
+            entity.setRotationController(rotationController);
+
+            scene.addEntity(entity);
+            previous = entity;
+        }
+
+        // Calculate the initial world matrices, as the first frame would
+        scene.updateWorldMatrices();
+        scene.clearUpdatedEntities();
+        return scene;
+    }
+}
@@ -0,0 +1,137 @@
+package io.william.benchmark;
+
+import io.william.renderer.MeshData;
+import io.william.renderer.VertexQuantization;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.assimp.AIMesh;
+import org.lwjgl.assimp.AIScene;
+import org.lwjgl.assimp.AIVector3D;
+
+import static org.lwjgl.assimp.Assimp.*;
+
+// Round trips every vertex of the given models (the shipped ones by default) through SceneMesh's quantized vertex
+// format and checks the error against its bounds:
+//  - positions and texture coordinates within one 16-bit step of the mesh's bounds on each axis
+//  - normals within MAX_NORMAL_ERROR_DEGREES
+// Exits with status 1 if any mesh is outside them
+public class VertexQuantizationCheck {
+
+    private static final String[] SHIPPED_MODELS = { "src/main/resources/models/helmet/DamagedHelmet.gltf" };
+    // 16-bit octahedral encoding alone is around 0.005 degrees, the rest is the decode's float precision (as on the GPU)
+    private static final float MAX_NORMAL_ERROR_DEGREES = 0.05f;
+
+    // Largest errors of a mesh: position and texture coordinates in steps of 1/65535 of the bounds, normals in degrees
+    public record Errors(float positionSteps, float texCoordSteps, float normalDegrees) {
+
+        public boolean withinBounds() {
+            return positionSteps <= 1.0f && texCoordSteps <= 1.0f && normalDegrees <= MAX_NORMAL_ERROR_DEGREES;
+        }
+    }
+
+    public static void main(String[] args) {
+        String[] models = args.length > 0 ? args : SHIPPED_MODELS;
+
+        boolean passed = true;
+        for (String model : models) {
+            AIScene aiScene = aiImportFile(model, aiProcess_GenSmoothNormals | aiProcess_JoinIdenticalVertices
+                | aiProcess_Triangulate | aiProcess_PreTransformVertices | aiProcess_FlipUVs);
+            if (aiScene == null) {
+                System.out.println("Failed to load model: " + model);
+                passed = false;
+                continue;
+            }
+
+            PointerBuffer aiMeshes = aiScene.mMeshes();
+            for (int i = 0; i < aiScene.mNumMeshes(); i++) {
+                Errors errors = check(toMeshData(AIMesh.create(aiMeshes.get(i))));
+                passed &= errors.withinBounds();
+                System.out.println(String.format("%s mesh %d: position %.3f steps, texture coordinates %.3f steps, normal %.5f degrees%s",
+                    model, i, errors.positionSteps(), errors.texCoordSteps(), errors.normalDegrees(), errors.withinBounds() ? "" : " FAILED"));
+            }
+
+            aiReleaseImport(aiScene);
+        }
+
+        System.out.println(passed ? "All meshes within bounds" : "Some meshes are outside the bounds");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    public static Errors check(MeshData meshData) {
+        float[] positions = meshData.getPositions();
+        float[] normals = meshData.getNormals();
+        float[] texCoords = meshData.getTexCoords();
+        float[] min = { meshData.getBoundsMin().x, meshData.getBoundsMin().y, meshData.getBoundsMin().z };
+        float[] max = { meshData.getBoundsMax().x, meshData.getBoundsMax().y, meshData.getBoundsMax().z };
+        float[] texCoordsMin = { meshData.getTexCoordsMin().x, meshData.getTexCoordsMin().y };
+        float[] texCoordsMax = { meshData.getTexCoordsMax().x, meshData.getTexCoordsMax().y };
+
+        float positionSteps = 0;
+        float texCoordSteps = 0;
+        double normalDegrees = 0;
+        short[] encoded = new short[2];
+        float[] decoded = new float[3];
+
+        for (int v = 0; v < positions.length / 3; v++) {
+            for (int axis = 0; axis < 3; axis++) {
+                positionSteps = Math.max(positionSteps, roundTripSteps(positions[v * 3 + axis], min[axis], max[axis] - min[axis]));
+            }
+            for (int axis = 0; axis < 2 && v * 2 + axis < texCoords.length; axis++) {
+                texCoordSteps = Math.max(texCoordSteps, roundTripSteps(texCoords[v * 2 + axis], texCoordsMin[axis], texCoordsMax[axis] - texCoordsMin[axis]));
+            }
+
+            float x = normals[v * 3], y = normals[v * 3 + 1], z = normals[v * 3 + 2];
+            double length = Math.sqrt(x * x + y * y + z * z);
+            if (length > 0) {
+                VertexQuantization.encodeOctahedral(x, y, z, encoded);
+                VertexQuantization.decodeOctahedral(encoded[0], encoded[1], decoded);
+                double cos = (x * decoded[0] + y * decoded[1] + z * decoded[2]) / length;
+                normalDegrees = Math.max(normalDegrees, Math.toDegrees(Math.acos(Math.min(cos, 1.0))));
+            }
+        }
+
+        return new Errors(positionSteps, texCoordSteps, (float) normalDegrees);
+    }
+
+    // Error of a value after quantizing it to 16 bits of [offset, offset + scale], in quantization steps
+    private static float roundTripSteps(float value, float offset, float scale) {
+        if (scale <= 0) {
+            return value == offset ? 0 : Float.POSITIVE_INFINITY;
+        }
+        float decoded = VertexQuantization.dequantizeUnorm16(VertexQuantization.quantizeUnorm16(value, offset, scale), offset, scale);
+        return Math.abs(decoded - value) / (scale / 65535.0f);
+    }
+
+    private static MeshData toMeshData(AIMesh aiMesh) {
+        int vertexCount = aiMesh.mNumVertices();
+        float[] positions = new float[vertexCount * 3];
+        float[] normals = new float[vertexCount * 3];
+        float[] texCoords = new float[vertexCount * 2];
+
+        AIVector3D.Buffer aiVertices = aiMesh.mVertices();
+        AIVector3D.Buffer aiNormals = aiMesh.mNormals();
+        AIVector3D.Buffer aiTexCoords = aiMesh.mTextureCoords(0);
+        for (int i = 0; i < vertexCount; i++) {
+            AIVector3D vertex = aiVertices.get(i);
+            positions[i * 3] = vertex.x();
+            positions[i * 3 + 1] = vertex.y();
+            positions[i * 3 + 2] = vertex.z();
+
+            if (aiNormals != null) {
+                AIVector3D normal = aiNormals.get(i);
+                normals[i * 3] = normal.x();
+                normals[i * 3 + 1] = normal.y();
+                normals[i * 3 + 2] = normal.z();
+            }
+
+            if (aiTexCoords != null) {
+                AIVector3D texCoord = aiTexCoords.get(i);
+                texCoords[i * 2] = texCoord.x();
+                texCoords[i * 2 + 1] = texCoord.y();
+            }
+        }
+
+        return new MeshData(positions, normals, new float[0], new float[0], texCoords, new int[0]);
+    }
+}
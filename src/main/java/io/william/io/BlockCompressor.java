@@ -0,0 +1,300 @@
+package io.william.io;
+
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+
+// Encoders for the block-compressed formats TextureCooker writes. Each compresses a level of 8-bit RGBA pixels into
+// 4x4 blocks, row by row, with the last row and column repeated to fill blocks at the edges
+//  - BC4: one channel, 8 bytes per block
+//  - BC5: two channels as two BC4 blocks, 16 bytes per block
+//  - BC7: RGBA in mode 6 only (one subset, 7-bit endpoints with a p-bit each, 4-bit indices), 16 bytes per block
+// Block rows are encoded in parallel, since this runs offline on whole mip chains
+public class BlockCompressor {
+
+    public static final int BC4_BLOCK_BYTES = 8;
+    public static final int BC5_BLOCK_BYTES = 16;
+    public static final int BC7_BLOCK_BYTES = 16;
+
+    private static final int[] BC7_WEIGHTS = { 0, 4, 9, 13, 17, 21, 26, 30, 34, 38, 43, 47, 51, 55, 60, 64 };
+    private static final int POWER_ITERATIONS = 8;
+
+    public static int getCompressedSize(int width, int height, int blockBytes) {
+        return ((width + 3) / 4) * ((height + 3) / 4) * blockBytes;
+    }
+
+    // Writes to dest from its position, and advances it
+    public static void compressBC4(ByteBuffer pixels, int width, int height, ByteBuffer dest) {
+        compress(pixels, width, height, dest, BC4_BLOCK_BYTES, (block, out, offset) -> encodeBC4Block(block, 0, out, offset));
+    }
+
+    public static void compressBC5(ByteBuffer pixels, int width, int height, ByteBuffer dest) {
+        compress(pixels, width, height, dest, BC5_BLOCK_BYTES, (block, out, offset) -> {
+            encodeBC4Block(block, 0, out, offset);
+            encodeBC4Block(block, 1, out, offset + BC4_BLOCK_BYTES);
+        });
+    }
+
+    public static void compressBC7(ByteBuffer pixels, int width, int height, ByteBuffer dest) {
+        compress(pixels, width, height, dest, BC7_BLOCK_BYTES, BlockCompressor::encodeBC7Block);
+    }
+
+    private interface BlockEncoder {
+        void encode(int[] block, ByteBuffer dest, int offset);
+    }
+
+    private static void compress(ByteBuffer pixels, int width, int height, ByteBuffer dest, int blockBytes, BlockEncoder encoder) {
+        int blocksX = (width + 3) / 4;
+        int blocksY = (height + 3) / 4;
+        int start = dest.position();
+
+        IntStream.range(0, blocksY).parallel().forEach(blockY -> {
+            int[] block = new int[16 * 4];
+            for (int blockX = 0; blockX < blocksX; blockX++) {
+                for (int i = 0; i < 16; i++) {
+                    int x = Math.min(blockX * 4 + (i & 3), width - 1);
+                    int y = Math.min(blockY * 4 + (i >> 2), height - 1);
+                    int pixel = (y * width + x) * 4;
+                    for (int c = 0; c < 4; c++) {
+                        block[i * 4 + c] = pixels.get(pixels.position() + pixel + c) & 0xFF;
+                    }
+                }
+                encoder.encode(block, dest, start + (blockY * blocksX + blockX) * blockBytes);
+            }
+        });
+
+        dest.position(start + blocksX * blocksY * blockBytes);
+    }
+
+    // Endpoints are the channel's extremes with red0 > red1, which selects the palette of both endpoints and six
+    // values evenly between them. A flat block has red0 == red1 and every index 0
+    private static void encodeBC4Block(int[] block, int channel, ByteBuffer dest, int offset) {
+        int min = 255;
+        int max = 0;
+        for (int i = 0; i < 16; i++) {
+            min = Math.min(min, block[i * 4 + channel]);
+            max = Math.max(max, block[i * 4 + channel]);
+        }
+
+        long indices = 0;
+        if (max > min) {
+            int[] palette = new int[8];
+            palette[0] = max;
+            palette[1] = min;
+            for (int i = 2; i < 8; i++) {
+                palette[i] = ((8 - i) * max + (i - 1) * min + 3) / 7;
+            }
+
+            for (int i = 0; i < 16; i++) {
+                int value = block[i * 4 + channel];
+                int bestIndex = 0;
+                int bestError = Integer.MAX_VALUE;
+                for (int j = 0; j < 8; j++) {
+                    int error = Math.abs(value - palette[j]);
+                    if (error < bestError) {
+                        bestError = error;
+                        bestIndex = j;
+                    }
+                }
+                indices |= (long) bestIndex << (3 * i);
+            }
+        }
+
+        dest.put(offset, (byte) max);
+        dest.put(offset + 1, (byte) min);
+        for (int i = 0; i < 6; i++) {
+            dest.put(offset + 2 + i, (byte) (indices >>> (8 * i)));
+        }
+    }
+
+    private static class BC7Candidate {
+
+        private final int[] endpoints = new int[8];  // 7-bit RGBA of endpoint 0, then endpoint 1
+        private final int[] pBits = new int[2];
+        private final int[] indices = new int[16];
+        private long error = Long.MAX_VALUE;
+    }
+
+    // Endpoints start at the extremes of the block's colours along their principal axis, then are refit by least
+    // squares to the indices chosen for them. Each fit tries all four p-bit combinations
+    private static void encodeBC7Block(int[] block, ByteBuffer dest, int offset) {
+        float[] mean = new float[4];
+        for (int i = 0; i < 16; i++) {
+            for (int c = 0; c < 4; c++) {
+                mean[c] += block[i * 4 + c] / 16.0f;
+            }
+        }
+
+        float[] covariance = new float[16];
+        for (int i = 0; i < 16; i++) {
+            for (int a = 0; a < 4; a++) {
+                for (int b = 0; b < 4; b++) {
+                    covariance[a * 4 + b] += (block[i * 4 + a] - mean[a]) * (block[i * 4 + b] - mean[b]);
+                }
+            }
+        }
+
+        float[] axis = { 1, 1, 1, 1 };
+        for (int iteration = 0; iteration < POWER_ITERATIONS; iteration++) {
+            float[] next = new float[4];
+            float length = 0;
+            for (int a = 0; a < 4; a++) {
+                for (int b = 0; b < 4; b++) {
+                    next[a] += covariance[a * 4 + b] * axis[b];
+                }
+                length += next[a] * next[a];
+            }
+            if (length < 1e-12f) {
+                break;
+            }
+            length = (float) Math.sqrt(length);
+            for (int a = 0; a < 4; a++) {
+                axis[a] = next[a] / length;
+            }
+        }
+
+        float minProjection = Float.MAX_VALUE;
+        float maxProjection = -Float.MAX_VALUE;
+        for (int i = 0; i < 16; i++) {
+            float projection = 0;
+            for (int c = 0; c < 4; c++) {
+                projection += (block[i * 4 + c] - mean[c]) * axis[c];
+            }
+            minProjection = Math.min(minProjection, projection);
+            maxProjection = Math.max(maxProjection, projection);
+        }
+
+        float[] endpoints = new float[8];
+        for (int c = 0; c < 4; c++) {
+            endpoints[c] = mean[c] + axis[c] * minProjection;
+            endpoints[4 + c] = mean[c] + axis[c] * maxProjection;
+        }
+
+        BC7Candidate best = fitBC7(block, endpoints);
+        refitBC7(block, best, endpoints);
+        BC7Candidate refit = fitBC7(block, endpoints);
+        if (refit.error < best.error) {
+            best = refit;
+        }
+
+        // The first index's top bit is implied to be 0, so flip the endpoints if it's set
+        if (best.indices[0] >= 8) {
+            for (int c = 0; c < 4; c++) {
+                int swap = best.endpoints[c];
+                best.endpoints[c] = best.endpoints[4 + c];
+                best.endpoints[4 + c] = swap;
+            }
+            int swap = best.pBits[0];
+            best.pBits[0] = best.pBits[1];
+            best.pBits[1] = swap;
+            for (int i = 0; i < 16; i++) {
+                best.indices[i] = 15 - best.indices[i];
+            }
+        }
+
+        long[] bits = new long[2];
+        int position = putBits(bits, 0, 1 << 6, 7);  // mode 6
+        for (int c = 0; c < 4; c++) {
+            position = putBits(bits, position, best.endpoints[c], 7);
+            position = putBits(bits, position, best.endpoints[4 + c], 7);
+        }
+        position = putBits(bits, position, best.pBits[0], 1);
+        position = putBits(bits, position, best.pBits[1], 1);
+        position = putBits(bits, position, best.indices[0], 3);
+        for (int i = 1; i < 16; i++) {
+            position = putBits(bits, position, best.indices[i], 4);
+        }
+
+        for (int i = 0; i < 16; i++) {
+            dest.put(offset + i, (byte) (bits[i >> 3] >>> ((i & 7) * 8)));
+        }
+    }
+
+    // Quantizes the endpoints with each combination of p-bits and picks the closest palette entry for each pixel
+    private static BC7Candidate fitBC7(int[] block, float[] endpoints) {
+        BC7Candidate best = new BC7Candidate();
+        int[] decoded = new int[8];
+        int[] palette = new int[16 * 4];
+
+        for (int pBits = 0; pBits < 4; pBits++) {
+            BC7Candidate candidate = new BC7Candidate();
+            candidate.pBits[0] = pBits & 1;
+            candidate.pBits[1] = pBits >> 1;
+            for (int e = 0; e < 2; e++) {
+                int p = candidate.pBits[e];
+                for (int c = 0; c < 4; c++) {
+                    int quantized = Math.round((endpoints[e * 4 + c] - p) / 2.0f);
+                    quantized = Math.max(0, Math.min(127, quantized));
+                    candidate.endpoints[e * 4 + c] = quantized;
+                    decoded[e * 4 + c] = (quantized << 1) | p;
+                }
+            }
+
+            for (int k = 0; k < 16; k++) {
+                int weight = BC7_WEIGHTS[k];
+                for (int c = 0; c < 4; c++) {
+                    palette[k * 4 + c] = ((64 - weight) * decoded[c] + weight * decoded[4 + c] + 32) >> 6;
+                }
+            }
+
+            candidate.error = 0;
+            for (int i = 0; i < 16; i++) {
+                int bestError = Integer.MAX_VALUE;
+                for (int k = 0; k < 16; k++) {
+                    int error = 0;
+                    for (int c = 0; c < 4; c++) {
+                        int difference = block[i * 4 + c] - palette[k * 4 + c];
+                        error += difference * difference;
+                    }
+                    if (error < bestError) {
+                        bestError = error;
+                        candidate.indices[i] = k;
+                    }
+                }
+                candidate.error += bestError;
+            }
+
+            if (candidate.error < best.error) {
+                best = candidate;
+            }
+        }
+
+        return best;
+    }
+
+    // Endpoints that minimise the squared error of each channel for the candidate's indices
+    private static void refitBC7(int[] block, BC7Candidate candidate, float[] endpoints) {
+        float aa = 0;
+        float ab = 0;
+        float bb = 0;
+        float[] ax = new float[4];
+        float[] bx = new float[4];
+        for (int i = 0; i < 16; i++) {
+            float b = BC7_WEIGHTS[candidate.indices[i]] / 64.0f;
+            float a = 1.0f - b;
+            aa += a * a;
+            ab += a * b;
+            bb += b * b;
+            for (int c = 0; c < 4; c++) {
+                ax[c] += a * block[i * 4 + c];
+                bx[c] += b * block[i * 4 + c];
+            }
+        }
+
+        float determinant = aa * bb - ab * ab;
+        if (Math.abs(determinant) < 1e-6f) {
+            return;
+        }
+        for (int c = 0; c < 4; c++) {
+            endpoints[c] = Math.max(0, Math.min(255, (bb * ax[c] - ab * bx[c]) / determinant));
+            endpoints[4 + c] = Math.max(0, Math.min(255, (aa * bx[c] - ab * ax[c]) / determinant));
+        }
+    }
+
+    // Blocks are little endian bit streams, starting at the lowest bit of the first byte
+    private static int putBits(long[] bits, int position, long value, int count) {
+        for (int i = 0; i < count; i++, position++) {
+            bits[position >> 6] |= ((value >>> i) & 1) << (position & 63);
+        }
+        return position;
+    }
+}
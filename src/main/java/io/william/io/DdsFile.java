@@ -0,0 +1,154 @@
+package io.william.io;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static org.lwjgl.opengl.GL30.GL_COMPRESSED_RED_RGTC1;
+import static org.lwjgl.opengl.GL30.GL_COMPRESSED_RG_RGTC2;
+import static org.lwjgl.opengl.GL42.GL_COMPRESSED_RGBA_BPTC_UNORM;
+import static org.lwjgl.opengl.GL42.GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM;
+
+// Block-compressed 2D textures with their mips in a DDS file, the container TextureCooker writes
+// Only the subset that's needed is supported: a DX10 header with a BC4, BC5 or BC7 format, one image, and the
+// levels stored one after another from the largest
+public record DdsFile(int format, int width, int height, int levelCount, ByteBuffer data) {
+
+    private static final int MAGIC = 0x20534444;  // "DDS "
+    private static final int HEADER_SIZE = 124;
+    private static final int PIXEL_FORMAT_SIZE = 32;
+    private static final int DATA_OFFSET = 4 + HEADER_SIZE + 20;
+
+    private static final int DDSD_CAPS = 0x1;
+    private static final int DDSD_HEIGHT = 0x2;
+    private static final int DDSD_WIDTH = 0x4;
+    private static final int DDSD_PIXELFORMAT = 0x1000;
+    private static final int DDSD_MIPMAPCOUNT = 0x20000;
+    private static final int DDSD_LINEARSIZE = 0x80000;
+    private static final int DDPF_FOURCC = 0x4;
+    private static final int FOURCC_DX10 = 0x30315844;  // "DX10"
+    private static final int DDSCAPS_COMPLEX = 0x8;
+    private static final int DDSCAPS_TEXTURE = 0x1000;
+    private static final int DDSCAPS_MIPMAP = 0x400000;
+    private static final int DIMENSION_TEXTURE2D = 3;
+
+    private static final int DXGI_FORMAT_BC4_UNORM = 80;
+    private static final int DXGI_FORMAT_BC5_UNORM = 83;
+    private static final int DXGI_FORMAT_BC7_UNORM = 98;
+    private static final int DXGI_FORMAT_BC7_UNORM_SRGB = 99;
+
+    // Bytes per 4x4 block of a compressed GL format, 0 if it isn't one of the supported ones
+    public static int getBlockBytes(int format) {
+        return switch (format) {
+            case GL_COMPRESSED_RED_RGTC1 -> BlockCompressor.BC4_BLOCK_BYTES;
+            case GL_COMPRESSED_RG_RGTC2 -> BlockCompressor.BC5_BLOCK_BYTES;
+            case GL_COMPRESSED_RGBA_BPTC_UNORM, GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM -> BlockCompressor.BC7_BLOCK_BYTES;
+            default -> 0;
+        };
+    }
+
+    public int getLevelSize(int level) {
+        return BlockCompressor.getCompressedSize(Math.max(1, width >> level), Math.max(1, height >> level), getBlockBytes(format));
+    }
+
+    // Maps the file, so data is only valid as long as the record is reachable
+    public static DdsFile read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < DATA_OFFSET) {
+                throw new IOException("truncated header");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != HEADER_SIZE) {
+                throw new IOException("not a DDS file");
+            }
+            int flags = buffer.getInt(8);
+            int height = buffer.getInt(12);
+            int width = buffer.getInt(16);
+            int levelCount = (flags & DDSD_MIPMAPCOUNT) != 0 ? Math.max(1, buffer.getInt(28)) : 1;
+            if ((buffer.getInt(80) & DDPF_FOURCC) == 0 || buffer.getInt(84) != FOURCC_DX10) {
+                throw new IOException("only DX10 headers are supported");
+            }
+
+            int format = switch (buffer.getInt(128)) {
+                case DXGI_FORMAT_BC4_UNORM -> GL_COMPRESSED_RED_RGTC1;
+                case DXGI_FORMAT_BC5_UNORM -> GL_COMPRESSED_RG_RGTC2;
+                case DXGI_FORMAT_BC7_UNORM -> GL_COMPRESSED_RGBA_BPTC_UNORM;
+                case DXGI_FORMAT_BC7_UNORM_SRGB -> GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM;
+                default -> throw new IOException("unsupported DXGI format " + buffer.getInt(128));
+            };
+            if (buffer.getInt(132) != DIMENSION_TEXTURE2D || buffer.getInt(140) != 1) {
+                throw new IOException("only single 2D textures are supported");
+            }
+            if (width <= 0 || height <= 0 || levelCount > 32 - Integer.numberOfLeadingZeros(Math.max(width, height))) {
+                throw new IOException("invalid size " + width + "x" + height + " with " + levelCount + " levels");
+            }
+
+            DdsFile ddsFile = new DdsFile(format, width, height, levelCount, buffer.slice(DATA_OFFSET, buffer.capacity() - DATA_OFFSET));
+            long size = 0;
+            for (int level = 0; level < levelCount; level++) {
+                size += ddsFile.getLevelSize(level);
+            }
+            if (size > ddsFile.data.capacity()) {
+                throw new IOException("truncated data");
+            }
+            return ddsFile;
+        }
+    }
+
+    // Writes the levels (compressed in format, from the largest) to a temporary file first, so readers never see a
+    // partial file
+    public static void write(Path path, int format, int width, int height, ByteBuffer[] levels) throws IOException {
+        int dxgiFormat = switch (format) {
+            case GL_COMPRESSED_RED_RGTC1 -> DXGI_FORMAT_BC4_UNORM;
+            case GL_COMPRESSED_RG_RGTC2 -> DXGI_FORMAT_BC5_UNORM;
+            case GL_COMPRESSED_RGBA_BPTC_UNORM -> DXGI_FORMAT_BC7_UNORM;
+            case GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM -> DXGI_FORMAT_BC7_UNORM_SRGB;
+            default -> throw new IllegalArgumentException("unsupported format " + format);
+        };
+
+        ByteBuffer header = MemoryUtil.memCalloc(DATA_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, MAGIC);
+        header.putInt(4, HEADER_SIZE);
+        header.putInt(8, DDSD_CAPS | DDSD_HEIGHT | DDSD_WIDTH | DDSD_PIXELFORMAT | DDSD_MIPMAPCOUNT | DDSD_LINEARSIZE);
+        header.putInt(12, height);
+        header.putInt(16, width);
+        header.putInt(20, levels[0].remaining());
+        header.putInt(28, levels.length);
+        header.putInt(76, PIXEL_FORMAT_SIZE);
+        header.putInt(80, DDPF_FOURCC);
+        header.putInt(84, FOURCC_DX10);
+        header.putInt(108, DDSCAPS_TEXTURE | DDSCAPS_MIPMAP | DDSCAPS_COMPLEX);
+        header.putInt(128, dxgiFormat);
+        header.putInt(132, DIMENSION_TEXTURE2D);
+        header.putInt(140, 1);
+
+        Path temporaryPath = path.resolveSibling(path.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                for (ByteBuffer level : levels) {
+                    ByteBuffer data = level.duplicate();
+                    while (data.hasRemaining()) {
+                        channel.write(data);
+                    }
+                }
+            }
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporaryPath);
+            throw e;
+        } finally {
+            MemoryUtil.memFree(header);
+        }
+    }
+}
@@ -0,0 +1,586 @@
+package io.william.io;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+// Pull parser for JSON, read token by token through a fixed-size buffer so that memory use doesn't grow with the
+// input. Only the nesting depth is tracked, nothing is kept of values that have been read
+// Numbers are parsed straight from the buffer's characters: up to 18 significant digits are gathered into a long and
+// scaled by an exact power of ten, which is correctly rounded whenever both are exactly representable. Only the other
+// numbers (long mantissas, large exponents, and floats that land exactly between two others) go through
+// Double.parseDouble or Float.parseFloat, so every value is the same as theirs
+public class JsonReader implements Closeable {
+
+    public enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_NUMBER_LENGTH = 256;
+    private static final int MAX_FAST_EXPONENT = 22;
+    private static final long MAX_FAST_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = new double[MAX_FAST_EXPONENT + 1];
+
+    // Scopes on the nesting stack
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int DANGLING_NAME = 3;
+    private static final int NONEMPTY_OBJECT = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i <= MAX_FAST_EXPONENT; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+        }
+    }
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private long bufferStart;  // Characters before the buffer
+
+    private int[] stack = new int[32];
+    private int depth = 1;
+    private Token peeked;
+
+    // The number scanned by the last call to scanNumber
+    private int numberStart;
+    private int numberLength;
+    private long mantissa;
+    private int exponent;
+    private boolean negative;
+    private boolean integral;
+    private boolean exact;
+
+    private final StringBuilder string = new StringBuilder();
+
+    public JsonReader(Reader reader) {
+        this.reader = reader;
+        stack[0] = EMPTY_DOCUMENT;
+    }
+
+    // Characters read so far, for progress reporting
+    public long getCharCount() {
+        return bufferStart + position;
+    }
+
+    public Token peek() throws IOException {
+        if (peeked != null) {
+            return peeked;
+        }
+
+        int scope = stack[depth - 1];
+        switch (scope) {
+            case EMPTY_ARRAY -> {
+                stack[depth - 1] = NONEMPTY_ARRAY;
+                if (nextNonWhitespace() == ']') {
+                    position++;
+                    return peeked = Token.END_ARRAY;
+                }
+            }
+            case NONEMPTY_ARRAY -> {
+                int c = nextNonWhitespace();
+                position++;
+                if (c == ']') {
+                    return peeked = Token.END_ARRAY;
+                } else if (c != ',') {
+                    throw syntaxError("expected ',' or ']'");
+                }
+            }
+            case EMPTY_OBJECT, NONEMPTY_OBJECT -> {
+                stack[depth - 1] = DANGLING_NAME;
+                int c = nextNonWhitespace();
+                position++;
+                if (c == '}') {
+                    return peeked = Token.END_OBJECT;
+                }
+                if (scope == NONEMPTY_OBJECT) {
+                    if (c != ',') {
+                        throw syntaxError("expected ',' or '}'");
+                    }
+                    c = nextNonWhitespace();
+                    position++;
+                }
+                if (c != '"') {
+                    throw syntaxError("expected a name");
+                }
+                return peeked = Token.NAME;
+            }
+            case DANGLING_NAME -> {
+                stack[depth - 1] = NONEMPTY_OBJECT;
+                if (nextNonWhitespace() != ':') {
+                    throw syntaxError("expected ':'");
+                }
+                position++;
+            }
+            case EMPTY_DOCUMENT -> stack[depth - 1] = NONEMPTY_DOCUMENT;
+            case NONEMPTY_DOCUMENT -> {
+                if (nextNonWhitespace() != -1) {
+                    throw syntaxError("expected the end of the document");
+                }
+                return peeked = Token.END_DOCUMENT;
+            }
+        }
+
+        // A value, strings are left after their opening quote and numbers and literals at their first character
+        int c = nextNonWhitespace();
+        switch (c) {
+            case '{' -> {
+                position++;
+                return peeked = Token.BEGIN_OBJECT;
+            }
+            case '[' -> {
+                position++;
+                return peeked = Token.BEGIN_ARRAY;
+            }
+            case '"' -> {
+                position++;
+                return peeked = Token.STRING;
+            }
+            case 't', 'f' -> {
+                return peeked = Token.BOOLEAN;
+            }
+            case 'n' -> {
+                return peeked = Token.NULL;
+            }
+            default -> {
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return peeked = Token.NUMBER;
+                }
+                throw syntaxError(c == -1 ? "unexpected end of the document" : "unexpected character '" + (char) c + "'");
+            }
+        }
+    }
+
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        depth--;
+    }
+
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        depth--;
+    }
+
+    // Checks that nothing but whitespace follows the document
+    public void endDocument() throws IOException {
+        expect(Token.END_DOCUMENT);
+    }
+
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        return readString();
+    }
+
+    public String nextString() throws IOException {
+        expect(Token.STRING);
+        return readString();
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        if (buffer[position] == 't') {
+            readLiteral("true");
+            return true;
+        }
+        readLiteral("false");
+        return false;
+    }
+
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+        readLiteral("null");
+    }
+
+    // Whether the next value is null, which is then skipped
+    public boolean nextIfNull() throws IOException {
+        if (peek() == Token.NULL) {
+            nextNull();
+            return true;
+        }
+        return false;
+    }
+
+    public double nextDouble() throws IOException {
+        expect(Token.NUMBER);
+        scanNumber();
+        double value = getFastDouble();
+        if (Double.isNaN(value)) {
+            value = Double.parseDouble(new String(buffer, numberStart, numberLength));
+        }
+        position += numberLength;
+        return value;
+    }
+
+    public float nextFloat() throws IOException {
+        expect(Token.NUMBER);
+        scanNumber();
+        double value = getFastDouble();
+        float result = (float) value;
+        // Rounding to double and then to float only differs from rounding to float once when the double is exactly
+        // halfway between two floats
+        if (Double.isNaN(value) || (result != value && !Float.isInfinite(result)
+            && value == ((double) result + (double) (value > result ? Math.nextUp(result) : Math.nextDown(result))) / 2.0)) {
+            result = Float.parseFloat(new String(buffer, numberStart, numberLength));
+        }
+        position += numberLength;
+        return result;
+    }
+
+    public long nextLong() throws IOException {
+        expect(Token.NUMBER);
+        scanNumber();
+        if (!integral) {
+            throw syntaxError("expected an integer");
+        }
+        long value;
+        if (exact && exponent == 0) {
+            value = negative ? -mantissa : mantissa;
+        } else {
+            try {
+                value = Long.parseLong(new String(buffer, numberStart, numberLength));
+            } catch (NumberFormatException e) {
+                throw syntaxError("integer out of range");
+            }
+        }
+        position += numberLength;
+        return value;
+    }
+
+    public int nextInt() throws IOException {
+        long value = nextLong();
+        if (value != (int) value) {
+            throw syntaxError("integer out of range");
+        }
+        return (int) value;
+    }
+
+    public void skipValue() throws IOException {
+        int count = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT -> {
+                    beginObject();
+                    count++;
+                }
+                case BEGIN_ARRAY -> {
+                    beginArray();
+                    count++;
+                }
+                case END_OBJECT -> {
+                    endObject();
+                    count--;
+                }
+                case END_ARRAY -> {
+                    endArray();
+                    count--;
+                }
+                case NAME -> nextName();
+                case STRING -> nextString();
+                case NUMBER -> {
+                    peeked = null;
+                    scanNumber();
+                    position += numberLength;
+                }
+                case BOOLEAN -> nextBoolean();
+                case NULL -> nextNull();
+                case END_DOCUMENT -> throw syntaxError("unexpected end of the document");
+            }
+        } while (count > 0);
+    }
+
+    // The next value as the json-simple tree JSONParser would have built, for the small parts of a document that are
+    // parsed by the existing tree-based code: integers are Longs and other numbers Doubles
+    public Object readValue() throws IOException {
+        switch (peek()) {
+            case BEGIN_OBJECT -> {
+                JSONObject object = new JSONObject();
+                beginObject();
+                while (hasNext()) {
+                    String name = nextName();
+                    object.put(name, readValue());
+                }
+                endObject();
+                return object;
+            }
+            case BEGIN_ARRAY -> {
+                JSONArray array = new JSONArray();
+                beginArray();
+                while (hasNext()) {
+                    array.add(readValue());
+                }
+                endArray();
+                return array;
+            }
+            case STRING -> {
+                return nextString();
+            }
+            case NUMBER -> {
+                scanNumber();
+                return integral ? (Object) nextLong() : (Object) nextDouble();
+            }
+            case BOOLEAN -> {
+                return nextBoolean();
+            }
+            case NULL -> {
+                nextNull();
+                return null;
+            }
+            default -> throw syntaxError("expected a value");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void expect(Token token) throws IOException {
+        if (peek() != token) {
+            throw syntaxError("expected " + token + " but was " + peeked);
+        }
+        peeked = null;
+    }
+
+    private void push(int scope) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = scope;
+    }
+
+    // Makes at least minimum characters available from position unless the input ends first
+    private boolean fill(int minimum) throws IOException {
+        if (limit - position >= minimum) {
+            return true;
+        }
+        bufferStart += position;
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+
+        int read;
+        while (limit < minimum && (read = reader.read(buffer, limit, buffer.length - limit)) != -1) {
+            limit += read;
+        }
+        return limit >= minimum;
+    }
+
+    // The next character that isn't whitespace without consuming it, -1 at the end of the input
+    private int nextNonWhitespace() throws IOException {
+        while (position < limit || fill(1)) {
+            char c = buffer[position];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+            position++;
+        }
+        return -1;
+    }
+
+    private void readLiteral(String literal) throws IOException {
+        if (!fill(literal.length())) {
+            throw syntaxError("unexpected end of the document");
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (buffer[position + i] != literal.charAt(i)) {
+                throw syntaxError("expected " + literal);
+            }
+        }
+        position += literal.length();
+    }
+
+    // Reads up to the closing quote, which the opening one has already been consumed for
+    private String readString() throws IOException {
+        string.setLength(0);
+        while (true) {
+            int start = position;
+            while (position < limit) {
+                char c = buffer[position];
+                if (c == '"') {
+                    String result;
+                    if (string.length() == 0) {
+                        result = new String(buffer, start, position - start);
+                    } else {
+                        result = string.append(buffer, start, position - start).toString();
+                    }
+                    position++;
+                    return result;
+                } else if (c == '\\') {
+                    string.append(buffer, start, position - start);
+                    position++;
+                    string.append(readEscape());
+                    start = position;
+                } else {
+                    position++;
+                }
+            }
+            string.append(buffer, start, position - start);
+            if (!fill(1)) {
+                throw syntaxError("unterminated string");
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        if (!fill(1)) {
+            throw syntaxError("unterminated escape");
+        }
+        char c = buffer[position++];
+        switch (c) {
+            case 'u' -> {
+                if (!fill(4)) {
+                    throw syntaxError("unterminated escape");
+                }
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(buffer[position++], 16);
+                    if (digit < 0) {
+                        throw syntaxError("invalid unicode escape");
+                    }
+                    value = value << 4 | digit;
+                }
+                return (char) value;
+            }
+            case 'b' -> {
+                return '\b';
+            }
+            case 'f' -> {
+                return '\f';
+            }
+            case 'n' -> {
+                return '\n';
+            }
+            case 'r' -> {
+                return '\r';
+            }
+            case 't' -> {
+                return '\t';
+            }
+            case '"', '\\', '/' -> {
+                return c;
+            }
+            default -> throw syntaxError("invalid escape '\\" + c + "'");
+        }
+    }
+
+    // Scans the number at position without consuming it, so that it can be parsed again by the slow path
+    private void scanNumber() throws IOException {
+        fill(MAX_NUMBER_LENGTH);
+        numberStart = position;
+        mantissa = 0;
+        exponent = 0;
+        integral = true;
+        exact = true;
+
+        int i = position;
+        negative = i < limit && buffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+
+        int digits = 0;
+        int integerStart = i;
+        while (i < limit && buffer[i] >= '0' && buffer[i] <= '9') {
+            digits = addDigit(buffer[i++], digits, false);
+        }
+        if (i == integerStart) {
+            throw syntaxError("expected a digit");
+        }
+
+        if (i < limit && buffer[i] == '.') {
+            integral = false;
+            int fractionStart = ++i;
+            while (i < limit && buffer[i] >= '0' && buffer[i] <= '9') {
+                digits = addDigit(buffer[i++], digits, true);
+            }
+            if (i == fractionStart) {
+                throw syntaxError("expected a digit");
+            }
+        }
+
+        if (i < limit && (buffer[i] == 'e' || buffer[i] == 'E')) {
+            integral = false;
+            i++;
+            boolean negativeExponent = i < limit && buffer[i] == '-';
+            if (i < limit && (buffer[i] == '-' || buffer[i] == '+')) {
+                i++;
+            }
+            int exponentStart = i;
+            int exponentValue = 0;
+            while (i < limit && buffer[i] >= '0' && buffer[i] <= '9') {
+                exponentValue = Math.min(exponentValue * 10 + buffer[i++] - '0', 100_000);
+            }
+            if (i == exponentStart) {
+                throw syntaxError("expected a digit");
+            }
+            exponent += negativeExponent ? -exponentValue : exponentValue;
+        }
+
+        if (i - position >= MAX_NUMBER_LENGTH) {
+            throw syntaxError("number too long");
+        }
+        numberLength = i - position;
+    }
+
+    // Gathers up to 18 significant digits, which always fit in a long, the ones after that only move the decimal point
+    private int addDigit(char c, int digits, boolean fraction) {
+        if (digits == 0 && c == '0') {
+            if (fraction) {
+                exponent--;
+            }
+            return digits;
+        }
+        if (digits < 18) {
+            mantissa = mantissa * 10 + (c - '0');
+            if (fraction) {
+                exponent--;
+            }
+        } else {
+            if (c != '0') {
+                exact = false;
+            }
+            if (!fraction) {
+                exponent++;
+            }
+        }
+        return digits + 1;
+    }
+
+    // The scanned number when it's exactly mantissa * 10^exponent with both exact in a double, NaN otherwise
+    private double getFastDouble() {
+        if (!exact || mantissa > MAX_FAST_MANTISSA || exponent < -MAX_FAST_EXPONENT || exponent > MAX_FAST_EXPONENT) {
+            return mantissa == 0 && exact ? (negative ? -0.0 : 0.0) : Double.NaN;
+        }
+        double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        return negative ? -value : value;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Malformed JSON at character " + getCharCount() + ": " + message);
+    }
+}
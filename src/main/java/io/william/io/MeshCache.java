@@ -0,0 +1,263 @@
+package io.william.io;
+
+import io.william.renderer.MeshData;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Binary cache of what ModelLoader gets out of Assimp and the mesh processing after it, so warm starts skip both
+// Entries are keyed by a hash of the model's files, the import flags and FORMAT_VERSION, which has to be bumped
+// whenever the layout or the processing (LODs, optimisation) changes
+// Layout, little endian and 4-byte aligned so arrays can be bulk copied out of the mapped file:
+//  - header: magic, version, material count, mesh count
+//  - per material: texture path count, then each path as a length and UTF-8 bytes padded to 4
+//  - per mesh: material index, array lengths, LOD count and errors, then the float arrays and each LOD's indices
+public class MeshCache {
+
+    private static final Path CACHE_DIR = Path.of("cache", "models");
+    private static final int MAGIC = 0x4d43574c;  // "LWCM"
+    private static final int FORMAT_VERSION = 1;
+
+    // What a load needs from the model file: each material's texture paths (in Assimp's material order), and each
+    // processed mesh with the index of its material
+    public record Entry(List<String[]> materialTexturePaths, List<MeshData> meshDatas, int[] meshMaterialIndices) {}
+
+    // Hash of everything the cached data depends on. Besides the model file, files next to it with the same name
+    // (e.g. a glTF's .bin or an OBJ's .mtl) are included
+    public static String key(String modelPath, int flags) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+        header.putInt(FORMAT_VERSION).putInt(flags);
+        digest.update(header.array());
+
+        Path model = Path.of(modelPath).toAbsolutePath();
+        digestFile(digest, model);
+
+        String fileName = model.getFileName().toString();
+        int extension = fileName.lastIndexOf('.');
+        String baseName = extension > 0 ? fileName.substring(0, extension + 1) : fileName + ".";
+        try (Stream<Path> siblings = Files.list(model.getParent())) {
+            for (Path sibling : siblings.filter(path -> path.getFileName().toString().startsWith(baseName) && !path.equals(model)).sorted().toList()) {
+                digestFile(digest, sibling);
+            }
+        }
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void digestFile(MessageDigest digest, Path path) throws IOException {
+        digest.update(path.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+    }
+
+    // Null if there's no valid entry for the key
+    public static Entry read(String key) {
+        Path path = CACHE_DIR.resolve(key + ".bin");
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                System.out.println("Ignoring mesh cache entry with a different format: " + path);
+                return null;
+            }
+
+            int materialCount = buffer.getInt();
+            int meshCount = buffer.getInt();
+
+            List<String[]> materialTexturePaths = new ArrayList<>(materialCount);
+            for (int i = 0; i < materialCount; i++) {
+                String[] texturePaths = new String[buffer.getInt()];
+                for (int j = 0; j < texturePaths.length; j++) {
+                    texturePaths[j] = getString(buffer);
+                }
+                materialTexturePaths.add(texturePaths);
+            }
+
+            List<MeshData> meshDatas = new ArrayList<>(meshCount);
+            int[] meshMaterialIndices = new int[meshCount];
+            for (int i = 0; i < meshCount; i++) {
+                meshMaterialIndices[i] = buffer.getInt();
+
+                float[] positions = new float[buffer.getInt()];
+                float[] normals = new float[buffer.getInt()];
+                float[] tangents = new float[buffer.getInt()];
+                float[] bitangents = new float[buffer.getInt()];
+                float[] texCoords = new float[buffer.getInt()];
+
+                int lodCount = buffer.getInt();
+                int[][] lodIndices = new int[lodCount][];
+                float[] lodErrors = new float[lodCount - 1];
+                for (int lod = 0; lod < lodCount; lod++) {
+                    lodIndices[lod] = new int[buffer.getInt()];
+                }
+                for (int lod = 1; lod < lodCount; lod++) {
+                    lodErrors[lod - 1] = buffer.getFloat();
+                }
+
+                getFloats(buffer, positions);
+                getFloats(buffer, normals);
+                getFloats(buffer, tangents);
+                getFloats(buffer, bitangents);
+                getFloats(buffer, texCoords);
+                for (int[] indices : lodIndices) {
+                    buffer.asIntBuffer().get(indices);
+                    buffer.position(buffer.position() + indices.length * Integer.BYTES);
+                }
+
+                MeshData meshData = new MeshData(positions, normals, tangents, bitangents, texCoords, lodIndices[0]);
+                int[][] simplified = new int[lodCount - 1][];
+                System.arraycopy(lodIndices, 1, simplified, 0, lodCount - 1);
+                meshData.setLods(simplified, lodErrors);
+                meshDatas.add(meshData);
+            }
+
+            return new Entry(materialTexturePaths, meshDatas, meshMaterialIndices);
+        } catch (IOException | RuntimeException e) {
+            // A truncated or otherwise broken entry is just a miss, it gets rewritten after the import
+            System.out.println("Failed to read mesh cache entry " + path + ": " + e);
+            return null;
+        }
+    }
+
+    // Writes to a temporary file first, so a crash or a concurrent load never sees a partial entry
+    public static void write(String key, Entry entry) {
+        int size = 4 * Integer.BYTES;
+        for (String[] texturePaths : entry.materialTexturePaths()) {
+            size += Integer.BYTES;
+            for (String texturePath : texturePaths) {
+                size += Integer.BYTES + align(texturePath.getBytes(StandardCharsets.UTF_8).length);
+            }
+        }
+        for (MeshData meshData : entry.meshDatas()) {
+            size += 7 * Integer.BYTES + meshData.getLodCount() * (Integer.BYTES + Float.BYTES) - Float.BYTES;
+            size += (meshData.getPositions().length + meshData.getNormals().length + meshData.getTangents().length
+                + meshData.getBitangents().length + meshData.getTexCoords().length) * Float.BYTES;
+            for (int lod = 0; lod < meshData.getLodCount(); lod++) {
+                size += meshData.getLodIndices(lod).length * Integer.BYTES;
+            }
+        }
+
+        ByteBuffer buffer = MemoryUtil.memAlloc(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putInt(entry.materialTexturePaths().size());
+        buffer.putInt(entry.meshDatas().size());
+
+        for (String[] texturePaths : entry.materialTexturePaths()) {
+            buffer.putInt(texturePaths.length);
+            for (String texturePath : texturePaths) {
+                putString(buffer, texturePath);
+            }
+        }
+
+        for (int i = 0; i < entry.meshDatas().size(); i++) {
+            MeshData meshData = entry.meshDatas().get(i);
+            buffer.putInt(entry.meshMaterialIndices()[i]);
+            buffer.putInt(meshData.getPositions().length);
+            buffer.putInt(meshData.getNormals().length);
+            buffer.putInt(meshData.getTangents().length);
+            buffer.putInt(meshData.getBitangents().length);
+            buffer.putInt(meshData.getTexCoords().length);
+
+            buffer.putInt(meshData.getLodCount());
+            for (int lod = 0; lod < meshData.getLodCount(); lod++) {
+                buffer.putInt(meshData.getLodIndices(lod).length);
+            }
+            for (int lod = 1; lod < meshData.getLodCount(); lod++) {
+                buffer.putFloat(meshData.getLodError(lod));
+            }
+
+            putFloats(buffer, meshData.getPositions());
+            putFloats(buffer, meshData.getNormals());
+            putFloats(buffer, meshData.getTangents());
+            putFloats(buffer, meshData.getBitangents());
+            putFloats(buffer, meshData.getTexCoords());
+            for (int lod = 0; lod < meshData.getLodCount(); lod++) {
+                int[] indices = meshData.getLodIndices(lod);
+                buffer.asIntBuffer().put(indices);
+                buffer.position(buffer.position() + indices.length * Integer.BYTES);
+            }
+        }
+        buffer.flip();
+
+        Path path = CACHE_DIR.resolve(key + ".bin");
+        Path temporaryPath = CACHE_DIR.resolve(key + "." + ProcessHandle.current().pid() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            Files.createDirectories(CACHE_DIR);
+            try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Failed to write mesh cache entry " + path + ": " + e);
+            try {
+                Files.deleteIfExists(temporaryPath);
+            } catch (IOException ignored) {
+            }
+        } finally {
+            MemoryUtil.memFree(buffer);
+        }
+    }
+
+    private static void getFloats(ByteBuffer buffer, float[] dest) {
+        buffer.asFloatBuffer().get(dest);
+        buffer.position(buffer.position() + dest.length * Float.BYTES);
+    }
+
+    private static void putFloats(ByteBuffer buffer, float[] src) {
+        buffer.asFloatBuffer().put(src);
+        buffer.position(buffer.position() + src.length * Float.BYTES);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        buffer.position(buffer.position() + align(bytes.length) - bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer buffer, String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+        for (int i = bytes.length; i < align(bytes.length); i++) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    private static int align(int size) {
+        return (size + 3) & ~3;
+    }
+}
@@ -0,0 +1,394 @@
+package io.william.io;
+
+import io.william.renderer.MeshData;
+
+import java.util.Arrays;
+
+// Reorders a mesh's triangles and vertices for drawing, in three stages:
+//  - vertex cache: Tipsify (Sander et al.) orders triangles so that vertices are reused while still in the post-transform
+//    cache, fanning around the last vertex whose remaining triangles fit in the cache
+//  - overdraw: the vertex cache order is split into clusters where the cache has just been flushed (or where
+//    splitting barely costs any reuse), and clusters facing away from the mesh's centre are drawn first, so that
+//    occluded surfaces more often fail the depth test
+//  - vertex fetch: vertices are renumbered in the order they are first used, so that fetches walk the vertex buffer
+// Every LOD's index buffer goes through the first two stages, and the third one remaps all of them together
+public class MeshOptimizer {
+
+    // Simulated post-transform cache size, used for both the optimisation and the statistics
+    public static final int CACHE_SIZE = 16;
+    // Largest ACMR increase allowed by splitting clusters for overdraw
+    private static final float OVERDRAW_THRESHOLD = 1.05f;
+
+    // Vertex transforms of LOD 0 with a FIFO cache of CACHE_SIZE, before and after optimisation
+    public record Statistics(int triangles, int vertices, int transformsBefore, int transformsAfter) {
+
+        // Average cache miss ratio: transformed vertices per triangle, 0.5 at best and 3 at worst
+        public float acmrBefore() {
+            return triangles == 0 ? 0 : (float) transformsBefore / triangles;
+        }
+
+        public float acmrAfter() {
+            return triangles == 0 ? 0 : (float) transformsAfter / triangles;
+        }
+
+        // Average transform to vertex ratio: transformed vertices per vertex, 1 at best
+        public float atvrBefore() {
+            return vertices == 0 ? 0 : (float) transformsBefore / vertices;
+        }
+
+        public float atvrAfter() {
+            return vertices == 0 ? 0 : (float) transformsAfter / vertices;
+        }
+    }
+
+    public static Statistics optimize(MeshData meshData) {
+        int vertexCount = meshData.getPositions().length / 3;
+        int transformsBefore = countTransforms(meshData.getIndices(), vertexCount, CACHE_SIZE);
+
+        int[][] lodIndices = new int[meshData.getLodCount()][];
+        for (int lod = 0; lod < lodIndices.length; lod++) {
+            int[] indices = meshData.getLodIndices(lod);
+            int[] clusters = new int[indices.length / 3 + 1];
+            int[] ordered = optimizeVertexCache(indices, vertexCount, clusters);
+            lodIndices[lod] = optimizeOverdraw(ordered, meshData.getPositions(), vertexCount, clusters);
+        }
+
+        optimizeVertexFetch(meshData, lodIndices);
+
+        // The full detail indices are rewritten in place, the LODs are replaced
+        System.arraycopy(lodIndices[0], 0, meshData.getIndices(), 0, lodIndices[0].length);
+        float[] lodErrors = new float[lodIndices.length - 1];
+        for (int lod = 1; lod < lodIndices.length; lod++) {
+            lodErrors[lod - 1] = meshData.getLodError(lod);
+        }
+        meshData.setLods(Arrays.copyOfRange(lodIndices, 1, lodIndices.length), lodErrors);
+
+        int transformsAfter = countTransforms(meshData.getIndices(), vertexCount, CACHE_SIZE);
+        return new Statistics(meshData.getIndices().length / 3, countUsedVertices(meshData.getIndices(), vertexCount), transformsBefore, transformsAfter);
+    }
+
+    // Returns the indices in Tipsify order. clusters, with room for one more than the number of triangles, gets the
+    // number of clusters followed by the first triangle of each, where a cluster starts whenever fanning hits a dead end
+    public static int[] optimizeVertexCache(int[] indices, int vertexCount, int[] clusters) {
+        int triangleCount = indices.length / 3;
+        int[] result = new int[indices.length];
+
+        // Triangles around each vertex
+        int[] offsets = new int[vertexCount + 1];
+        for (int index : indices) {
+            offsets[index + 1]++;
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            offsets[v + 1] += offsets[v];
+        }
+        int[] adjacency = new int[indices.length];
+        int[] cursor = Arrays.copyOf(offsets, vertexCount);
+        for (int i = 0; i < indices.length; i++) {
+            adjacency[cursor[indices[i]]++] = i / 3;
+        }
+
+        int[] liveTriangles = new int[vertexCount];
+        for (int v = 0; v < vertexCount; v++) {
+            liveTriangles[v] = offsets[v + 1] - offsets[v];
+        }
+
+        int[] cacheTimes = new int[vertexCount];
+        boolean[] emitted = new boolean[triangleCount];
+        // Vertices of emitted triangles, to continue from when the fanning vertex has nothing left
+        int[] deadEnds = new int[indices.length];
+        int deadEndCount = 0;
+        int[] candidates = new int[indices.length];
+
+        int time = CACHE_SIZE + 1;
+        int nextVertex = 0;
+        int written = 0;
+        int clusterCount = 0;
+        int vertex = triangleCount > 0 ? indices[0] : -1;
+        boolean flushed = true;
+
+        while (vertex >= 0) {
+            if (flushed) {
+                if (clusterCount + 1 < clusters.length) {
+                    clusters[++clusterCount] = written / 3;
+                }
+                flushed = false;
+            }
+
+            // Emit every remaining triangle around the fanning vertex
+            int candidateCount = 0;
+            for (int i = offsets[vertex]; i < offsets[vertex + 1]; i++) {
+                int triangle = adjacency[i];
+                if (emitted[triangle]) {
+                    continue;
+                }
+
+                for (int k = 0; k < 3; k++) {
+                    int v = indices[triangle * 3 + k];
+                    result[written++] = v;
+                    deadEnds[deadEndCount++] = v;
+                    candidates[candidateCount++] = v;
+                    liveTriangles[v]--;
+                    if (time - cacheTimes[v] > CACHE_SIZE) {
+                        cacheTimes[v] = time++;
+                    }
+                }
+                emitted[triangle] = true;
+            }
+
+            // Next fanning vertex: the candidate that has been in the cache longest whose remaining triangles
+            // still fit in it, or any candidate with triangles left
+            int best = -1;
+            int bestPriority = -1;
+            for (int i = 0; i < candidateCount; i++) {
+                int v = candidates[i];
+                if (liveTriangles[v] <= 0) {
+                    continue;
+                }
+
+                int priority = 0;
+                if (time - cacheTimes[v] + 2 * liveTriangles[v] <= CACHE_SIZE) {
+                    priority = time - cacheTimes[v];
+                }
+                if (priority > bestPriority) {
+                    bestPriority = priority;
+                    best = v;
+                }
+            }
+
+            if (best == -1) {
+                // Recently used vertices with triangles left, or failing that the next one in index order, both of
+                // which may well have left the cache
+                while (deadEndCount > 0 && best == -1) {
+                    int v = deadEnds[--deadEndCount];
+                    if (liveTriangles[v] > 0) {
+                        best = v;
+                    }
+                }
+                while (best == -1 && nextVertex < vertexCount) {
+                    if (liveTriangles[nextVertex] > 0) {
+                        best = nextVertex;
+                    }
+                    nextVertex++;
+                }
+                flushed = true;
+            }
+
+            vertex = best;
+        }
+
+        if (clusters.length > 0) {
+            clusters[0] = clusterCount;
+        }
+        return result;
+    }
+
+    // Splits the clusters found by optimizeVertexCache further where that keeps the ACMR within the threshold, and
+    // sorts them so that those on the outside of the mesh, facing outwards, are drawn first
+    public static int[] optimizeOverdraw(int[] indices, float[] positions, int vertexCount, int[] clusters) {
+        int triangleCount = indices.length / 3;
+        if (triangleCount == 0) {
+            return indices;
+        }
+
+        int[] hardClusters = Arrays.copyOfRange(clusters, 1, clusters[0] + 1);
+        int[] softClusters = splitClusters(indices, vertexCount, hardClusters);
+        int clusterCount = softClusters.length;
+
+        // Area weighted centroid of the mesh
+        double meshX = 0, meshY = 0, meshZ = 0, meshArea = 0;
+        double[] clusterData = new double[clusterCount * 7];    // area, centroid * area, normal * area
+        for (int c = 0; c < clusterCount; c++) {
+            int end = c + 1 < clusterCount ? softClusters[c + 1] : triangleCount;
+            for (int t = softClusters[c]; t < end; t++) {
+                int a = indices[t * 3] * 3;
+                int b = indices[t * 3 + 1] * 3;
+                int d = indices[t * 3 + 2] * 3;
+
+                double abX = positions[b] - positions[a], abY = positions[b + 1] - positions[a + 1], abZ = positions[b + 2] - positions[a + 2];
+                double adX = positions[d] - positions[a], adY = positions[d + 1] - positions[a + 1], adZ = positions[d + 2] - positions[a + 2];
+                double nX = abY * adZ - abZ * adY;
+                double nY = abZ * adX - abX * adZ;
+                double nZ = abX * adY - abY * adX;
+                double area = Math.sqrt(nX * nX + nY * nY + nZ * nZ) * 0.5;
+
+                double cX = (positions[a] + positions[b] + positions[d]) / 3.0;
+                double cY = (positions[a + 1] + positions[b + 1] + positions[d + 1]) / 3.0;
+                double cZ = (positions[a + 2] + positions[b + 2] + positions[d + 2]) / 3.0;
+
+                int o = c * 7;
+                clusterData[o] += area;
+                clusterData[o + 1] += cX * area;
+                clusterData[o + 2] += cY * area;
+                clusterData[o + 3] += cZ * area;
+                clusterData[o + 4] += nX * 0.5;
+                clusterData[o + 5] += nY * 0.5;
+                clusterData[o + 6] += nZ * 0.5;
+
+                meshX += cX * area;
+                meshY += cY * area;
+                meshZ += cZ * area;
+                meshArea += area;
+            }
+        }
+        if (meshArea > 0) {
+            meshX /= meshArea;
+            meshY /= meshArea;
+            meshZ /= meshArea;
+        }
+
+        // How far out and how much outwards each cluster faces, sorted in descending order with ties in the
+        // original order
+        long[] keys = new long[clusterCount];
+        for (int c = 0; c < clusterCount; c++) {
+            int o = c * 7;
+            double area = clusterData[o];
+            double dot = 0;
+            double normalLength = Math.sqrt(clusterData[o + 4] * clusterData[o + 4] + clusterData[o + 5] * clusterData[o + 5] + clusterData[o + 6] * clusterData[o + 6]);
+            if (area > 0 && normalLength > 0) {
+                dot = ((clusterData[o + 1] / area - meshX) * clusterData[o + 4]
+                    + (clusterData[o + 2] / area - meshY) * clusterData[o + 5]
+                    + (clusterData[o + 3] / area - meshZ) * clusterData[o + 6]) / normalLength;
+            }
+            keys[c] = ((long) sortableBits((float) -dot) << 32) | c;
+        }
+        Arrays.sort(keys);
+
+        int[] result = new int[indices.length];
+        int written = 0;
+        for (long key : keys) {
+            int c = (int) key;
+            int end = c + 1 < clusterCount ? softClusters[c + 1] : triangleCount;
+            int length = (end - softClusters[c]) * 3;
+            System.arraycopy(indices, softClusters[c] * 3, result, written, length);
+            written += length;
+        }
+        return result;
+    }
+
+    // Renumbers the vertices in the order the LODs first use them, with unused vertices at the end, rewriting the
+    // mesh's vertex attributes in place and the LOD indices
+    public static void optimizeVertexFetch(MeshData meshData, int[][] lodIndices) {
+        int vertexCount = meshData.getPositions().length / 3;
+        int[] remap = new int[vertexCount];
+        Arrays.fill(remap, -1);
+
+        int next = 0;
+        for (int[] indices : lodIndices) {
+            for (int index : indices) {
+                if (remap[index] == -1) {
+                    remap[index] = next++;
+                }
+            }
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            if (remap[v] == -1) {
+                remap[v] = next++;
+            }
+        }
+
+        remapAttribute(meshData.getPositions(), 3, remap);
+        remapAttribute(meshData.getNormals(), 3, remap);
+        remapAttribute(meshData.getTangents(), 3, remap);
+        remapAttribute(meshData.getBitangents(), 3, remap);
+        remapAttribute(meshData.getTexCoords(), 2, remap);
+
+        for (int[] indices : lodIndices) {
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = remap[indices[i]];
+            }
+        }
+    }
+
+    // Number of vertex transforms with a FIFO post-transform cache of cacheSize vertices
+    public static int countTransforms(int[] indices, int vertexCount, int cacheSize) {
+        int[] cacheTimes = new int[vertexCount];
+        int time = cacheSize + 1;
+        int transforms = 0;
+        for (int index : indices) {
+            if (time - cacheTimes[index] > cacheSize) {
+                cacheTimes[index] = time++;
+                transforms++;
+            }
+        }
+        return transforms;
+    }
+
+    public static int countUsedVertices(int[] indices, int vertexCount) {
+        boolean[] used = new boolean[vertexCount];
+        int count = 0;
+        for (int index : indices) {
+            if (!used[index]) {
+                used[index] = true;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // First triangle of each cluster, after splitting each of hardClusters wherever the ACMR of the triangles since
+    // the last split, starting from an empty cache, is within OVERDRAW_THRESHOLD of the whole cluster's
+    private static int[] splitClusters(int[] indices, int vertexCount, int[] hardClusters) {
+        int triangleCount = indices.length / 3;
+        int[] result = new int[triangleCount];
+        int count = 0;
+
+        int[] cacheTimes = new int[vertexCount];
+        int time = CACHE_SIZE + 1;
+
+        for (int h = 0; h < hardClusters.length; h++) {
+            int start = hardClusters[h];
+            int end = h + 1 < hardClusters.length ? hardClusters[h + 1] : triangleCount;
+
+            // ACMR of the whole cluster
+            time += CACHE_SIZE + 1;
+            int clusterTransforms = 0;
+            for (int i = start * 3; i < end * 3; i++) {
+                if (time - cacheTimes[indices[i]] > CACHE_SIZE) {
+                    cacheTimes[indices[i]] = time++;
+                    clusterTransforms++;
+                }
+            }
+            float threshold = OVERDRAW_THRESHOLD * clusterTransforms / Math.max(end - start, 1);
+
+            time += CACHE_SIZE + 1;
+            result[count++] = start;
+            int softStart = start;
+            int transforms = 0;
+            for (int t = start; t < end; t++) {
+                for (int k = 0; k < 3; k++) {
+                    int index = indices[t * 3 + k];
+                    if (time - cacheTimes[index] > CACHE_SIZE) {
+                        cacheTimes[index] = time++;
+                        transforms++;
+                    }
+                }
+
+                if (t + 1 < end && (float) transforms / (t + 1 - softStart) <= threshold) {
+                    result[count++] = t + 1;
+                    softStart = t + 1;
+                    transforms = 0;
+                    time += CACHE_SIZE + 1;
+                }
+            }
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    private static void remapAttribute(float[] values, int size, int[] remap) {
+        if (values == null || values.length < remap.length * size) {
+            return;
+        }
+
+        float[] source = values.clone();
+        for (int v = 0; v < remap.length; v++) {
+            System.arraycopy(source, v * size, values, remap[v] * size, size);
+        }
+    }
+
+    // Float bits that sort in the same order as the floats when compared as signed ints
+    private static int sortableBits(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits < 0 ? bits ^ 0x7fffffff : bits;
+    }
+}
@@ -0,0 +1,617 @@
+package io.william.io;
+
+import io.william.renderer.MeshData;
+
+import java.util.Arrays;
+
+// Quadric error metric simplification (Garland-Heckbert) by half-edge collapses, where a vertex is merged into one of
+// its neighbours so that every LOD indexes the original vertices and only needs its own index range
+// The cost of a collapse is the area weighted mean squared distance of the target from the planes of the triangles
+// merged into the vertex, plus a weighted squared difference of normals and texture coordinates
+// Vertices on open borders are locked. Vertices on attribute seams (the same position with two sets of attributes)
+// only collapse along the seam, together with their other side. Results only depend on the input, collapses are
+// ordered by cost with ties broken by vertex index
+// The quadric cost is a mean over planes, so it can be lower than how far a vertex ends up from the surface. Reported
+// errors are therefore at least the distance of every input vertex from the triangles near the vertex it was merged
+// into, which bounds its distance from the simplified surface
+public class MeshSimplifier {
+
+    // Fractions of the full mesh's triangles that each LOD aims for
+    private static final float[] LOD_RATIOS = { 0.5f, 0.25f, 0.125f, 0.0625f };
+    // Largest error of any LOD, relative to the mesh's extent
+    private static final float MAX_LOD_ERROR = 0.05f;
+    // A LOD is only kept if it has at most this fraction of the previous LOD's triangles
+    private static final float MIN_LOD_REDUCTION = 0.8f;
+    private static final int MIN_LOD_TRIANGLES = 32;
+
+    // Attribute weights, in units of the mesh's extent per unit of attribute difference
+    private static final float NORMAL_WEIGHT = 0.02f;
+    private static final float TEX_COORD_WEIGHT = 0.02f;
+
+    private static final byte MANIFOLD = 0;
+    private static final byte SEAM = 1;
+    private static final byte LOCKED = 2;
+
+    private static final int QUADRIC_SIZE = 11;    // 10 coefficients of the symmetric 4x4 matrix, then the weight
+    private static final int ATTRIBUTES = 5;
+    private static final int ATTRIBUTE_SIZE = ATTRIBUTES + 2;    // area, area weighted attributes, area weighted squared length
+
+    // Generates up to MeshData.MAX_LODS - 1 LODs, each simplified from the previous one, and stores them in meshData
+    // Their errors are in model space units, adding up the error of each step
+    public static void generateLods(MeshData meshData) {
+        float[] positions = meshData.getPositions();
+        int[] previous = meshData.getIndices();
+        float extent = extent(positions);
+
+        // Vertex each vertex was merged into, kept across LODs so that every LOD's error covers the full mesh
+        int[] collapses = identity(positions.length / 3);
+
+        int[][] lodIndices = new int[MeshData.MAX_LODS - 1][];
+        float[] lodErrors = new float[MeshData.MAX_LODS - 1];
+        int lodCount = 0;
+        float previousError = 0;
+        float[] error = new float[1];
+
+        for (int i = 0; i < LOD_RATIOS.length && lodCount < MeshData.MAX_LODS - 1; i++) {
+            int targetIndexCount = (int) (meshData.getIndices().length / 3 * LOD_RATIOS[i]) * 3;
+            if (targetIndexCount < MIN_LOD_TRIANGLES * 3) {
+                break;
+            }
+
+            int[] stepCollapses = collapses.clone();
+            int[] lod = simplify(positions, meshData.getNormals(), meshData.getTexCoords(), previous, targetIndexCount, MAX_LOD_ERROR - previousError, error, stepCollapses);
+            if (lod.length > previous.length * MIN_LOD_REDUCTION) {
+                break;
+            }
+            collapses = stepCollapses;
+
+            // LOD errors only grow, as culling expects
+            previousError += error[0];
+            float lodError = Math.max(previousError * extent, distanceBound(positions, meshData.getIndices(), lod, collapses));
+            lodIndices[lodCount] = lod;
+            lodErrors[lodCount] = lodCount > 0 ? Math.max(lodError, lodErrors[lodCount - 1]) : lodError;
+            lodCount++;
+            previous = lod;
+        }
+
+        meshData.setLods(Arrays.copyOf(lodIndices, lodCount), Arrays.copyOf(lodErrors, lodCount));
+    }
+
+    // Returns indices of the original vertices with at most targetIndexCount indices if that can be reached by
+    // collapses whose quadric error is within targetError (relative to the mesh's extent)
+    // resultError[0] is the larger of that error and a bound on the input vertices' distance from the result
+    // normals and texCoords may be empty
+    public static int[] simplify(float[] positions, float[] normals, float[] texCoords, int[] indices, int targetIndexCount, float targetError, float[] resultError) {
+        int[] collapses = identity(positions.length / 3);
+        int[] result = simplify(positions, normals, texCoords, indices, targetIndexCount, targetError, resultError, collapses);
+
+        float extent = extent(positions);
+        if (result.length < indices.length && extent > 0) {
+            resultError[0] = Math.max(resultError[0], Math.nextUp(distanceBound(positions, indices, result, collapses) / extent));
+        }
+        return result;
+    }
+
+    // collapses: the vertex each vertex was merged into, or itself, updated with this simplification's collapses
+    // resultError is the collapses' quadric error alone
+    private static int[] simplify(float[] positions, float[] normals, float[] texCoords, int[] indices, int targetIndexCount, float targetError, float[] resultError, int[] collapses) {
+        int vertexCount = positions.length / 3;
+        resultError[0] = 0;
+        if (indices.length <= targetIndexCount || targetError <= 0) {
+            return indices.clone();
+        }
+
+        // Positions scaled to a unit box, so that errors are relative
+        float extent = extent(positions);
+        float scale = extent > 0 ? 1.0f / extent : 1.0f;
+        float[] points = new float[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            points[i] = positions[i] * scale;
+        }
+
+        int[] wedges = buildWedges(positions, vertexCount);
+        byte[] kinds = classifyVertices(indices, wedges, vertexCount);
+
+        double[] quadrics = new double[vertexCount * QUADRIC_SIZE];
+        double[] attributes = new double[vertexCount * ATTRIBUTE_SIZE];
+        fillQuadrics(points, normals, texCoords, indices, quadrics, attributes);
+
+        int[] result = indices.clone();
+        int indexCount = result.length;
+
+        int[] stamps = new int[vertexCount];
+        int[] targets = new int[vertexCount];
+        long[] candidates = new long[vertexCount];
+        int[] offsets = new int[vertexCount + 1];
+        int[] adjacency = new int[indexCount];
+        double errorLimit = (double) targetError * targetError;
+        double maxError = 0;
+
+        for (int pass = 1; indexCount > targetIndexCount; pass++) {
+            buildAdjacency(result, indexCount, vertexCount, offsets, adjacency);
+
+            // Cheapest collapse of each vertex, ordered by cost and then vertex index
+            int candidateCount = 0;
+            for (int v = 0; v < vertexCount; v++) {
+                if (kinds[v] == LOCKED || offsets[v] == offsets[v + 1]) {
+                    continue;
+                }
+
+                float bestCost = Float.POSITIVE_INFINITY;
+                int bestTarget = -1;
+                for (int i = offsets[v]; i < offsets[v + 1]; i++) {
+                    int triangle = adjacency[i] * 3;
+                    for (int k = 0; k < 3; k++) {
+                        int t = result[triangle + k];
+                        if (t == v) {
+                            continue;
+                        }
+                        float cost = collapseCost(v, t, kinds, wedges, result, offsets, adjacency, points, quadrics, attributes);
+                        if (cost < bestCost || (cost == bestCost && t < bestTarget)) {
+                            bestCost = cost;
+                            bestTarget = t;
+                        }
+                    }
+                }
+
+                if (bestTarget != -1 && bestCost <= errorLimit) {
+                    targets[v] = bestTarget;
+                    candidates[candidateCount++] = ((long) Float.floatToIntBits(bestCost) << 32) | v;
+                }
+            }
+            Arrays.sort(candidates, 0, candidateCount);
+
+            // Collapse in order until enough triangles are removed, skipping vertices next to an earlier collapse
+            // in this pass, whose triangles have changed since their flips were checked
+            int triangleGoal = (indexCount - targetIndexCount) / 3;
+            int removed = 0;
+            int collapsed = 0;
+            for (int i = 0; i < candidateCount && removed < triangleGoal; i++) {
+                int v = (int) candidates[i];
+                int t = targets[v];
+                int v2 = kinds[v] == SEAM ? wedges[v] : -1;
+                int t2 = v2 != -1 ? seamPartner(v2, t, wedges, result, offsets, adjacency) : -1;
+
+                if (stamps[v] == pass || stamps[t] == pass || (v2 != -1 && (stamps[v2] == pass || stamps[t2] == pass))) {
+                    continue;
+                }
+                if (hasFlips(v, t, points, result, offsets, adjacency) || (v2 != -1 && hasFlips(v2, t2, points, result, offsets, adjacency))) {
+                    continue;
+                }
+
+                removed += collapse(v, t, pass, collapses, stamps, quadrics, attributes, result, offsets, adjacency);
+                if (v2 != -1) {
+                    removed += collapse(v2, t2, pass, collapses, stamps, quadrics, attributes, result, offsets, adjacency);
+                }
+                maxError = Math.max(maxError, Float.intBitsToFloat((int) (candidates[i] >>> 32)));
+                collapsed++;
+            }
+
+            if (collapsed == 0) {
+                break;
+            }
+
+            // Remap the indices and drop the triangles that have become degenerate
+            int write = 0;
+            for (int i = 0; i < indexCount; i += 3) {
+                int a = collapses[result[i]];
+                int b = collapses[result[i + 1]];
+                int c = collapses[result[i + 2]];
+                if (a != b && b != c && c != a) {
+                    result[write++] = a;
+                    result[write++] = b;
+                    result[write++] = c;
+                }
+            }
+            indexCount = write;
+        }
+
+        resultError[0] = (float) Math.sqrt(maxError);
+        return Arrays.copyOf(result, indexCount);
+    }
+
+    // Largest side of the bounding box
+    public static float extent(float[] positions) {
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < positions.length; i += 3) {
+            minX = Math.min(minX, positions[i]); maxX = Math.max(maxX, positions[i]);
+            minY = Math.min(minY, positions[i + 1]); maxY = Math.max(maxY, positions[i + 1]);
+            minZ = Math.min(minZ, positions[i + 2]); maxZ = Math.max(maxZ, positions[i + 2]);
+        }
+        return positions.length < 3 ? 0 : Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ));
+    }
+
+    // Largest distance of a vertex of indices from the triangles of result around the vertex it was merged into and
+    // that vertex's neighbours, or from all of them if it has none left. Since these are only some of the triangles,
+    // it is never below the distance from the surface, and it is rounded up so that the float isn't either
+    private static float distanceBound(float[] positions, int[] indices, int[] result, int[] collapses) {
+        int vertexCount = positions.length / 3;
+        int[] offsets = new int[vertexCount + 1];
+        int[] adjacency = new int[result.length];
+        buildAdjacency(result, result.length, vertexCount, offsets, adjacency);
+
+        boolean[] measured = new boolean[vertexCount];
+        double maxDistance = 0;
+        for (int index : indices) {
+            if (measured[index]) {
+                continue;
+            }
+            measured[index] = true;
+
+            int target = index;
+            while (collapses[target] != target) {
+                target = collapses[target];
+            }
+
+            double distance = Double.POSITIVE_INFINITY;
+            if (offsets[target] < offsets[target + 1]) {
+                for (int i = offsets[target]; i < offsets[target + 1]; i++) {
+                    int triangle = adjacency[i] * 3;
+                    for (int k = 0; k < 3; k++) {
+                        int neighbour = result[triangle + k];
+                        for (int j = offsets[neighbour]; j < offsets[neighbour + 1]; j++) {
+                            int ring = adjacency[j] * 3;
+                            distance = Math.min(distance, pointTriangleDistance(positions, index, result[ring], result[ring + 1], result[ring + 2]));
+                        }
+                    }
+                }
+            } else {
+                for (int triangle = 0; triangle < result.length; triangle += 3) {
+                    distance = Math.min(distance, pointTriangleDistance(positions, index, result[triangle], result[triangle + 1], result[triangle + 2]));
+                }
+            }
+            if (distance != Double.POSITIVE_INFINITY) {
+                maxDistance = Math.max(maxDistance, distance);
+            }
+        }
+
+        float bound = (float) maxDistance;
+        return bound < maxDistance ? Math.nextUp(bound) : bound;
+    }
+
+    // Distance from vertex p to the closest point of triangle abc (Ericson, Real-Time Collision Detection 5.1.5)
+    public static double pointTriangleDistance(float[] positions, int p, int a, int b, int c) {
+        double pX = positions[p * 3], pY = positions[p * 3 + 1], pZ = positions[p * 3 + 2];
+        double aX = positions[a * 3], aY = positions[a * 3 + 1], aZ = positions[a * 3 + 2];
+        double abX = positions[b * 3] - aX, abY = positions[b * 3 + 1] - aY, abZ = positions[b * 3 + 2] - aZ;
+        double acX = positions[c * 3] - aX, acY = positions[c * 3 + 1] - aY, acZ = positions[c * 3 + 2] - aZ;
+        double apX = pX - aX, apY = pY - aY, apZ = pZ - aZ;
+
+        // Barycentric coordinates of the closest point, weights of b and c
+        double v, w;
+        double d1 = abX * apX + abY * apY + abZ * apZ;
+        double d2 = acX * apX + acY * apY + acZ * apZ;
+        double bpX = apX - abX, bpY = apY - abY, bpZ = apZ - abZ;
+        double d3 = abX * bpX + abY * bpY + abZ * bpZ;
+        double d4 = acX * bpX + acY * bpY + acZ * bpZ;
+        double cpX = apX - acX, cpY = apY - acY, cpZ = apZ - acZ;
+        double d5 = abX * cpX + abY * cpY + abZ * cpZ;
+        double d6 = acX * cpX + acY * cpY + acZ * cpZ;
+        double va = d3 * d6 - d5 * d4;
+        double vb = d5 * d2 - d1 * d6;
+        double vc = d1 * d4 - d3 * d2;
+
+        if (d1 <= 0 && d2 <= 0) {
+            v = 0;
+            w = 0;
+        } else if (d3 >= 0 && d4 <= d3) {
+            v = 1;
+            w = 0;
+        } else if (vc <= 0 && d1 >= 0 && d3 <= 0) {
+            v = d1 / (d1 - d3);
+            w = 0;
+        } else if (d6 >= 0 && d5 <= d6) {
+            v = 0;
+            w = 1;
+        } else if (vb <= 0 && d2 >= 0 && d6 <= 0) {
+            v = 0;
+            w = d2 / (d2 - d6);
+        } else if (va <= 0 && d4 - d3 >= 0 && d5 - d6 >= 0) {
+            w = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+            v = 1 - w;
+        } else {
+            double denominator = 1 / (va + vb + vc);
+            v = vb * denominator;
+            w = vc * denominator;
+        }
+
+        double dX = aX + abX * v + acX * w - pX;
+        double dY = aY + abY * v + acY * w - pY;
+        double dZ = aZ + abZ * v + acZ * w - pZ;
+        return Math.sqrt(dX * dX + dY * dY + dZ * dZ);
+    }
+
+    private static int[] identity(int count) {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = i;
+        }
+        return values;
+    }
+
+    // Links vertices with the same position into circular lists
+    private static int[] buildWedges(float[] positions, int vertexCount) {
+        int[] wedges = new int[vertexCount];
+        int capacity = Integer.highestOneBit(Math.max(vertexCount, 1) * 2) * 2;
+        int[] table = new int[capacity];
+        Arrays.fill(table, -1);
+
+        for (int v = 0; v < vertexCount; v++) {
+            wedges[v] = v;
+
+            int hash = Float.floatToIntBits(positions[v * 3]) * 73856093
+                ^ Float.floatToIntBits(positions[v * 3 + 1]) * 19349663
+                ^ Float.floatToIntBits(positions[v * 3 + 2]) * 83492791;
+            int slot = (hash ^ (hash >>> 16)) & (capacity - 1);
+            while (table[slot] != -1) {
+                int other = table[slot];
+                if (positions[other * 3] == positions[v * 3] && positions[other * 3 + 1] == positions[v * 3 + 1] && positions[other * 3 + 2] == positions[v * 3 + 2]) {
+                    // Insert after the first vertex with this position
+                    wedges[v] = wedges[other];
+                    wedges[other] = v;
+                    break;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+            if (table[slot] == -1) {
+                table[slot] = v;
+            }
+        }
+
+        return wedges;
+    }
+
+    private static byte[] classifyVertices(int[] indices, int[] wedges, int vertexCount) {
+        // Lowest vertex with the same position, so that edges can be compared across seams
+        int[] remap = new int[vertexCount];
+        for (int v = 0; v < vertexCount; v++) {
+            int lowest = v;
+            for (int w = wedges[v]; w != v; w = wedges[w]) {
+                lowest = Math.min(lowest, w);
+            }
+            remap[v] = lowest;
+        }
+
+        // Directed position edges, where an edge without its opposite is on an open border and a repeated one is
+        // non-manifold
+        long[] edges = new long[indices.length];
+        for (int i = 0; i < indices.length; i += 3) {
+            for (int k = 0; k < 3; k++) {
+                int a = remap[indices[i + k]];
+                int b = remap[indices[i + (k + 1) % 3]];
+                edges[i + k] = ((long) a << 32) | b;
+            }
+        }
+        Arrays.sort(edges);
+
+        boolean[] locked = new boolean[vertexCount];
+        for (int i = 0; i < edges.length; i++) {
+            int a = (int) (edges[i] >>> 32);
+            int b = (int) edges[i];
+            boolean repeated = (i > 0 && edges[i - 1] == edges[i]) || (i < edges.length - 1 && edges[i + 1] == edges[i]);
+            boolean open = Arrays.binarySearch(edges, ((long) b << 32) | a) < 0;
+            if (repeated || open || a == b) {
+                locked[a] = true;
+                locked[b] = true;
+            }
+        }
+
+        byte[] kinds = new byte[vertexCount];
+        for (int v = 0; v < vertexCount; v++) {
+            int wedgeSize = 1;
+            for (int w = wedges[v]; w != v; w = wedges[w]) {
+                wedgeSize++;
+            }
+
+            if (locked[remap[v]] || wedgeSize > 2) {
+                kinds[v] = LOCKED;
+            } else {
+                kinds[v] = wedgeSize == 2 ? SEAM : MANIFOLD;
+            }
+        }
+        return kinds;
+    }
+
+    private static void fillQuadrics(float[] points, float[] normals, float[] texCoords, int[] indices, double[] quadrics, double[] attributes) {
+        for (int i = 0; i < indices.length; i += 3) {
+            int a = indices[i] * 3;
+            int b = indices[i + 1] * 3;
+            int c = indices[i + 2] * 3;
+
+            double abX = points[b] - points[a], abY = points[b + 1] - points[a + 1], abZ = points[b + 2] - points[a + 2];
+            double acX = points[c] - points[a], acY = points[c + 1] - points[a + 1], acZ = points[c + 2] - points[a + 2];
+            double nX = abY * acZ - abZ * acY;
+            double nY = abZ * acX - abX * acZ;
+            double nZ = abX * acY - abY * acX;
+            double length = Math.sqrt(nX * nX + nY * nY + nZ * nZ);
+            if (length == 0) {
+                continue;
+            }
+
+            double area = length * 0.5;
+            nX /= length;
+            nY /= length;
+            nZ /= length;
+            double d = -(nX * points[a] + nY * points[a + 1] + nZ * points[a + 2]);
+
+            for (int k = 0; k < 3; k++) {
+                int v = indices[i + k];
+                addPlane(quadrics, v * QUADRIC_SIZE, nX, nY, nZ, d, area);
+                addAttributes(attributes, v * ATTRIBUTE_SIZE, normals, texCoords, v, area / 3.0);
+            }
+        }
+    }
+
+    private static void addPlane(double[] q, int o, double a, double b, double c, double d, double weight) {
+        q[o] += weight * a * a;
+        q[o + 1] += weight * a * b;
+        q[o + 2] += weight * a * c;
+        q[o + 3] += weight * a * d;
+        q[o + 4] += weight * b * b;
+        q[o + 5] += weight * b * c;
+        q[o + 6] += weight * b * d;
+        q[o + 7] += weight * c * c;
+        q[o + 8] += weight * c * d;
+        q[o + 9] += weight * d * d;
+        q[o + 10] += weight;
+    }
+
+    private static void addAttributes(double[] attributes, int o, float[] normals, float[] texCoords, int v, double weight) {
+        double lengthSquared = 0;
+        for (int j = 0; j < ATTRIBUTES; j++) {
+            double value = attribute(normals, texCoords, v, j);
+            attributes[o + 1 + j] += weight * value;
+            lengthSquared += value * value;
+        }
+        attributes[o] += weight;
+        attributes[o + ATTRIBUTES + 1] += weight * lengthSquared;
+    }
+
+    // Weighted normal (0-2) and texture coordinates (3-4) of a vertex
+    private static double attribute(float[] normals, float[] texCoords, int v, int j) {
+        if (j < 3) {
+            return normals.length > v * 3 + j ? normals[v * 3 + j] * NORMAL_WEIGHT : 0;
+        }
+        return texCoords.length > v * 2 + j - 3 ? texCoords[v * 2 + j - 3] * TEX_COORD_WEIGHT : 0;
+    }
+
+    // Error of moving v onto t, or infinity if it isn't allowed
+    private static float collapseCost(int v, int t, byte[] kinds, int[] wedges, int[] indices, int[] offsets, int[] adjacency,
+                                      float[] points, double[] quadrics, double[] attributes) {
+        if (kinds[v] == MANIFOLD) {
+            return (float) vertexCost(v, t, points, quadrics, attributes);
+        }
+        if (kinds[v] != SEAM || kinds[t] != SEAM) {
+            return Float.POSITIVE_INFINITY;
+        }
+
+        // Seam vertices move along the seam, with the other side of the edge collapsing the same way
+        int t2 = seamPartner(wedges[v], t, wedges, indices, offsets, adjacency);
+        if (t2 == -1) {
+            return Float.POSITIVE_INFINITY;
+        }
+        return (float) (vertexCost(v, t, points, quadrics, attributes) + vertexCost(wedges[v], t2, points, quadrics, attributes));
+    }
+
+    // Vertex at t's position that shares an edge with v2, the other side of a seam vertex, or -1 if there is none
+    private static int seamPartner(int v2, int t, int[] wedges, int[] indices, int[] offsets, int[] adjacency) {
+        int t2 = wedges[t];
+        if (t2 == t) {
+            return -1;
+        }
+        for (int i = offsets[v2]; i < offsets[v2 + 1]; i++) {
+            int triangle = adjacency[i] * 3;
+            if (indices[triangle] == t2 || indices[triangle + 1] == t2 || indices[triangle + 2] == t2) {
+                return t2;
+            }
+        }
+        return -1;
+    }
+
+    private static double vertexCost(int v, int t, float[] points, double[] quadrics, double[] attributes) {
+        int o = v * QUADRIC_SIZE;
+        double x = points[t * 3], y = points[t * 3 + 1], z = points[t * 3 + 2];
+        double error = 0;
+        if (quadrics[o + 10] > 0) {
+            double[] q = quadrics;
+            error = (q[o] * x * x + 2 * q[o + 1] * x * y + 2 * q[o + 2] * x * z + 2 * q[o + 3] * x
+                + q[o + 4] * y * y + 2 * q[o + 5] * y * z + 2 * q[o + 6] * y
+                + q[o + 7] * z * z + 2 * q[o + 8] * z
+                + q[o + 9]) / q[o + 10];
+        }
+
+        // Attribute difference from everything merged into v, evaluated with t's attributes
+        int a = v * ATTRIBUTE_SIZE;
+        if (attributes[a] > 0) {
+            double attributeError = attributes[a + ATTRIBUTES + 1];
+            int b = t * ATTRIBUTE_SIZE;
+            for (int j = 0; j < ATTRIBUTES; j++) {
+                // t's own attribute is its weighted sum over its weight, exact while t hasn't been merged into
+                double value = attributes[b] > 0 ? attributes[b + 1 + j] / attributes[b] : 0;
+                attributeError += attributes[a] * value * value - 2 * value * attributes[a + 1 + j];
+            }
+            error += attributeError / attributes[a];
+        }
+
+        return Math.max(error, 0);
+    }
+
+    // True if moving v onto t would turn any of v's other triangles by more than 75 degrees or make it degenerate
+    private static boolean hasFlips(int v, int t, float[] points, int[] indices, int[] offsets, int[] adjacency) {
+        for (int i = offsets[v]; i < offsets[v + 1]; i++) {
+            int triangle = adjacency[i] * 3;
+            int a = indices[triangle];
+            int b = indices[triangle + 1];
+            int c = indices[triangle + 2];
+            if (a == t || b == t || c == t) {
+                continue;
+            }
+
+            // Rotate so that v comes first
+            if (b == v) {
+                b = c;
+                c = a;
+            } else if (c == v) {
+                c = b;
+                b = a;
+            }
+
+            double[] before = normal(points, v, b, c);
+            double[] after = normal(points, t, b, c);
+            double dot = before[0] * after[0] + before[1] * after[1] + before[2] * after[2];
+            double lengths = Math.sqrt((before[0] * before[0] + before[1] * before[1] + before[2] * before[2]) * (after[0] * after[0] + after[1] * after[1] + after[2] * after[2]));
+            if (dot <= 0.25 * lengths) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static double[] normal(float[] points, int a, int b, int c) {
+        double abX = points[b * 3] - points[a * 3], abY = points[b * 3 + 1] - points[a * 3 + 1], abZ = points[b * 3 + 2] - points[a * 3 + 2];
+        double acX = points[c * 3] - points[a * 3], acY = points[c * 3 + 1] - points[a * 3 + 1], acZ = points[c * 3 + 2] - points[a * 3 + 2];
+        return new double[] { abY * acZ - abZ * acY, abZ * acX - abX * acZ, abX * acY - abY * acX };
+    }
+
+    // Merges v into t, returning the number of triangles that become degenerate
+    private static int collapse(int v, int t, int pass, int[] collapses, int[] stamps, double[] quadrics, double[] attributes,
+                                int[] indices, int[] offsets, int[] adjacency) {
+        collapses[v] = t;
+        for (int j = 0; j < QUADRIC_SIZE; j++) {
+            quadrics[t * QUADRIC_SIZE + j] += quadrics[v * QUADRIC_SIZE + j];
+        }
+        for (int j = 0; j < ATTRIBUTE_SIZE; j++) {
+            attributes[t * ATTRIBUTE_SIZE + j] += attributes[v * ATTRIBUTE_SIZE + j];
+        }
+
+        int removed = 0;
+        stamps[t] = pass;
+        for (int i = offsets[v]; i < offsets[v + 1]; i++) {
+            int triangle = adjacency[i] * 3;
+            for (int k = 0; k < 3; k++) {
+                stamps[indices[triangle + k]] = pass;
+                if (indices[triangle + k] == t) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    // Triangles around each vertex, as ranges of adjacency given by offsets
+    private static void buildAdjacency(int[] indices, int indexCount, int vertexCount, int[] offsets, int[] adjacency) {
+        Arrays.fill(offsets, 0);
+        for (int i = 0; i < indexCount; i++) {
+            offsets[indices[i] + 1]++;
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            offsets[v + 1] += offsets[v];
+        }
+
+        int[] cursor = Arrays.copyOf(offsets, vertexCount);
+        for (int i = 0; i < indexCount; i++) {
+            adjacency[cursor[indices[i]]++] = i / 3;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package io.william.io;
+
+import io.william.renderer.Entity;
+import io.william.renderer.MasterRenderer;
+import io.william.renderer.Model;
+import io.william.renderer.Scene;
+import io.william.renderer.TextureResidency;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Loads model files without stalling the render thread, in two stages:
+//  - worker threads read the file (or the mesh cache), process the meshes and decode the textures with their mips
+//  - the render thread queues the textures on the TextureUploader and, once they're all uploaded, creates the
+//    materials and uploads the geometry, a step at a time for at most a given time per frame
+// Models are placeholders without meshes until then, so they can be added to the scene (keeping their IDs and
+// the entities that refer to them) straight away and simply draw nothing while loading
+public class ModelLoadQueue {
+
+    public enum State {
+        LOADING,
+        UPLOADING,
+        RESIDENT,
+        FAILED
+    }
+
+    public static class Handle {
+
+        private final Model model;
+        private final CompletableFuture<Model> future = new CompletableFuture<>();
+        private volatile State state = State.LOADING;
+
+        private Handle(Model model) {
+            this.model = model;
+        }
+
+        public Model getModel() {
+            return model;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        // Completes on the render thread once the model is resident
+        public CompletableFuture<Model> getFuture() {
+            return future;
+        }
+    }
+
+    private static class PendingModel {
+
+        private final Handle handle;
+        private final Map<Integer, Integer> materialIDs;
+        private final Consumer<Model> onLoaded;
+        private ModelLoader.ImportedModel importedModel;
+
+        private PendingModel(Handle handle, Map<Integer, Integer> materialIDs, Consumer<Model> onLoaded) {
+            this.handle = handle;
+            this.materialIDs = materialIDs;
+            this.onLoaded = onLoaded;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final Queue<PendingModel> imported = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private PendingModel uploading;
+    // Only the texture tails are loaded, and TextureResidency streams in the rest
+    private volatile boolean streamTextures = true;
+
+    public ModelLoadQueue(int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "model-loader-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Starts loading the file of a placeholder from ModelLoader.createPlaceholder. onLoaded runs on the render thread
+    // once the model has its meshes and materials, before it is uploaded, e.g. to attach entities to it
+    public Handle load(Model placeholder, Map<Integer, Integer> materialIDs, Consumer<Model> onLoaded) {
+        return load(placeholder, materialIDs, onLoaded, ModelLoader.DEFAULT_FLAGS);
+    }
+
+    public Handle load(Model placeholder, Map<Integer, Integer> materialIDs, Consumer<Model> onLoaded, int flags) {
+        Handle handle = new Handle(placeholder);
+        PendingModel pendingModel = new PendingModel(handle, materialIDs, onLoaded);
+        String modelPath = placeholder.getModelMetadata().getModelPath();
+        String texturesPath = placeholder.getModelMetadata().getTexturesPath();
+
+        pendingCount.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                long start = System.nanoTime();
+                int maxTextureSize = streamTextures ? TextureResidency.TAIL_SIZE : Integer.MAX_VALUE;
+                pendingModel.importedModel = ModelLoader.importModel(modelPath, texturesPath, flags, maxTextureSize);
+                System.out.println("Imported " + modelPath + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+                handle.state = State.UPLOADING;
+                imported.add(pendingModel);
+            } catch (Exception e) {
+                System.out.println("Failed to load model " + modelPath + ": " + e);
+                fail(pendingModel, e);
+            }
+        });
+
+        return handle;
+    }
+
+    // Render thread only. Always does at least one step, so loads finish even if the budget is always exceeded
+    public void update(Scene scene, MasterRenderer masterRenderer, long budgetNanos) {
+        long deadline = System.nanoTime() + budgetNanos;
+        do {
+            if (uploading == null) {
+                uploading = imported.poll();
+                if (uploading == null) {
+                    return;
+                }
+            }
+
+            PendingModel pendingModel = uploading;
+            try {
+                if (pendingModel.importedModel.uploadNextTexture(masterRenderer.getTextureUploader())) {
+                    continue;
+                }
+                // The TextureUploader copies the textures over the next frames, and materials need their handles
+                if (!pendingModel.importedModel.isUploaded()) {
+                    return;
+                }
+
+                uploading = null;
+                finish(scene, masterRenderer, pendingModel);
+            } catch (Exception e) {
+                uploading = null;
+                pendingModel.importedModel.free();
+                System.out.println("Failed to upload model " + pendingModel.importedModel.getModelPath() + ": " + e);
+                fail(pendingModel, e);
+            }
+        } while (System.nanoTime() < deadline);
+    }
+
+    private void finish(Scene scene, MasterRenderer masterRenderer, PendingModel pendingModel) throws Exception {
+        Model model = pendingModel.handle.model;
+        if (scene.getModelByID(model.getID()) != model) {
+            throw new IllegalStateException("the model was removed from the scene while loading");
+        }
+
+        ModelLoader.finishModel(scene, model, pendingModel.importedModel, pendingModel.materialIDs);
+        if (pendingModel.onLoaded != null) {
+            pendingModel.onLoaded.accept(model);
+        }
+
+        // The entities' bounds were a point while the model had no meshes
+        for (Entity entity : model.getEntities()) {
+            entity.setUpdated(true);
+        }
+
+        masterRenderer.recreateMaterialBuffer(scene.getPBRMaterials());
+        masterRenderer.addModel(scene, model);
+
+        pendingModel.handle.state = State.RESIDENT;
+        pendingCount.decrementAndGet();
+        pendingModel.handle.future.complete(model);
+    }
+
+    private void fail(PendingModel pendingModel, Exception e) {
+        pendingModel.handle.state = State.FAILED;
+        pendingCount.decrementAndGet();
+        pendingModel.handle.future.completeExceptionally(e);
+    }
+
+    // Models that are loading or waiting to be uploaded
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public boolean isStreamTextures() {
+        return streamTextures;
+    }
+
+    public void setStreamTextures(boolean streamTextures) {
+        this.streamTextures = streamTextures;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        PendingModel pendingModel;
+        while ((pendingModel = imported.poll()) != null) {
+            pendingModel.importedModel.free();
+        }
+        if (uploading != null) {
+            uploading.importedModel.free();
+            uploading = null;
+        }
+    }
+}
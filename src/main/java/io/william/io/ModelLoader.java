@@ -3,9 +3,11 @@ package io.william.io;
 import io.william.renderer.*;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.assimp.*;
+import org.lwjgl.system.MemoryStack;
 
 import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -13,38 +15,183 @@ import java.util.Map;
 import static io.william.util.Utils.floatListToArray;
 import static io.william.util.Utils.intListToArray;
 import static org.lwjgl.assimp.Assimp.*;
+import static org.lwjgl.opengl.GL11.GL_RED;
 import static org.lwjgl.opengl.GL11.GL_RGBA;
 import static org.lwjgl.opengl.GL21.GL_SRGB_ALPHA;
+import static org.lwjgl.opengl.GL30.GL_RG;
 
 public class ModelLoader {
 
+    public static final int DEFAULT_FLAGS = aiProcess_GenSmoothNormals | aiProcess_JoinIdenticalVertices
+        | aiProcess_Triangulate | aiProcess_FixInfacingNormals
+        | aiProcess_PreTransformVertices | aiProcess_CalcTangentSpace | aiProcess_FlipUVs;
+
+    // Albedo, normal, metallic, roughness, metallic roughness, AO and emissive
+    private static final int[] PBR_TEXTURE_TYPES = {
+        aiTextureType_DIFFUSE, aiTextureType_NORMALS, aiTextureType_METALNESS, aiTextureType_SHININESS,
+        aiTextureType_UNKNOWN, aiTextureType_LIGHTMAP, aiTextureType_EMISSIVE
+    };
+    private static final String[] PBR_TEXTURE_NAMES = {
+        "Albedo", "Normal", "Metallic", "Roughness", "Metallic roughness", "AO", "Emissive"
+    };
+    // Normal maps only keep x and y (the shader rebuilds z) and single channel maps only red, which is also what
+    // TextureCooker compresses them to
+    private static final int[] PBR_TEXTURE_FORMATS = {
+        GL_SRGB_ALPHA, GL_RG, GL_RED, GL_RED, GL_RGBA, GL_RED, GL_SRGB_ALPHA
+    };
+    private static final int METALLIC_ROUGHNESS = 4;
+
+    // A model file read into memory, with its textures decoded but nothing created on the GPU yet
+    // Textures are uploaded one at a time by uploadNextTexture, so the render thread can spread them over frames
+    public static class ImportedModel {
+
+        private final String modelPath;
+        private final MeshCache.Entry entry;
+
+        // Per material and texture type, null where there's no texture (or for every type if there's no textures dir)
+        private final String[][] texturePaths;
+        private final Texture[][] textures;
+        private int nextTexture;
+
+        // By mipChainKey, each file is decoded once however many materials use it, and not at all if the
+        // TextureCache already has it
+        private final Map<String, TextureUploader.MipChain> mipChains;
+
+        private ImportedModel(String modelPath, MeshCache.Entry entry, String[][] texturePaths, Map<String, TextureUploader.MipChain> mipChains) {
+            this.modelPath = modelPath;
+            this.entry = entry;
+            this.texturePaths = texturePaths;
+            this.textures = new Texture[texturePaths.length][PBR_TEXTURE_TYPES.length];
+            this.mipChains = mipChains;
+        }
+
+        // Acquires the next texture from the TextureCache, queueing its upload if it isn't there yet (or uploading
+        // it straight away without an uploader). Returns false once every texture has been acquired
+        public boolean uploadNextTexture(TextureUploader uploader) throws Exception {
+            for (; nextTexture < texturePaths.length * PBR_TEXTURE_TYPES.length; nextTexture++) {
+                int material = nextTexture / PBR_TEXTURE_TYPES.length;
+                int type = nextTexture % PBR_TEXTURE_TYPES.length;
+                if (texturePaths[material] != null && texturePaths[material][type] != null) {
+                    String path = texturePaths[material][type];
+                    textures[material][type] = TextureCache.acquire(path, getPBRTextureFormat(texturePaths[material], type), false, mipChains.remove(mipChainKey(texturePaths[material], type)), uploader);
+                    nextTexture++;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Whether every acquired texture has finished uploading and has its bindless handle
+        public boolean isUploaded() {
+            for (Texture[] materialTextures : textures) {
+                for (Texture texture : materialTextures) {
+                    if (texture != null && texture.getHandle() == 0) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        // Frees mip chains that were never uploaded and releases textures that no material took over, for loads
+        // that are abandoned
+        public void free() {
+            for (TextureUploader.MipChain mipChain : mipChains.values()) {
+                mipChain.free();
+            }
+            mipChains.clear();
+
+            for (Texture[] materialTextures : textures) {
+                for (int i = 0; i < materialTextures.length; i++) {
+                    if (materialTextures[i] != null) {
+                        TextureCache.release(materialTextures[i]);
+                        materialTextures[i] = null;
+                    }
+                }
+            }
+        }
+
+        public String getModelPath() {
+            return modelPath;
+        }
+    }
+
     public static Model load(Scene scene, String modelPath, String texturesPath, Map<Integer, Integer> materialIDs) throws Exception {
-        return load(scene, modelPath, texturesPath, materialIDs, aiProcess_GenSmoothNormals | aiProcess_JoinIdenticalVertices
-            | aiProcess_Triangulate | aiProcess_FixInfacingNormals
-            | aiProcess_PreTransformVertices | aiProcess_CalcTangentSpace | aiProcess_FlipUVs);
+        return load(scene, modelPath, texturesPath, materialIDs, DEFAULT_FLAGS);
     }
 
     public static Model load(Scene scene, String modelPath, String texturesPath, Map<Integer, Integer> materialIDs, int flags) throws Exception {
-        AIScene aiScene = aiImportFile(modelPath, flags);
-        if (aiScene == null) {
-            throw new RuntimeException("Failed to load model: " + modelPath);
+        ImportedModel importedModel = importModel(modelPath, texturesPath, flags);
+        while (importedModel.uploadNextTexture(null)) {
+        }
+
+        Model model = createPlaceholder(modelPath, texturesPath);
+        finishModel(scene, model, importedModel, materialIDs);
+        return model;
+    }
+
+    // A model without meshes for a file that is still loading, filled in by finishModel
+    public static Model createPlaceholder(String modelPath, String texturesPath) {
+        return new Model(
+            new ArrayList<>(),
+            new ModelMetadata(
+                modelPath, texturesPath, new HashMap<>()
+            ),
+            modelPath.split("[/\\\\]")[modelPath.split("[/\\\\]").length - 1].split("\\.")[0]
+        );
+    }
+
+    // The part of a load that doesn't need the GL context, so it can run on any thread
+    public static ImportedModel importModel(String modelPath, String texturesPath, int flags) throws Exception {
+        return importModel(modelPath, texturesPath, flags, Integer.MAX_VALUE);
+    }
+
+    // Only decodes the texture levels no larger than maxTextureSize, for textures whose larger levels are streamed in
+    public static ImportedModel importModel(String modelPath, String texturesPath, int flags, int maxTextureSize) throws Exception {
+        // Assimp and the mesh processing only run when the cache has nothing for this file and these flags
+        String cacheKey = MeshCache.key(modelPath, flags);
+        MeshCache.Entry entry = MeshCache.read(cacheKey);
+        if (entry == null) {
+            entry = importMeshes(modelPath, flags);
+            MeshCache.write(cacheKey, entry);
+        } else {
+            System.out.println("Loaded " + modelPath + " from the mesh cache");
         }
 
+        List<String[]> materialTexturePaths = entry.materialTexturePaths();
+        String[][] texturePaths = new String[materialTexturePaths.size()][];
+        ImportedModel importedModel = new ImportedModel(modelPath, entry, texturePaths, new HashMap<>());
+        try {
+            for (int i = 0; i < texturePaths.length; i++) {
+                texturePaths[i] = decodePBRTextures(materialTexturePaths.get(i), texturesPath, maxTextureSize, importedModel.mipChains);
+            }
+        } catch (Exception e) {
+            importedModel.free();
+            throw e;
+        }
+
+        return importedModel;
+    }
+
+    // Creates the materials of an imported model, whose textures have all been uploaded, and gives its meshes to the
+    // model. Render thread only
+    public static void finishModel(Scene scene, Model model, ImportedModel importedModel, Map<Integer, Integer> materialIDs) throws Exception {
+        MeshCache.Entry entry = importedModel.entry;
+
         // Process materials
-        int numMaterials = aiScene.mNumMaterials();
+        int numMaterials = importedModel.texturePaths.length;
         System.out.println("Number of materials: " + numMaterials);
-        PointerBuffer aiMaterials = aiScene.mMaterials();
         List<Material> materials = new ArrayList<>();
         List<PBRMaterial> pbrMaterials = new ArrayList<>();
         for (int i = 0; i < numMaterials; i++) {
-            AIMaterial aiMaterial = AIMaterial.create(aiMaterials.get(i));
-            PBRMaterial material = processPBRMaterial(aiMaterial, texturesPath);
+            PBRMaterial material = processPBRMaterial(importedModel.texturePaths[i], importedModel.textures[i]);
             if (material == null) {
                 System.out.println("Material " + i + " is null");
                 continue;
             }
             if (material.isEmpty()) {
                 System.out.println("Material " + i + " is empty");
+                material.release();
                 continue;
             }
 
@@ -63,41 +210,80 @@ public class ModelLoader {
         }
 
         // Process meshes
-        int numMeshes = aiScene.mNumMeshes();
-        System.out.println("Number of meshes: " + numMeshes);
-        PointerBuffer aiMeshes = aiScene.mMeshes();
-        List<MeshData> meshDatas = new ArrayList<>();
-
-        for (int i = 0; i < numMeshes; i++) {
-            AIMesh aiMesh = AIMesh.create(aiMeshes.get(i));
-            MeshData meshData = processMesh(aiMesh);
+        List<MeshData> meshDatas = entry.meshDatas();
+        System.out.println("Number of meshes: " + meshDatas.size());
+        for (int i = 0; i < meshDatas.size(); i++) {
+            MeshData meshData = meshDatas.get(i);
 
             if (pbrMaterials.size() == 0) {
                 meshData.setMaterialID(0);
-                meshDatas.add(meshData);
                 continue;
             }
 
-            int materialIndex = aiMesh.mMaterialIndex();
+            int materialIndex = entry.meshMaterialIndices()[i];
             meshData.setMaterialID(pbrMaterials.get(materialIndex).getID());
             System.out.println("Material ID: " + pbrMaterials.get(materialIndex).getID());
-
-            meshDatas.add(meshData);
         }
 
-        Map<Integer, Integer> meshDataMaterialIDs = new HashMap<>();
+        Map<Integer, Integer> meshDataMaterialIDs = model.getModelMetadata().getMeshDataMaterialIDs();
 
         for (int i = 0; i < meshDatas.size(); i++) {
             meshDataMaterialIDs.put(i, meshDatas.get(i).getMaterialID());
         }
 
-        return new Model(
-            meshDatas,
-            new ModelMetadata(
-                modelPath, texturesPath, meshDataMaterialIDs
-            ),
-            modelPath.split("[/\\\\]")[modelPath.split("[/\\\\]").length - 1].split("\\.")[0]
-        );
+        model.setMeshDatas(meshDatas);
+    }
+
+    // Everything a load needs from the model file, with the LODs generated and the meshes optimised
+    private static MeshCache.Entry importMeshes(String modelPath, int flags) {
+        AIScene aiScene = aiImportFile(modelPath, flags);
+        if (aiScene == null) {
+            throw new RuntimeException("Failed to load model: " + modelPath);
+        }
+
+        int numMaterials = aiScene.mNumMaterials();
+        PointerBuffer aiMaterials = aiScene.mMaterials();
+        List<String[]> materialTexturePaths = new ArrayList<>();
+        for (int i = 0; i < numMaterials; i++) {
+            materialTexturePaths.add(getPBRTexturePaths(AIMaterial.create(aiMaterials.get(i))));
+        }
+
+        int numMeshes = aiScene.mNumMeshes();
+        PointerBuffer aiMeshes = aiScene.mMeshes();
+        List<MeshData> meshDatas = new ArrayList<>();
+        int[] meshMaterialIndices = new int[numMeshes];
+        for (int i = 0; i < numMeshes; i++) {
+            AIMesh aiMesh = AIMesh.create(aiMeshes.get(i));
+            meshDatas.add(processMesh(aiMesh));
+            meshMaterialIndices[i] = aiMesh.mMaterialIndex();
+        }
+
+        aiReleaseImport(aiScene);
+
+        // Simplified LODs, one mesh per task since each one only depends on its own data
+        long lodStart = System.nanoTime();
+        meshDatas.parallelStream().forEach(MeshSimplifier::generateLods);
+        int lodCount = 0;
+        for (MeshData meshData : meshDatas) {
+            lodCount += meshData.getLodCount() - 1;
+        }
+        System.out.println("Generated " + lodCount + " LODs in " + (System.nanoTime() - lodStart) / 1_000_000 + " ms");
+
+        // Triangle and vertex order of every LOD, for the post-transform cache, overdraw and vertex fetches
+        long optimizeStart = System.nanoTime();
+        List<MeshOptimizer.Statistics> statistics = meshDatas.parallelStream().map(MeshOptimizer::optimize).toList();
+        int triangles = 0, vertices = 0, transformsBefore = 0, transformsAfter = 0;
+        for (MeshOptimizer.Statistics meshStatistics : statistics) {
+            triangles += meshStatistics.triangles();
+            vertices += meshStatistics.vertices();
+            transformsBefore += meshStatistics.transformsBefore();
+            transformsAfter += meshStatistics.transformsAfter();
+        }
+        MeshOptimizer.Statistics total = new MeshOptimizer.Statistics(triangles, vertices, transformsBefore, transformsAfter);
+        System.out.println(String.format("Optimized meshes in %d ms: ACMR %.3f -> %.3f, ATVR %.3f -> %.3f",
+            (System.nanoTime() - optimizeStart) / 1_000_000, total.acmrBefore(), total.acmrAfter(), total.atvrBefore(), total.atvrAfter()));
+
+        return new MeshCache.Entry(materialTexturePaths, meshDatas, meshMaterialIndices);
     }
 
     private static void processMaterial(AIMaterial aiMaterial, List<Material> materials, String texturesDir) throws Exception {
@@ -107,9 +293,7 @@ public class ModelLoader {
         boolean hasNormalMap = aiGetMaterialTextureCount(aiMaterial, aiTextureType_NORMALS) > 0;
 
         // Diffuse map
-        AIString path = AIString.calloc();
-        Assimp.aiGetMaterialTexture(aiMaterial, aiTextureType_DIFFUSE, 0, path, (IntBuffer) null, null, null, null, null, null);
-        String texturePath = path.dataString();
+        String texturePath = getTexturePath(aiMaterial, aiTextureType_DIFFUSE);
         Texture diffuseTexture = null;
         System.out.println(texturesDir + "/" + texturePath);
         if (texturePath.length() > 0) {
@@ -117,9 +301,7 @@ public class ModelLoader {
         }
 
         // Specular map
-        path = AIString.calloc();
-        Assimp.aiGetMaterialTexture(aiMaterial, aiTextureType_SPECULAR, 0, path, (IntBuffer) null, null, null, null, null, null);
-        texturePath = path.dataString();
+        texturePath = getTexturePath(aiMaterial, aiTextureType_SPECULAR);
         Texture specularTexture = null;
         System.out.println(texturesDir + "/" + texturePath);
         if (texturePath.length() > 0) {
@@ -127,9 +309,7 @@ public class ModelLoader {
         }
 
         // Normal map
-        path = AIString.calloc();
-        Assimp.aiGetMaterialTexture(aiMaterial, aiTextureType_NORMALS, 0, path, (IntBuffer) null, null, null, null, null, null);
-        texturePath = path.dataString();
+        texturePath = getTexturePath(aiMaterial, aiTextureType_NORMALS);
         Texture normalTexture = null;
         System.out.println(texturesDir + "/" + texturePath);
         if (texturePath.length() > 0) {
@@ -142,100 +322,95 @@ public class ModelLoader {
         }
     }
 
-    private static PBRMaterial processPBRMaterial(AIMaterial aiMaterial, String texturesDir) throws Exception {
-        if (texturesDir == null || texturesDir.length() == 0) {
-            System.out.println("textures dir is null or length is zero");
-            return null;
+    // Texture paths of a material in the order processPBRMaterial takes them, empty where there's no texture
+    static String[] getPBRTexturePaths(AIMaterial aiMaterial) {
+        String[] texturePaths = new String[PBR_TEXTURE_TYPES.length];
+        for (int i = 0; i < PBR_TEXTURE_TYPES.length; i++) {
+            texturePaths[i] = getTexturePath(aiMaterial, PBR_TEXTURE_TYPES[i]);
         }
 
-        // Albedo map
-        AIString path = AIString.calloc();
-        Assimp.aiGetMaterialTexture(aiMaterial, aiTextureType_DIFFUSE, 0, path, (IntBuffer) null, null, null, null, null, null);
-        String texturePath = path.dataString();
-        Texture albedoTexture = null;
-        System.out.println("Albedo map: " + texturesDir + "/" + texturePath);
-        if (texturePath.length() > 0) {
-            albedoTexture = new Texture(texturesDir + "/" + texturePath, GL_SRGB_ALPHA);
+        // Texture type debugging
+        for (int i = 0; i < 21; i++) {
+            System.out.println(i + ": " + getTexturePath(aiMaterial, i));
         }
 
-        // Normal map
-        path = AIString.calloc();
-        Assimp.aiGetMaterialTexture(aiMaterial, aiTextureType_NORMALS, 0, path, (IntBuffer) null, null, null, null, null, null);
-        texturePath = path.dataString();
-        Texture normalTexture = null;
-        System.out.println("Normal map: " + texturesDir + "/" + texturePath);
-        if (texturePath.length() > 0) {
-            normalTexture = new Texture(texturesDir + "/" + texturePath, GL_RGBA);
-        }
+        return texturePaths;
+    }
 
-        // Metallic map
-        path = AIString.calloc();
-        Assimp.aiGetMaterialTexture(aiMaterial, aiTextureType_METALNESS, 0, path, (IntBuffer) null, null, null, null, null, null);
-        texturePath = path.dataString();
-        Texture metallicTexture = null;
-        System.out.println("Metallic map: " + texturesDir + "/" + texturePath);
-        if (texturePath.length() > 0) {
-            metallicTexture = new Texture(texturesDir + "/" + texturePath, GL_RGBA);
+    // Empty if the material has no texture of the type
+    private static String getTexturePath(AIMaterial aiMaterial, int type) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            AIString path = AIString.calloc(stack);
+            Assimp.aiGetMaterialTexture(aiMaterial, type, 0, path, (IntBuffer) null, null, null, null, null, null);
+            return path.dataString();
         }
+    }
 
-        // Roughness map
-        path = AIString.calloc();
-        Assimp.aiGetMaterialTexture(aiMaterial, aiTextureType_SHININESS, 0, path, (IntBuffer) null, null, null, null, null, null);
-        texturePath = path.dataString();
-        Texture roughnessTexture = null;
-        System.out.println("Roughness map: " + texturesDir + "/" + texturePath);
-        if (texturePath.length() > 0) {
-            roughnessTexture = new Texture(texturesDir + "/" + texturePath, GL_RGBA);
+    // Paths of the textures of a material in the order of PBR_TEXTURE_TYPES, null if there's no textures dir
+    // Decodes the ones that aren't in the TextureCache or mipChains yet into mipChains
+    private static String[] decodePBRTextures(String[] texturePaths, String texturesDir, int maxTextureSize, Map<String, TextureUploader.MipChain> mipChains) throws Exception {
+        if (texturesDir == null || texturesDir.length() == 0) {
+            System.out.println("textures dir is null or length is zero");
+            return null;
         }
 
-        // Metallic roughness map
-        path = AIString.calloc();
-        Assimp.aiGetMaterialTexture(aiMaterial, aiTextureType_UNKNOWN, 0, path, (IntBuffer) null, null, null, null, null, null);
-        texturePath = path.dataString();
-        Texture metallicRoughnessTexture = null;
-        System.out.println("Metallic roughness map: " + texturesDir + "/" + texturePath);
-        if (texturePath.length() > 0) {
-            metallicRoughnessTexture = new Texture(texturesDir + "/" + texturePath, GL_RGBA);
+        String[] paths = new String[texturePaths.length];
+        for (int i = 0; i < texturePaths.length; i++) {
+            System.out.println(PBR_TEXTURE_NAMES[i] + " map: " + texturesDir + "/" + texturePaths[i]);
+            if (texturePaths[i].length() == 0) {
+                continue;
+            }
+
+            paths[i] = texturesDir + "/" + texturePaths[i];
         }
 
-        // AO map
-        path = AIString.calloc();
-        Assimp.aiGetMaterialTexture(aiMaterial, aiTextureType_LIGHTMAP, 0, path, (IntBuffer) null, null, null, null, null, null);
-        texturePath = path.dataString();
-        Texture aoTexture = null;
-        System.out.println("AO map: " + texturesDir + "/" + texturePath);
-        if (texturePath.length() > 0) {
-            aoTexture = new Texture(texturesDir + "/" + texturePath, GL_RGBA);
+        for (int i = 0; i < paths.length; i++) {
+            if (paths[i] == null) {
+                continue;
+            }
+
+            int internalFormat = getPBRTextureFormat(paths, i);
+            String key = mipChainKey(paths, i);
+            if (!mipChains.containsKey(key) && !TextureCache.contains(paths[i], internalFormat, false)) {
+                mipChains.put(key, TextureUploader.decode(paths[i], false, internalFormat, maxTextureSize));
+            }
         }
 
-        // Emissive map
-        path = AIString.calloc();
-        Assimp.aiGetMaterialTexture(aiMaterial, aiTextureType_EMISSIVE, 0, path, (IntBuffer) null, null, null, null, null, null);
-        texturePath = path.dataString();
-        Texture emissiveTexture = null;
-        System.out.println("Emissive map: " + texturesDir + "/" + texturePath);
-        if (texturePath.length() > 0) {
-            emissiveTexture = new Texture(texturesDir + "/" + texturePath, GL_SRGB_ALPHA);
+        return paths;
+    }
+
+    private static String mipChainKey(String[] paths, int type) {
+        return TextureCache.canonicalPath(paths[type]) + ":" + getPBRTextureFormat(paths, type);
+    }
+
+    // Metallic, roughness and AO maps that are the packed metallic roughness file (as with glTF) share its texture
+    // instead of loading a single channel copy of it
+    static int getPBRTextureFormat(String[] texturePaths, int type) {
+        if (type != METALLIC_ROUGHNESS && PBR_TEXTURE_FORMATS[type] == GL_RED && texturePaths[type].equals(texturePaths[METALLIC_ROUGHNESS])) {
+            return PBR_TEXTURE_FORMATS[METALLIC_ROUGHNESS];
         }
+        return PBR_TEXTURE_FORMATS[type];
+    }
 
-        // Texture type debugging
-        for (int i = 0; i < 21; i++) {
-            path = AIString.calloc();
-            Assimp.aiGetMaterialTexture(aiMaterial, i, 0, path, (IntBuffer) null, null, null, null, null, null);
-            System.out.println(i + ": " + path.dataString());
+    // Takes over the textures, which stay null where the material has no texture so that it uses the default ones
+    private static PBRMaterial processPBRMaterial(String[] texturePaths, Texture[] textures) throws Exception {
+        if (texturePaths == null) {
+            return null;
         }
 
-        return new PBRMaterial(
+        PBRMaterial material = new PBRMaterial(
             null,
             true,
-            albedoTexture,
-            normalTexture,
-            metallicTexture,
-            roughnessTexture,
-            metallicRoughnessTexture,
-            aoTexture,
-            emissiveTexture
+            textures[0],
+            textures[1],
+            textures[2],
+            textures[3],
+            textures[4],
+            textures[5],
+            textures[6]
         );
+        Arrays.fill(textures, null);
+        return material;
     }
 
     private static MeshData processMesh(AIMesh aiMesh) {
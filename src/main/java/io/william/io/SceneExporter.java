@@ -9,18 +9,26 @@ import org.joml.Vector3f;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
 
 public class SceneExporter {
 
+    // Entities without controllers all share these (null) keys, so that snapshots don't build an object for each
+    private static final JSONObject NO_CONTROLLERS = new JSONObject();
+
+    static {
+        NO_CONTROLLERS.put("movementController", null);
+        NO_CONTROLLERS.put("rotationController", null);
+    }
+
     public static void export(Scene scene,
                               Camera camera,
                               Renderer renderer,
                               ShadowRenderer shadowRenderer,
                               OmnidirectionalShadowRenderer omnidirectionalShadowRenderer) {
-        export(System.getProperty("user.dir") + "/src/main/resources/scene_" + System.currentTimeMillis() + ".json",
+        export(getDefaultPath(),
                 scene,
                 camera,
                 renderer,
@@ -28,13 +36,31 @@ public class SceneExporter {
                 omnidirectionalShadowRenderer);
     }
 
+    // Saves on the calling thread, SceneSaver writes the snapshot on a background thread instead
     public static void export(String path,
                               Scene scene,
                               Camera camera,
                               Renderer renderer,
                               ShadowRenderer shadowRenderer,
                               OmnidirectionalShadowRenderer omnidirectionalShadowRenderer) {
+        try {
+            SceneSnapshot.take(scene, camera, renderer, shadowRenderer, omnidirectionalShadowRenderer).write(Path.of(path));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // A new scene file in the resources directory
+    public static String getDefaultPath() {
+        return System.getProperty("user.dir") + "/src/main/resources/scene_" + System.currentTimeMillis() + ".json";
+    }
 
+    // The document without scene.entities, which SceneSnapshot keeps as columns instead
+    static JSONObject documentToJSONObject(Scene scene,
+                                           Camera camera,
+                                           Renderer renderer,
+                                           ShadowRenderer shadowRenderer,
+                                           OmnidirectionalShadowRenderer omnidirectionalShadowRenderer) {
         JSONObject jsonObject = new JSONObject();
 
         // Scene
@@ -52,12 +78,7 @@ public class SceneExporter {
         // OmnidirectionalShadowRenderer
         jsonObject.put("omnidirectionalShadowRenderer", omnidirectionalShadowRendererToJSONObject(omnidirectionalShadowRenderer));
 
-        try (FileWriter file = new FileWriter(path)) {
-            file.write(jsonObject.toJSONString());
-            file.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        return jsonObject;
     }
 
     private static JSONObject sceneToJSONObject(Scene scene) {
@@ -73,11 +94,6 @@ public class SceneExporter {
         JSONObject materialsObject = materialsToJSONObject(materials);
         sceneObject.put("materials", materialsObject);
 
-        // Entities
-        List<Entity> entities = scene.getEntities();
-        JSONObject entitiesObject = entitiesToJSONObject(entities);
-        sceneObject.put("entities", entitiesObject);
-
         // Directional light
         DirLight dirLight = scene.getDirLight();
         JSONObject dirLightObject = dirLightToJSONObject(dirLight);
@@ -183,25 +199,16 @@ public class SceneExporter {
         return materialsObject;
     }
 
-    private static JSONObject entitiesToJSONObject(List<Entity> entities) {
-        JSONObject entitiesObject = new JSONObject();
-        for (Entity entity : entities) {
-            JSONObject o = new JSONObject();
-            o.put("id", entity.getID());
-            o.put("name", entity.getName());
-            o.put("modelID", entity.getModelID());
-            o.put("position", vector3fToJSONObject(entity.getPosition()));
-            o.put("rotation", vector3fToJSONObject(entity.getRotation()));
-            o.put("scale", entity.getScale());
-            o.put("parent", entity.getParent() != null ? entity.getParent().getID() : null);
-            o.put("children", entityChildrenToJSONArray(entity.getChildren()));
-            o.put("movementController", entity.getMovementController() != null ? entityMovementToJSONObject(entity.getMovementController()) : null);
-            o.put("rotationController", entity.getRotationController() != null ? entityRotationToJSONObject(entity.getRotationController()) : null);
-
-            entitiesObject.put(entity.getID(), o);
+    // The entity's keys that SceneFile stores outside of its entity columns
+    static JSONObject entityControllersToJSONObject(Entity entity) {
+        if (entity.getMovementController() == null && entity.getRotationController() == null) {
+            return NO_CONTROLLERS;
         }
 
-        return entitiesObject;
+        JSONObject o = new JSONObject();
+        o.put("movementController", entity.getMovementController() != null ? entityMovementToJSONObject(entity.getMovementController()) : null);
+        o.put("rotationController", entity.getRotationController() != null ? entityRotationToJSONObject(entity.getRotationController()) : null);
+        return o;
     }
 
     private static JSONObject entityToJSONObject(Entity entity) {
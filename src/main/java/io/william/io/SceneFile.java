@@ -0,0 +1,682 @@
+package io.william.io;
+
+import io.william.renderer.Entity;
+import org.joml.Vector3f;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+// Binary scene files, a compact alternative to the JSON that SceneExporter writes and SceneImporter reads
+// A scene file holds the same document as the JSON, so the two convert into each other without loss. The entity
+// table, which is most of a large scene, is stored as columns that SceneImporter reads straight from the file's bytes,
+// and everything else as a tagged binary encoding of the JSON values. Entity transforms are stored as the floats the
+// importer parses them into
+// Layout, little endian with 4-byte aligned sections:
+//  - header: magic, version, section count, then each section's ID, offset and size
+//  - DOCUMENT: the JSON document without scene.entities
+//  - ENTITIES: entity count, child count, name bytes and extras bytes, then the columns (one value per entity):
+//    ID, model ID, parent (-1 for none), scale, position x, y and z, rotation x, y and z, extras offset (-1 for none)
+//    followed by the first child and name offset of each entity and one past the last, and a flags byte per entity.
+//    Then the children IDs, the UTF-8 names and the extras: JSON objects with each entity's other keys (its controllers)
+// Usage: SceneFile input output, converting between JSON and scene files by the output's extension
+public class SceneFile {
+
+    public static final String EXTENSION = ".scene";
+
+    private static final int MAGIC = 0x4353574c;  // "LWSC"
+    private static final int FORMAT_VERSION = 1;
+    private static final int DOCUMENT = 1;
+    private static final int ENTITIES = 2;
+    private static final int HEADER_SIZE = 3 * Integer.BYTES;
+    private static final int SECTION_SIZE = 3 * Integer.BYTES;
+    private static final int ENTITIES_HEADER_SIZE = 4 * Integer.BYTES;
+
+    // Columns of one 4-byte value per entity
+    private static final int ID = 0;
+    private static final int MODEL_ID = 1;
+    private static final int PARENT = 2;
+    private static final int SCALE = 3;
+    private static final int POSITION = 4;
+    private static final int ROTATION = 7;
+    private static final int EXTRAS = 10;
+    private static final int COLUMNS = 11;
+
+    // Which of the optional keys the entity's JSON had
+    private static final int HAS_PARENT = 1;
+    private static final int HAS_CHILDREN = 2;
+
+    // Tags of the JSON value encoding
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte STRING = 6;
+    private static final byte ARRAY = 7;
+    private static final byte OBJECT = 8;
+
+    // Entity columns being written, from a JSON entity table or copied from the scene for a SceneSnapshot
+    static class EntityTable {
+
+        private final int count;
+        private final int[] ints;
+        private final float[] floats;
+        private final byte[] flags;
+        private final int[] firstChildren;
+        private final int[] children;
+        private final String[] names;
+        private final JSONObject[] extras;
+
+        private EntityTable(int count, int childCount) {
+            this.count = count;
+            ints = new int[COLUMNS * count];
+            floats = new float[COLUMNS * count];
+            flags = new byte[count];
+            firstChildren = new int[count + 1];
+            children = new int[childCount];
+            names = new String[count];
+            extras = new JSONObject[count];
+        }
+
+        private static EntityTable fromJson(JSONObject entitiesJson) throws IOException {
+            int childCount = 0;
+            for (Object value : entitiesJson.values()) {
+                JSONArray childrenJson = (JSONArray) ((JSONObject) value).get("children");
+                childCount += childrenJson != null ? childrenJson.size() : 0;
+            }
+
+            EntityTable table = new EntityTable(entitiesJson.size(), childCount);
+            int i = 0;
+            int child = 0;
+            for (Object value : entitiesJson.values()) {
+                JSONObject entityJson = (JSONObject) value;
+                if (entityJson.get("id") == null || entityJson.get("name") == null || entityJson.get("modelID") == null
+                    || entityJson.get("position") == null || entityJson.get("rotation") == null || entityJson.get("scale") == null) {
+                    throw new IOException("Entity is missing a required key: " + entityJson);
+                }
+
+                table.ints[ID * table.count + i] = Integer.parseInt(entityJson.get("id").toString());
+                table.ints[MODEL_ID * table.count + i] = Integer.parseInt(entityJson.get("modelID").toString());
+                table.floats[SCALE * table.count + i] = Float.parseFloat(entityJson.get("scale").toString());
+                table.putVector(POSITION, i, (JSONObject) entityJson.get("position"));
+                table.putVector(ROTATION, i, (JSONObject) entityJson.get("rotation"));
+                table.names[i] = entityJson.get("name").toString();
+
+                table.ints[PARENT * table.count + i] = -1;
+                if (entityJson.containsKey("parent")) {
+                    table.flags[i] |= HAS_PARENT;
+                    if (entityJson.get("parent") != null) {
+                        table.ints[PARENT * table.count + i] = Integer.parseInt(entityJson.get("parent").toString());
+                    }
+                }
+
+                table.firstChildren[i] = child;
+                if (entityJson.containsKey("children")) {
+                    table.flags[i] |= HAS_CHILDREN;
+                    JSONArray childrenJson = (JSONArray) entityJson.get("children");
+                    if (childrenJson != null) {
+                        for (Object childID : childrenJson) {
+                            table.children[child++] = Integer.parseInt(childID.toString());
+                        }
+                    }
+                }
+
+                JSONObject extrasJson = new JSONObject();
+                for (Object entry : entityJson.entrySet()) {
+                    Map.Entry<?, ?> keyValue = (Map.Entry<?, ?>) entry;
+                    switch (keyValue.getKey().toString()) {
+                        case "id", "name", "modelID", "position", "rotation", "scale", "parent", "children" -> {
+                        }
+                        default -> extrasJson.put(keyValue.getKey().toString(), keyValue.getValue());
+                    }
+                }
+                table.extras[i] = extrasJson.isEmpty() ? null : extrasJson;
+                i++;
+            }
+            table.firstChildren[table.count] = child;
+            return table;
+        }
+
+        // The same table SceneExporter's JSON would convert to, without building the JSON for every entity. Only copies
+        // values, the names are encoded and the table written later, on another thread
+        static EntityTable fromEntities(List<Entity> entities) {
+            int childCount = 0;
+            for (Entity entity : entities) {
+                childCount += entity.getChildren().size();
+            }
+
+            EntityTable table = new EntityTable(entities.size(), childCount);
+            int child = 0;
+            for (int i = 0; i < entities.size(); i++) {
+                Entity entity = entities.get(i);
+                table.ints[ID * table.count + i] = entity.getID();
+                table.ints[MODEL_ID * table.count + i] = entity.getModelID();
+                table.ints[PARENT * table.count + i] = entity.getParent() != null ? entity.getParent().getID() : -1;
+                table.floats[SCALE * table.count + i] = entity.getScale();
+                table.putVector(POSITION, i, entity.getPosition());
+                table.putVector(ROTATION, i, entity.getRotation());
+                table.names[i] = entity.getName();
+                table.flags[i] = HAS_PARENT | HAS_CHILDREN;
+
+                table.firstChildren[i] = child;
+                for (Entity childEntity : entity.getChildren()) {
+                    table.children[child++] = childEntity.getID();
+                }
+
+                table.extras[i] = SceneExporter.entityControllersToJSONObject(entity);
+            }
+            table.firstChildren[table.count] = child;
+            return table;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        private void putVector(int column, int entity, JSONObject vectorJson) {
+            floats[column * count + entity] = Float.parseFloat(vectorJson.get("x").toString());
+            floats[(column + 1) * count + entity] = Float.parseFloat(vectorJson.get("y").toString());
+            floats[(column + 2) * count + entity] = Float.parseFloat(vectorJson.get("z").toString());
+        }
+
+        private void putVector(int column, int entity, Vector3f vector) {
+            floats[column * count + entity] = vector.x;
+            floats[(column + 1) * count + entity] = vector.y;
+            floats[(column + 2) * count + entity] = vector.z;
+        }
+
+        // The entities object of SceneExporter's JSON, streamed without building it
+        void writeJson(Writer writer) throws IOException {
+            writer.write('{');
+            for (int i = 0; i < count; i++) {
+                int id = ints[ID * count + i];
+                writer.write(i > 0 ? ",\"" : "\"");
+                writer.write(id + "\":{\"id\":" + id);
+                writer.write(",\"name\":\"" + JSONValue.escape(names[i]) + "\"");
+                writer.write(",\"modelID\":" + ints[MODEL_ID * count + i]);
+                writer.write(",\"position\":{\"x\":" + floats[POSITION * count + i] + ",\"y\":" + floats[(POSITION + 1) * count + i] + ",\"z\":" + floats[(POSITION + 2) * count + i] + "}");
+                writer.write(",\"rotation\":{\"x\":" + floats[ROTATION * count + i] + ",\"y\":" + floats[(ROTATION + 1) * count + i] + ",\"z\":" + floats[(ROTATION + 2) * count + i] + "}");
+                writer.write(",\"scale\":" + floats[SCALE * count + i]);
+
+                if ((flags[i] & HAS_PARENT) != 0) {
+                    int parent = ints[PARENT * count + i];
+                    writer.write(",\"parent\":" + (parent >= 0 ? String.valueOf(parent) : "null"));
+                }
+                if ((flags[i] & HAS_CHILDREN) != 0) {
+                    writer.write(",\"children\":[");
+                    for (int child = firstChildren[i]; child < firstChildren[i + 1]; child++) {
+                        writer.write(child > firstChildren[i] ? "," + children[child] : String.valueOf(children[child]));
+                    }
+                    writer.write(']');
+                }
+
+                if (extras[i] != null) {
+                    for (Object entry : extras[i].entrySet()) {
+                        Map.Entry<?, ?> keyValue = (Map.Entry<?, ?>) entry;
+                        writer.write(",\"" + JSONValue.escape(keyValue.getKey().toString()) + "\":");
+                        JSONValue.writeJSONString(keyValue.getValue(), writer);
+                    }
+                }
+                writer.write('}');
+            }
+            writer.write('}');
+        }
+
+        private int getExtrasBytes() {
+            int size = 0;
+            for (JSONObject extrasJson : extras) {
+                size += extrasJson != null ? valueSize(extrasJson) : 0;
+            }
+            return size;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int documentOffset;
+    private final int entityCount;
+    private final int columnsOffset;
+    private final int firstChildrenOffset;
+    private final int nameOffsetsOffset;
+    private final int flagsOffset;
+    private final int childrenOffset;
+    private final int namesOffset;
+    private final int extrasOffset;
+
+    private SceneFile(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a scene file");
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("unsupported scene file version " + buffer.getInt(4));
+        }
+
+        int document = -1;
+        int entities = -1;
+        int entitiesSize = 0;
+        int sectionCount = buffer.getInt(8);
+        if (sectionCount < 0 || HEADER_SIZE + (long) sectionCount * SECTION_SIZE > buffer.capacity()) {
+            throw new IOException("truncated section table");
+        }
+        for (int i = 0; i < sectionCount; i++) {
+            int entry = HEADER_SIZE + i * SECTION_SIZE;
+            int offset = buffer.getInt(entry + 4);
+            int size = buffer.getInt(entry + 8);
+            if (offset < 0 || size < 0 || (long) offset + size > buffer.capacity()) {
+                throw new IOException("truncated section " + buffer.getInt(entry));
+            }
+            // Unknown sections are skipped, so that later versions can add optional ones
+            switch (buffer.getInt(entry)) {
+                case DOCUMENT -> document = offset;
+                case ENTITIES -> {
+                    entities = offset;
+                    entitiesSize = size;
+                }
+            }
+        }
+        if (document < 0 || entities < 0) {
+            throw new IOException("missing section");
+        }
+        documentOffset = document;
+
+        entityCount = buffer.getInt(entities);
+        int childCount = buffer.getInt(entities + 4);
+        int nameBytes = buffer.getInt(entities + 8);
+        int extrasBytes = buffer.getInt(entities + 12);
+        columnsOffset = entities + ENTITIES_HEADER_SIZE;
+        firstChildrenOffset = columnsOffset + COLUMNS * entityCount * Integer.BYTES;
+        nameOffsetsOffset = firstChildrenOffset + (entityCount + 1) * Integer.BYTES;
+        flagsOffset = nameOffsetsOffset + (entityCount + 1) * Integer.BYTES;
+        childrenOffset = flagsOffset + align(entityCount);
+        namesOffset = childrenOffset + childCount * Integer.BYTES;
+        extrasOffset = namesOffset + nameBytes;
+
+        long end = (long) extrasOffset + extrasBytes;
+        if (entityCount < 0 || childCount < 0 || nameBytes < 0 || extrasBytes < 0 || end > entities + (long) entitiesSize
+            || buffer.getInt(firstChildrenOffset + entityCount * Integer.BYTES) != childCount
+            || buffer.getInt(nameOffsetsOffset + entityCount * Integer.BYTES) != nameBytes) {
+            throw new IOException("invalid entity table");
+        }
+    }
+
+    // Reads the whole file into memory, the entity columns are read from it as they're accessed
+    // The file isn't mapped: a mapping stays open until the buffer is garbage collected, and on Windows that makes
+    // saving over the same path fail, since write replaces it with an atomic move
+    public static SceneFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("scene file too large");
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("scene file truncated while reading");
+                }
+            }
+            return new SceneFile(buffer.flip().order(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+
+    // The scene file of a document in the JSON format, whose entities are in scene.entities
+    public static void write(Path path, JSONObject document) throws IOException {
+        JSONObject sceneJson = (JSONObject) document.get("scene");
+        JSONObject entitiesJson = sceneJson != null ? (JSONObject) sceneJson.get("entities") : null;
+        if (entitiesJson == null) {
+            throw new IOException("document has no scene.entities");
+        }
+        write(path, withoutEntities(document), EntityTable.fromJson(entitiesJson));
+    }
+
+    // The scene file of a document without scene.entities and its entity table
+    static void write(Path path, JSONObject document, EntityTable table) throws IOException {
+        int count = table.count;
+        byte[][] names = new byte[count][];
+        int nameBytes = 0;
+        for (int i = 0; i < count; i++) {
+            names[i] = table.names[i].getBytes(StandardCharsets.UTF_8);
+            nameBytes += names[i].length;
+        }
+        int extrasBytes = table.getExtrasBytes();
+
+        int documentOffset = HEADER_SIZE + 2 * SECTION_SIZE;
+        int documentSize = valueSize(document);
+        int entitiesOffset = documentOffset + align(documentSize);
+        int entitiesSize = ENTITIES_HEADER_SIZE + (COLUMNS * count + 2 * (count + 1)) * Integer.BYTES + align(count)
+            + table.children.length * Integer.BYTES + nameBytes + extrasBytes;
+
+        ByteBuffer buffer = MemoryUtil.memCalloc(entitiesOffset + entitiesSize).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(2);
+            buffer.putInt(DOCUMENT).putInt(documentOffset).putInt(documentSize);
+            buffer.putInt(ENTITIES).putInt(entitiesOffset).putInt(entitiesSize);
+            putValue(buffer, document);
+
+            buffer.position(entitiesOffset);
+            buffer.putInt(count).putInt(table.children.length).putInt(nameBytes).putInt(extrasBytes);
+            for (int column = 0; column < EXTRAS; column++) {
+                for (int i = 0; i < count; i++) {
+                    if (column >= SCALE) {
+                        buffer.putFloat(table.floats[column * count + i]);
+                    } else {
+                        buffer.putInt(table.ints[column * count + i]);
+                    }
+                }
+            }
+            int extrasOffset = 0;
+            for (JSONObject extrasJson : table.extras) {
+                buffer.putInt(extrasJson != null ? extrasOffset : -1);
+                extrasOffset += extrasJson != null ? valueSize(extrasJson) : 0;
+            }
+            for (int i = 0; i <= count; i++) {
+                buffer.putInt(table.firstChildren[i]);
+            }
+            int nameOffset = 0;
+            for (int i = 0; i <= count; i++) {
+                buffer.putInt(nameOffset);
+                nameOffset += i < count ? names[i].length : 0;
+            }
+            buffer.put(table.flags);
+            buffer.position(buffer.position() + align(count) - count);
+            for (int child : table.children) {
+                buffer.putInt(child);
+            }
+            for (byte[] name : names) {
+                buffer.put(name);
+            }
+            for (JSONObject extrasJson : table.extras) {
+                if (extrasJson != null) {
+                    putValue(buffer, extrasJson);
+                }
+            }
+            buffer.flip();
+
+            // Written to a temporary file first, so that a failed save never leaves a partial scene behind
+            Path temporaryPath = path.resolveSibling(path.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.deleteIfExists(temporaryPath);
+                throw e;
+            }
+        } finally {
+            MemoryUtil.memFree(buffer);
+        }
+    }
+
+    private static JSONObject withoutEntities(JSONObject document) {
+        JSONObject sceneJson = new JSONObject();
+        sceneJson.putAll((JSONObject) document.get("scene"));
+        sceneJson.remove("entities");
+
+        JSONObject withoutEntities = new JSONObject();
+        withoutEntities.putAll(document);
+        withoutEntities.put("scene", sceneJson);
+        return withoutEntities;
+    }
+
+    // Everything but the entities, in the JSON format
+    public JSONObject getDocument() {
+        return (JSONObject) getValue(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(documentOffset));
+    }
+
+    // The whole document in the JSON format, as SceneExporter would have written it
+    public JSONObject toJson() {
+        JSONObject entitiesJson = new JSONObject();
+        Vector3f vector = new Vector3f();
+        for (int i = 0; i < entityCount; i++) {
+            JSONObject entityJson = new JSONObject();
+            JSONObject extrasJson = getExtras(i);
+            if (extrasJson != null) {
+                entityJson.putAll(extrasJson);
+            }
+
+            entityJson.put("id", (long) getID(i));
+            entityJson.put("name", getName(i));
+            entityJson.put("modelID", (long) getModelID(i));
+            entityJson.put("position", vectorToJson(getPosition(i, vector)));
+            entityJson.put("rotation", vectorToJson(getRotation(i, vector)));
+            entityJson.put("scale", getScale(i));
+
+            int flags = buffer.get(flagsOffset + i);
+            if ((flags & HAS_PARENT) != 0) {
+                entityJson.put("parent", getParent(i) >= 0 ? (Long) (long) getParent(i) : null);
+            }
+            if ((flags & HAS_CHILDREN) != 0) {
+                JSONArray childrenJson = new JSONArray();
+                for (int child = 0; child < getChildCount(i); child++) {
+                    childrenJson.add((long) getChild(i, child));
+                }
+                entityJson.put("children", childrenJson);
+            }
+
+            entitiesJson.put(String.valueOf(getID(i)), entityJson);
+        }
+
+        JSONObject document = getDocument();
+        JSONObject sceneJson = (JSONObject) document.get("scene");
+        sceneJson.put("entities", entitiesJson);
+        return document;
+    }
+
+    private static JSONObject vectorToJson(Vector3f vector) {
+        JSONObject vectorJson = new JSONObject();
+        vectorJson.put("x", vector.x);
+        vectorJson.put("y", vector.y);
+        vectorJson.put("z", vector.z);
+        return vectorJson;
+    }
+
+    public int getEntityCount() {
+        return entityCount;
+    }
+
+    public int getID(int entity) {
+        return getColumnInt(ID, entity);
+    }
+
+    public int getModelID(int entity) {
+        return getColumnInt(MODEL_ID, entity);
+    }
+
+    // -1 if the entity has no parent
+    public int getParent(int entity) {
+        return getColumnInt(PARENT, entity);
+    }
+
+    public float getScale(int entity) {
+        return getColumnFloat(SCALE, entity);
+    }
+
+    public Vector3f getPosition(int entity, Vector3f dest) {
+        return dest.set(getColumnFloat(POSITION, entity), getColumnFloat(POSITION + 1, entity), getColumnFloat(POSITION + 2, entity));
+    }
+
+    public Vector3f getRotation(int entity, Vector3f dest) {
+        return dest.set(getColumnFloat(ROTATION, entity), getColumnFloat(ROTATION + 1, entity), getColumnFloat(ROTATION + 2, entity));
+    }
+
+    public String getName(int entity) {
+        int start = buffer.getInt(nameOffsetsOffset + entity * Integer.BYTES);
+        int end = buffer.getInt(nameOffsetsOffset + (entity + 1) * Integer.BYTES);
+        byte[] bytes = new byte[end - start];
+        buffer.get(namesOffset + start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int getChildCount(int entity) {
+        return buffer.getInt(firstChildrenOffset + (entity + 1) * Integer.BYTES) - buffer.getInt(firstChildrenOffset + entity * Integer.BYTES);
+    }
+
+    public int getChild(int entity, int child) {
+        return buffer.getInt(childrenOffset + (buffer.getInt(firstChildrenOffset + entity * Integer.BYTES) + child) * Integer.BYTES);
+    }
+
+    // The entity's keys that have no column, like its controllers, null if there are none
+    public JSONObject getExtras(int entity) {
+        int offset = getColumnInt(EXTRAS, entity);
+        return offset >= 0 ? (JSONObject) getValue(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(extrasOffset + offset)) : null;
+    }
+
+    private int getColumnInt(int column, int entity) {
+        return buffer.getInt(columnsOffset + (column * entityCount + entity) * Integer.BYTES);
+    }
+
+    private float getColumnFloat(int column, int entity) {
+        return buffer.getFloat(columnsOffset + (column * entityCount + entity) * Integer.BYTES);
+    }
+
+    private static int valueSize(Object value) {
+        if (value == null || value instanceof Boolean) {
+            return 1;
+        } else if (value instanceof Float) {
+            return 1 + Float.BYTES;
+        } else if (value instanceof Number) {
+            return 1 + Long.BYTES;
+        } else if (value instanceof List<?> list) {
+            int size = 1 + Integer.BYTES;
+            for (Object element : list) {
+                size += valueSize(element);
+            }
+            return size;
+        } else if (value instanceof Map<?, ?> map) {
+            int size = 1 + Integer.BYTES;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                size += Integer.BYTES + entry.getKey().toString().getBytes(StandardCharsets.UTF_8).length + valueSize(entry.getValue());
+            }
+            return size;
+        }
+        return 1 + Integer.BYTES + value.toString().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // Floats keep their own tag, so that they're written back to JSON with the same digits
+    private static void putValue(ByteBuffer buffer, Object value) {
+        if (value == null) {
+            buffer.put(NULL);
+        } else if (value instanceof Boolean bool) {
+            buffer.put(bool ? TRUE : FALSE);
+        } else if (value instanceof Float f) {
+            buffer.put(FLOAT).putFloat(f);
+        } else if (value instanceof Double || value instanceof java.math.BigDecimal) {
+            buffer.put(DOUBLE).putDouble(((Number) value).doubleValue());
+        } else if (value instanceof Number number) {
+            buffer.put(LONG).putLong(number.longValue());
+        } else if (value instanceof List<?> list) {
+            buffer.put(ARRAY).putInt(list.size());
+            for (Object element : list) {
+                putValue(buffer, element);
+            }
+        } else if (value instanceof Map<?, ?> map) {
+            buffer.put(OBJECT).putInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                putString(buffer, entry.getKey().toString());
+                putValue(buffer, entry.getValue());
+            }
+        } else {
+            buffer.put(STRING);
+            putString(buffer, value.toString());
+        }
+    }
+
+    private static Object getValue(ByteBuffer buffer) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case FALSE:
+                return false;
+            case TRUE:
+                return true;
+            case LONG:
+                return buffer.getLong();
+            case DOUBLE:
+                return buffer.getDouble();
+            case FLOAT:
+                return buffer.getFloat();
+            case STRING:
+                return getString(buffer);
+            case ARRAY: {
+                int size = buffer.getInt();
+                JSONArray array = new JSONArray();
+                for (int i = 0; i < size; i++) {
+                    array.add(getValue(buffer));
+                }
+                return array;
+            }
+            case OBJECT: {
+                int size = buffer.getInt();
+                JSONObject object = new JSONObject();
+                for (int i = 0; i < size; i++) {
+                    String key = getString(buffer);
+                    object.put(key, getValue(buffer));
+                }
+                return object;
+            }
+            default:
+                throw new IllegalStateException("Unknown value tag " + tag + " at " + (buffer.position() - 1));
+        }
+    }
+
+    private static void putString(ByteBuffer buffer, String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int align(int size) {
+        return (size + 3) & ~3;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.out.println("Usage: SceneFile input output, converting between JSON and " + EXTENSION + " files");
+            System.exit(1);
+        }
+
+        JSONObject document;
+        if (args[0].endsWith(EXTENSION)) {
+            document = open(Path.of(args[0])).toJson();
+        } else {
+            try (FileReader reader = new FileReader(args[0], StandardCharsets.UTF_8)) {
+                document = (JSONObject) new JSONParser().parse(reader);
+            }
+        }
+
+        if (args[1].endsWith(EXTENSION)) {
+            write(Path.of(args[1]), document);
+        } else {
+            try (FileWriter writer = new FileWriter(args[1], StandardCharsets.UTF_8)) {
+                writer.write(document.toJSONString());
+            }
+        }
+    }
+}
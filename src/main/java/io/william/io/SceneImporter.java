@@ -12,47 +12,58 @@ import io.william.renderer.shadow.ShadowRenderer;
 import org.joml.Vector3f;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.DoubleConsumer;
 
 import static org.lwjgl.opengl.GL11.GL_RGBA;
 import static org.lwjgl.opengl.GL21.GL_SRGB_ALPHA;
 
 public class SceneImporter {
 
-    public static void importScene(String path, Window window, Scene scene, Camera camera, MasterRenderer masterRenderer, Renderer renderer, ShadowRenderer shadowRenderer, OmnidirectionalShadowRenderer omnidirectionalShadowRenderer) {
-        // Load JSON file
-        JSONParser parser = new JSONParser();
-
-        try (FileReader reader = new FileReader(path)) {
-            // Read JSON file
-            Object obj = parser.parse(reader);
+    private static final double PROGRESS_STEP = 0.1;
 
-            JSONObject jsonObject = (JSONObject) obj;
-            System.out.println(jsonObject);
-
-            parseJson(jsonObject, scene, camera, renderer, shadowRenderer, omnidirectionalShadowRenderer);
+    public static void importScene(String path, Window window, Scene scene, Camera camera, MasterRenderer masterRenderer, Renderer renderer, ShadowRenderer shadowRenderer, OmnidirectionalShadowRenderer omnidirectionalShadowRenderer) {
+        try {
+            if (path.endsWith(SceneFile.EXTENSION)) {
+                // Binary scene file, its entities are read straight from the file's columns
+                SceneFile sceneFile = SceneFile.open(Path.of(path));
+                parseJson(sceneFile.getDocument(), sceneFile, scene, camera, renderer, shadowRenderer, omnidirectionalShadowRenderer, masterRenderer.getModelLoadQueue());
+            } else {
+                // JSON file, streamed so that no document tree is built for it
+                long size = Files.size(Path.of(path));
+                try (JsonReader reader = new JsonReader(new FileReader(path))) {
+                    streamJson(reader, size, progress -> System.out.println("Loading " + path + ": " + Math.round(progress * 100) + "%"),
+                        scene, camera, renderer, shadowRenderer, omnidirectionalShadowRenderer, masterRenderer.getModelLoadQueue());
+                }
+            }
 
             renderer.init(window, camera);
             masterRenderer.setSceneUpdated(true);
-        } catch (IOException | ParseException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    public static void parseJson(JSONObject jsonObject, Scene scene, Camera camera, Renderer renderer, ShadowRenderer shadowRenderer, OmnidirectionalShadowRenderer omnidirectionalShadowRenderer) throws Exception {
+    public static void parseJson(JSONObject jsonObject, Scene scene, Camera camera, Renderer renderer, ShadowRenderer shadowRenderer, OmnidirectionalShadowRenderer omnidirectionalShadowRenderer, ModelLoadQueue modelLoadQueue) throws Exception {
+        parseJson(jsonObject, null, scene, camera, renderer, shadowRenderer, omnidirectionalShadowRenderer, modelLoadQueue);
+    }
+
+    // The entities come from sceneFile's columns instead of scene.entities when it isn't null
+    public static void parseJson(JSONObject jsonObject, SceneFile sceneFile, Scene scene, Camera camera, Renderer renderer, ShadowRenderer shadowRenderer, OmnidirectionalShadowRenderer omnidirectionalShadowRenderer, ModelLoadQueue modelLoadQueue) throws Exception {
         // Scene
         JSONObject sceneJson = (JSONObject) jsonObject.get("scene");
-        parseScene(sceneJson, scene);
+        parseScene(sceneJson, sceneFile, scene, modelLoadQueue);
 
         // Camera
         JSONObject cameraJson = (JSONObject) jsonObject.get("camera");
@@ -71,16 +82,259 @@ public class SceneImporter {
         parseOmnidirectionalShadowRenderer(omnidirectionalShadowRendererJson, omnidirectionalShadowRenderer);
     }
 
-    public static void parseScene(JSONObject sceneJson, Scene scene) throws Exception {
+    // Streaming counterpart of parseJson: entities are built as their tokens are read and materials and lights one at a
+    // time, so memory use doesn't grow with the file. Progress is reported as the fraction of the file's size read
+    public static void streamJson(JsonReader reader, long size, DoubleConsumer progress, Scene scene, Camera camera, Renderer renderer, ShadowRenderer shadowRenderer, OmnidirectionalShadowRenderer omnidirectionalShadowRenderer, ModelLoadQueue modelLoadQueue) throws Exception {
+        Progress fileProgress = new Progress(reader, size, progress);
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "scene" -> streamScene(reader, fileProgress, scene, modelLoadQueue);
+                case "camera" -> parseCamera((JSONObject) reader.readValue(), camera);
+                case "renderer" -> parseRenderer((JSONObject) reader.readValue(), renderer);
+                case "shadowRenderer" -> parseShadowRenderer((JSONObject) reader.readValue(), shadowRenderer);
+                case "omnidirectionalShadowRenderer" -> parseOmnidirectionalShadowRenderer((JSONObject) reader.readValue(), omnidirectionalShadowRenderer);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        reader.endDocument();
+        fileProgress.finish();
+    }
+
+    private static void streamScene(JsonReader reader, Progress progress, Scene scene, ModelLoadQueue modelLoadQueue) throws Exception {
         scene.clear();
 
-        // Entities
-        JSONObject entitiesJson = (JSONObject) sceneJson.get("entities");
-        parseEntities(entitiesJson, scene);
+        // Models look their entities up by ID, so they're parsed once the whole scene has been read
+        JSONObject modelsJson = null;
+        Links parents = new Links();
+        Links children = new Links();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "entities" -> {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        reader.nextName();
+                        streamEntity(reader, scene, parents, children);
+                        progress.update();
+                    }
+                    reader.endObject();
+                }
+                case "models" -> modelsJson = (JSONObject) reader.readValue();
+                case "materials" -> {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String id = reader.nextName();
+                        parseMaterial((JSONObject) reader.readValue(), id, scene);
+                        progress.update();
+                    }
+                    reader.endObject();
+                }
+                case "dirLight" -> parseDirLight((JSONObject) reader.readValue(), scene);
+                case "pointLights" -> {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        reader.nextName();
+                        parsePointLight((JSONObject) reader.readValue(), scene);
+                        progress.update();
+                    }
+                    reader.endObject();
+                }
+                case "spotLights" -> {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        reader.nextName();
+                        parseSpotLight((JSONObject) reader.readValue(), scene);
+                        progress.update();
+                    }
+                    reader.endObject();
+                }
+                case "equirectangularMap" -> parseEquirectangularMap((JSONObject) reader.readValue(), scene);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // Set parents and children once all entities have been parsed
+        List<Entity> entities = scene.getEntities();
+        for (int i = 0; i < parents.size(); i++) {
+            entities.get(parents.getIndex(i)).setParent(scene.getEntityByID(parents.getID(i)));
+        }
+        for (int i = 0; i < children.size(); i++) {
+            entities.get(children.getIndex(i)).addChild(scene.getEntityByID(children.getID(i)));
+        }
+
+        if (modelsJson != null) {
+            parseModels(modelsJson, scene, modelLoadQueue);
+        }
+    }
+
+    // Streaming counterpart of parseEntity, the keys can come in any order so the entity is built at the end of its object
+    private static void streamEntity(JsonReader reader, Scene scene, Links parents, Links children) throws IOException {
+        int index = scene.getEntities().size();
+        int id = 0;
+        int modelID = 0;
+        String name = null;
+        Vector3f position = null;
+        Vector3f rotation = null;
+        float scale = 0.0f;
+        int found = 0;
+        JSONObject controllersJson = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            switch (key) {
+                case "id" -> {
+                    id = reader.nextInt();
+                    found |= 1;
+                }
+                case "modelID" -> {
+                    modelID = reader.nextInt();
+                    found |= 2;
+                }
+                case "scale" -> {
+                    scale = reader.nextFloat();
+                    found |= 4;
+                }
+                case "name" -> name = reader.nextString();
+                case "position" -> position = readVector(reader);
+                case "rotation" -> rotation = readVector(reader);
+                case "parent" -> {
+                    if (!reader.nextIfNull()) {
+                        parents.add(index, reader.nextInt());
+                    }
+                }
+                case "children" -> {
+                    if (!reader.nextIfNull()) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            children.add(index, reader.nextInt());
+                        }
+                        reader.endArray();
+                    }
+                }
+                case "movementController", "rotationController" -> {
+                    Object controllerJson = reader.readValue();
+                    if (controllerJson != null) {
+                        if (controllersJson == null) {
+                            controllersJson = new JSONObject();
+                        }
+                        controllersJson.put(key, controllerJson);
+                    }
+                }
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (found != 7 || name == null || position == null || rotation == null) {
+            throw new IOException("Entity at character " + reader.getCharCount() + " is missing a required key");
+        }
+
+        Entity entity = new Entity(position, rotation, scale, name);
+        entity.setID(id);
+        entity.setModelID(modelID);
+        if (controllersJson != null) {
+            parseControllers(controllersJson, entity, scene);
+        }
+        scene.addEntity(entity);
+    }
+
+    private static Vector3f readVector(JsonReader reader) throws IOException {
+        Vector3f vector = new Vector3f();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "x" -> vector.x = reader.nextFloat();
+                case "y" -> vector.y = reader.nextFloat();
+                case "z" -> vector.z = reader.nextFloat();
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return vector;
+    }
+
+    // Hierarchy links found while streaming entities, as pairs of the entity's scene index and the other entity's ID
+    private static class Links {
+
+        private int[] pairs = new int[64];
+        private int size;
+
+        private void add(int index, int id) {
+            if (size * 2 == pairs.length) {
+                pairs = Arrays.copyOf(pairs, pairs.length * 2);
+            }
+            pairs[size * 2] = index;
+            pairs[size * 2 + 1] = id;
+            size++;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private int getIndex(int i) {
+            return pairs[i * 2];
+        }
+
+        private int getID(int i) {
+            return pairs[i * 2 + 1];
+        }
+    }
+
+    // Reports the fraction of a streamed file that has been read in steps of PROGRESS_STEP
+    private static class Progress {
+
+        private final JsonReader reader;
+        private final long size;
+        private final DoubleConsumer consumer;
+        private double reported;
+
+        private Progress(JsonReader reader, long size, DoubleConsumer consumer) {
+            this.reader = reader;
+            this.size = Math.max(size, 1);
+            this.consumer = consumer;
+        }
+
+        private void update() {
+            double progress = Math.min((double) reader.getCharCount() / size, 1.0);
+            if (progress - reported >= PROGRESS_STEP) {
+                reported = progress;
+                consumer.accept(progress);
+            }
+        }
+
+        private void finish() {
+            if (reported < 1.0) {
+                reported = 1.0;
+                consumer.accept(1.0);
+            }
+        }
+    }
+
+    public static void parseScene(JSONObject sceneJson, Scene scene, ModelLoadQueue modelLoadQueue) throws Exception {
+        parseScene(sceneJson, null, scene, modelLoadQueue);
+    }
+
+    public static void parseScene(JSONObject sceneJson, SceneFile sceneFile, Scene scene, ModelLoadQueue modelLoadQueue) throws Exception {
+        scene.clear();
+
+        // Entities, before the models that look them up
+        if (sceneFile != null) {
+            parseEntities(sceneFile, scene);
+        } else {
+            JSONObject entitiesJson = (JSONObject) sceneJson.get("entities");
+            parseEntities(entitiesJson, scene);
+        }
 
         // Models
         JSONObject modelsJson = (JSONObject) sceneJson.get("models");
-        parseModels(modelsJson, scene);
+        parseModels(modelsJson, scene, modelLoadQueue);
 
         // Materials
         JSONObject materialsJson = (JSONObject) sceneJson.get("materials");
@@ -103,20 +357,19 @@ public class SceneImporter {
         parseEquirectangularMap(equirectangularMapJson, scene);
     }
 
-    public static void parseModels(JSONObject modelsJson, Scene scene) {
+    public static void parseModels(JSONObject modelsJson, Scene scene, ModelLoadQueue modelLoadQueue) {
         modelsJson.forEach((key, value) -> {
             JSONObject modelJson = (JSONObject) value;
             try {
-                parseModel(modelJson, scene);
+                parseModel(modelJson, scene, modelLoadQueue);
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
         });
     }
 
-    public static void parseModel(JSONObject modelJson, Scene scene) throws Exception {
-        System.out.println(modelJson);
-
+    // Models loaded from files are added as placeholders, their entities are attached once they have loaded
+    public static void parseModel(JSONObject modelJson, Scene scene, ModelLoadQueue modelLoadQueue) throws Exception {
         JSONObject modelMetadataJson = (JSONObject) modelJson.get("modelMetadata");
         System.out.println(modelMetadataJson.get("type").toString());
 
@@ -215,25 +468,41 @@ public class SceneImporter {
                 );
             }
             case "assimp" -> {
-                model = ModelLoader.load(scene, modelMetadataJson.get("modelPath").toString(), modelMetadataJson.get("texturesPath").toString(), meshDataMaterialIDs);
+                model = ModelLoader.createPlaceholder(modelMetadataJson.get("modelPath").toString(), modelMetadataJson.get("texturesPath").toString());
             }
             default -> throw new Exception("Unknown model type");
         }
 
-        // Update model mesh data material IDs
-        meshDataMaterialIDs.forEach((meshDataIndex, materialID) -> {
-            model.getMeshDatas().get(meshDataIndex).setMaterialID(materialID);
-        });
-
         JSONArray entitiesJson = (JSONArray) modelJson.get("entities");
-        entitiesJson.forEach(entityID -> {
-            Entity entity = scene.getEntityByID(Integer.parseInt(entityID.toString()));
-            model.addEntity(entity);
-        });
+
+        if (model.getModelMetadata().getType() == ModelMetadata.Type.ASSIMP) {
+            modelLoadQueue.load(model, meshDataMaterialIDs, loadedModel -> {
+                updateMaterialIDs(loadedModel, meshDataMaterialIDs);
+                entitiesJson.forEach(entityID -> {
+                    Entity entity = scene.getEntityByID(Integer.parseInt(entityID.toString()));
+                    if (entity != null) {
+                        loadedModel.addEntity(entity);
+                    }
+                });
+            });
+        } else {
+            updateMaterialIDs(model, meshDataMaterialIDs);
+            entitiesJson.forEach(entityID -> {
+                Entity entity = scene.getEntityByID(Integer.parseInt(entityID.toString()));
+                model.addEntity(entity);
+            });
+        }
 
         scene.addModel(model);
     }
 
+    // Update model mesh data material IDs
+    private static void updateMaterialIDs(Model model, Map<Integer, Integer> meshDataMaterialIDs) {
+        meshDataMaterialIDs.forEach((meshDataIndex, materialID) -> {
+            model.getMeshDatas().get(meshDataIndex).setMaterialID(materialID);
+        });
+    }
+
     public static void parseMaterials(JSONObject materialsJson, Scene scene) {
         materialsJson.forEach((key, value) -> {
             JSONObject materialJson = (JSONObject) value;
@@ -273,13 +542,13 @@ public class SceneImporter {
             material = new PBRMaterial(
                 materialJson.get("name").toString(),
                 false,
-                materialJson.get("albedo") != null ? new Texture(materialJson.get("albedo").toString(), GL_SRGB_ALPHA) : null,
-                materialJson.get("normal") != null ? new Texture(materialJson.get("normal").toString(), GL_RGBA) : null,
-                materialJson.get("metallic") != null ? new Texture(materialJson.get("metallic").toString(), GL_RGBA) : null,
-                materialJson.get("roughness") != null ? new Texture(materialJson.get("roughness").toString(), GL_RGBA) : null,
-                materialJson.get("metallicRoughness") != null ? new Texture(materialJson.get("metallicRoughness").toString(), GL_RGBA) : null,
-                materialJson.get("ao") != null ? new Texture(materialJson.get("ao").toString(), GL_RGBA) : null,
-                materialJson.get("emissive") != null ? new Texture(materialJson.get("emissive").toString(), GL_SRGB_ALPHA) : null
+                materialJson.get("albedo") != null ? TextureCache.acquire(materialJson.get("albedo").toString(), GL_SRGB_ALPHA, false) : null,
+                materialJson.get("normal") != null ? TextureCache.acquire(materialJson.get("normal").toString(), GL_RGBA, false) : null,
+                materialJson.get("metallic") != null ? TextureCache.acquire(materialJson.get("metallic").toString(), GL_RGBA, false) : null,
+                materialJson.get("roughness") != null ? TextureCache.acquire(materialJson.get("roughness").toString(), GL_RGBA, false) : null,
+                materialJson.get("metallicRoughness") != null ? TextureCache.acquire(materialJson.get("metallicRoughness").toString(), GL_RGBA, false) : null,
+                materialJson.get("ao") != null ? TextureCache.acquire(materialJson.get("ao").toString(), GL_RGBA, false) : null,
+                materialJson.get("emissive") != null ? TextureCache.acquire(materialJson.get("emissive").toString(), GL_SRGB_ALPHA, false) : null
             );
         }
 
@@ -319,8 +588,6 @@ public class SceneImporter {
     public static void parseEntity(JSONObject entityJson, Scene scene) {
         JSONObject positionJson = (JSONObject) entityJson.get("position");
         JSONObject rotationJson = (JSONObject) entityJson.get("rotation");
-        JSONObject movementControllerJson = (JSONObject) entityJson.get("movementController");
-        JSONObject rotationControllerJson = (JSONObject) entityJson.get("rotationController");
 
         Entity entity = new Entity(
             new Vector3f(
@@ -341,6 +608,49 @@ public class SceneImporter {
 
         entity.setModelID(Integer.parseInt(entityJson.get("modelID").toString()));
 
+        parseControllers(entityJson, entity, scene);
+
+        scene.addEntity(entity);
+    }
+
+    // Entities from a scene file's columns, in the same order and with the same hierarchy as parseEntities
+    public static void parseEntities(SceneFile sceneFile, Scene scene) {
+        int entityCount = sceneFile.getEntityCount();
+        for (int i = 0; i < entityCount; i++) {
+            Entity entity = new Entity(
+                sceneFile.getPosition(i, new Vector3f()),
+                sceneFile.getRotation(i, new Vector3f()),
+                sceneFile.getScale(i),
+                sceneFile.getName(i)
+            );
+            entity.setID(sceneFile.getID(i));
+            entity.setModelID(sceneFile.getModelID(i));
+
+            JSONObject extrasJson = sceneFile.getExtras(i);
+            if (extrasJson != null) {
+                parseControllers(extrasJson, entity, scene);
+            }
+
+            scene.addEntity(entity);
+        }
+
+        // Set parents and children once all entities have been parsed
+        for (int i = 0; i < entityCount; i++) {
+            Entity entity = scene.getEntityByID(sceneFile.getID(i));
+            if (sceneFile.getParent(i) >= 0) {
+                entity.setParent(scene.getEntityByID(sceneFile.getParent(i)));
+            }
+            for (int child = 0; child < sceneFile.getChildCount(i); child++) {
+                entity.addChild(scene.getEntityByID(sceneFile.getChild(i, child)));
+            }
+        }
+    }
+
+    // Movement and rotation controllers of an entity's JSON
+    public static void parseControllers(JSONObject entityJson, Entity entity, Scene scene) {
+        JSONObject movementControllerJson = (JSONObject) entityJson.get("movementController");
+        JSONObject rotationControllerJson = (JSONObject) entityJson.get("rotationController");
+
         if (movementControllerJson != null) {
             JSONObject centerJson = (JSONObject) movementControllerJson.get("center");
             JSONObject axisJson = (JSONObject) movementControllerJson.get("axis");
@@ -448,8 +758,6 @@ public class SceneImporter {
 
             entity.setRotationController(rotationController);
         }
-
-        scene.addEntity(entity);
     }
 
     public static void parseDirLight(JSONObject dirLightJson, Scene scene) {
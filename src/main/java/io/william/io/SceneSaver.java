@@ -0,0 +1,159 @@
+package io.william.io;
+
+import io.william.renderer.Camera;
+import io.william.renderer.Renderer;
+import io.william.renderer.Scene;
+import io.william.renderer.shadow.OmnidirectionalShadowRenderer;
+import io.william.renderer.shadow.ShadowRenderer;
+
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Writes scenes on a background thread from snapshots taken on the render thread, and autosaves them periodically
+// At most one save is in flight. A save requested while another is still being written has its snapshot queued,
+// replacing any queued before it, and update starts writing it once the save in flight finishes. Autosaves aren't
+// queued, they wait for a frame with no save in flight or queued
+// save, update and shutdown are called on the render thread, which is the only one to touch the queued save
+public class SceneSaver {
+
+    private record QueuedSave(String path, SceneSnapshot snapshot, long snapshotTime) {}
+
+    public static final int DEFAULT_AUTOSAVE_INTERVAL = 300;  // Seconds
+    private static final int SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private final ExecutorService executor;
+    private final AtomicBoolean saving = new AtomicBoolean();
+    private volatile int saveCount;
+    private volatile long lastSaveMillis;
+    private QueuedSave queuedSave;
+
+    private boolean autosave = false;
+    private int autosaveInterval = DEFAULT_AUTOSAVE_INTERVAL;
+    private String autosavePath = System.getProperty("user.dir") + "/src/main/resources/autosave.json";
+    private long lastAutosave = System.nanoTime();
+
+    public SceneSaver() {
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "scene-saver");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Takes a snapshot and starts writing it, or queues it if a save is already in flight. False if it was queued
+    public boolean save(String path, Scene scene, Camera camera, Renderer renderer, ShadowRenderer shadowRenderer, OmnidirectionalShadowRenderer omnidirectionalShadowRenderer) {
+        long start = System.nanoTime();
+        SceneSnapshot snapshot = SceneSnapshot.take(scene, camera, renderer, shadowRenderer, omnidirectionalShadowRenderer);
+        long snapshotTime = System.nanoTime() - start;
+
+        if (!saving.compareAndSet(false, true)) {
+            if (queuedSave != null) {
+                System.out.println("Queued saving " + path + " after the save in progress, instead of " + queuedSave.path());
+            } else {
+                System.out.println("Queued saving " + path + " after the save in progress");
+            }
+            queuedSave = new QueuedSave(path, snapshot, snapshotTime);
+            return false;
+        }
+
+        write(path, snapshot, snapshotTime);
+        return true;
+    }
+
+    private void write(String path, SceneSnapshot snapshot, long snapshotTime) {
+        executor.execute(() -> {
+            long writeStart = System.nanoTime();
+            try {
+                snapshot.write(Path.of(path));
+                lastSaveMillis = (System.nanoTime() - writeStart) / 1_000_000;
+                saveCount++;
+                System.out.println("Saved " + snapshot.getEntityCount() + " entities to " + path + ": snapshot "
+                    + snapshotTime / 1_000 + " us, write " + lastSaveMillis + " ms");
+            } catch (Exception e) {
+                System.out.println("Failed to save " + path);
+                e.printStackTrace();
+            } finally {
+                saving.set(false);
+            }
+        });
+    }
+
+    // Called every frame on the render thread
+    public void update(Scene scene, Camera camera, Renderer renderer, ShadowRenderer shadowRenderer, OmnidirectionalShadowRenderer omnidirectionalShadowRenderer) {
+        if (saving.get()) {
+            return;
+        }
+
+        if (queuedSave != null) {
+            QueuedSave queued = queuedSave;
+            queuedSave = null;
+            saving.set(true);
+            write(queued.path(), queued.snapshot(), queued.snapshotTime());
+            return;
+        }
+
+        if (autosave && System.nanoTime() - lastAutosave >= autosaveInterval * 1_000_000_000L) {
+            save(autosavePath, scene, camera, renderer, shadowRenderer, omnidirectionalShadowRenderer);
+            lastAutosave = System.nanoTime();
+        }
+    }
+
+    // Lets a save in flight and a queued one finish, so that quitting right after saving doesn't lose them
+    public void shutdown() {
+        if (queuedSave != null) {
+            write(queuedSave.path(), queuedSave.snapshot(), queuedSave.snapshotTime());
+            queuedSave = null;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isSaving() {
+        return saving.get();
+    }
+
+    // Null if no save is queued
+    public String getQueuedSavePath() {
+        return queuedSave != null ? queuedSave.path() : null;
+    }
+
+    public int getSaveCount() {
+        return saveCount;
+    }
+
+    public long getLastSaveMillis() {
+        return lastSaveMillis;
+    }
+
+    public boolean isAutosave() {
+        return autosave;
+    }
+
+    public void setAutosave(boolean autosave) {
+        this.autosave = autosave;
+        lastAutosave = System.nanoTime();
+    }
+
+    public int getAutosaveInterval() {
+        return autosaveInterval;
+    }
+
+    public void setAutosaveInterval(int autosaveInterval) {
+        this.autosaveInterval = Math.max(1, autosaveInterval);
+    }
+
+    public String getAutosavePath() {
+        return autosavePath;
+    }
+
+    public void setAutosavePath(String autosavePath) {
+        this.autosavePath = autosavePath;
+    }
+}
@@ -0,0 +1,96 @@
+package io.william.io;
+
+import io.william.renderer.Camera;
+import io.william.renderer.Renderer;
+import io.william.renderer.Scene;
+import io.william.renderer.shadow.OmnidirectionalShadowRenderer;
+import io.william.renderer.shadow.ShadowRenderer;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+// Everything a saved scene holds, taken on the render thread so that it can be written on another while the scene
+// keeps changing. Scene has no copy-on-write state to share, so taking a snapshot copies the entities into the flat
+// columns of a SceneFile.EntityTable and builds the JSON of the small parts (models, materials, lights, camera and
+// renderer settings). The JSON is only built for entities with controllers, and nothing else is encoded until it's written
+public class SceneSnapshot {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final JSONObject document;  // Without scene.entities
+    private final SceneFile.EntityTable entities;
+
+    private SceneSnapshot(JSONObject document, SceneFile.EntityTable entities) {
+        this.document = document;
+        this.entities = entities;
+    }
+
+    public static SceneSnapshot take(Scene scene, Camera camera, Renderer renderer, ShadowRenderer shadowRenderer, OmnidirectionalShadowRenderer omnidirectionalShadowRenderer) {
+        return new SceneSnapshot(
+            SceneExporter.documentToJSONObject(scene, camera, renderer, shadowRenderer, omnidirectionalShadowRenderer),
+            SceneFile.EntityTable.fromEntities(scene.getEntities())
+        );
+    }
+
+    public int getEntityCount() {
+        return entities.getCount();
+    }
+
+    // A scene file for the .scene extension and JSON otherwise. Both are written to a temporary file that then replaces
+    // the previous one, so a failed or interrupted save never leaves a partial scene behind
+    public void write(Path path) throws IOException {
+        if (path.toString().endsWith(SceneFile.EXTENSION)) {
+            SceneFile.write(path, document, entities);
+            return;
+        }
+
+        Path temporaryPath = path.resolveSibling(path.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+        try {
+            try (Writer writer = new BufferedWriter(new FileWriter(temporaryPath.toFile()), BUFFER_SIZE)) {
+                writeJson(writer);
+            }
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporaryPath);
+            throw e;
+        }
+    }
+
+    // The JSON SceneExporter used to build in memory, streamed to the writer
+    public void writeJson(Writer writer) throws IOException {
+        writer.write('{');
+        boolean first = true;
+        for (Object entry : document.entrySet()) {
+            Map.Entry<?, ?> keyValue = (Map.Entry<?, ?>) entry;
+            writer.write(first ? "\"" : ",\"");
+            writer.write(JSONValue.escape(keyValue.getKey().toString()) + "\":");
+            first = false;
+
+            if (!keyValue.getKey().equals("scene")) {
+                JSONValue.writeJSONString(keyValue.getValue(), writer);
+                continue;
+            }
+
+            // The scene's small parts, then its entities straight from their columns
+            writer.write('{');
+            for (Object sceneEntry : ((JSONObject) keyValue.getValue()).entrySet()) {
+                Map.Entry<?, ?> sceneKeyValue = (Map.Entry<?, ?>) sceneEntry;
+                writer.write("\"" + JSONValue.escape(sceneKeyValue.getKey().toString()) + "\":");
+                JSONValue.writeJSONString(sceneKeyValue.getValue(), writer);
+                writer.write(',');
+            }
+            writer.write("\"entities\":");
+            entities.writeJson(writer);
+            writer.write('}');
+        }
+        writer.write('}');
+    }
+}
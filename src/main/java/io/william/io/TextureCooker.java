@@ -0,0 +1,151 @@
+package io.william.io;
+
+import io.william.renderer.TextureUploader;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.assimp.AIMaterial;
+import org.lwjgl.assimp.AIScene;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.lwjgl.assimp.Assimp.*;
+import static org.lwjgl.opengl.GL11.GL_RED;
+import static org.lwjgl.opengl.GL11.GL_RGBA;
+import static org.lwjgl.opengl.GL21.GL_SRGB_ALPHA;
+import static org.lwjgl.opengl.GL30.GL_COMPRESSED_RED_RGTC1;
+import static org.lwjgl.opengl.GL30.GL_COMPRESSED_RG_RGTC2;
+import static org.lwjgl.opengl.GL30.GL_RG;
+import static org.lwjgl.opengl.GL42.GL_COMPRESSED_RGBA_BPTC_UNORM;
+import static org.lwjgl.opengl.GL42.GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM;
+
+// Offline stage that block-compresses model textures into DDS files next to them, which TextureUploader loads
+// instead of the source image when they're at least as new as it. The format follows the texture's internal format:
+//  - sRGB or RGBA colour (albedo, emissive, packed metallic roughness): BC7
+//  - RG (normal maps, whose z is rebuilt in the shader): BC5
+//  - RED (single channel maps): BC4
+// Usage: TextureCooker [model textures-dir]..., the shipped models by default
+public class TextureCooker {
+
+    private static final String[] SHIPPED_MODELS = { "src/main/resources/models/helmet/DamagedHelmet.gltf", "src/main/resources/models/helmet" };
+
+    public static void main(String[] args) throws Exception {
+        String[] models = args.length > 0 ? args : SHIPPED_MODELS;
+        if (models.length % 2 != 0) {
+            System.out.println("Usage: TextureCooker [model textures-dir]...");
+            System.exit(1);
+        }
+
+        Set<String> cooked = new HashSet<>();
+        for (int i = 0; i < models.length; i += 2) {
+            AIScene aiScene = aiImportFile(models[i], 0);
+            if (aiScene == null) {
+                System.out.println("Failed to load model " + models[i] + ": " + aiGetErrorString());
+                System.exit(1);
+            }
+
+            PointerBuffer aiMaterials = aiScene.mMaterials();
+            for (int m = 0; m < aiScene.mNumMaterials(); m++) {
+                String[] texturePaths = ModelLoader.getPBRTexturePaths(AIMaterial.create(aiMaterials.get(m)));
+                for (int type = 0; type < texturePaths.length; type++) {
+                    if (texturePaths[type].length() == 0) {
+                        continue;
+                    }
+
+                    String source = models[i + 1] + "/" + texturePaths[type];
+                    int internalFormat = ModelLoader.getPBRTextureFormat(texturePaths, type);
+                    if (cooked.add(source + ":" + internalFormat)) {
+                        cook(source, internalFormat);
+                    }
+                }
+            }
+            aiReleaseImport(aiScene);
+        }
+    }
+
+    // Compressed format TextureUploader uses for an internal format, 0 if it's always loaded uncompressed
+    public static int getCompressedFormat(int internalFormat) {
+        return switch (internalFormat) {
+            case GL_SRGB_ALPHA -> GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM;
+            case GL_RGBA -> GL_COMPRESSED_RGBA_BPTC_UNORM;
+            case GL_RG -> GL_COMPRESSED_RG_RGTC2;
+            case GL_RED -> GL_COMPRESSED_RED_RGTC1;
+            default -> 0;
+        };
+    }
+
+    // Null if there's no compressed format for the internal format
+    public static Path getCookedPath(String source, int internalFormat) {
+        String suffix = switch (getCompressedFormat(internalFormat)) {
+            case GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM -> ".bc7_srgb.dds";
+            case GL_COMPRESSED_RGBA_BPTC_UNORM -> ".bc7.dds";
+            case GL_COMPRESSED_RG_RGTC2 -> ".bc5.dds";
+            case GL_COMPRESSED_RED_RGTC1 -> ".bc4.dds";
+            default -> null;
+        };
+        return suffix != null ? Path.of(source + suffix) : null;
+    }
+
+    // Whether the cooked file exists and isn't older than its source
+    public static boolean isCooked(String source, int internalFormat) {
+        Path cookedPath = getCookedPath(source, internalFormat);
+        try {
+            return cookedPath != null && Files.exists(cookedPath)
+                && Files.getLastModifiedTime(cookedPath).compareTo(Files.getLastModifiedTime(Path.of(source))) >= 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static void cook(String source, int internalFormat) throws Exception {
+        Path cookedPath = getCookedPath(source, internalFormat);
+        if (cookedPath == null) {
+            System.out.println("No compressed format for " + source);
+            return;
+        }
+        if (isCooked(source, internalFormat)) {
+            System.out.println("Up to date: " + cookedPath);
+            return;
+        }
+
+        long start = System.nanoTime();
+        int format = getCompressedFormat(internalFormat);
+        TextureUploader.MipChain mipChain = TextureUploader.decodeImage(source, false, TextureUploader.isSrgb(internalFormat));
+        ByteBuffer[] levels = new ByteBuffer[mipChain.getLevelCount()];
+        try {
+            int sourceSize = 0;
+            int cookedSize = 0;
+            for (int level = 0; level < levels.length; level++) {
+                int width = mipChain.getLevelWidth(level);
+                int height = mipChain.getLevelHeight(level);
+                levels[level] = MemoryUtil.memAlloc(BlockCompressor.getCompressedSize(width, height, DdsFile.getBlockBytes(format)));
+
+                ByteBuffer pixels = mipChain.getLevel(level);
+                switch (format) {
+                    case GL_COMPRESSED_RED_RGTC1 -> BlockCompressor.compressBC4(pixels, width, height, levels[level]);
+                    case GL_COMPRESSED_RG_RGTC2 -> BlockCompressor.compressBC5(pixels, width, height, levels[level]);
+                    default -> BlockCompressor.compressBC7(pixels, width, height, levels[level]);
+                }
+                levels[level].flip();
+
+                sourceSize += pixels.remaining();
+                cookedSize += levels[level].remaining();
+            }
+
+            DdsFile.write(cookedPath, format, mipChain.getWidth(), mipChain.getHeight(), levels);
+            System.out.println("Cooked " + cookedPath + ": " + sourceSize / 1024 + " KB -> " + cookedSize / 1024 + " KB in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } finally {
+            mipChain.free();
+            for (ByteBuffer level : levels) {
+                if (level != null) {
+                    MemoryUtil.memFree(level);
+                }
+            }
+        }
+    }
+}
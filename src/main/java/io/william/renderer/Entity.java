@@ -2,6 +2,8 @@ package io.william.renderer;
 
 import io.william.game.component.MovementController;
 import io.william.game.component.RotationController;
+import io.william.util.Maths;
+import org.joml.Matrix4f;
 import org.joml.Vector3f;
 
 import java.util.ArrayList;
@@ -15,10 +17,24 @@ public class Entity {
 
     private boolean updated;
 
+    private Scene scene;
+    private int sceneIndex = -1;
+    private int transformIndex = -1;
+    private int boundsProxy = -1;
+
     private Vector3f position;
     private Vector3f rotation;
     private float scale;
 
+    // Cached transforms, recalculated by Scene.updateWorldMatrices when the entity is updated
+    private final Matrix4f localMatrix = new Matrix4f();
+    private final Matrix4f worldMatrix = new Matrix4f();
+    private final Vector3f worldPosition = new Vector3f();
+
+    // World matrix at the start of the current simulation tick, which rendering interpolates from
+    private final Matrix4f previousWorldMatrix = new Matrix4f();
+    private boolean worldMatrixCalculated;
+
     private String name;
 
     private Entity parent;
@@ -70,6 +86,16 @@ public class Entity {
     }
 
     public void update(float deltaTime) {
+        if (simulate(deltaTime)) {
+            setUpdated(true);
+        }
+    }
+
+    // Runs the movement and rotation controllers, writing only to this entity's own state so that
+    // entities can be simulated in parallel. Returns true if the transform changed
+    public boolean simulate(float deltaTime) {
+        boolean changed = false;
+
         if (movementController != null) {
             switch (movementController.getType()) {
                 case ORBIT -> movementController.orbitUpdate(this, deltaTime);
@@ -78,16 +104,18 @@ public class Entity {
             }
 
             if (movementController.getType() != MovementController.Type.NONE) {
-                this.updated = true;
+                changed = true;
             }
         }
 
         if (rotationController != null) {
             if (rotationController.getMode() != RotationController.Mode.NONE) {
                 rotationController.update(this, deltaTime);
-                this.updated = true;
+                changed = true;
             }
         }
+
+        return changed;
     }
 
     public int getID() {
@@ -98,14 +126,55 @@ public class Entity {
         this.ID = ID;
     }
 
+    // A copy for children, since their world position is only recalculated by Scene.updateWorldMatrices and
+    // writing to it would be lost. Use getRelativePosition or setPosition to move them
     public Vector3f getPosition() {
         if (parent != null) {
-            return new Vector3f(position).add(parent.getPosition());
+            return new Vector3f(worldPosition);
         } else {
             return position;
         }
     }
 
+    public Matrix4f getLocalMatrix() {
+        return localMatrix;
+    }
+
+    public Matrix4f getWorldMatrix() {
+        return worldMatrix;
+    }
+
+    public Matrix4f getPreviousWorldMatrix() {
+        return previousWorldMatrix;
+    }
+
+    // Called at the start of a tick for entities that moved during the last one, so that they stop interpolating
+    void settleWorldMatrix() {
+        previousWorldMatrix.set(worldMatrix);
+    }
+
+    // Recalculates this entity's local and world matrices, then those of its children
+    void updateWorldMatrix() {
+        Maths.calculateModelMatrix(position, rotation, scale, localMatrix);
+
+        if (parent != null) {
+            parent.worldMatrix.mul(localMatrix, worldMatrix);
+        } else {
+            worldMatrix.set(localMatrix);
+        }
+        worldMatrix.getTranslation(worldPosition);
+
+        // New entities appear at their current transform rather than interpolating from the identity
+        if (!worldMatrixCalculated) {
+            previousWorldMatrix.set(worldMatrix);
+            worldMatrixCalculated = true;
+        }
+
+        for (int i = 0; i < children.size(); i++) {
+            children.get(i).updateWorldMatrix();
+        }
+    }
+
     public int getModelID() {
         return modelID;
     }
@@ -119,19 +188,57 @@ public class Entity {
     }
 
     public void setUpdated(boolean updated) {
+        // Queue the entity for upload the first time it is marked as updated
+        if (updated && !this.updated && scene != null) {
+            scene.addUpdatedEntity(this);
+        }
+
         this.updated = updated;
         for (Entity child : children) {
             child.setUpdated(updated);
         }
     }
 
+    void clearUpdated() {
+        this.updated = false;
+    }
+
+    void setScene(Scene scene) {
+        this.scene = scene;
+    }
+
+    int getSceneIndex() {
+        return sceneIndex;
+    }
+
+    void setSceneIndex(int sceneIndex) {
+        this.sceneIndex = sceneIndex;
+    }
+
+    public int getTransformIndex() {
+        return transformIndex;
+    }
+
+    public void setTransformIndex(int transformIndex) {
+        this.transformIndex = transformIndex;
+    }
+
+    // Leaf of the scene's entity tree, or -1 until the entity's world matrix has been calculated
+    int getBoundsProxy() {
+        return boundsProxy;
+    }
+
+    void setBoundsProxy(int boundsProxy) {
+        this.boundsProxy = boundsProxy;
+    }
+
     public Vector3f getRelativePosition() {
         return position;
     }
 
     public void setPosition(Vector3f position) {
         if (parent != null) {
-            this.position = new Vector3f(position).sub(parent.getPosition());
+            this.position = parent.getWorldMatrix().invertAffine(new Matrix4f()).transformPosition(new Vector3f(position));
         } else {
             this.position = position;
         }
@@ -8,6 +8,7 @@ public class Framebuffer {
     private final int ID;
     private int renderbuffer;
     private Texture texture;
+    private Texture depthTexture;
     private TextureArray textureArray;
 
     private int width;
@@ -123,6 +124,27 @@ public class Framebuffer {
         }
     }
 
+    // Depth attached as a texture rather than a renderbuffer, so that it can be sampled after the pass
+    public Framebuffer(Texture texture, Texture depthTexture, int framebufferAttachment, int depthAttachment) {
+        this.texture = texture;
+        this.depthTexture = depthTexture;
+        this.width = texture.getWidth();
+        this.height = texture.getHeight();
+
+        ID = glGenFramebuffers();
+        glBindFramebuffer(GL_FRAMEBUFFER, ID);
+
+        glFramebufferTexture2D(GL_FRAMEBUFFER, framebufferAttachment, texture.getTarget(), texture.getID(), 0);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, depthAttachment, depthTexture.getTarget(), depthTexture.getID(), 0);
+
+        int result = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+        if (result != GL_FRAMEBUFFER_COMPLETE) {
+            glBindFramebuffer(GL_FRAMEBUFFER, 0);
+            glDeleteFramebuffers(ID);
+            throw new RuntimeException("Framebuffer is not complete: " + result);
+        }
+    }
+
     public Framebuffer(TextureArray textureArray, int framebufferAttachment) {
         this.textureArray = textureArray;
 
@@ -173,6 +195,10 @@ public class Framebuffer {
         return texture;
     }
 
+    public Texture getDepthTexture() {
+        return depthTexture;
+    }
+
     public int getWidth() {
         return width;
     }
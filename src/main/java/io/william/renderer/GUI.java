@@ -5,10 +5,15 @@ import io.william.game.component.RotationController;
 import io.william.io.ModelLoader;
 import io.william.io.SceneExporter;
 import io.william.io.SceneImporter;
+import io.william.io.SceneSaver;
+import io.william.renderer.culling.ComputeCuller;
+import io.william.renderer.culling.DynamicAabbTree;
+import io.william.renderer.culling.FrustumCuller;
 import io.william.renderer.probe.Probe;
 import io.william.renderer.shadow.OmnidirectionalShadowRenderer;
 import io.william.renderer.shadow.ShadowRenderer;
 import io.william.renderer.sky.Sky;
+import io.william.util.FreeListAllocator;
 import io.william.util.Utils;
 import imgui.ImGui;
 import imgui.ImGuiIO;
@@ -150,21 +155,25 @@ public class GUI {
 
             }
             if (ImGui.menuItem("Open", "Ctrl+O")) {
-                String sceneJsonPath = openSingle("json");
+                String sceneJsonPath = openSingle("json,scene");
                 if (sceneJsonPath != null) {
                     SceneImporter.importScene(sceneJsonPath, window, scene, camera, masterRenderer, renderer, shadowRenderer, omnidirectionalShadowRenderer);
                     masterRenderer.setupBuffers(scene);
                 }
             }
             if (ImGui.menuItem("Save")) {
-                SceneExporter.export(scene, camera, renderer, masterRenderer.getShadowRenderer(), masterRenderer.getOmnidirectionalShadowRenderer());
+                masterRenderer.getSceneSaver().save(SceneExporter.getDefaultPath(), scene, camera, renderer, masterRenderer.getShadowRenderer(), masterRenderer.getOmnidirectionalShadowRenderer());
             }
             if (ImGui.menuItem("Save As")) {
-                String sceneJsonPath = save("json");
+                String sceneJsonPath = save("json;scene");
                 if (sceneJsonPath != null) {
-                    SceneExporter.export(sceneJsonPath, scene, camera, renderer, masterRenderer.getShadowRenderer(), masterRenderer.getOmnidirectionalShadowRenderer());
+                    masterRenderer.getSceneSaver().save(sceneJsonPath, scene, camera, renderer, masterRenderer.getShadowRenderer(), masterRenderer.getOmnidirectionalShadowRenderer());
                 }
             }
+            SceneSaver sceneSaver = masterRenderer.getSceneSaver();
+            if (ImGui.menuItem("Autosave", null, sceneSaver.isAutosave())) {
+                sceneSaver.setAutosave(!sceneSaver.isAutosave());
+            }
             if (ImGui.menuItem("Exit", "Ctrl+Q")) {
                 System.exit(0);
             }
@@ -228,7 +237,7 @@ public class GUI {
                     scene.addModel(quadModel);
                     quadEntity.setModelID(quadModel.getID());
 
-                    masterRenderer.setupBuffers(scene);
+                    masterRenderer.addModel(scene, quadModel);
                 }
                 ImGui.endMenu();
             }
@@ -254,14 +263,18 @@ public class GUI {
                 String texturesPath = openFolder();
 
                 if (modelPath != null && texturesPath != null) {
-                    Model model = ModelLoader.load(scene, modelPath, texturesPath, null);
+                    // The entity is in the scene straight away, its model is attached once it has loaded
+                    Model model = ModelLoader.createPlaceholder(modelPath, texturesPath);
                     Entity entity = new Entity(new Vector3f(0, 0, 0), new Vector3f(0, 0, 0), 1f, "3D Model");
-                    model.addEntity(entity);
                     scene.addEntity(entity);
                     scene.addModel(model);
                     entity.setModelID(model.getID());
 
-                    masterRenderer.setupBuffers(scene);
+                    masterRenderer.getModelLoadQueue().load(model, null, loadedModel -> {
+                        if (scene.getEntityByID(entity.getID()) == entity) {
+                            loadedModel.addEntity(entity);
+                        }
+                    });
                 }
             }
 
@@ -411,7 +424,7 @@ public class GUI {
                     scene.addModel(cubeModel);
                     cubeEntity.setModelID(cubeModel.getID());
 
-                    masterRenderer.setupBuffers(scene);
+                    masterRenderer.addModel(scene, cubeModel);
                 } else if (Objects.equals(newEntityType, "Cylinder")) {
                     newCylinder.update();
                     Model cylinderModel = new Model(
@@ -437,7 +450,7 @@ public class GUI {
                     scene.addModel(cylinderModel);
                     cylinderEntity.setModelID(cylinderModel.getID());
 
-                    masterRenderer.setupBuffers(scene);
+                    masterRenderer.addModel(scene, cylinderModel);
                 } else if (Objects.equals(newEntityType, "Sphere")) {
                     newSphere.update();
                     Model sphereModel = new Model(
@@ -463,7 +476,7 @@ public class GUI {
                     scene.addModel(sphereModel);
                     sphereEntity.setModelID(sphereModel.getID());
 
-                    masterRenderer.setupBuffers(scene);
+                    masterRenderer.addModel(scene, sphereModel);
                 }
 
                 showEntityWindow = false;
@@ -803,6 +816,83 @@ public class GUI {
                     ImGui.endTabItem();
                 }
 
+                if (ImGui.beginTabItem("Stats")) {
+                    UploadRing uploadRing = masterRenderer.getUploadRing();
+                    ImGui.text("Uploaded last frame: " + uploadRing.getLastFrameBytesUploaded() + " bytes");
+                    ImGui.text("Fence wait last frame: " + String.format("%.3f", uploadRing.getLastFrameFenceWaitNanos() / 1e6) + " ms");
+                    ImGui.text("Uploaded total: " + uploadRing.getTotalBytesUploaded() / 1024 + " KB");
+                    ImGui.text("Fence wait total: " + String.format("%.3f", uploadRing.getTotalFenceWaitNanos() / 1e6) + " ms");
+                    ImGui.text("Fallback uploads: " + uploadRing.getFallbackUploads());
+
+                    ImGui.separator();
+
+                    SceneMesh sceneMesh = masterRenderer.getSceneMesh();
+                    FreeListAllocator vertexAllocator = sceneMesh.getVertexAllocator();
+                    FreeListAllocator indexAllocator = sceneMesh.getIndexAllocator();
+                    ImGui.text("Vertex format: " + sceneMesh.getVertexFormat() + " (" + sceneMesh.getVertexFormat().getSize() + " bytes)");
+                    ImGui.text("Resident models: " + sceneMesh.getResidentModelCount());
+                    ImGui.text("Loading models: " + masterRenderer.getModelLoadQueue().getPendingCount());
+                    ImGui.text("Vertices: " + vertexAllocator.getUsedSize() + " / " + vertexAllocator.getCapacity() + " (" + vertexAllocator.getFreeBlockCount() + " free blocks)");
+                    ImGui.text("Indices: " + indexAllocator.getUsedSize() + " / " + indexAllocator.getCapacity() + " (" + indexAllocator.getFreeBlockCount() + " free blocks)");
+                    ImGui.text("Compactions: " + sceneMesh.getCompactions());
+
+                    ImGui.separator();
+
+                    ImGui.text("Textures: " + TextureCache.getTextureCount() + " (" + TextureCache.getSizeBytes() / 1024 / 1024 + " MB)");
+                    ImGui.text("Texture cache hits: " + TextureCache.getHits() + " / " + (TextureCache.getHits() + TextureCache.getMisses()));
+                    ImGui.text("Texture memory saved: " + TextureCache.getBytesSaved() / 1024 / 1024 + " MB");
+                    TextureUploader textureUploader = masterRenderer.getTextureUploader();
+                    ImGui.text("Texture uploads: " + textureUploader.getPendingCount() + " pending, " + textureUploader.getCompletedUploads() + " done");
+                    ImGui.text("Texture bytes uploaded: " + textureUploader.getLastFrameBytesUploaded() / 1024 + " KB last frame, " + textureUploader.getTotalBytesUploaded() / 1024 / 1024 + " MB total");
+                    TextureResidency textureResidency = masterRenderer.getTextureResidency();
+                    ImGui.text("Resident textures: " + textureResidency.getResidentBytes() / 1024 / 1024 + " MB, " + textureResidency.getPartialCount() + " without top mips");
+                    ImGui.text("Texture streams: " + textureResidency.getPendingStreams() + " pending, " + textureResidency.getStreamIns() + " done, " + textureResidency.getEvictions() + " evictions");
+                    if (ImGui.checkbox("Stream textures", masterRenderer.isTextureStreaming())) masterRenderer.setTextureStreaming(!masterRenderer.isTextureStreaming());
+                    int[] textureBudget = new int[] { (int) (textureResidency.getBudgetBytes() / 1024 / 1024) };
+                    if (ImGui.dragInt("Texture budget (MB)", textureBudget, 1.0f, 1, 16384)) textureResidency.setBudgetBytes(textureBudget[0] * 1024L * 1024);
+
+                    ImGui.separator();
+
+                    SceneSaver sceneSaver = masterRenderer.getSceneSaver();
+                    ImGui.text("Scene saves: " + sceneSaver.getSaveCount() + (sceneSaver.isSaving() ? ", saving" : ", last write " + sceneSaver.getLastSaveMillis() + " ms"));
+                    if (sceneSaver.getQueuedSavePath() != null) {
+                        ImGui.text("Queued save: " + sceneSaver.getQueuedSavePath());
+                    }
+                    if (ImGui.checkbox("Autosave", sceneSaver.isAutosave())) sceneSaver.setAutosave(!sceneSaver.isAutosave());
+                    int[] autosaveInterval = new int[] { sceneSaver.getAutosaveInterval() };
+                    if (ImGui.dragInt("Autosave interval (s)", autosaveInterval, 1.0f, 10, 3600)) sceneSaver.setAutosaveInterval(autosaveInterval[0]);
+
+                    ImGui.separator();
+
+                    DynamicAabbTree<Entity> entityTree = scene.getEntityTree();
+                    ImGui.text("Entity tree: " + entityTree.getLeafCount() + " leaves, height " + entityTree.getHeight());
+                    ImGui.text("Entity tree cost: " + String.format("%.0f", entityTree.getCost()));
+                    if (ImGui.button("Rebuild Entity Tree")) {
+                        entityTree.rebuild();
+                    }
+
+                    ImGui.separator();
+
+                    ImGui.text("Frustum culling");
+                    if (ImGui.radioButton("Off", masterRenderer.getCullingMode() == MasterRenderer.CullingMode.NONE)) masterRenderer.setCullingMode(MasterRenderer.CullingMode.NONE);
+                    if (ImGui.radioButton("CPU", masterRenderer.getCullingMode() == MasterRenderer.CullingMode.CPU)) masterRenderer.setCullingMode(MasterRenderer.CullingMode.CPU);
+                    if (ImGui.radioButton("GPU", masterRenderer.getCullingMode() == MasterRenderer.CullingMode.GPU)) masterRenderer.setCullingMode(MasterRenderer.CullingMode.GPU);
+                    if (masterRenderer.getCullingMode() == MasterRenderer.CullingMode.CPU) {
+                        FrustumCuller frustumCuller = masterRenderer.getFrustumCuller();
+                        ImGui.text("Visible instances: " + frustumCuller.getVisibleInstanceCount() + " / " + frustumCuller.getInstanceCount());
+                    }
+                    if (masterRenderer.getCullingMode() == MasterRenderer.CullingMode.GPU) {
+                        ComputeCuller computeCuller = masterRenderer.getComputeCuller();
+                        if (ImGui.checkbox("Occlusion culling", computeCuller.isOcclusionCulling())) computeCuller.setOcclusionCulling(!computeCuller.isOcclusionCulling());
+                    }
+                    if (masterRenderer.getCullingMode() != MasterRenderer.CullingMode.NONE) {
+                        float[] lodPixelError = new float[] { masterRenderer.getLodPixelError() };
+                        if (ImGui.dragFloat("LOD pixel error", lodPixelError, 0.1f, 0f, 100f)) masterRenderer.setLodPixelError(lodPixelError[0]);
+                    }
+
+                    ImGui.endTabItem();
+                }
+
                 ImGui.endTabBar();
             }
 
@@ -858,7 +948,8 @@ public class GUI {
                 float[] position = Utils.vector3fToArray(entity.getPosition());
                 ImString name = new ImString(entity.getName(), 128);
 
-                Vector3f initialPosition = new Vector3f(entity.getPosition());
+                // Relative, since a child's world position only changes once its world matrix is recalculated
+                Vector3f initialPosition = new Vector3f(entity.getRelativePosition());
 
                 if (entity.getName() != null && !Objects.equals(entity.getName(), "null")) {
                     ImGui.text(entity.getName());
@@ -874,7 +965,7 @@ public class GUI {
                 }
                 if (ImGui.inputText("Name", name)) entity.setName(name.get());
 
-                if (!entity.getChildren().isEmpty() && !initialPosition.equals(entity.getPosition())) {
+                if (!entity.getChildren().isEmpty() && !initialPosition.equals(entity.getRelativePosition())) {
                     entity.setUpdated(true);
                 }
             } else {
@@ -884,7 +975,7 @@ public class GUI {
                 ImString name = new ImString(entity.getName(), 128);
                 ImBoolean focused = new ImBoolean(camera.getFocus() == entity);
 
-                Vector3f initialPosition = new Vector3f(entity.getPosition());
+                Vector3f initialPosition = new Vector3f(entity.getRelativePosition());
                 Vector3f initialRotation = new Vector3f(entity.getRotation());
                 float initialScale = entity.getScale();
 
@@ -914,7 +1005,8 @@ public class GUI {
 
                 ImGui.separator();
                 if (entity.getModelID() != -1) {
-                    ImGui.text("Model: " + scene.getModelByID(entity.getModelID()).getName() + " (ID: " + entity.getModelID() + ")");
+                    Model model = scene.getModelByID(entity.getModelID());
+                    ImGui.text("Model: " + model.getName() + " (ID: " + entity.getModelID() + ")" + (model.getMeshDatas().isEmpty() ? " - loading" : ""));
                 }
 
                 ImGui.separator();
@@ -939,7 +1031,7 @@ public class GUI {
                             if (ImGui.menuItem(material.getName() + " (ID: " + material.getID() + ")")) {
                                 // Set the corresponding mesh data to use the new material
                                 scene.getModelByID(entity.getModelID()).getMeshDatas().get(pbrMaterials.indexOf(pbrMaterial)).setMaterialID(material.getID());
-                                entity.setUpdated(true);
+                                masterRenderer.recreateModelMeshInstanceBuffers(scene);
                             }
                         }
                         ImGui.endPopup();
@@ -948,8 +1040,7 @@ public class GUI {
                     float[] emissionStrength = new float[] {scene.getModelByID(entity.getModelID()).getMeshDatas().get(pbrMaterials.indexOf(pbrMaterial)).getEmissionStrength()};
                     if (ImGui.dragFloat("Emission Strength##" + pbrMaterial.getID(), emissionStrength, 0.01f, 0.0f, Float.MAX_VALUE)) {
                         scene.getModelByID(entity.getModelID()).getMeshDatas().get(pbrMaterials.indexOf(pbrMaterial)).setEmissionStrength(emissionStrength[0]);
-                        masterRenderer.setupBuffers(scene);
-                        entity.setUpdated(true);
+                        masterRenderer.recreateModelMeshInstanceBuffers(scene);
                     }
 
 //                    List<String> names = new ArrayList<>();
@@ -973,7 +1064,7 @@ public class GUI {
 //                    }
                 }
 
-                if (!initialPosition.equals(entity.getPosition()) || !initialRotation.equals(entity.getRotation()) || initialScale != entity.getScale()) {
+                if (!initialPosition.equals(entity.getRelativePosition()) || !initialRotation.equals(entity.getRotation()) || initialScale != entity.getScale()) {
                     entity.setUpdated(true);
                 }
             }
@@ -1512,8 +1603,7 @@ public class GUI {
             if (ImGui.button("Change texture##Albedo")) {
                 String albedoPath = openSingle("png,jpg,jpeg");
                 if (albedoPath != null) {
-                    Texture texture = new Texture(albedoPath, GL_SRGB_ALPHA, true);
-                    texture.generateHandle();
+                    Texture texture = TextureCache.acquire(albedoPath, GL_SRGB_ALPHA, true);
                     pbrMaterial.setAlbedo(texture);
                     masterRenderer.updateMaterial(pbrMaterial.getID(), pbrMaterial);
                 }
@@ -1539,8 +1629,7 @@ public class GUI {
             if (ImGui.button("Change texture##Normal")) {
                 String normalPath = openSingle("png,jpg,jpeg");
                 if (normalPath != null) {
-                    Texture texture = new Texture(normalPath, GL_RGB, true);
-                    texture.generateHandle();
+                    Texture texture = TextureCache.acquire(normalPath, GL_RGB, true);
                     pbrMaterial.setNormal(texture);
                     masterRenderer.updateMaterial(pbrMaterial.getID(), pbrMaterial);
                 }
@@ -1559,8 +1648,7 @@ public class GUI {
             if (ImGui.button("Change texture##Metallic")) {
                 String metallicPath = openSingle("png,jpg,jpeg");
                 if (metallicPath != null) {
-                    Texture texture = new Texture(metallicPath, GL_RED, true);
-                    texture.generateHandle();
+                    Texture texture = TextureCache.acquire(metallicPath, GL_RED, true);
                     pbrMaterial.setMetallic(texture);
                     masterRenderer.updateMaterial(pbrMaterial.getID(), pbrMaterial);
                 }
@@ -1584,8 +1672,7 @@ public class GUI {
             if (ImGui.button("Change texture##Roughness")) {
                 String roughnessPath = openSingle("png,jpg,jpeg");
                 if (roughnessPath != null) {
-                    Texture texture = new Texture(roughnessPath, GL_RED, true);
-                    texture.generateHandle();
+                    Texture texture = TextureCache.acquire(roughnessPath, GL_RED, true);
                     pbrMaterial.setRoughness(texture);
                     masterRenderer.updateMaterial(pbrMaterial.getID(), pbrMaterial);
                 }
@@ -1609,8 +1696,7 @@ public class GUI {
             if (ImGui.button("Change texture##MetallicRoughness")) {
                 String metallicRoughnessPath = openSingle("png,jpg,jpeg");
                 if (metallicRoughnessPath != null) {
-                    Texture texture = new Texture(metallicRoughnessPath, GL_RGBA, true);
-                    texture.generateHandle();
+                    Texture texture = TextureCache.acquire(metallicRoughnessPath, GL_RGBA, true);
                     pbrMaterial.setMetallicRoughness(texture);
                     masterRenderer.updateMaterial(pbrMaterial.getID(), pbrMaterial);
                 }
@@ -1628,8 +1714,7 @@ public class GUI {
             if (ImGui.button("Change texture##AmbientOcclusion")) {
                 String aoPath = openSingle("png,jpg,jpeg");
                 if (aoPath != null) {
-                    Texture texture = new Texture(aoPath, GL_RED, true);
-                    texture.generateHandle();
+                    Texture texture = TextureCache.acquire(aoPath, GL_RED, true);
                     pbrMaterial.setAo(texture);
                     masterRenderer.updateMaterial(pbrMaterial.getID(), pbrMaterial);
                 }
@@ -1647,8 +1732,7 @@ public class GUI {
             if (ImGui.button("Change texture##Emissive")) {
                 String emissivePath = openSingle("png,jpg,jpeg");
                 if (emissivePath != null) {
-                    Texture texture = new Texture(emissivePath, GL_RGB, true);
-                    texture.generateHandle();
+                    Texture texture = TextureCache.acquire(emissivePath, GL_RGB, true);
                     pbrMaterial.setEmissive(texture);
                     masterRenderer.updateMaterial(pbrMaterial.getID(), pbrMaterial);
                 }
@@ -1722,8 +1806,7 @@ public class GUI {
             if (ImGui.button("Change texture##Albedo")) {
                 String albedoPath = openSingle("png,jpg,jpeg");
                 if (albedoPath != null) {
-                    Texture texture = new Texture(albedoPath, GL_SRGB_ALPHA, true);
-                    texture.generateHandle();
+                    Texture texture = TextureCache.acquire(albedoPath, GL_SRGB_ALPHA, true);
                     newPbrMaterial.setAlbedo(texture);
                 }
             }
@@ -1746,8 +1829,7 @@ public class GUI {
             if (ImGui.button("Change texture##Normal")) {
                 String normalPath = openSingle("png,jpg,jpeg");
                 if (normalPath != null) {
-                    Texture texture = new Texture(normalPath, GL_RGB, true);
-                    texture.generateHandle();
+                    Texture texture = TextureCache.acquire(normalPath, GL_RGB, true);
                     newPbrMaterial.setNormal(texture);
                 }
             }
@@ -1764,8 +1846,7 @@ public class GUI {
             if (ImGui.button("Change texture##Metallic")) {
                 String metallicPath = openSingle("png,jpg,jpeg");
                 if (metallicPath != null) {
-                    Texture texture = new Texture(metallicPath, GL_RED, true);
-                    texture.generateHandle();
+                    Texture texture = TextureCache.acquire(metallicPath, GL_RED, true);
                     newPbrMaterial.setMetallic(texture);
                 }
             }
@@ -1786,8 +1867,7 @@ public class GUI {
             if (ImGui.button("Change texture##Roughness")) {
                 String roughnessPath = openSingle("png,jpg,jpeg");
                 if (roughnessPath != null) {
-                    Texture texture = new Texture(roughnessPath, GL_RED, true);
-                    texture.generateHandle();
+                    Texture texture = TextureCache.acquire(roughnessPath, GL_RED, true);
                     newPbrMaterial.setRoughness(texture);
                 }
             }
@@ -1808,8 +1888,7 @@ public class GUI {
             if (ImGui.button("Change texture##MetallicRoughness")) {
                 String metallicRoughnessPath = openSingle("png,jpg,jpeg");
                 if (metallicRoughnessPath != null) {
-                    Texture texture = new Texture(metallicRoughnessPath, GL_RGBA, true);
-                    texture.generateHandle();
+                    Texture texture = TextureCache.acquire(metallicRoughnessPath, GL_RGBA, true);
                     newPbrMaterial.setMetallicRoughness(texture);
                 }
             }
@@ -1825,8 +1904,7 @@ public class GUI {
             if (ImGui.button("Change texture##AmbientOcclusion")) {
                 String aoPath = openSingle("png,jpg,jpeg");
                 if (aoPath != null) {
-                    Texture texture = new Texture(aoPath, GL_RED, true);
-                    texture.generateHandle();
+                    Texture texture = TextureCache.acquire(aoPath, GL_RED, true);
                     newPbrMaterial.setAo(texture);
                 }
             }
@@ -1842,8 +1920,7 @@ public class GUI {
             if (ImGui.button("Change texture##Emissive")) {
                 String emissivePath = openSingle("png,jpg,jpeg");
                 if (emissivePath != null) {
-                    Texture texture = new Texture(emissivePath, GL_RGB, true);
-                    texture.generateHandle();
+                    Texture texture = TextureCache.acquire(emissivePath, GL_RGB, true);
                     newPbrMaterial.setEmissive(texture);
                 }
             }
@@ -1,31 +1,62 @@
 package io.william.renderer;
 
+import io.william.io.ModelLoadQueue;
+import io.william.io.SceneSaver;
 import io.william.io.Window;
+import io.william.renderer.culling.ComputeCuller;
+import io.william.renderer.culling.Frustum;
+import io.william.renderer.culling.FrustumCuller;
 import io.william.renderer.probe.Probe;
 import io.william.renderer.shadow.OmnidirectionalShadowRenderer;
 import io.william.renderer.shadow.ShadowRenderer;
 import io.william.renderer.shadow.SpotlightShadowRenderer;
-import io.william.util.Maths;
+import io.william.util.JobSystem;
 import org.joml.Matrix4f;
 import org.joml.Vector2f;
 import org.joml.Vector3f;
 import org.lwjgl.system.MemoryUtil;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 
+import static org.lwjgl.opengl.GL15.GL_DYNAMIC_DRAW;
 import static org.lwjgl.opengl.GL15.GL_STATIC_DRAW;
+import static org.lwjgl.opengl.GL15.GL_STREAM_DRAW;
 import static org.lwjgl.opengl.GL15.glBindBuffer;
 import static org.lwjgl.opengl.GL15.glBufferData;
+import static org.lwjgl.opengl.GL15.glBufferSubData;
 import static org.lwjgl.opengl.GL15.glGenBuffers;
 import static org.lwjgl.opengl.GL30.glBindBufferBase;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
 import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
 import static org.lwjgl.opengl.GL43.*;
 import static org.lwjgl.opengl.GL43.GL_BUFFER;
 
 public class MasterRenderer {
 
+    public enum CullingMode {
+        NONE,
+        CPU,
+        GPU
+    }
+
+    private static final int ENTITY_TRANSFORM_SIZE = 2 * 16 * 4;  // previous and current mat4
+    private static final int MODEL_MESH_INSTANCE_SIZE = 4 * 4;  // transform index, material ID, emission strength, command index
+    private static final int DRAW_COMMAND_SIZE = 5 * 4;
+    private static final int MESH_QUANTIZATION_SIZE = 3 * 4 * 4;  // position offset, position scale, texture coordinate offset and scale
+    private static final int MIN_BUFFER_CAPACITY = 4096;
+
+    // Render thread time per frame spent finishing models loaded in the background
+    private static final long MODEL_UPLOAD_BUDGET_NANOS = 2_000_000;
+    private static final int MODEL_LOADER_THREADS = 2;
+    // Texture data copied to the GPU per frame, and the size of each of the texture upload ring's regions
+    private static final int TEXTURE_UPLOAD_BUDGET_BYTES = 8 * 1024 * 1024;
+    // GPU memory for cached textures before idle ones are evicted to low resolution fallbacks
+    private static final long DEFAULT_TEXTURE_BUDGET_BYTES = 1024L * 1024 * 1024;
+
     private Renderer renderer;
     private ShadowRenderer shadowRenderer;
     private OmnidirectionalShadowRenderer omnidirectionalShadowRenderer;
@@ -36,8 +67,48 @@ public class MasterRenderer {
     private int indirectBuffer;
     private int drawCount;
     private int modelMeshInstanceBuffer;
+    private int entityTransformBuffer;
     private int materialBuffer;
     private int probeBuffer;
+    private int frameDataBuffer;
+    private int allInstancesBuffer;
+    private int visibleInstanceBuffer;
+    private int culledIndirectBuffer;
+    private int meshQuantizationBuffer;
+
+    // Number of records and allocated bytes in the buffers that models can be appended to
+    private int transformCount;
+    private int instanceCount;
+    private long indirectBufferCapacity;
+    private long entityTransformBufferCapacity;
+    private long modelMeshInstanceBufferCapacity;
+    private long allInstancesBufferCapacity;
+    private long visibleInstanceBufferCapacity;
+    private long culledIndirectBufferCapacity;
+    private long meshQuantizationBufferCapacity;
+
+    private final FrustumCuller frustumCuller;
+    private final ModelLoadQueue modelLoadQueue;
+    private final SceneSaver sceneSaver;
+    private ComputeCuller computeCuller;
+    private final Frustum frustum = new Frustum();
+    private final Matrix4f viewProjection = new Matrix4f();
+    private CullingMode cullingMode = CullingMode.CPU;
+    // Largest on-screen error of a LOD, in pixels, 0 to always draw full detail
+    private float lodPixelError = 1.0f;
+
+    private static final int MATERIAL_SIZE = (4 * 10) + (8 * 7) + (4 * 8);
+    private static final int UPLOAD_RING_REGION_SIZE = 4 * 1024 * 1024;
+
+    private UploadRing uploadRing;
+    private TextureUploader textureUploader;
+    private TextureResidency textureResidency;
+    private boolean interpolating;
+
+    private final List<Entity> sortedUpdatedEntities = new ArrayList<>();
+    // Models with entities, in the order of their draw commands and instances. The order is kept across rebuilds, so a
+    // model that finishes loading out of scene order can be appended to the buffers
+    private final List<Model> drawnModels = new ArrayList<>();
 
     private boolean firstRender = true;
     private boolean secondRender = false;
@@ -45,6 +116,12 @@ public class MasterRenderer {
 
     private boolean showGUI = true;
 
+    public MasterRenderer(JobSystem jobSystem) {
+        frustumCuller = new FrustumCuller(jobSystem);
+        modelLoadQueue = new ModelLoadQueue(MODEL_LOADER_THREADS);
+        sceneSaver = new SceneSaver();
+    }
+
     public void init(Window window, Renderer renderer, Scene scene, Camera camera, ShadowRenderer shadowRenderer, OmnidirectionalShadowRenderer omnidirectionalShadowRenderer, SpotlightShadowRenderer spotlightShadowRenderer, GUI gui) throws Exception {
         this.renderer = renderer;
         this.shadowRenderer = shadowRenderer;
@@ -52,7 +129,31 @@ public class MasterRenderer {
         this.spotlightShadowRenderer = spotlightShadowRenderer;
         this.gui = gui;
 
-        sceneMesh = new SceneMesh();
+        sceneMesh = new SceneMesh(SceneMesh.VertexFormat.fromSystemProperties());
+
+        uploadRing = new UploadRing(UPLOAD_RING_REGION_SIZE);
+        textureUploader = new TextureUploader(TEXTURE_UPLOAD_BUDGET_BYTES);
+        textureResidency = new TextureResidency(DEFAULT_TEXTURE_BUDGET_BYTES);
+        computeCuller = new ComputeCuller();
+
+        // FrameData UBO, shared by the scene and shadow vertex shaders
+        frameDataBuffer = glGenBuffers();
+        glBindBuffer(GL_UNIFORM_BUFFER, frameDataBuffer);
+        glObjectLabel(GL_BUFFER, frameDataBuffer, "FrameData");
+        glBufferData(GL_UNIFORM_BUFFER, 4 * Float.BYTES, GL_DYNAMIC_DRAW);
+        glBindBufferBase(GL_UNIFORM_BUFFER, 1, frameDataBuffer);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+        setInterpolationFactor(1.0f);
+
+        indirectBuffer = createBuffer(GL_DRAW_INDIRECT_BUFFER, "IndirectBuffer");
+        modelMeshInstanceBuffer = createBuffer(GL_SHADER_STORAGE_BUFFER, "ModelMeshInstanceBuffer");
+        entityTransformBuffer = createBuffer(GL_SHADER_STORAGE_BUFFER, "EntityTransformBuffer");
+        materialBuffer = createBuffer(GL_SHADER_STORAGE_BUFFER, "MaterialBuffer");
+        probeBuffer = createBuffer(GL_SHADER_STORAGE_BUFFER, "ProbeBuffer");
+        allInstancesBuffer = createBuffer(GL_SHADER_STORAGE_BUFFER, "AllInstancesBuffer");
+        visibleInstanceBuffer = createBuffer(GL_SHADER_STORAGE_BUFFER, "VisibleInstanceBuffer");
+        culledIndirectBuffer = createBuffer(GL_DRAW_INDIRECT_BUFFER, "CulledIndirectBuffer");
+        meshQuantizationBuffer = createBuffer(GL_SHADER_STORAGE_BUFFER, "MeshQuantizationBuffer");
 
         setupBuffers(scene);
 
@@ -61,8 +162,11 @@ public class MasterRenderer {
     }
 
     public void render(Camera camera, Scene scene, Window window) throws Exception {
-        // Only update shadow maps if entities have been updated
-        if (sceneUpdated || firstRender) {
+        textureUploader.update();
+        modelLoadQueue.update(scene, this, MODEL_UPLOAD_BUDGET_NANOS);
+
+        // Only update shadow maps if entities have been updated or are being interpolated
+        if (sceneUpdated || interpolating || firstRender) {
             shadowRenderer.render(scene, sceneMesh, indirectBuffer, drawCount);
             omnidirectionalShadowRenderer.render(scene, sceneMesh, indirectBuffer, drawCount);
             spotlightShadowRenderer.render(scene, sceneMesh, indirectBuffer, drawCount);
@@ -86,65 +190,72 @@ public class MasterRenderer {
         firstRender = false;
         sceneUpdated = false;
 
-        renderer.render(camera, scene, sceneMesh, indirectBuffer, drawCount, shadowRenderer, spotlightShadowRenderer, omnidirectionalShadowRenderer, window);
-        if (showGUI) gui.render(scene, camera, this, renderer, shadowRenderer, omnidirectionalShadowRenderer, window);
-    }
-
-    public void setupBuffers(Scene scene) {
-        System.out.println(scene.getPBRMaterials());
-
-        sceneMesh.loadModels(scene);
-
-        setupIndirectBuffer(scene);
+        // Shadow maps and probes draw every instance, the main pass only those inside the camera frustum
+        // Culling also picks each instance's LOD, which are only used by the main pass
+        int sceneIndirectBuffer = indirectBuffer;
+        int sceneDrawCount = drawCount;
+        int sceneDrawCountBuffer = 0;
+        ComputeCuller occlusionCuller = null;
+        if (cullingMode != CullingMode.NONE) {
+            renderer.calculateProjectionMatrix(camera, viewProjection).mul(camera.calculateViewMatrix());
+
+            // World space error allowed per unit of distance, for an error of lodPixelError pixels on screen
+            float lodThreshold = lodPixelError * 2.0f * (float) Math.tan(camera.getFOV() * 0.5f) / window.getHeight();
+
+            if (cullingMode == CullingMode.CPU) {
+                cullInstances(camera, lodThreshold);
+                sceneIndirectBuffer = culledIndirectBuffer;
+                sceneDrawCount = frustumCuller.getCulledCommandCount();
+            } else {
+                visibleInstanceBufferCapacity = ensureCapacity(GL_SHADER_STORAGE_BUFFER, visibleInstanceBuffer, visibleInstanceBufferCapacity, (long) instanceCount * MeshData.MAX_LODS * Integer.BYTES);
+                computeCuller.cull(frustum.set(viewProjection), camera.getPosition(), lodThreshold, indirectBuffer, visibleInstanceBuffer, drawCount, instanceCount);
+                sceneIndirectBuffer = computeCuller.getCompactedIndirectBuffer();
+                sceneDrawCount = drawCount * MeshData.MAX_LODS;
+                sceneDrawCountBuffer = computeCuller.getDrawCountBuffer();
+                occlusionCuller = computeCuller;
+            }
+            glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 4, visibleInstanceBuffer);
+        }
 
-        // SSBO
-        modelMeshInstanceBuffer = glGenBuffers();
-        materialBuffer = glGenBuffers();
-        probeBuffer = glGenBuffers();
+        // Textures used by the visible materials stream in the mips they need, evictions and streamed levels swap
+        // bindless handles
+        Frustum visibleFrustum = switch (cullingMode) {
+            case NONE -> null;
+            case CPU -> frustumCuller.getFrustum();
+            case GPU -> frustum;
+        };
+        float pixelSize = 2.0f * (float) Math.tan(camera.getFOV() * 0.5f) / window.getHeight();
+        if (textureResidency.update(scene, visibleFrustum, camera.getPosition(), pixelSize, textureUploader)) {
+            recreateMaterialBuffer(scene.getPBRMaterials());
+        }
 
-        // ModelMeshInstanceBuffer
-        List<Model> models = scene.getModels().stream().filter(model -> model.getEntities().size() > 0).toList();
+        renderer.render(camera, scene, sceneMesh, sceneIndirectBuffer, sceneDrawCount, sceneDrawCountBuffer, occlusionCuller, shadowRenderer, spotlightShadowRenderer, omnidirectionalShadowRenderer, window);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 4, allInstancesBuffer);
 
-        // Calculate buffer capacity - 20 * number of entities
-        int capacity = 0;
-        for (Model model : models) {
-            List<Entity> entities = model.getEntities();
-            for (SceneMesh.MeshDrawData meshDrawData : model.getMeshDrawDatas()) {
-                capacity += (16 + 4) * entities.size();
-            }
+        // Next frame's first occlusion culling phase tests against this frame's depth
+        if (occlusionCuller != null) {
+            occlusionCuller.buildDepthPyramid(renderer.getDepthTexture(), window.getWidth(), window.getHeight(), viewProjection);
         }
 
-        ByteBuffer mmib = MemoryUtil.memAlloc(capacity * 4);
-        for (Model model : models) {
-            List<Entity> entities = model.getEntities();
-            for (SceneMesh.MeshDrawData meshDrawData : model.getMeshDrawDatas()) {
-                for (Entity entity : entities) {
-                    Matrix4f m = Maths.calculateModelMatrix(entity.getPosition(), entity.getRotation(), entity.getScale());
-                    putMatrix4f(mmib, m);
-                    mmib.putInt(meshDrawData.materialID());
-                    mmib.putFloat(meshDrawData.emissionStrength());
-                    mmib.putInt(0);
-                    mmib.putInt(0);
-                }
-            }
-        }
-        mmib.flip();
+        if (showGUI) gui.render(scene, camera, this, renderer, shadowRenderer, omnidirectionalShadowRenderer, window);
 
-        // Bind SSBO
-        glBindBuffer(GL_SHADER_STORAGE_BUFFER, modelMeshInstanceBuffer);
-        glObjectLabel(GL_BUFFER, modelMeshInstanceBuffer, "ModelMeshInstanceBuffer");
-        glBufferData(GL_SHADER_STORAGE_BUFFER, mmib, GL_STATIC_DRAW);
-        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 0, modelMeshInstanceBuffer);
-        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        uploadRing.nextFrame();
+        textureUploader.nextFrame();
+    }
 
-        MemoryUtil.memFree(mmib);
+    public void setupBuffers(Scene scene) {
+        // Only uploads models that aren't in the scene mesh yet
+        sceneMesh.loadModels(scene);
+
+        setupIndirectBuffer(scene);
 
-        System.out.println("ModelMeshInstanceBuffer size: " + capacity * 8 + " bytes");
+        // ModelMeshInstanceBuffer and EntityTransformBuffer
+        recreateModelMeshInstanceBuffers(scene);
 
         // MaterialBuffer
-        capacity = 0;
+        int capacity = 0;
         for (int i = 0; i < scene.getPBRMaterials().size(); i++) {
-            capacity += (4 * 10) + (8 * 7) + (4 * 8);
+            capacity += MATERIAL_SIZE;
         }
 
         System.out.println("Number of materials: " + scene.getPBRMaterials().size());
@@ -157,15 +268,12 @@ public class MasterRenderer {
         mb.flip();
 
         glBindBuffer(GL_SHADER_STORAGE_BUFFER, materialBuffer);
-        glObjectLabel(GL_BUFFER, materialBuffer, "MaterialBuffer");
         glBufferData(GL_SHADER_STORAGE_BUFFER, mb, GL_STATIC_DRAW);
         glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 1, materialBuffer);
         glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
 
         MemoryUtil.memFree(mb);
 
-        System.out.println("MaterialBuffer size: " + capacity + " bytes");
-
         // ProbeBuffer
         capacity = 0;
         for (int i = 0; i < scene.getProbes().size(); i++) {
@@ -188,7 +296,6 @@ public class MasterRenderer {
         pb.flip();
 
         glBindBuffer(GL_SHADER_STORAGE_BUFFER, probeBuffer);
-        glObjectLabel(GL_BUFFER, probeBuffer, "ProbeBuffer");
         glBufferData(GL_SHADER_STORAGE_BUFFER, pb, GL_STATIC_DRAW);
         glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 2, probeBuffer);
         glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
@@ -199,148 +306,329 @@ public class MasterRenderer {
     }
 
     public void setupIndirectBuffer(Scene scene) {
-        List<Model> models = scene.getModels().stream().filter(model -> model.getEntities().size() > 0).toList();
+        List<Model> models = updateDrawnModels(scene);
 
         int numCommands = 0;
         for (Model model : models) {
             numCommands += model.getMeshDrawDatas().size();
         }
 
-        int firstIndex = 0;
         int baseInstance = 0;
         System.out.println("Num commands: " + numCommands);
-        ByteBuffer indirectBuffer = MemoryUtil.memAlloc(numCommands * 5 * 4);
+        ByteBuffer indirectBuffer = MemoryUtil.memAlloc(numCommands * DRAW_COMMAND_SIZE);
+        ByteBuffer mqb = MemoryUtil.memAlloc(numCommands * MESH_QUANTIZATION_SIZE);
         for (Model model : models) {
-            List<Entity> entities = model.getEntities();
-            int numEntities = entities.size();
+            int numEntities = model.getEntities().size();
 
-            System.out.println("mesh draw datas size: " + model.getMeshDrawDatas().size());
-            for (SceneMesh.MeshDrawData meshDrawData : model.getMeshDrawDatas()) {
-                // Count
-                indirectBuffer.putInt(meshDrawData.vertices());
+            List<SceneMesh.MeshDrawData> meshDrawDatas = model.getMeshDrawDatas();
+            for (int i = 0; i < meshDrawDatas.size(); i++) {
+                putDrawCommand(indirectBuffer, meshDrawDatas.get(i), numEntities, baseInstance);
+                putMeshQuantization(mqb, model.getMeshDatas().get(i));
+                baseInstance += numEntities;
+            }
+        }
 
-                // Instance count
-                indirectBuffer.putInt(numEntities);
+        indirectBuffer.flip();
+        mqb.flip();
 
-                // First index
-                indirectBuffer.putInt(firstIndex);
+        drawCount = indirectBuffer.remaining() / DRAW_COMMAND_SIZE;
+        System.out.println("Draw count: " + drawCount);
 
-                // Base vertex
-                indirectBuffer.putInt(meshDrawData.offset());
+        indirectBufferCapacity = uploadWithHeadroom(GL_DRAW_INDIRECT_BUFFER, this.indirectBuffer, indirectBufferCapacity, indirectBuffer);
 
-                // Base instance
-                indirectBuffer.putInt(baseInstance);
+        // Indexed by the command index of each model mesh instance, like the draw commands
+        meshQuantizationBufferCapacity = uploadWithHeadroom(GL_SHADER_STORAGE_BUFFER, meshQuantizationBuffer, meshQuantizationBufferCapacity, mqb);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 12, meshQuantizationBuffer);
 
-                firstIndex += meshDrawData.vertices();
-                baseInstance += numEntities;
+        MemoryUtil.memFree(indirectBuffer);
+        MemoryUtil.memFree(mqb);
+    }
+
+    // Drops models that were removed from the scene or lost their entities, and appends the scene's new models with
+    // entities, keeping the order of the rest
+    private List<Model> updateDrawnModels(Scene scene) {
+        drawnModels.removeIf(model -> scene.getModelByID(model.getID()) != model || model.getEntities().isEmpty());
+        for (Model model : scene.getModels()) {
+            if (!model.getEntities().isEmpty() && !drawnModels.contains(model)) {
+                drawnModels.add(model);
             }
         }
+        return drawnModels;
+    }
 
-        indirectBuffer.flip();
+    // Model added - uploads only the new model's geometry, and appends its transforms, instances and draw commands
+    // after those of the models already drawn, wherever the model is in the scene
+    public void addModel(Scene scene, Model model) {
+        // Already has instances, for example entities that were added while it was loading
+        if (drawnModels.contains(model)) {
+            setupBuffers(scene);
+            return;
+        }
 
-        drawCount = indirectBuffer.remaining() / (5 * 4);
-        System.out.println("Draw count: " + drawCount);
+        boolean relocated = sceneMesh.addModel(model);
+
+        List<Entity> entities = model.getEntities();
+        List<SceneMesh.MeshDrawData> meshDrawDatas = model.getMeshDrawDatas();
+        int newInstances = meshDrawDatas.size() * entities.size();
+
+        // Fall back to rewriting everything if other models moved or a buffer needs to grow
+        if (relocated
+                || (long) (transformCount + entities.size()) * ENTITY_TRANSFORM_SIZE > entityTransformBufferCapacity
+                || (long) (instanceCount + newInstances) * MODEL_MESH_INSTANCE_SIZE > modelMeshInstanceBufferCapacity
+                || (long) (instanceCount + newInstances) * Integer.BYTES > allInstancesBufferCapacity
+                || (long) (drawCount + meshDrawDatas.size()) * DRAW_COMMAND_SIZE > indirectBufferCapacity
+                || (long) (drawCount + meshDrawDatas.size()) * MESH_QUANTIZATION_SIZE > meshQuantizationBufferCapacity) {
+            setupIndirectBuffer(scene);
+            recreateModelMeshInstanceBuffers(scene);
+            return;
+        }
+
+        if (entities.isEmpty()) {
+            return;
+        }
 
-        this.indirectBuffer = glGenBuffers();
-        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, this.indirectBuffer);
-        glObjectLabel(GL_BUFFER, this.indirectBuffer, "IndirectBuffer");
-        glBufferData(GL_DRAW_INDIRECT_BUFFER, indirectBuffer, GL_STATIC_DRAW);
-        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+        scene.updateWorldMatrices();
 
-        MemoryUtil.memFree(indirectBuffer);
+        // EntityTransformBuffer
+        ByteBuffer etb = uploadRing.allocate(entities.size() * ENTITY_TRANSFORM_SIZE);
+        for (int i = 0; i < entities.size(); i++) {
+            Entity entity = entities.get(i);
+            entity.setTransformIndex(transformCount + i);
+            putMatrix4f(etb, entity.getPreviousWorldMatrix());
+            putMatrix4f(etb, entity.getWorldMatrix());
+        }
+        uploadRing.upload(etb, 0, etb.position(), entityTransformBuffer, (long) transformCount * ENTITY_TRANSFORM_SIZE);
+        uploadRing.release(etb);
+
+        // ModelMeshInstanceBuffer
+        ByteBuffer mmib = uploadRing.allocate(newInstances * MODEL_MESH_INSTANCE_SIZE);
+        int commandIndex = drawCount;
+        for (MeshData meshData : model.getMeshDatas()) {
+            for (int i = 0; i < entities.size(); i++) {
+                putModelMeshInstance(mmib, transformCount + i, commandIndex, meshData);
+            }
+            commandIndex++;
+        }
+        uploadRing.upload(mmib, 0, mmib.position(), modelMeshInstanceBuffer, (long) instanceCount * MODEL_MESH_INSTANCE_SIZE);
+        uploadRing.release(mmib);
+
+        // AllInstancesBuffer
+        ByteBuffer aib = uploadRing.allocate(newInstances * Integer.BYTES);
+        for (int i = 0; i < newInstances; i++) {
+            aib.putInt(instanceCount + i);
+        }
+        uploadRing.upload(aib, 0, aib.position(), allInstancesBuffer, (long) instanceCount * Integer.BYTES);
+        uploadRing.release(aib);
+
+        // Indirect buffer
+        ByteBuffer commands = uploadRing.allocate(meshDrawDatas.size() * DRAW_COMMAND_SIZE);
+        int baseInstance = instanceCount;
+        for (SceneMesh.MeshDrawData meshDrawData : meshDrawDatas) {
+            putDrawCommand(commands, meshDrawData, entities.size(), baseInstance);
+            baseInstance += entities.size();
+        }
+        uploadRing.upload(commands, 0, commands.position(), indirectBuffer, (long) drawCount * DRAW_COMMAND_SIZE);
+        uploadRing.release(commands);
+
+        // MeshQuantizationBuffer
+        ByteBuffer mqb = uploadRing.allocate(meshDrawDatas.size() * MESH_QUANTIZATION_SIZE);
+        for (MeshData meshData : model.getMeshDatas()) {
+            putMeshQuantization(mqb, meshData);
+        }
+        uploadRing.upload(mqb, 0, mqb.position(), meshQuantizationBuffer, (long) drawCount * MESH_QUANTIZATION_SIZE);
+        uploadRing.release(mqb);
+
+        transformCount += entities.size();
+        instanceCount += newInstances;
+        drawCount += meshDrawDatas.size();
+        drawnModels.add(model);
+
+        frustumCuller.rebuild(scene, drawnModels);
+        computeCuller.updateBounds(frustumCuller.getSpheres(), frustumCuller.getLods(), frustumCuller.getLodErrors(), frustumCuller.getCommandCount());
+
+        System.out.println("Added model " + model.getName() + " (" + meshDrawDatas.size() + " draw commands)");
     }
 
     // Buffers:
     //  - Indirect buffer (draw commands)
-    //  - SceneMeshIndicesBuffer (indices)
-    //  - ModelMeshInstanceBuffer (world matrix, material id)
+    //  - SceneMeshVerticesBuffer, SceneMeshIndicesBuffer (geometry arena, one block of each per resident model)
+    //  - EntityTransformBuffer (previous and current world matrix per entity)
+    //  - ModelMeshInstanceBuffer (transform index, material id, emission strength, command index)
+    //  - AllInstancesBuffer, VisibleInstanceBuffer (indices into ModelMeshInstanceBuffer for unculled and culled passes)
+    //  - CulledIndirectBuffer (draw commands with the visible instance count and base instance, rewritten every frame)
+    //  - MeshQuantizationBuffer (per draw command, how to decode the scene mesh's quantized vertices)
     //  - MaterialBuffer (material data)
 
     // Types of buffer updates:
-    //  - Entity added/removed (ModelMeshInstanceBuffer)
-    //  - Entity changed (ModelMeshInstanceBuffer)
+    //  - Entity added/removed (EntityTransformBuffer, ModelMeshInstanceBuffer)
+    //  - Entity changed (EntityTransformBuffer)
     //  - Material added/removed (MaterialBuffer)
     //  - Material changed (MaterialBuffer)
-    //  - Model added/removed (ModelMeshInstanceBuffer, SceneMeshIndicesBuffer)
+    //  - Model added (SceneMesh blocks, appended to EntityTransformBuffer, ModelMeshInstanceBuffer and indirect buffer)
+    //  - Model removed (SceneMesh blocks freed, ModelMeshInstanceBuffer, indirect buffer)
     //  - Model changed (ModelMeshInstanceBuffer, SceneMeshIndicesBuffer)
 
     // Entity added/removed
-    public void recreateModelMeshInstanceBuffer(List<Model> models) {
-        // Calculate buffer capacity - 20 * number of entities
-        int capacity = 0;
+    public void recreateModelMeshInstanceBuffers(Scene scene) {
+        List<Model> models = updateDrawnModels(scene);
+
+        scene.updateWorldMatrices();
+
+        // One transform per entity, one (transform index, material ID, emission strength) record per model mesh instance
+        int transformCount = 0;
+        int instanceCount = 0;
         for (Model model : models) {
-            List<Entity> entities = model.getEntities();
-            for (SceneMesh.MeshDrawData meshDrawData : model.getMeshDrawDatas()) {
-                capacity += (16 + 4) * entities.size();
+            transformCount += model.getEntities().size();
+            instanceCount += model.getMeshDrawDatas().size() * model.getEntities().size();
+        }
+
+        ByteBuffer etb = MemoryUtil.memAlloc(transformCount * ENTITY_TRANSFORM_SIZE);
+        int transformIndex = 0;
+        for (Model model : models) {
+            for (Entity entity : model.getEntities()) {
+                entity.setTransformIndex(transformIndex++);
+                putMatrix4f(etb, entity.getPreviousWorldMatrix());
+                putMatrix4f(etb, entity.getWorldMatrix());
             }
         }
+        etb.flip();
 
-        ByteBuffer mmib = MemoryUtil.memAlloc(capacity * 4);
+        ByteBuffer mmib = MemoryUtil.memAlloc(instanceCount * MODEL_MESH_INSTANCE_SIZE);
+        int firstTransformIndex = 0;
+        int commandIndex = 0;
         for (Model model : models) {
             List<Entity> entities = model.getEntities();
-            for (SceneMesh.MeshDrawData meshDrawData : model.getMeshDrawDatas()) {
-                for (Entity entity : entities) {
-                    Matrix4f m = Maths.calculateModelMatrix(entity.getPosition(), entity.getRotation(), entity.getScale());
-                    putMatrix4f(mmib, m);
-                    mmib.putInt(meshDrawData.materialID());
-                    mmib.putFloat(meshDrawData.emissionStrength());
-                    mmib.putInt(0);
-                    mmib.putInt(0);
+            for (MeshData meshData : model.getMeshDatas()) {
+                for (int i = 0; i < entities.size(); i++) {
+                    putModelMeshInstance(mmib, firstTransformIndex + i, commandIndex, meshData);
                 }
+                commandIndex++;
             }
+            firstTransformIndex += entities.size();
         }
         mmib.flip();
 
-        // Bind SSBO
-        glBindBuffer(GL_SHADER_STORAGE_BUFFER, modelMeshInstanceBuffer);
-        glObjectLabel(GL_BUFFER, modelMeshInstanceBuffer, "ModelMeshInstanceBuffer");
-        glBufferData(GL_SHADER_STORAGE_BUFFER, mmib, GL_STATIC_DRAW);
+        // Bind SSBOs
+        entityTransformBufferCapacity = uploadWithHeadroom(GL_SHADER_STORAGE_BUFFER, entityTransformBuffer, entityTransformBufferCapacity, etb);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 3, entityTransformBuffer);
+
+        modelMeshInstanceBufferCapacity = uploadWithHeadroom(GL_SHADER_STORAGE_BUFFER, modelMeshInstanceBuffer, modelMeshInstanceBufferCapacity, mmib);
         glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 0, modelMeshInstanceBuffer);
-        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
 
+        // Identity list of instances, used in place of the visible instances by passes that aren't culled
+        ByteBuffer aib = MemoryUtil.memAlloc(instanceCount * Integer.BYTES);
+        for (int i = 0; i < instanceCount; i++) {
+            aib.putInt(i);
+        }
+        aib.flip();
+        allInstancesBufferCapacity = uploadWithHeadroom(GL_SHADER_STORAGE_BUFFER, allInstancesBuffer, allInstancesBufferCapacity, aib);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 4, allInstancesBuffer);
+
+        this.transformCount = transformCount;
+        this.instanceCount = instanceCount;
+
+        frustumCuller.rebuild(scene, models);
+        computeCuller.updateBounds(frustumCuller.getSpheres(), frustumCuller.getLods(), frustumCuller.getLodErrors(), frustumCuller.getCommandCount());
+
+        MemoryUtil.memFree(etb);
         MemoryUtil.memFree(mmib);
+        MemoryUtil.memFree(aib);
+
+        System.out.println("EntityTransformBuffer size: " + transformCount * ENTITY_TRANSFORM_SIZE + " bytes");
+        System.out.println("ModelMeshInstanceBuffer size: " + instanceCount * MODEL_MESH_INSTANCE_SIZE + " bytes");
     }
 
-    public void updateModelMeshInstances(int firstIndex, int lastIndex, Matrix4f[] worlds, int[] materialIDs, float[] emissionStrengths) {
-        ByteBuffer buffer = MemoryUtil.memAlloc((lastIndex - firstIndex + 1) * 20 * 4);
-        for (int i = 0; i < worlds.length; i++) {
-            buffer.putFloat(worlds[i].m00());
-            buffer.putFloat(worlds[i].m01());
-            buffer.putFloat(worlds[i].m02());
-            buffer.putFloat(worlds[i].m03());
-            buffer.putFloat(worlds[i].m10());
-            buffer.putFloat(worlds[i].m11());
-            buffer.putFloat(worlds[i].m12());
-            buffer.putFloat(worlds[i].m13());
-            buffer.putFloat(worlds[i].m20());
-            buffer.putFloat(worlds[i].m21());
-            buffer.putFloat(worlds[i].m22());
-            buffer.putFloat(worlds[i].m23());
-            buffer.putFloat(worlds[i].m30());
-            buffer.putFloat(worlds[i].m31());
-            buffer.putFloat(worlds[i].m32());
-            buffer.putFloat(worlds[i].m33());
-
-            // Material ID
-            buffer.putInt(materialIDs[i]);
-            buffer.putFloat(emissionStrengths[i]);
-            buffer.putInt(0);
-            buffer.putInt(0);
-        }
-        buffer.flip();
-
-        glBindBuffer(GL_SHADER_STORAGE_BUFFER, modelMeshInstanceBuffer);
-        glBufferSubData(GL_SHADER_STORAGE_BUFFER, firstIndex * 80L, buffer);
-        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    // Entity changed - uploads entities updated during this tick, along with those updated during the last one so that they stop interpolating
+    public void updateEntityTransforms(List<Entity> updatedEntities, List<Entity> settledEntities) {
+        interpolating = !updatedEntities.isEmpty();
+
+        sortedUpdatedEntities.clear();
+        for (Entity entity : updatedEntities) {
+            if (entity.getTransformIndex() != -1) {
+                sortedUpdatedEntities.add(entity);
+            }
+        }
+        for (Entity entity : settledEntities) {
+            if (entity.getTransformIndex() != -1) {
+                sortedUpdatedEntities.add(entity);
+            }
+        }
+
+        if (sortedUpdatedEntities.isEmpty()) {
+            return;
+        }
+
+        sortedUpdatedEntities.sort(Comparator.comparingInt(Entity::getTransformIndex));
+
+        ByteBuffer buffer = uploadRing.allocate(sortedUpdatedEntities.size() * ENTITY_TRANSFORM_SIZE);
+
+        // Upload each run of contiguous transform indices with a single copy
+        int runStart = 0;
+        int runFirstIndex = -1;
+        int lastIndex = -1;
+        for (Entity entity : sortedUpdatedEntities) {
+            int index = entity.getTransformIndex();
+            if (index == lastIndex) {
+                continue;
+            }
+
+            if (index != lastIndex + 1 && runFirstIndex != -1) {
+                uploadRing.upload(buffer, runStart, buffer.position() - runStart, entityTransformBuffer, (long) runFirstIndex * ENTITY_TRANSFORM_SIZE);
+                runStart = buffer.position();
+                runFirstIndex = -1;
+            }
+
+            if (runFirstIndex == -1) {
+                runFirstIndex = index;
+            }
+
+            putMatrix4f(buffer, entity.getPreviousWorldMatrix());
+            putMatrix4f(buffer, entity.getWorldMatrix());
+            lastIndex = index;
+        }
+        uploadRing.upload(buffer, runStart, buffer.position() - runStart, entityTransformBuffer, (long) runFirstIndex * ENTITY_TRANSFORM_SIZE);
+
+        uploadRing.release(buffer);
+    }
+
+    // Culls instances against the camera frustum and uploads the visible instances and the rewritten draw commands
+    private void cullInstances(Camera camera, float lodThreshold) {
+        frustumCuller.cull(viewProjection, camera.getPosition(), lodThreshold);
+
+        int commandsSize = frustumCuller.getCulledCommandCount() * DRAW_COMMAND_SIZE;
+        int visibleSize = frustumCuller.getVisibleInstanceCount() * Integer.BYTES;
+        culledIndirectBufferCapacity = ensureCapacity(GL_DRAW_INDIRECT_BUFFER, culledIndirectBuffer, culledIndirectBufferCapacity, commandsSize);
+        visibleInstanceBufferCapacity = ensureCapacity(GL_SHADER_STORAGE_BUFFER, visibleInstanceBuffer, visibleInstanceBufferCapacity, visibleSize);
+
+        ByteBuffer buffer = uploadRing.allocate(commandsSize + visibleSize);
+        int[] culledCommands = frustumCuller.getCulledCommands();
+        for (int i = 0; i < commandsSize / Integer.BYTES; i++) {
+            buffer.putInt(culledCommands[i]);
+        }
+        int[] visibleInstances = frustumCuller.getVisibleInstances();
+        for (int i = 0; i < visibleSize / Integer.BYTES; i++) {
+            buffer.putInt(visibleInstances[i]);
+        }
+
+        uploadRing.upload(buffer, 0, commandsSize, culledIndirectBuffer, 0);
+        uploadRing.upload(buffer, commandsSize, visibleSize, visibleInstanceBuffer, 0);
+        uploadRing.release(buffer);
+    }
+
+    // Fraction of a simulation tick between the previous and current entity transforms
+    public void setInterpolationFactor(float interpolationFactor) {
+        ByteBuffer buffer = uploadRing.allocate(Float.BYTES);
+        buffer.putFloat(interpolationFactor);
 
-        MemoryUtil.memFree(buffer);
+        uploadRing.upload(buffer, 0, Float.BYTES, frameDataBuffer, 0);
+        uploadRing.release(buffer);
     }
 
     // Material added/removed
     public void recreateMaterialBuffer(List<PBRMaterial> materials) {
         int capacity = 0;
         for (int i = 0; i < materials.size(); i++) {
-            capacity += (4 * 10) + (8 * 7) + (4 * 8);
+            capacity += MATERIAL_SIZE;
         }
 
         ByteBuffer mb = MemoryUtil.memAlloc(capacity);
@@ -350,7 +638,6 @@ public class MasterRenderer {
         mb.flip();
 
         glBindBuffer(GL_SHADER_STORAGE_BUFFER, materialBuffer);
-        glObjectLabel(GL_BUFFER, materialBuffer, "MaterialBuffer");
         glBufferData(GL_SHADER_STORAGE_BUFFER, mb, GL_STATIC_DRAW);
         glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 1, materialBuffer);
         glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
@@ -360,16 +647,88 @@ public class MasterRenderer {
 
     // Material changed
     public void updateMaterial(int index, PBRMaterial material) {
-        ByteBuffer buffer = MemoryUtil.memAlloc((4 * 10) + (8 * 7) + (4 * 8));
+        ByteBuffer buffer = uploadRing.allocate(MATERIAL_SIZE);
         putPBRMaterial(buffer, material);
 
-        buffer.flip();
+        uploadRing.upload(buffer, 0, MATERIAL_SIZE, materialBuffer, (long) index * MATERIAL_SIZE);
+        uploadRing.release(buffer);
+    }
 
-        glBindBuffer(GL_SHADER_STORAGE_BUFFER, materialBuffer);
-        glBufferSubData(GL_SHADER_STORAGE_BUFFER, index * ((4 * 10) + (8 * 7) + (4 * 8)), buffer);
-        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    private int createBuffer(int target, String label) {
+        int buffer = glGenBuffers();
+        glBindBuffer(target, buffer);
+        glObjectLabel(GL_BUFFER, buffer, label);
+        glBindBuffer(target, 0);
+        return buffer;
+    }
+
+    // Uploads data to the start of the buffer, reallocating it with some headroom if it doesn't fit
+    // Returns the capacity of the buffer in bytes
+    private long uploadWithHeadroom(int target, int buffer, long capacity, ByteBuffer data) {
+        glBindBuffer(target, buffer);
+        if (data.remaining() > capacity || capacity == 0) {
+            capacity = Math.max(data.remaining() + data.remaining() / 2, MIN_BUFFER_CAPACITY);
+            glBufferData(target, capacity, GL_STATIC_DRAW);
+        }
+        glBufferSubData(target, 0, data);
+        glBindBuffer(target, 0);
+        return capacity;
+    }
 
-        MemoryUtil.memFree(buffer);
+    // Reallocates the buffer with some headroom if it is smaller than size bytes, returning its capacity
+    private long ensureCapacity(int target, int buffer, long capacity, long size) {
+        if (size <= capacity && capacity != 0) {
+            return capacity;
+        }
+
+        capacity = Math.max(size + size / 2, MIN_BUFFER_CAPACITY);
+        glBindBuffer(target, buffer);
+        glBufferData(target, capacity, GL_STREAM_DRAW);
+        glBindBuffer(target, 0);
+        return capacity;
+    }
+
+    private void putDrawCommand(ByteBuffer buffer, SceneMesh.MeshDrawData meshDrawData, int instanceCount, int baseInstance) {
+        // Count
+        buffer.putInt(meshDrawData.vertices());
+
+        // Instance count
+        buffer.putInt(instanceCount);
+
+        // First index
+        buffer.putInt(meshDrawData.firstIndex());
+
+        // Base vertex
+        buffer.putInt(meshDrawData.offset());
+
+        // Base instance
+        buffer.putInt(baseInstance);
+    }
+
+    // Maps quantized positions and texture coordinates from [0, 1] back to the mesh's bounds, and flags octahedral
+    // normals in the position offset's w. Float vertices get an identity mapping
+    private void putMeshQuantization(ByteBuffer buffer, MeshData meshData) {
+        if (sceneMesh.getVertexFormat() != SceneMesh.VertexFormat.QUANTIZED) {
+            buffer.putFloat(0.0f).putFloat(0.0f).putFloat(0.0f).putFloat(0.0f);
+            buffer.putFloat(1.0f).putFloat(1.0f).putFloat(1.0f).putFloat(0.0f);
+            buffer.putFloat(0.0f).putFloat(0.0f).putFloat(1.0f).putFloat(1.0f);
+            return;
+        }
+
+        Vector3f boundsMin = meshData.getBoundsMin();
+        Vector3f boundsMax = meshData.getBoundsMax();
+        Vector2f texCoordsMin = meshData.getTexCoordsMin();
+        Vector2f texCoordsMax = meshData.getTexCoordsMax();
+        buffer.putFloat(boundsMin.x).putFloat(boundsMin.y).putFloat(boundsMin.z).putFloat(1.0f);
+        buffer.putFloat(boundsMax.x - boundsMin.x).putFloat(boundsMax.y - boundsMin.y).putFloat(boundsMax.z - boundsMin.z).putFloat(0.0f);
+        buffer.putFloat(texCoordsMin.x).putFloat(texCoordsMin.y).putFloat(texCoordsMax.x - texCoordsMin.x).putFloat(texCoordsMax.y - texCoordsMin.y);
+    }
+
+    private void putModelMeshInstance(ByteBuffer buffer, int transformIndex, int commandIndex, MeshData meshData) {
+        buffer.putInt(transformIndex);
+        buffer.putInt(meshData.getMaterialID());
+        buffer.putFloat(meshData.getEmissionStrength());
+        buffer.putInt(commandIndex);
     }
 
     private void putPBRMaterial(ByteBuffer buffer, PBRMaterial pbrMaterial) {
@@ -441,6 +800,73 @@ public class MasterRenderer {
         this.sceneUpdated = sceneUpdated;
     }
 
+    // Frees the GPU resources created in init, including the persistently mapped upload rings and their fences
+    public void cleanup() {
+        textureResidency.cleanup();
+        textureUploader.cleanup();
+        uploadRing.cleanup();
+        computeCuller.cleanup();
+        sceneMesh.cleanup();
+    }
+
+    public ComputeCuller getComputeCuller() {
+        return computeCuller;
+    }
+
+    public FrustumCuller getFrustumCuller() {
+        return frustumCuller;
+    }
+
+    public CullingMode getCullingMode() {
+        return cullingMode;
+    }
+
+    public void setCullingMode(CullingMode cullingMode) {
+        this.cullingMode = cullingMode;
+    }
+
+    public float getLodPixelError() {
+        return lodPixelError;
+    }
+
+    public void setLodPixelError(float lodPixelError) {
+        this.lodPixelError = lodPixelError;
+    }
+
+    public SceneMesh getSceneMesh() {
+        return sceneMesh;
+    }
+
+    public ModelLoadQueue getModelLoadQueue() {
+        return modelLoadQueue;
+    }
+
+    public SceneSaver getSceneSaver() {
+        return sceneSaver;
+    }
+
+    public TextureUploader getTextureUploader() {
+        return textureUploader;
+    }
+
+    public TextureResidency getTextureResidency() {
+        return textureResidency;
+    }
+
+    // Whether models load only the tails of their textures and stream in the mips they need as they come closer
+    public boolean isTextureStreaming() {
+        return textureResidency.isStreaming();
+    }
+
+    public void setTextureStreaming(boolean textureStreaming) {
+        textureResidency.setStreaming(textureStreaming);
+        modelLoadQueue.setStreamTextures(textureStreaming);
+    }
+
+    public UploadRing getUploadRing() {
+        return uploadRing;
+    }
+
     public ShadowRenderer getShadowRenderer() {
         return shadowRenderer;
     }
@@ -1,7 +1,13 @@
 package io.william.renderer;
 
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+
 public class MeshData {
 
+    // Including the full detail mesh
+    public static final int MAX_LODS = 5;
+
     private final float[] positions;
     private final float[] normals;
     private final float[] tangents;
@@ -12,6 +18,20 @@ public class MeshData {
     private int materialID;
     private float emissionStrength;
 
+    // Bounds in model space, calculated from the positions
+    private final Vector3f boundsMin;
+    private final Vector3f boundsMax;
+    private final Vector3f boundingSphereCenter;
+    private float boundingSphereRadius;
+    private final Vector2f texCoordsMin;
+    private final Vector2f texCoordsMax;
+    // Texture coordinate units per model space unit, averaged over the surface, 0 without texture coordinates
+    private float uvDensity;
+
+    // Simplified index buffers over the same vertices, from fine to coarse, and their errors in model space units
+    private int[][] lodIndices = new int[0][];
+    private float[] lodErrors = new float[0];
+
     public MeshData(float[] positions, float[] normals, float[] tangents, float[] bitangents, float[] texCoords, int[] indices) {
         this.positions = positions;
         this.normals = normals;
@@ -22,6 +42,79 @@ public class MeshData {
 
         this.materialID = 0;
         this.emissionStrength = 1.0f;
+
+        this.boundsMin = new Vector3f();
+        this.boundsMax = new Vector3f();
+        this.boundingSphereCenter = new Vector3f();
+        this.texCoordsMin = new Vector2f();
+        this.texCoordsMax = new Vector2f();
+        calculateBounds();
+        calculateUvDensity();
+    }
+
+    private void calculateBounds() {
+        if (positions.length < 3) {
+            return;
+        }
+
+        boundsMin.set(Float.POSITIVE_INFINITY);
+        boundsMax.set(Float.NEGATIVE_INFINITY);
+        for (int i = 0; i < positions.length; i += 3) {
+            boundsMin.set(Math.min(boundsMin.x, positions[i]), Math.min(boundsMin.y, positions[i + 1]), Math.min(boundsMin.z, positions[i + 2]));
+            boundsMax.set(Math.max(boundsMax.x, positions[i]), Math.max(boundsMax.y, positions[i + 1]), Math.max(boundsMax.z, positions[i + 2]));
+        }
+
+        // Sphere around the centre of the box, which is usually tighter than half the box diagonal
+        boundsMin.add(boundsMax, boundingSphereCenter).mul(0.5f);
+        float radiusSquared = 0;
+        for (int i = 0; i < positions.length; i += 3) {
+            radiusSquared = Math.max(radiusSquared, boundingSphereCenter.distanceSquared(positions[i], positions[i + 1], positions[i + 2]));
+        }
+        boundingSphereRadius = (float) Math.sqrt(radiusSquared);
+
+        if (texCoords.length >= 2) {
+            texCoordsMin.set(Float.POSITIVE_INFINITY);
+            texCoordsMax.set(Float.NEGATIVE_INFINITY);
+            for (int i = 0; i < texCoords.length; i += 2) {
+                texCoordsMin.set(Math.min(texCoordsMin.x, texCoords[i]), Math.min(texCoordsMin.y, texCoords[i + 1]));
+                texCoordsMax.set(Math.max(texCoordsMax.x, texCoords[i]), Math.max(texCoordsMax.y, texCoords[i + 1]));
+            }
+        }
+    }
+
+    // Square root of the ratio of texture coordinate area to surface area, so that a texture of size n covers about
+    // n * uvDensity texels per model space unit
+    private void calculateUvDensity() {
+        if (texCoords.length < 2) {
+            return;
+        }
+
+        double area = 0;
+        double uvArea = 0;
+        for (int i = 0; i + 2 < indices.length; i += 3) {
+            int a = indices[i];
+            int b = indices[i + 1];
+            int c = indices[i + 2];
+
+            float e1x = positions[b * 3] - positions[a * 3];
+            float e1y = positions[b * 3 + 1] - positions[a * 3 + 1];
+            float e1z = positions[b * 3 + 2] - positions[a * 3 + 2];
+            float e2x = positions[c * 3] - positions[a * 3];
+            float e2y = positions[c * 3 + 1] - positions[a * 3 + 1];
+            float e2z = positions[c * 3 + 2] - positions[a * 3 + 2];
+            float crossX = e1y * e2z - e1z * e2y;
+            float crossY = e1z * e2x - e1x * e2z;
+            float crossZ = e1x * e2y - e1y * e2x;
+            area += Math.sqrt(crossX * crossX + crossY * crossY + crossZ * crossZ) * 0.5;
+
+            float u1 = texCoords[b * 2] - texCoords[a * 2];
+            float v1 = texCoords[b * 2 + 1] - texCoords[a * 2 + 1];
+            float u2 = texCoords[c * 2] - texCoords[a * 2];
+            float v2 = texCoords[c * 2 + 1] - texCoords[a * 2 + 1];
+            uvArea += Math.abs(u1 * v2 - v1 * u2) * 0.5;
+        }
+
+        uvDensity = area > 0 ? (float) Math.sqrt(uvArea / area) : 0.0f;
     }
 
     public float[] getPositions() {
@@ -48,6 +141,24 @@ public class MeshData {
         return indices;
     }
 
+    public void setLods(int[][] lodIndices, float[] lodErrors) {
+        this.lodIndices = lodIndices;
+        this.lodErrors = lodErrors;
+    }
+
+    public int getLodCount() {
+        return lodIndices.length + 1;
+    }
+
+    // LOD 0 is the full detail mesh
+    public int[] getLodIndices(int lod) {
+        return lod == 0 ? indices : lodIndices[lod - 1];
+    }
+
+    public float getLodError(int lod) {
+        return lod == 0 ? 0.0f : lodErrors[lod - 1];
+    }
+
     public int getMaterialID() {
         return materialID;
     }
@@ -64,4 +175,32 @@ public class MeshData {
         this.emissionStrength = emissionStrength;
     }
 
+    public Vector3f getBoundsMin() {
+        return boundsMin;
+    }
+
+    public Vector3f getBoundsMax() {
+        return boundsMax;
+    }
+
+    public Vector3f getBoundingSphereCenter() {
+        return boundingSphereCenter;
+    }
+
+    public float getBoundingSphereRadius() {
+        return boundingSphereRadius;
+    }
+
+    public Vector2f getTexCoordsMin() {
+        return texCoordsMin;
+    }
+
+    public Vector2f getTexCoordsMax() {
+        return texCoordsMax;
+    }
+
+    public float getUvDensity() {
+        return uvDensity;
+    }
+
 }
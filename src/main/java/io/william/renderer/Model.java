@@ -1,5 +1,7 @@
 package io.william.renderer;
 
+import org.joml.Vector3f;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -14,6 +16,10 @@ public class Model {
 
     private String name;
 
+    // Model space bounds of all meshes, calculated on first use
+    private Vector3f boundsMin;
+    private Vector3f boundsMax;
+
     public Model(MeshData meshData, ModelMetadata modelMetadata, String name) {
         this.entities = new ArrayList<>();
         this.meshDatas = new ArrayList<>();
@@ -59,6 +65,14 @@ public class Model {
         return meshDatas;
     }
 
+    // Replaces the meshes of a model that isn't resident yet, e.g. a placeholder whose file has finished loading
+    public void setMeshDatas(List<MeshData> meshDatas) {
+        this.meshDatas.clear();
+        this.meshDatas.addAll(meshDatas);
+        boundsMin = null;
+        boundsMax = null;
+    }
+
     public List<SceneMesh.MeshDrawData> getMeshDrawDatas() {
         return meshDrawDatas;
     }
@@ -74,4 +88,36 @@ public class Model {
     public ModelMetadata getModelMetadata() {
         return modelMetadata;
     }
+
+    public Vector3f getBoundsMin() {
+        if (boundsMin == null) {
+            calculateBounds();
+        }
+        return boundsMin;
+    }
+
+    public Vector3f getBoundsMax() {
+        if (boundsMax == null) {
+            calculateBounds();
+        }
+        return boundsMax;
+    }
+
+    private void calculateBounds() {
+        Vector3f min = new Vector3f(Float.POSITIVE_INFINITY);
+        Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY);
+        for (MeshData meshData : meshDatas) {
+            min.min(meshData.getBoundsMin());
+            max.max(meshData.getBoundsMax());
+        }
+
+        // A model without meshes is treated as a point at its origin
+        if (meshDatas.isEmpty()) {
+            min.zero();
+            max.zero();
+        }
+
+        boundsMin = min;
+        boundsMax = max;
+    }
 }
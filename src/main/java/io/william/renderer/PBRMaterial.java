@@ -42,13 +42,13 @@ public class PBRMaterial {
         this.name = name != null ? name : "PBRMaterial";
         this.loadedFromModel = loadedFromModel;
 
-        this.albedo = albedo != null ? albedo : new Texture("src/main/resources/textures/PBR/default_albedo.png", GL_SRGB_ALPHA);
-        this.normal = normal != null ? normal : new Texture("src/main/resources/textures/PBR/default_normal.png", GL_RGBA);
-        this.metallic = metallic != null ? metallic : new Texture("src/main/resources/textures/PBR/default_metallic.png", GL_RGBA);
-        this.roughness = roughness != null ? roughness : new Texture("src/main/resources/textures/PBR/default_roughness.png", GL_RGBA);
-        this.metallicRoughness = metallicRoughness != null ? metallicRoughness : new Texture("src/main/resources/textures/PBR/default_metallicRoughness.png", GL_RGBA);
-        this.ao = ao != null ? ao : new Texture("src/main/resources/textures/PBR/default_ao.png", GL_RGBA);
-        this.emissive = emissive != null ? emissive : new Texture("src/main/resources/textures/PBR/default_emissive.png", GL_RGBA);
+        this.albedo = albedo != null ? albedo : TextureCache.acquire("src/main/resources/textures/PBR/default_albedo.png", GL_SRGB_ALPHA, false);
+        this.normal = normal != null ? normal : TextureCache.acquire("src/main/resources/textures/PBR/default_normal.png", GL_RGBA, false);
+        this.metallic = metallic != null ? metallic : TextureCache.acquire("src/main/resources/textures/PBR/default_metallic.png", GL_RGBA, false);
+        this.roughness = roughness != null ? roughness : TextureCache.acquire("src/main/resources/textures/PBR/default_roughness.png", GL_RGBA, false);
+        this.metallicRoughness = metallicRoughness != null ? metallicRoughness : TextureCache.acquire("src/main/resources/textures/PBR/default_metallicRoughness.png", GL_RGBA, false);
+        this.ao = ao != null ? ao : TextureCache.acquire("src/main/resources/textures/PBR/default_ao.png", GL_RGBA, false);
+        this.emissive = emissive != null ? emissive : TextureCache.acquire("src/main/resources/textures/PBR/default_emissive.png", GL_RGBA, false);
 
         this.hasTextures.put("albedo", albedo != null);
         this.hasTextures.put("normal", normal != null);
@@ -107,6 +107,25 @@ public class PBRMaterial {
         this(name, false, new Vector3f(0, 0, 0), 0, 1, new Vector3f(0, 0, 0));
     }
 
+    // Gives the material's textures back to the TextureCache, when the material is removed
+    // The texture setters likewise take over a reference to the new texture and release the old one
+    public void release() {
+        releaseTexture(albedo);
+        releaseTexture(normal);
+        releaseTexture(metallic);
+        releaseTexture(roughness);
+        releaseTexture(metallicRoughness);
+        releaseTexture(ao);
+        releaseTexture(emissive);
+        albedo = normal = metallic = roughness = metallicRoughness = ao = emissive = null;
+    }
+
+    private static void releaseTexture(Texture texture) {
+        if (texture != null) {
+            TextureCache.release(texture);
+        }
+    }
+
     public boolean isEmpty() {
         for (Map.Entry<String, Boolean> entry : usesTextures.entrySet()) {
             if (entry.getValue()) {
@@ -142,6 +161,7 @@ public class PBRMaterial {
     }
 
     public void setAlbedo(Texture albedo) {
+        releaseTexture(this.albedo);
         this.albedo = albedo;
     }
 
@@ -158,6 +178,7 @@ public class PBRMaterial {
     }
 
     public void setNormal(Texture normal) {
+        releaseTexture(this.normal);
         this.normal = normal;
     }
 
@@ -166,6 +187,7 @@ public class PBRMaterial {
     }
 
     public void setMetallic(Texture metallic) {
+        releaseTexture(this.metallic);
         this.metallic = metallic;
     }
 
@@ -182,6 +204,7 @@ public class PBRMaterial {
     }
 
     public void setRoughness(Texture roughness) {
+        releaseTexture(this.roughness);
         this.roughness = roughness;
     }
 
@@ -198,6 +221,7 @@ public class PBRMaterial {
     }
 
     public void setMetallicRoughness(Texture metallicRoughness) {
+        releaseTexture(this.metallicRoughness);
         this.metallicRoughness = metallicRoughness;
     }
 
@@ -206,6 +230,7 @@ public class PBRMaterial {
     }
 
     public void setAo(Texture ao) {
+        releaseTexture(this.ao);
         this.ao = ao;
     }
 
@@ -214,6 +239,7 @@ public class PBRMaterial {
     }
 
     public void setEmissive(Texture emissive) {
+        releaseTexture(this.emissive);
         this.emissive = emissive;
     }
 
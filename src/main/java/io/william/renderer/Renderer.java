@@ -4,6 +4,7 @@ import java.lang.Math;
 import java.nio.ByteBuffer;
 import java.util.List;
 
+import io.william.renderer.culling.ComputeCuller;
 import io.william.renderer.primitive.UVSphere;
 import io.william.renderer.probe.Probe;
 import io.william.renderer.shadow.OmnidirectionalShadowRenderer;
@@ -21,6 +22,8 @@ import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL30.*;
 import static org.lwjgl.opengl.GL40.*;
 import static org.lwjgl.opengl.GL43.*;
+import static org.lwjgl.opengl.GL46.GL_PARAMETER_BUFFER;
+import static org.lwjgl.opengl.GL46.glMultiDrawElementsIndirectCount;
 
 public class Renderer {
 
@@ -57,6 +60,8 @@ public class Renderer {
     private static final int MAX_POINT_LIGHTS = 8;
     private static final int MAX_SPOT_LIGHTS = 4;
     private Matrix4f projection;
+    // Reused for the second occlusion culling phase every frame
+    private final Matrix4f viewProjection = new Matrix4f();
 
     private BloomRenderer bloomRenderer;
 
@@ -65,7 +70,7 @@ public class Renderer {
     public void init(Window window, Camera camera) throws Exception {
         framebuffer = new Framebuffer(
             new Texture(window.getWidth(), window.getHeight(), GL_RGBA16F, GL_RGBA),
-            GL_DEPTH24_STENCIL8,
+            new Texture(window.getWidth(), window.getHeight(), GL_DEPTH24_STENCIL8, GL_DEPTH_STENCIL, GL_UNSIGNED_INT_24_8),
             GL_COLOR_ATTACHMENT0,
             GL_DEPTH_STENCIL_ATTACHMENT
         );
@@ -196,7 +201,8 @@ public class Renderer {
         hdrShader.createUniform("toneMappingType");
     }
 
-    public void render(Camera camera, Scene scene, SceneMesh sceneMesh, int indirectBuffer, int drawCount, ShadowRenderer shadowRenderer, SpotlightShadowRenderer spotlightShadowRenderer, OmnidirectionalShadowRenderer omnidirectionalShadowRenderer, Window window) {
+    // occlusionCuller is the compute culler that filled indirectBuffer when it tested occlusion, otherwise null
+    public void render(Camera camera, Scene scene, SceneMesh sceneMesh, int indirectBuffer, int drawCount, int drawCountBuffer, ComputeCuller occlusionCuller, ShadowRenderer shadowRenderer, SpotlightShadowRenderer spotlightShadowRenderer, OmnidirectionalShadowRenderer omnidirectionalShadowRenderer, Window window) {
         DirLight dirLight = scene.getDirLight();
         List<PointLight> pointLights = scene.getPointLights();
         List<SpotLight> spotLights = scene.getSpotLights();
@@ -286,10 +292,14 @@ public class Renderer {
         updateShaderUniforms(shader, scene, shadowRenderer, omnidirectionalShadowRenderer, spotlightShadowRenderer);
 
         // Render entities (indirect drawing)
-        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, indirectBuffer);
-        glBindVertexArray(sceneMesh.getVAO());
-        glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT, 0, drawCount, 20);
-        glBindVertexArray(0);
+        renderEntities(sceneMesh, indirectBuffer, drawCount, drawCountBuffer);
+
+        // Entities hidden by last frame's depth are tested again against the depth drawn so far, and the ones that
+        // have come into view are drawn
+        if (occlusionCuller != null && occlusionCuller.cullOccluded(getDepthTexture(), window.getWidth(), window.getHeight(), projection.mul(view, viewProjection))) {
+            shader.bind();
+            renderEntities(sceneMesh, occlusionCuller.getOccludedIndirectBuffer(), drawCount, occlusionCuller.getOccludedDrawCountBuffer());
+        }
 
 //        // Render terrain
 //        terrainShader.bind();
@@ -440,6 +450,29 @@ public class Renderer {
         io.william.util.renderer.Quad.render();
     }
 
+    private void renderEntities(SceneMesh sceneMesh, int indirectBuffer, int drawCount, int drawCountBuffer) {
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, indirectBuffer);
+        glBindVertexArray(sceneMesh.getVAO());
+        if (drawCountBuffer != 0) {
+            // Draw count written by GPU culling, with drawCount as the upper bound
+            glBindBuffer(GL_PARAMETER_BUFFER, drawCountBuffer);
+            glMultiDrawElementsIndirectCount(GL_TRIANGLES, GL_UNSIGNED_INT, 0, 0, drawCount, 20);
+            glBindBuffer(GL_PARAMETER_BUFFER, 0);
+        } else {
+            glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT, 0, drawCount, 20);
+        }
+        glBindVertexArray(0);
+    }
+
+    // Depth of the scene pass, left in place after render for the next frame's occlusion culling
+    public int getDepthTexture() {
+        return framebuffer.getDepthTexture().getID();
+    }
+
+    public Matrix4f calculateProjectionMatrix(Camera camera, Matrix4f dest) {
+        return dest.setPerspective(camera.getFOV(), aspectRatio, zNear, zFar);
+    }
+
     public void cleanup() {
         phongShader.cleanup();
         pbrShader.cleanup();
@@ -1,18 +1,35 @@
 package io.william.renderer;
 
+import io.william.renderer.culling.DynamicAabbTree;
 import io.william.renderer.probe.Probe;
 import io.william.renderer.sky.Sky;
 import io.william.renderer.terrain.Terrain;
+import io.william.util.IntObjectMap;
+import io.william.util.JobSystem;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
 
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 
 public class Scene {
 
     private final List<Model> models;
     private final List<PBRMaterial> PBRMaterials;
-    private final List<Entity> entities;
+    private final List<Entity> entities;  // In insertion order, with null slots for removed entities until compacted
+    private int removedEntities;
+    private final List<Entity> updatedEntities;
+    private final List<Entity> settledEntities;
+
+    private final IntObjectMap<Model> modelsByID;
+    private final IntObjectMap<PBRMaterial> PBRMaterialsByID;
+    private final IntObjectMap<Entity> entitiesByID;
+
+    // World space bounds of every entity, covering both its previous and current world matrix
+    private final DynamicAabbTree<Entity> entityTree;
+    private final float[] entityBounds = new float[6];
+    private boolean[] entitiesChanged = new boolean[0];
+
     private DirLight dirLight;
     private final List<PointLight> pointLights;
     private final List<SpotLight> spotLights;
@@ -21,6 +38,8 @@ public class Scene {
     private Terrain terrain;
     private List<Probe> probes;
 
+    private static final Vector3f ORIGIN = new Vector3f();
+
     private int currentModelID = 0;
     private int currentPBRMaterialID = 0;
     private int currentEntityID = 0;
@@ -29,15 +48,32 @@ public class Scene {
         this.models = new ArrayList<>();
         this.PBRMaterials = new ArrayList<>();
         this.entities = new ArrayList<>();
+        this.updatedEntities = new ArrayList<>();
+        this.settledEntities = new ArrayList<>();
+        this.modelsByID = new IntObjectMap<>();
+        this.PBRMaterialsByID = new IntObjectMap<>();
+        this.entitiesByID = new IntObjectMap<>();
+        this.entityTree = new DynamicAabbTree<>();
         this.pointLights = new ArrayList<>();
         this.spotLights = new ArrayList<>();
         this.probes = new ArrayList<>();
     }
 
     public void clear() {
+        for (PBRMaterial pbrMaterial : PBRMaterials) {
+            pbrMaterial.release();
+        }
+
         this.models.clear();
         this.PBRMaterials.clear();
         this.entities.clear();
+        this.removedEntities = 0;
+        this.updatedEntities.clear();
+        this.settledEntities.clear();
+        this.modelsByID.clear();
+        this.PBRMaterialsByID.clear();
+        this.entitiesByID.clear();
+        this.entityTree.clear();
         this.pointLights.clear();
         this.spotLights.clear();
         this.probes.clear();
@@ -48,12 +84,7 @@ public class Scene {
     }
 
     public Model getModelByID(int id) {
-        for (Model model : models) {
-            if (model.getID() == id) {
-                return model;
-            }
-        }
-        return null;
+        return modelsByID.get(id);
     }
 
     public List<Model> getModels() {
@@ -64,15 +95,11 @@ public class Scene {
         model.setID(currentModelID);
         currentModelID++;
         models.add(model);
+        modelsByID.put(model.getID(), model);
     }
 
     public PBRMaterial getPBRMaterialByID(int id) {
-        for (PBRMaterial pbrMaterial : PBRMaterials) {
-            if (pbrMaterial.getID() == id) {
-                return pbrMaterial;
-            }
-        }
-        return null;
+        return PBRMaterialsByID.get(id);
     }
 
     public List<PBRMaterial> getPBRMaterials() {
@@ -82,43 +109,226 @@ public class Scene {
     public void addPBRMaterial(PBRMaterial pbrMaterial) {
         pbrMaterial.setID(currentPBRMaterialID);
         currentPBRMaterialID++;
-        this.PBRMaterials.add(pbrMaterial);
-
-        // Sort PBRMaterials by ID
-        this.PBRMaterials.sort(Comparator.comparingInt(PBRMaterial::getID));
+        insertPBRMaterial(pbrMaterial);
     }
 
     public void addPBRMaterialByID(PBRMaterial pbrMaterial, int id) {
         pbrMaterial.setID(id);
-        this.PBRMaterials.add(pbrMaterial);
+        insertPBRMaterial(pbrMaterial);
+    }
 
-        // Sort PBRMaterials by ID
-        this.PBRMaterials.sort(Comparator.comparingInt(PBRMaterial::getID));
+    // Releases the material's textures, the material buffer has to be recreated afterwards
+    public void removePBRMaterial(PBRMaterial pbrMaterial) {
+        if (!PBRMaterials.remove(pbrMaterial)) {
+            return;
+        }
+
+        if (PBRMaterialsByID.get(pbrMaterial.getID()) == pbrMaterial) {
+            PBRMaterialsByID.remove(pbrMaterial.getID());
+        }
+        pbrMaterial.release();
     }
 
-    public Entity getEntityByID(int id) {
-        for (Entity entity : entities) {
-            if (entity.getID() == id) {
-                return entity;
+    // PBRMaterials is kept sorted by ID, since the material buffer is indexed by ID
+    private void insertPBRMaterial(PBRMaterial pbrMaterial) {
+        int id = pbrMaterial.getID();
+
+        int low = 0;
+        int high = PBRMaterials.size();
+        if (high == 0 || PBRMaterials.get(high - 1).getID() < id) {
+            low = high;
+        } else {
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (PBRMaterials.get(mid).getID() < id) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
             }
         }
-        return null;
+
+        PBRMaterials.add(low, pbrMaterial);
+        PBRMaterialsByID.put(id, pbrMaterial);
     }
 
+    public Entity getEntityByID(int id) {
+        return entitiesByID.get(id);
+    }
+
+    // Shared by culling, shadow caster selection and picking
+    public DynamicAabbTree<Entity> getEntityTree() {
+        return entityTree;
+    }
+
+    // Entities in the order they were added, which removal preserves
     public List<Entity> getEntities() {
+        if (removedEntities > 0) {
+            compactEntities();
+        }
         return entities;
     }
 
+    // Closes the slots of removed entities in one pass, keeping the order of the rest
+    private void compactEntities() {
+        int count = 0;
+        for (int i = 0; i < entities.size(); i++) {
+            Entity entity = entities.get(i);
+            if (entity != null) {
+                entity.setSceneIndex(count);
+                entities.set(count++, entity);
+            }
+        }
+        entities.subList(count, entities.size()).clear();
+        removedEntities = 0;
+    }
+
     public void addEntity(Entity entity) {
         if (entity.getID() == -1) {
             entity.setID(currentEntityID);
         }
         currentEntityID++;
+
+        entity.setSceneIndex(entities.size());
         entities.add(entity);
+        entitiesByID.put(entity.getID(), entity);
+
+        // Queue the new entity so that its world matrix is calculated
+        entity.setScene(this);
+        entity.clearUpdated();
+        entity.setUpdated(true);
     }
 
     public void removeEntity(Entity entity) {
-        entities.remove(entity);
+        int index = entity.getSceneIndex();
+        if (index == -1 || index >= entities.size() || entities.get(index) != entity) {
+            return;
+        }
+
+        // Leave the slot empty rather than shifting or reordering the list, getEntities closes it
+        entities.set(index, null);
+        removedEntities++;
+        entitiesByID.remove(entity.getID());
+
+        if (entity.getBoundsProxy() != DynamicAabbTree.NULL) {
+            entityTree.remove(entity.getBoundsProxy());
+            entity.setBoundsProxy(DynamicAabbTree.NULL);
+        }
+
+        // Otherwise updateWorldMatrices would insert it back into the tree if it was updated this tick
+        if (entity.isUpdated()) {
+            updatedEntities.remove(entity);
+            entity.clearUpdated();
+        }
+        settledEntities.remove(entity);
+
+        entity.setSceneIndex(-1);
+
+        entity.setScene(null);
+        entity.setTransformIndex(-1);
+    }
+
+    // Runs every entity's controllers in parallel, each entity only writes to its own state
+    // Changed entities are then marked as updated in scene order, so the result doesn't depend on the number of threads
+    public void simulateEntities(JobSystem jobSystem, float deltaTime) {
+        List<Entity> entities = getEntities();
+        if (entitiesChanged.length < entities.size()) {
+            entitiesChanged = new boolean[entities.size()];
+        }
+        boolean[] changed = entitiesChanged;
+        jobSystem.parallelFor(entities.size(), 256, (start, end) -> {
+            for (int i = start; i < end; i++) {
+                changed[i] = entities.get(i).simulate(deltaTime);
+            }
+        });
+
+        for (int i = 0; i < entities.size(); i++) {
+            if (changed[i]) {
+                entities.get(i).setUpdated(true);
+            }
+        }
+    }
+
+    // Entities whose transforms have changed since the last call to clearUpdatedEntities
+    public List<Entity> getUpdatedEntities() {
+        return updatedEntities;
+    }
+
+    // Entities that were updated during the last tick, whose previous world matrices are reset by settleWorldMatrices
+    public List<Entity> getSettledEntities() {
+        return settledEntities;
+    }
+
+    // Called at the start of each simulation tick
+    public void settleWorldMatrices() {
+        for (int i = 0; i < settledEntities.size(); i++) {
+            settledEntities.get(i).settleWorldMatrix();
+        }
+    }
+
+    // Recalculates world matrices top-down, starting from the highest updated entity in each hierarchy
+    public void updateWorldMatrices() {
+        for (int i = 0; i < updatedEntities.size(); i++) {
+            Entity entity = updatedEntities.get(i);
+            Entity parent = entity.getParent();
+
+            // Children of an updated parent are recalculated along with it
+            if (parent == null || !parent.isUpdated()) {
+                entity.updateWorldMatrix();
+            }
+        }
+
+        for (int i = 0; i < updatedEntities.size(); i++) {
+            updateEntityBounds(updatedEntities.get(i));
+        }
+        entityTree.rebuildIfDegraded();
+    }
+
+    private void updateEntityBounds(Entity entity) {
+        Model model = modelsByID.get(entity.getModelID());
+        Vector3f min = model != null ? model.getBoundsMin() : ORIGIN;
+        Vector3f max = model != null ? model.getBoundsMax() : ORIGIN;
+
+        float[] b = entityBounds;
+        b[0] = b[1] = b[2] = Float.POSITIVE_INFINITY;
+        b[3] = b[4] = b[5] = Float.NEGATIVE_INFINITY;
+        transformBounds(entity.getPreviousWorldMatrix(), min, max, b);
+        transformBounds(entity.getWorldMatrix(), min, max, b);
+
+        int proxy = entity.getBoundsProxy();
+        if (proxy == DynamicAabbTree.NULL) {
+            entity.setBoundsProxy(entityTree.insert(entity, b[0], b[1], b[2], b[3], b[4], b[5]));
+        } else {
+            entityTree.update(proxy, b[0], b[1], b[2], b[3], b[4], b[5]);
+        }
+    }
+
+    // Grows bounds (min x, y, z, max x, y, z) by a model space box transformed by m
+    // Each world axis takes the smaller and larger of each matrix element times the box's extent (Arvo)
+    private static void transformBounds(Matrix4fc m, Vector3f min, Vector3f max, float[] bounds) {
+        growAxis(bounds, 0, m.m30(), m.m00(), m.m10(), m.m20(), min, max);
+        growAxis(bounds, 1, m.m31(), m.m01(), m.m11(), m.m21(), min, max);
+        growAxis(bounds, 2, m.m32(), m.m02(), m.m12(), m.m22(), min, max);
+    }
+
+    private static void growAxis(float[] bounds, int axis, float translation, float x, float y, float z, Vector3f min, Vector3f max) {
+        float lower = translation + Math.min(x * min.x, x * max.x) + Math.min(y * min.y, y * max.y) + Math.min(z * min.z, z * max.z);
+        float upper = translation + Math.max(x * min.x, x * max.x) + Math.max(y * min.y, y * max.y) + Math.max(z * min.z, z * max.z);
+        bounds[axis] = Math.min(bounds[axis], lower);
+        bounds[axis + 3] = Math.max(bounds[axis + 3], upper);
+    }
+
+    void addUpdatedEntity(Entity entity) {
+        updatedEntities.add(entity);
+    }
+
+    public void clearUpdatedEntities() {
+        settledEntities.clear();
+        for (Entity entity : updatedEntities) {
+            entity.clearUpdated();
+            settledEntities.add(entity);
+        }
+        updatedEntities.clear();
     }
 
     public DirLight getDirLight() {
@@ -1,8 +1,12 @@
 package io.william.renderer;
 
+import io.william.util.FreeListAllocator;
+import io.william.util.IntObjectMap;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
 import org.lwjgl.system.MemoryUtil;
 
-import java.nio.FloatBuffer;
+import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.List;
@@ -11,138 +15,433 @@ import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
 import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
 import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.GL_COPY_READ_BUFFER;
+import static org.lwjgl.opengl.GL31.GL_COPY_WRITE_BUFFER;
+import static org.lwjgl.opengl.GL31.glCopyBufferSubData;
 import static org.lwjgl.opengl.GL43.GL_BUFFER;
 import static org.lwjgl.opengl.GL43.glObjectLabel;
 
+// Geometry arena holding the vertices and indices of every resident model in one vertex buffer and one index buffer
+// Each model gets a block of each, so models can be added and evicted without touching the others. When a block
+// doesn't fit, live blocks are packed into new (larger if needed) buffers and the VAO is pointed at them
+// A mesh's LODs share its vertices, their index ranges follow each other in its model's index block
+// Vertices are either full floats or quantized to 16 bits per component (see VertexQuantization), in which case the
+// shaders decode them with per-mesh offsets and scales
+// The format can be set with -Dmesh.vertexFormat=FLOAT or QUANTIZED, and defaults to FLOAT
 public class SceneMesh {
 
-    public record MeshDrawData(int sizeBytes, int materialID, float emissionStrength, int offset, int vertices) {}
+    public enum VertexFormat {
+        FLOAT(8 * Float.BYTES),
+        QUANTIZED(VertexQuantization.VERTEX_SIZE);
 
-    private int VAO;
-    private final List<Integer> VBOs;
+        private final int size;
+
+        VertexFormat(int size) {
+            this.size = size;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public static VertexFormat fromSystemProperties() {
+            String name = System.getProperty("mesh.vertexFormat", FLOAT.name());
+            try {
+                return valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unknown vertex format " + name + ", using " + FLOAT);
+                return FLOAT;
+            }
+        }
+    }
+
+    // vertices and firstIndex are the full detail mesh's, which is also the first of the LODs
+    public record MeshDrawData(int sizeBytes, int materialID, float emissionStrength, int offset, int vertices, int firstIndex, List<Lod> lods) {}
+
+    // Index range of one level of detail and its error in model space units
+    public record Lod(int firstIndex, int count, float error) {}
+
+    private static class ModelAllocation {
+        private final Model model;
+        private int vertexOffset;
+        private final int vertexCount;
+        private int indexOffset;
+        private final int indexCount;
+
+        private ModelAllocation(Model model, int vertexOffset, int vertexCount, int indexOffset, int indexCount) {
+            this.model = model;
+            this.vertexOffset = vertexOffset;
+            this.vertexCount = vertexCount;
+            this.indexOffset = indexOffset;
+            this.indexCount = indexCount;
+        }
+    }
+
+    private static final int INITIAL_VERTEX_CAPACITY = 1 << 18;
+    private static final int INITIAL_INDEX_CAPACITY = 1 << 20;
+
+    private final VertexFormat vertexFormat;
+    private final int vertexSize;
+
+    private final int VAO;
+    private int vertexBuffer;
+    private int indexBuffer;
+
+    private final FreeListAllocator vertexAllocator;
+    private final FreeListAllocator indexAllocator;
+
+    private final List<ModelAllocation> allocations;
+    private final IntObjectMap<ModelAllocation> allocationsByModelID;
+
+    private int compactions;
 
     public SceneMesh() {
-        VBOs = new ArrayList<>();
+        this(VertexFormat.FLOAT);
     }
 
-    public void loadModels(Scene scene) {
+    public SceneMesh(VertexFormat vertexFormat) {
+        this.vertexFormat = vertexFormat;
+        this.vertexSize = vertexFormat.getSize();
+
+        allocations = new ArrayList<>();
+        allocationsByModelID = new IntObjectMap<>();
+
+        vertexAllocator = new FreeListAllocator(INITIAL_VERTEX_CAPACITY);
+        indexAllocator = new FreeListAllocator(INITIAL_INDEX_CAPACITY);
+
+        vertexBuffer = createBuffer("SceneMeshVerticesBuffer", (long) INITIAL_VERTEX_CAPACITY * vertexSize);
+        indexBuffer = createBuffer("SceneMeshIndicesBuffer", (long) INITIAL_INDEX_CAPACITY * Integer.BYTES);
+
         VAO = glGenVertexArrays();
-        glBindVertexArray(VAO);
+        bindBuffers();
+    }
 
-        int positionsCount = 0;
-        int normalsCount = 0;
-        int texCoordsCount = 0;
-        int indicesCount = 0;
-        int offset = 0;
-
-        List<Model> models = scene.getModels().stream().filter(model -> model.getEntities().size() > 0).toList();
-        System.out.println("Loading " + models.size() + " models");
-        // Create mesh draw datas and determine vertex counts
-        for (Model model : models) {
-            List<MeshDrawData> meshDrawDatas = model.getMeshDrawDatas();
-            meshDrawDatas.clear();
-
-//            boolean loaded = meshDrawDatas.size() > 0;
-
-            for (MeshData meshData : model.getMeshDatas()) {
-                positionsCount += meshData.getPositions().length;
-                normalsCount += meshData.getNormals().length;
-                texCoordsCount += meshData.getTexCoords().length;
-                indicesCount += meshData.getIndices().length;
-
-//                if (loaded) {
-//                    offset = positionsCount / 3;
-//                    continue;
-//                }
-
-                int meshSizeBytes = (meshData.getPositions().length + meshData.getNormals().length + meshData.getTexCoords().length) * Float.BYTES;
-                meshDrawDatas.add(new MeshDrawData(
-                    meshSizeBytes,
-                    meshData.getMaterialID(),
-                    meshData.getEmissionStrength(),
-                    offset,
-                    meshData.getIndices().length
-                ));
-
-                offset = positionsCount / 3;
+    // Makes the arena match the scene: models that have entities are uploaded if they aren't resident yet,
+    // and resident models that were removed from the scene or no longer have entities are evicted
+    // Returns true if resident models were moved, in which case every draw command needs rewriting
+    public boolean loadModels(Scene scene) {
+        for (int i = allocations.size() - 1; i >= 0; i--) {
+            Model model = allocations.get(i).model;
+            if (scene.getModelByID(model.getID()) != model || model.getEntities().isEmpty()) {
+                removeModel(model);
             }
         }
 
-        // Populate buffers
-        int VBO = glGenBuffers();
-        VBOs.add(VBO);
-        FloatBuffer meshesBuffer = MemoryUtil.memAllocFloat(positionsCount + normalsCount + texCoordsCount);
-        for (Model model : models) {
-            for (MeshData meshData : model.getMeshDatas()) {
-                float[] positions = meshData.getPositions();
-                float[] normals = meshData.getNormals();
-                float[] texCoords = meshData.getTexCoords();
-
-                int rows = positions.length / 3;
-                for (int i = 0; i < rows; i++) {
-                    meshesBuffer.put(positions[i * 3]);
-                    meshesBuffer.put(positions[i * 3 + 1]);
-                    meshesBuffer.put(positions[i * 3 + 2]);
-                    meshesBuffer.put(normals[i * 3]);
-                    meshesBuffer.put(normals[i * 3 + 1]);
-                    meshesBuffer.put(normals[i * 3 + 2]);
-                    meshesBuffer.put(texCoords[i * 2]);
-                    meshesBuffer.put(texCoords[i * 2 + 1]);
-                }
+        boolean relocated = false;
+        int loaded = 0;
+        for (Model model : scene.getModels()) {
+            if (!model.getEntities().isEmpty() && !isResident(model)) {
+                relocated |= addModel(model);
+                loaded++;
             }
         }
-        meshesBuffer.flip();
-        glBindBuffer(GL_ARRAY_BUFFER, VBO);
-        glBufferData(GL_ARRAY_BUFFER, meshesBuffer, GL_STATIC_DRAW);
-        MemoryUtil.memFree(meshesBuffer);
 
-        // Vertex attributes
-        int stride = 8 * Float.BYTES;
-        int pointer = 0;
+        if (loaded > 0) {
+            System.out.println("Loaded " + loaded + " models (" + allocations.size() + " resident)");
+        }
+        return relocated;
+    }
+
+    // Uploads a model's vertices and indices into free blocks of the arena and fills in its mesh draw datas
+    // Returns true if resident models were moved to make room
+    public boolean addModel(Model model) {
+        if (isResident(model)) {
+            return false;
+        }
 
-        // Positions
-        glEnableVertexAttribArray(0);
-        glVertexAttribPointer(0, 3, GL_FLOAT, false, stride, pointer);
-        pointer += 3 * Float.BYTES;
+        int vertexCount = 0;
+        int indexCount = 0;
+        for (MeshData meshData : model.getMeshDatas()) {
+            vertexCount += meshData.getPositions().length / 3;
+            for (int lod = 0; lod < meshData.getLodCount(); lod++) {
+                indexCount += meshData.getLodIndices(lod).length;
+            }
+        }
 
-        // Normals
-        glEnableVertexAttribArray(1);
-        glVertexAttribPointer(1, 3, GL_FLOAT, false, stride, pointer);
-        pointer += 3 * Float.BYTES;
+        boolean relocated = false;
+        int vertexOffset = vertexAllocator.allocate(vertexCount);
+        int indexOffset = indexAllocator.allocate(indexCount);
+        if (vertexOffset == -1 || indexOffset == -1) {
+            if (vertexOffset != -1) {
+                vertexAllocator.free(vertexOffset, vertexCount);
+            }
+            if (indexOffset != -1) {
+                indexAllocator.free(indexOffset, indexCount);
+            }
 
-        // Texture coordinates
-        glEnableVertexAttribArray(2);
-        glVertexAttribPointer(2, 2, GL_FLOAT, false, stride, pointer);
+            compact(vertexCount, indexCount);
+            relocated = !allocations.isEmpty();
 
-        // Indices
-        VBO = glGenBuffers();
-        VBOs.add(VBO);
-        IntBuffer indicesBuffer = MemoryUtil.memAllocInt(indicesCount);
-        System.out.println("Loading " + indicesCount + " indices");
-        for (Model model : models) {
-            for (MeshData meshData : model.getMeshDatas()) {
-                indicesBuffer.put(meshData.getIndices());
+            vertexOffset = vertexAllocator.allocate(vertexCount);
+            indexOffset = indexAllocator.allocate(indexCount);
+        }
+
+        ModelAllocation allocation = new ModelAllocation(model, vertexOffset, vertexCount, indexOffset, indexCount);
+        allocations.add(allocation);
+        allocationsByModelID.put(model.getID(), allocation);
+
+        upload(allocation);
+        updateMeshDrawDatas(allocation);
+
+        return relocated;
+    }
+
+    // Frees a model's blocks; its geometry stays in the buffers until the space is reused
+    public void removeModel(Model model) {
+        ModelAllocation allocation = allocationsByModelID.get(model.getID());
+        if (allocation == null || allocation.model != model) {
+            return;
+        }
+
+        vertexAllocator.free(allocation.vertexOffset, allocation.vertexCount);
+        indexAllocator.free(allocation.indexOffset, allocation.indexCount);
+
+        allocations.remove(allocation);
+        allocationsByModelID.remove(model.getID());
+        model.getMeshDrawDatas().clear();
+    }
+
+    public boolean isResident(Model model) {
+        ModelAllocation allocation = allocationsByModelID.get(model.getID());
+        return allocation != null && allocation.model == model;
+    }
+
+    private void upload(ModelAllocation allocation) {
+        ByteBuffer verticesBuffer = MemoryUtil.memAlloc(allocation.vertexCount * vertexSize);
+        IntBuffer indicesBuffer = MemoryUtil.memAllocInt(allocation.indexCount);
+        for (MeshData meshData : allocation.model.getMeshDatas()) {
+            if (vertexFormat == VertexFormat.QUANTIZED) {
+                putQuantizedVertices(verticesBuffer, meshData);
+            } else {
+                putVertices(verticesBuffer, meshData);
+            }
+
+            for (int lod = 0; lod < meshData.getLodCount(); lod++) {
+                indicesBuffer.put(meshData.getLodIndices(lod));
             }
         }
+        verticesBuffer.flip();
         indicesBuffer.flip();
-        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, VBO);
-        glObjectLabel(GL_BUFFER, VBO, "SceneMeshIndicesBuffer");
-        glBufferData(GL_ELEMENT_ARRAY_BUFFER, indicesBuffer, GL_STATIC_DRAW);
+
+        // Uploads go through the copy target so that the element array binding of whatever VAO is bound is left alone
+        glBindBuffer(GL_COPY_WRITE_BUFFER, vertexBuffer);
+        glBufferSubData(GL_COPY_WRITE_BUFFER, (long) allocation.vertexOffset * vertexSize, verticesBuffer);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, indexBuffer);
+        glBufferSubData(GL_COPY_WRITE_BUFFER, (long) allocation.indexOffset * Integer.BYTES, indicesBuffer);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+
+        MemoryUtil.memFree(verticesBuffer);
         MemoryUtil.memFree(indicesBuffer);
+    }
+
+    private static void putVertices(ByteBuffer buffer, MeshData meshData) {
+        float[] positions = meshData.getPositions();
+        float[] normals = meshData.getNormals();
+        float[] texCoords = meshData.getTexCoords();
+
+        int rows = positions.length / 3;
+        for (int i = 0; i < rows; i++) {
+            buffer.putFloat(positions[i * 3]);
+            buffer.putFloat(positions[i * 3 + 1]);
+            buffer.putFloat(positions[i * 3 + 2]);
+            buffer.putFloat(normals[i * 3]);
+            buffer.putFloat(normals[i * 3 + 1]);
+            buffer.putFloat(normals[i * 3 + 2]);
+            buffer.putFloat(texCoords[i * 2]);
+            buffer.putFloat(texCoords[i * 2 + 1]);
+        }
+    }
+
+    private static void putQuantizedVertices(ByteBuffer buffer, MeshData meshData) {
+        float[] positions = meshData.getPositions();
+        float[] normals = meshData.getNormals();
+        float[] texCoords = meshData.getTexCoords();
+        Vector3f offset = meshData.getBoundsMin();
+        Vector3f scale = meshData.getBoundsMax().sub(offset, new Vector3f());
+        Vector2f texCoordsOffset = meshData.getTexCoordsMin();
+        Vector2f texCoordsScale = meshData.getTexCoordsMax().sub(texCoordsOffset, new Vector2f());
+        short[] normal = new short[2];
+
+        int rows = positions.length / 3;
+        for (int i = 0; i < rows; i++) {
+            buffer.putShort(VertexQuantization.quantizeUnorm16(positions[i * 3], offset.x, scale.x));
+            buffer.putShort(VertexQuantization.quantizeUnorm16(positions[i * 3 + 1], offset.y, scale.y));
+            buffer.putShort(VertexQuantization.quantizeUnorm16(positions[i * 3 + 2], offset.z, scale.z));
+            buffer.putShort((short) 0);
+
+            VertexQuantization.encodeOctahedral(normals[i * 3], normals[i * 3 + 1], normals[i * 3 + 2], normal);
+            buffer.putShort(normal[0]);
+            buffer.putShort(normal[1]);
+
+            buffer.putShort(VertexQuantization.quantizeUnorm16(texCoords[i * 2], texCoordsOffset.x, texCoordsScale.x));
+            buffer.putShort(VertexQuantization.quantizeUnorm16(texCoords[i * 2 + 1], texCoordsOffset.y, texCoordsScale.y));
+        }
+    }
+
+    private void updateMeshDrawDatas(ModelAllocation allocation) {
+        List<MeshDrawData> meshDrawDatas = allocation.model.getMeshDrawDatas();
+        meshDrawDatas.clear();
+
+        int offset = allocation.vertexOffset;
+        int firstIndex = allocation.indexOffset;
+        for (MeshData meshData : allocation.model.getMeshDatas()) {
+            int meshSizeBytes = meshData.getPositions().length / 3 * vertexSize;
+
+            List<Lod> lods = new ArrayList<>(meshData.getLodCount());
+            int lodFirstIndex = firstIndex;
+            for (int lod = 0; lod < meshData.getLodCount(); lod++) {
+                int count = meshData.getLodIndices(lod).length;
+                lods.add(new Lod(lodFirstIndex, count, meshData.getLodError(lod)));
+                lodFirstIndex += count;
+            }
+
+            meshDrawDatas.add(new MeshDrawData(
+                meshSizeBytes,
+                meshData.getMaterialID(),
+                meshData.getEmissionStrength(),
+                offset,
+                meshData.getIndices().length,
+                firstIndex,
+                lods
+            ));
+
+            offset += meshData.getPositions().length / 3;
+            firstIndex = lodFirstIndex;
+        }
+    }
+
+    // Packs every resident model to the start of new buffers, growing them if the free space (fragmented or not)
+    // can't fit the given number of extra vertices and indices
+    private void compact(int requiredVertices, int requiredIndices) {
+        int vertexCapacity = vertexAllocator.getCapacity();
+        if (vertexAllocator.getFreeSize() < requiredVertices) {
+            vertexCapacity = Math.max(vertexCapacity * 2, vertexAllocator.getUsedSize() + requiredVertices);
+        }
+        int indexCapacity = indexAllocator.getCapacity();
+        if (indexAllocator.getFreeSize() < requiredIndices) {
+            indexCapacity = Math.max(indexCapacity * 2, indexAllocator.getUsedSize() + requiredIndices);
+        }
+
+        int newVertexBuffer = createBuffer("SceneMeshVerticesBuffer", (long) vertexCapacity * vertexSize);
+        int newIndexBuffer = createBuffer("SceneMeshIndicesBuffer", (long) indexCapacity * Integer.BYTES);
+
+        int vertexOffset = 0;
+        int indexOffset = 0;
+        for (ModelAllocation allocation : allocations) {
+            glBindBuffer(GL_COPY_READ_BUFFER, vertexBuffer);
+            glBindBuffer(GL_COPY_WRITE_BUFFER, newVertexBuffer);
+            glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, (long) allocation.vertexOffset * vertexSize, (long) vertexOffset * vertexSize, (long) allocation.vertexCount * vertexSize);
+
+            glBindBuffer(GL_COPY_READ_BUFFER, indexBuffer);
+            glBindBuffer(GL_COPY_WRITE_BUFFER, newIndexBuffer);
+            glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, (long) allocation.indexOffset * Integer.BYTES, (long) indexOffset * Integer.BYTES, (long) allocation.indexCount * Integer.BYTES);
+
+            allocation.vertexOffset = vertexOffset;
+            allocation.indexOffset = indexOffset;
+            vertexOffset += allocation.vertexCount;
+            indexOffset += allocation.indexCount;
+
+            updateMeshDrawDatas(allocation);
+        }
+        glBindBuffer(GL_COPY_READ_BUFFER, 0);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+
+        glDeleteBuffers(vertexBuffer);
+        glDeleteBuffers(indexBuffer);
+        vertexBuffer = newVertexBuffer;
+        indexBuffer = newIndexBuffer;
+
+        vertexAllocator.reset(vertexCapacity, vertexOffset);
+        indexAllocator.reset(indexCapacity, indexOffset);
+
+        bindBuffers();
+
+        compactions++;
+        System.out.println("Compacted scene mesh: " + vertexOffset + "/" + vertexCapacity + " vertices, " + indexOffset + "/" + indexCapacity + " indices");
+    }
+
+    private int createBuffer(String label, long size) {
+        int buffer = glGenBuffers();
+        glBindBuffer(GL_COPY_WRITE_BUFFER, buffer);
+        glObjectLabel(GL_BUFFER, buffer, label);
+        glBufferData(GL_COPY_WRITE_BUFFER, size, GL_STATIC_DRAW);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+        return buffer;
+    }
+
+    private void bindBuffers() {
+        glBindVertexArray(VAO);
+        glBindBuffer(GL_ARRAY_BUFFER, vertexBuffer);
+
+        // Vertex attributes
+        int stride = vertexSize;
+        int pointer = 0;
+
+        if (vertexFormat == VertexFormat.QUANTIZED) {
+            // Positions, followed by 2 bytes of padding
+            glEnableVertexAttribArray(0);
+            glVertexAttribPointer(0, 3, GL_UNSIGNED_SHORT, true, stride, pointer);
+            pointer += 4 * Short.BYTES;
+
+            // Octahedral normals
+            glEnableVertexAttribArray(1);
+            glVertexAttribPointer(1, 2, GL_SHORT, true, stride, pointer);
+            pointer += 2 * Short.BYTES;
+
+            // Texture coordinates
+            glEnableVertexAttribArray(2);
+            glVertexAttribPointer(2, 2, GL_UNSIGNED_SHORT, true, stride, pointer);
+        } else {
+            // Positions
+            glEnableVertexAttribArray(0);
+            glVertexAttribPointer(0, 3, GL_FLOAT, false, stride, pointer);
+            pointer += 3 * Float.BYTES;
+
+            // Normals
+            glEnableVertexAttribArray(1);
+            glVertexAttribPointer(1, 3, GL_FLOAT, false, stride, pointer);
+            pointer += 3 * Float.BYTES;
+
+            // Texture coordinates
+            glEnableVertexAttribArray(2);
+            glVertexAttribPointer(2, 2, GL_FLOAT, false, stride, pointer);
+        }
+
+        // Indices
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
 
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
         glBindVertexArray(0);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
     }
 
     public void cleanup() {
         glDeleteVertexArrays(VAO);
-        for (int VBO : VBOs) {
-            glDeleteBuffers(VBO);
-        }
+        glDeleteBuffers(vertexBuffer);
+        glDeleteBuffers(indexBuffer);
+    }
+
+    public VertexFormat getVertexFormat() {
+        return vertexFormat;
     }
 
     public int getVAO() {
         return VAO;
     }
 
+    public int getResidentModelCount() {
+        return allocations.size();
+    }
+
+    public FreeListAllocator getVertexAllocator() {
+        return vertexAllocator;
+    }
+
+    public FreeListAllocator getIndexAllocator() {
+        return indexAllocator;
+    }
+
+    public int getCompactions() {
+        return compactions;
+    }
+
 }
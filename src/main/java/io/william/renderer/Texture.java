@@ -1,5 +1,7 @@
 package io.william.renderer;
 
+import io.william.io.BlockCompressor;
+import io.william.io.DdsFile;
 import org.lwjgl.system.MemoryStack;
 
 import java.nio.ByteBuffer;
@@ -7,18 +9,26 @@ import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 
 import static org.lwjgl.opengl.ARBBindlessTexture.glGetTextureHandleARB;
+import static org.lwjgl.opengl.ARBBindlessTexture.glMakeTextureHandleNonResidentARB;
 import static org.lwjgl.opengl.ARBBindlessTexture.glMakeTextureHandleResidentARB;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
-import static org.lwjgl.opengl.GL30.glGenerateMipmap;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL45.glCreateTextures;
+import static org.lwjgl.opengl.GL45.glTextureStorage2D;
 import static org.lwjgl.stb.STBImage.*;
 
 public class Texture {
 
-    private final int ID;
+    private int ID;
     private long handle;
     private int width;
     private int height;
+    private int levels = 1;
+    private int internalFormat;
+    // Levels of the full image above this texture's largest one, for textures whose top mips haven't been streamed
+    // in or have been evicted
+    private int firstLevel;
 
     private String path;
 
@@ -54,6 +64,18 @@ public class Texture {
         ID = createTexture(width, height, GL_RGBA, GL_RGBA, GL_UNSIGNED_BYTE, buffer);
     }
 
+    // Immutable storage for a texture whose levels are uploaded later, e.g. by the TextureUploader
+    public Texture(String path, int width, int height, int levels, int sizedInternalFormat) {
+        this.path = path;
+        this.width = width;
+        this.height = height;
+        this.levels = levels;
+        this.internalFormat = sizedInternalFormat;
+
+        ID = glCreateTextures(GL_TEXTURE_2D);
+        glTextureStorage2D(ID, levels, sizedInternalFormat, width, height);
+    }
+
     public void bind() {
         glBindTexture(GL_TEXTURE_2D, ID);
     }
@@ -64,7 +86,7 @@ public class Texture {
         ByteBuffer buffer = null;
         FloatBuffer floatBuffer = null;
 
-        stbi_set_flip_vertically_on_load(flip);
+        stbi_set_flip_vertically_on_load_thread(flip ? 1 : 0);
 
         // Load texture file
         try (MemoryStack stack = MemoryStack.stackPush()) {
@@ -91,6 +113,8 @@ public class Texture {
             width = w.get();
             height = h.get();
         }
+        levels = 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+        this.internalFormat = internalFormat;
 
         // Create and bind OpenGL texture
         int textureID = glGenTextures();
@@ -119,6 +143,7 @@ public class Texture {
     private int createTexture(int width, int height, int internalFormat, int pixelFormat, int type, ByteBuffer buffer) {
         this.width = width;
         this.height = height;
+        this.internalFormat = internalFormat;
 
         int textureID = glGenTextures();
         glBindTexture(GL_TEXTURE_2D, textureID);
@@ -131,11 +156,80 @@ public class Texture {
         return textureID;
     }
 
+    // Textures can be shared between materials, so the handle is only created and made resident once
     public void generateHandle() {
+        if (handle != 0) {
+            return;
+        }
+
         handle = glGetTextureHandleARB(ID);
         glMakeTextureHandleResidentARB(handle);
     }
 
+    public void cleanup() {
+        if (handle != 0) {
+            glMakeTextureHandleNonResidentARB(handle);
+            handle = 0;
+        }
+        glDeleteTextures(ID);
+    }
+
+    // Exchanges the GL textures (and their handles) of two textures, so that everything holding this one, like
+    // materials and the TextureCache, uses the other's data from now on
+    public void swap(Texture other) {
+        int otherID = other.ID;
+        long otherHandle = other.handle;
+        int otherWidth = other.width;
+        int otherHeight = other.height;
+        int otherLevels = other.levels;
+        int otherInternalFormat = other.internalFormat;
+        int otherFirstLevel = other.firstLevel;
+
+        other.ID = ID;
+        other.handle = handle;
+        other.width = width;
+        other.height = height;
+        other.levels = levels;
+        other.internalFormat = internalFormat;
+        other.firstLevel = firstLevel;
+
+        ID = otherID;
+        handle = otherHandle;
+        width = otherWidth;
+        height = otherHeight;
+        levels = otherLevels;
+        internalFormat = otherInternalFormat;
+        firstLevel = otherFirstLevel;
+    }
+
+    // GPU memory of a level, exact for 8-bit and block-compressed formats
+    public long getLevelSizeBytes(int level) {
+        int levelWidth = Math.max(1, width >> level);
+        int levelHeight = Math.max(1, height >> level);
+
+        int blockBytes = DdsFile.getBlockBytes(internalFormat);
+        if (blockBytes != 0) {
+            return (long) BlockCompressor.getCompressedSize(levelWidth, levelHeight, blockBytes);
+        }
+
+        int pixelBytes = switch (internalFormat) {
+            case GL_RED, GL_R8 -> 1;
+            case GL_RG, GL_RG8 -> 2;
+            case GL_RGB16F, GL_RGBA16F -> 8;
+            case GL_RGB32F, GL_RGBA32F -> 16;
+            default -> 4;
+        };
+        return (long) levelWidth * levelHeight * pixelBytes;
+    }
+
+    public long getSizeBytes() {
+        long sizeBytes = 0;
+        for (int level = 0; level < levels; level++) {
+            sizeBytes += getLevelSizeBytes(level);
+        }
+        return sizeBytes;
+    }
+
     public void noFilter() {
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
@@ -166,6 +260,22 @@ public class Texture {
         return height;
     }
 
+    public int getLevelCount() {
+        return levels;
+    }
+
+    public int getInternalFormat() {
+        return internalFormat;
+    }
+
+    public int getFirstLevel() {
+        return firstLevel;
+    }
+
+    public void setFirstLevel(int firstLevel) {
+        this.firstLevel = firstLevel;
+    }
+
     public String getPath() {
         return path;
     }
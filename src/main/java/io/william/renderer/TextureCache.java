@@ -0,0 +1,163 @@
+package io.william.renderer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Shares textures loaded from the same file, so materials that use the same image decode and upload it once
+// Textures are keyed by canonical path, internal format and flip, and reference counted: every acquire needs a
+// matching release, and the last release deletes the texture and its bindless handle
+// Render thread only, except for contains
+public class TextureCache {
+
+    public record Key(String path, int internalFormat, boolean flip) {}
+
+    private static class Entry {
+
+        private final Texture texture;
+        private int references;
+        // Null for textures that were loaded synchronously
+        private TextureUploader.Upload upload;
+
+        private Entry(Texture texture) {
+            this.texture = texture;
+        }
+    }
+
+    private static final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    private static final Map<Texture, Key> keys = new IdentityHashMap<>();
+
+    private static int hits;
+    private static int misses;
+    private static long bytesSaved;
+
+    // A texture that isn't cached is loaded synchronously, and one that's still being uploaded is finished straight
+    // away, so the texture can be used as soon as this returns
+    public static Texture acquire(String path, int internalFormat, boolean flip) throws Exception {
+        Key key = new Key(canonicalPath(path), internalFormat, flip);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            if (entry.upload != null) {
+                entry.upload.finish();
+            }
+            return hit(entry);
+        }
+
+        Texture texture = new Texture(path, internalFormat, flip);
+        texture.generateHandle();
+        return miss(key, texture).texture;
+    }
+
+    // A texture that isn't cached is uploaded over the next frames by the uploader, from the mip chain if there is
+    // one (which is freed on a hit) or from the file otherwise. It has no bindless handle until the upload completes
+    // Without an uploader it's uploaded straight away
+    public static Texture acquire(String path, int internalFormat, boolean flip, TextureUploader.MipChain mipChain, TextureUploader uploader) throws Exception {
+        Key key = new Key(canonicalPath(path), internalFormat, flip);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            if (mipChain != null) {
+                mipChain.free();
+            }
+            return hit(entry);
+        }
+
+        if (mipChain == null) {
+            mipChain = TextureUploader.decode(path, flip, internalFormat);
+        }
+        if (uploader == null) {
+            return miss(key, TextureUploader.uploadNow(mipChain, internalFormat)).texture;
+        }
+
+        TextureUploader.Upload upload = uploader.upload(mipChain, internalFormat);
+        entry = miss(key, upload.getTexture());
+        entry.upload = upload;
+        return entry.texture;
+    }
+
+    private static Texture hit(Entry entry) {
+        hits++;
+        bytesSaved += entry.texture.getSizeBytes();
+        entry.references++;
+        return entry.texture;
+    }
+
+    private static Entry miss(Key key, Texture texture) {
+        misses++;
+        Entry entry = new Entry(texture);
+        entry.references = 1;
+        entries.put(key, entry);
+        keys.put(texture, key);
+        return entry;
+    }
+
+    // Textures that weren't acquired from the cache are left alone
+    public static void release(Texture texture) {
+        Key key = keys.get(texture);
+        if (key == null) {
+            return;
+        }
+
+        Entry entry = entries.get(key);
+        entry.references--;
+        if (entry.references == 0) {
+            entries.remove(key);
+            keys.remove(texture);
+            if (entry.upload != null) {
+                entry.upload.cancel();
+            }
+            texture.cleanup();
+        }
+    }
+
+    // Whether acquire would be a hit, for loaders that decode images on other threads and want to skip cached ones
+    public static boolean contains(String path, int internalFormat, boolean flip) {
+        return entries.containsKey(new Key(canonicalPath(path), internalFormat, flip));
+    }
+
+    // Null for textures that weren't acquired from the cache
+    public static Key getKey(Texture texture) {
+        return keys.get(texture);
+    }
+
+    public static Collection<Texture> getTextures() {
+        return Collections.unmodifiableSet(keys.keySet());
+    }
+
+    public static String canonicalPath(String path) {
+        Path filePath = Path.of(path);
+        try {
+            return filePath.toRealPath().toString();
+        } catch (IOException e) {
+            return filePath.toAbsolutePath().normalize().toString();
+        }
+    }
+
+    public static int getTextureCount() {
+        return entries.size();
+    }
+
+    public static long getSizeBytes() {
+        long sizeBytes = 0;
+        for (Entry entry : entries.values()) {
+            sizeBytes += entry.texture.getSizeBytes();
+        }
+        return sizeBytes;
+    }
+
+    public static int getHits() {
+        return hits;
+    }
+
+    public static int getMisses() {
+        return misses;
+    }
+
+    // GPU memory that hits would have taken as separate textures
+    public static long getBytesSaved() {
+        return bytesSaved;
+    }
+}
@@ -0,0 +1,424 @@
+package io.william.renderer;
+
+import io.william.io.DdsFile;
+import io.william.renderer.culling.DynamicAabbTree;
+import io.william.renderer.culling.Frustum;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.lwjgl.opengl.GL11.GL_TEXTURE_2D;
+import static org.lwjgl.opengl.GL11.GL_TEXTURE_INTERNAL_FORMAT;
+import static org.lwjgl.opengl.GL43.glCopyImageSubData;
+import static org.lwjgl.opengl.GL45.glGetTextureLevelParameteri;
+
+// Decides which mips of the textures in the TextureCache are resident, within a GPU memory budget
+// Every frame the materials of the models in the camera frustum mark their textures as used, with the finest level
+// they need. With streaming that's estimated from the screen-space footprint of each mesh: its texture coordinate
+// density and the projected size of its bounds. Without it, used textures want every level
+// Missing levels are read on background threads, from the cooked file when there is one, and uploaded through the
+// TextureUploader under its per-frame budget. While over budget, the top mips of the least recently used textures
+// are dropped: down to TAIL_SIZE for ones that have been idle for a while, and down to what's wanted for the rest
+// Levels are added and dropped by copying the kept ones into a new texture that's swapped in, since texture storage
+// is immutable. Texture objects stay the same throughout, only the GL texture and bindless handle behind them
+// change, so the material buffer has to be rewritten whenever update returns true
+public class TextureResidency {
+
+    // Largest side of the levels every texture keeps, which are all that streamed textures start with
+    public static final int TAIL_SIZE = 64;
+    // Frames a texture has to go unused before it can be cut to its tail, so that looking around doesn't thrash
+    private static final int MIN_IDLE_FRAMES = 120;
+    private static final int STREAMER_THREADS = 2;
+    // Decodes and uploads in flight, which each hold their levels in memory
+    private static final int MAX_PENDING_STREAMS = 16;
+
+    private static class State {
+
+        private int lastUsedFrame;
+        // Finest level of the full image wanted by any use this frame
+        private int wantedLevel = Integer.MAX_VALUE;
+        private Future<TextureUploader.MipChain> decode;
+        private TextureUploader.Upload upload;
+        // Set when streaming levels in failed, so that the texture keeps its levels rather than retrying every frame
+        private boolean failed;
+
+        private boolean isStreaming() {
+            return decode != null || upload != null;
+        }
+    }
+
+    // In access order, so iteration starts at the least recently used texture
+    private final Map<Texture, State> states = new LinkedHashMap<>(16, 0.75f, true);
+    private final List<Future<TextureUploader.MipChain>> abandonedDecodes = new ArrayList<>();
+    private final ExecutorService executor;
+    private final DynamicAabbTree.Visitor<Entity> entityVisitor;
+    private final Vector3f center = new Vector3f();
+
+    private long budgetBytes;
+    private boolean streaming = true;
+    private int frame;
+    private int pendingStreams;
+
+    // Per-update inputs of the visitor
+    private Scene scene;
+    private Vector3fc cameraPosition;
+    private float pixelSize;
+
+    private long residentBytes;
+    private int partialCount;
+    private long evictions;
+    private long streamIns;
+
+    public TextureResidency(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(STREAMER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "texture-streamer-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        entityVisitor = this::markEntity;
+    }
+
+    // Called once per frame after culling, with the frustum the scene is drawn with (null if everything is drawn)
+    // pixelSize: the world space size of a pixel per unit of distance from the camera
+    // Returns true if bindless handles changed
+    public boolean update(Scene scene, Frustum frustum, Vector3fc cameraPosition, float pixelSize, TextureUploader uploader) {
+        frame++;
+        syncCache();
+
+        this.scene = scene;
+        this.cameraPosition = cameraPosition;
+        this.pixelSize = pixelSize;
+        if (frustum != null) {
+            scene.getEntityTree().queryFrustum(frustum, entityVisitor);
+        } else {
+            for (Entity entity : scene.getEntities()) {
+                markEntity(entity);
+            }
+        }
+        this.scene = null;
+
+        boolean changed = finishStreams(uploader);
+        startStreams();
+        changed |= evict();
+        return changed;
+    }
+
+    // Tracks the cache's uploaded textures and forgets the ones that have been released
+    private void syncCache() {
+        for (Texture texture : TextureCache.getTextures()) {
+            if (texture.getHandle() != 0 && !states.containsKey(texture)) {
+                State state = new State();
+                state.lastUsedFrame = frame;
+                states.put(texture, state);
+            }
+        }
+
+        residentBytes = 0;
+        partialCount = 0;
+        Iterator<Map.Entry<Texture, State>> iterator = states.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Texture, State> entry = iterator.next();
+            Texture texture = entry.getKey();
+            if (TextureCache.getKey(texture) == null) {
+                cancelStream(entry.getValue());
+                iterator.remove();
+                continue;
+            }
+
+            entry.getValue().wantedLevel = Integer.MAX_VALUE;
+            residentBytes += texture.getSizeBytes();
+            if (texture.getFirstLevel() > 0) {
+                partialCount++;
+            }
+        }
+    }
+
+    private void markEntity(Entity entity) {
+        Model model = scene.getModelByID(entity.getModelID());
+        if (model == null) {
+            return;
+        }
+
+        Matrix4f worldMatrix = entity.getWorldMatrix();
+        float scale = Frustum.maxScale(worldMatrix);
+        if (scale <= 0.0f) {
+            return;
+        }
+        for (MeshData meshData : model.getMeshDatas()) {
+            PBRMaterial material = scene.getPBRMaterialByID(meshData.getMaterialID());
+            if (material == null) {
+                continue;
+            }
+
+            // Texture coordinate units per pixel at the closest point of the mesh's bounds, times the texture size
+            // gives its texels per pixel, whose log2 is the mip the sampler would pick
+            float uvPerPixel = 0.0f;
+            if (streaming) {
+                worldMatrix.transformPosition(meshData.getBoundingSphereCenter(), center);
+                float distance = Math.max(center.distance(cameraPosition) - meshData.getBoundingSphereRadius() * scale, 0.0f);
+                uvPerPixel = meshData.getUvDensity() * pixelSize * distance / scale;
+            }
+
+            markTexture(material.getAlbedo(), uvPerPixel);
+            markTexture(material.getNormal(), uvPerPixel);
+            markTexture(material.getMetallic(), uvPerPixel);
+            markTexture(material.getRoughness(), uvPerPixel);
+            markTexture(material.getMetallicRoughness(), uvPerPixel);
+            markTexture(material.getAo(), uvPerPixel);
+            markTexture(material.getEmissive(), uvPerPixel);
+        }
+    }
+
+    private void markTexture(Texture texture, float uvPerPixel) {
+        State state = texture != null ? states.get(texture) : null;
+        if (state == null) {
+            return;
+        }
+
+        state.lastUsedFrame = frame;
+        float texelsPerPixel = (float) (Math.max(texture.getWidth(), texture.getHeight()) << texture.getFirstLevel()) * uvPerPixel;
+        int level = texelsPerPixel < 2.0f ? 0 : 31 - Integer.numberOfLeadingZeros((int) Math.min(texelsPerPixel, 1 << 30));
+        state.wantedLevel = Math.min(state.wantedLevel, level);
+    }
+
+    // Reads the missing levels of used textures, as long as there's room in the budget
+    private void startStreams() {
+        for (Map.Entry<Texture, State> entry : states.entrySet()) {
+            if (pendingStreams >= MAX_PENDING_STREAMS || residentBytes >= budgetBytes) {
+                return;
+            }
+
+            Texture texture = entry.getKey();
+            State state = entry.getValue();
+            int firstLevel = texture.getFirstLevel();
+            if (state.lastUsedFrame != frame || state.wantedLevel >= firstLevel || state.isStreaming() || state.failed) {
+                continue;
+            }
+
+            TextureCache.Key key = TextureCache.getKey(texture);
+            int wantedLevel = state.wantedLevel;
+            state.decode = executor.submit(() -> TextureUploader.decode(key.path(), key.flip(), key.internalFormat(), wantedLevel, firstLevel));
+            pendingStreams++;
+        }
+    }
+
+    // Queues read levels on the uploader and swaps in the textures it has finished
+    private boolean finishStreams(TextureUploader uploader) {
+        boolean changed = false;
+        for (Map.Entry<Texture, State> entry : states.entrySet()) {
+            Texture texture = entry.getKey();
+            State state = entry.getValue();
+
+            if (state.decode != null && state.decode.isDone()) {
+                TextureUploader.MipChain mipChain = getDecoded(state.decode);
+                state.decode = null;
+                int format = getSizedFormat(texture);
+                if (mipChain == null || !fits(mipChain, texture, format)) {
+                    if (mipChain != null) {
+                        System.out.println("Failed to stream " + texture.getPath() + ": its file has changed");
+                        mipChain.free();
+                    }
+                    state.failed = true;
+                    pendingStreams--;
+                    continue;
+                }
+
+                // Storage for the new levels and the resident ones, which are copied on the GPU
+                Texture streamed = new Texture(texture.getPath(), mipChain.getWidth(), mipChain.getHeight(), mipChain.getLevelCount() + texture.getLevelCount(), format);
+                streamed.setFirstLevel(mipChain.getFirstLevel());
+                copyLevels(texture, 0, streamed, mipChain.getLevelCount(), texture.getLevelCount());
+                state.upload = uploader.upload(streamed, mipChain);
+            }
+
+            if (state.upload != null && state.upload.isComplete()) {
+                // After the swap the uploaded texture holds the old levels
+                Texture streamed = state.upload.getTexture();
+                long sizeBytes = texture.getSizeBytes();
+                texture.swap(streamed);
+                streamed.cleanup();
+                residentBytes += texture.getSizeBytes() - sizeBytes;
+
+                state.upload = null;
+                pendingStreams--;
+                streamIns++;
+                changed = true;
+            }
+        }
+
+        Iterator<Future<TextureUploader.MipChain>> iterator = abandonedDecodes.iterator();
+        while (iterator.hasNext()) {
+            Future<TextureUploader.MipChain> decode = iterator.next();
+            if (decode.isDone()) {
+                TextureUploader.MipChain mipChain = getDecoded(decode);
+                if (mipChain != null) {
+                    mipChain.free();
+                }
+                iterator.remove();
+            }
+        }
+
+        return changed;
+    }
+
+    // Whether the levels go right above the texture's, in the same format. They don't if the image or its cooked file
+    // changed since the texture was loaded
+    private static boolean fits(TextureUploader.MipChain mipChain, Texture texture, int format) {
+        if (mipChain.getFirstLevel() + mipChain.getLevelCount() != texture.getFirstLevel()
+            || Math.max(1, mipChain.getWidth() >> mipChain.getLevelCount()) != texture.getWidth()
+            || Math.max(1, mipChain.getHeight() >> mipChain.getLevelCount()) != texture.getHeight()) {
+            return false;
+        }
+        return mipChain.isCompressed() ? mipChain.getFormat() == format : DdsFile.getBlockBytes(format) == 0;
+    }
+
+    private static TextureUploader.MipChain getDecoded(Future<TextureUploader.MipChain> decode) {
+        try {
+            return decode.get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.println("Failed to stream texture: " + e.getCause());
+            return null;
+        }
+    }
+
+    private void cancelStream(State state) {
+        if (state.decode != null) {
+            abandonedDecodes.add(state.decode);
+            state.decode = null;
+            pendingStreams--;
+        }
+        if (state.upload != null) {
+            state.upload.cancel();
+            state.upload.getTexture().cleanup();
+            state.upload = null;
+            pendingStreams--;
+        }
+    }
+
+    // Idle textures are cut to their tail first, then used ones to the level they want
+    private boolean evict() {
+        boolean changed = false;
+        for (int pass = 0; pass < 2 && residentBytes > budgetBytes; pass++) {
+            Iterator<Map.Entry<Texture, State>> iterator = states.entrySet().iterator();
+            while (residentBytes > budgetBytes && iterator.hasNext()) {
+                Map.Entry<Texture, State> entry = iterator.next();
+                Texture texture = entry.getKey();
+                State state = entry.getValue();
+                if (state.isStreaming()) {
+                    continue;
+                }
+
+                int tailLevel = texture.getFirstLevel() + TextureUploader.getFirstLevel(texture.getWidth(), texture.getHeight(), TAIL_SIZE);
+                int level;
+                if (pass == 0) {
+                    if (frame - state.lastUsedFrame < MIN_IDLE_FRAMES) {
+                        continue;
+                    }
+                    level = tailLevel;
+                } else {
+                    level = Math.min(state.wantedLevel, tailLevel);
+                }
+                if (level <= texture.getFirstLevel()) {
+                    continue;
+                }
+
+                Texture trimmed = createTrimmed(texture, level - texture.getFirstLevel());
+                long sizeBytes = texture.getSizeBytes();
+                texture.swap(trimmed);
+                trimmed.cleanup();
+                residentBytes -= sizeBytes - texture.getSizeBytes();
+
+                // Dropped levels can be streamed in again, e.g. after a file that failed has been fixed
+                state.failed = false;
+                evictions++;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // Copy of the texture without its levels above level
+    private static Texture createTrimmed(Texture texture, int level) {
+        int width = Math.max(1, texture.getWidth() >> level);
+        int height = Math.max(1, texture.getHeight() >> level);
+        int levels = texture.getLevelCount() - level;
+
+        Texture trimmed = new Texture(texture.getPath(), width, height, levels, getSizedFormat(texture));
+        trimmed.setFirstLevel(texture.getFirstLevel() + level);
+        copyLevels(texture, level, trimmed, 0, levels);
+        trimmed.generateHandle();
+        return trimmed;
+    }
+
+    private static void copyLevels(Texture source, int sourceLevel, Texture dest, int destLevel, int levels) {
+        for (int i = 0; i < levels; i++) {
+            int width = Math.max(1, source.getWidth() >> (sourceLevel + i));
+            int height = Math.max(1, source.getHeight() >> (sourceLevel + i));
+            glCopyImageSubData(source.getID(), GL_TEXTURE_2D, sourceLevel + i, 0, 0, 0,
+                dest.getID(), GL_TEXTURE_2D, destLevel + i, 0, 0, 0, width, height, 1);
+        }
+    }
+
+    // The sized format the driver picked, since textures loaded with glTexImage2D may have an unsized one
+    private static int getSizedFormat(Texture texture) {
+        return glGetTextureLevelParameteri(texture.getID(), 0, GL_TEXTURE_INTERNAL_FORMAT);
+    }
+
+    public void cleanup() {
+        for (State state : states.values()) {
+            cancelStream(state);
+        }
+        states.clear();
+        executor.shutdownNow();
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    // GPU memory of the tracked textures
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    // Textures missing some of their top mips
+    public int getPartialCount() {
+        return partialCount;
+    }
+
+    public int getPendingStreams() {
+        return pendingStreams;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getStreamIns() {
+        return streamIns;
+    }
+}
@@ -0,0 +1,465 @@
+package io.william.renderer;
+
+import io.william.io.DdsFile;
+import io.william.io.TextureCooker;
+import io.william.util.BufferPool;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import static org.lwjgl.opengl.GL11.GL_RED;
+import static org.lwjgl.opengl.GL11.GL_RGBA;
+import static org.lwjgl.opengl.GL11.GL_RGBA8;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_BYTE;
+import static org.lwjgl.opengl.GL21.GL_SRGB8_ALPHA8;
+import static org.lwjgl.opengl.GL21.GL_SRGB_ALPHA;
+import static org.lwjgl.opengl.GL30.GL_R8;
+import static org.lwjgl.opengl.GL30.GL_RG;
+import static org.lwjgl.opengl.GL30.GL_RG8;
+import static org.lwjgl.opengl.GL45.glCompressedTextureSubImage2D;
+import static org.lwjgl.opengl.GL45.glTextureSubImage2D;
+import static org.lwjgl.stb.STBImage.*;
+
+// Uploads textures without stalling the render thread:
+//  - worker threads load the texture's cooked file (see TextureCooker) or decode the image and build the whole mip
+//    chain on the CPU (gamma correct for sRGB formats), into a pooled buffer
+//  - the render thread allocates immutable storage with glTextureStorage2D and copies the levels a few rows at a
+//    time through a persistently mapped UploadRing bound as the pixel unpack buffer, at most bytesPerFrame per frame
+//  - the bindless handle is only created once every level has been copied, so shaders never sample a partial texture
+public class TextureUploader {
+
+    private static final long MAX_POOLED_BYTES = 128L * 1024 * 1024;
+    private static final BufferPool POOL = new BufferPool(MAX_POOLED_BYTES);
+
+    // sRGB conversion for mip generation, linear values are looked up at LINEAR_TO_SRGB_SIZE steps
+    private static final int LINEAR_TO_SRGB_SIZE = 16384;
+    private static final float[] SRGB_TO_LINEAR = new float[256];
+    private static final byte[] LINEAR_TO_SRGB = new byte[LINEAR_TO_SRGB_SIZE];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            float srgb = i / 255.0f;
+            SRGB_TO_LINEAR[i] = srgb <= 0.04045f ? srgb / 12.92f : (float) Math.pow((srgb + 0.055f) / 1.055f, 2.4f);
+        }
+        for (int i = 0; i < LINEAR_TO_SRGB_SIZE; i++) {
+            float linear = i / (float) (LINEAR_TO_SRGB_SIZE - 1);
+            float srgb = linear <= 0.0031308f ? linear * 12.92f : 1.055f * (float) Math.pow(linear, 1.0f / 2.4f) - 0.055f;
+            LINEAR_TO_SRGB[i] = (byte) Math.round(srgb * 255.0f);
+        }
+    }
+
+    // Levels of a texture packed one after another in a buffer from the pool, either 8-bit RGBA pixels or 4x4 blocks
+    // of a compressed format from a cooked file. Uploads go by rows of pixels or of blocks
+    // A chain can start below the image's largest level, and stop above its smallest when it's streamed into a
+    // texture that already has the smaller levels
+    public static class MipChain {
+
+        private final String path;
+        private final int format;
+        private final int blockBytes;
+        private final int firstLevel;
+        private final int[] widths;
+        private final int[] heights;
+        private final int[] offsets;
+        private ByteBuffer data;
+
+        // Uncompressed chains have a blockBytes of 0 and format is the texture's sized internal format
+        // width and height are those of the chain's first level
+        private MipChain(String path, int format, int blockBytes, int width, int height, int levels, int firstLevel) {
+            this.path = path;
+            this.format = format;
+            this.blockBytes = blockBytes;
+            this.firstLevel = firstLevel;
+            widths = new int[levels];
+            heights = new int[levels];
+            offsets = new int[levels];
+
+            int size = 0;
+            for (int level = 0; level < levels; level++) {
+                widths[level] = Math.max(1, width >> level);
+                heights[level] = Math.max(1, height >> level);
+                offsets[level] = size;
+                size += getRowCount(level) * getRowBytes(level);
+            }
+            data = POOL.allocate(size);
+        }
+
+        public void free() {
+            if (data != null) {
+                POOL.release(data);
+                data = null;
+            }
+        }
+
+        public boolean isCompressed() {
+            return blockBytes != 0;
+        }
+
+        // Rows of pixels, or of blocks for compressed chains
+        private int getRowCount(int level) {
+            return isCompressed() ? (heights[level] + 3) / 4 : heights[level];
+        }
+
+        private int getRowBytes(int level) {
+            return isCompressed() ? (widths[level] + 3) / 4 * blockBytes : widths[level] * 4;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getWidth() {
+            return widths[0];
+        }
+
+        public int getHeight() {
+            return heights[0];
+        }
+
+        public int getLevelCount() {
+            return widths.length;
+        }
+
+        // Compressed format, 0 for 8-bit RGBA pixels
+        public int getFormat() {
+            return format;
+        }
+
+        // Level of the image that the chain's first level is
+        public int getFirstLevel() {
+            return firstLevel;
+        }
+
+        public int getLevelWidth(int level) {
+            return widths[level];
+        }
+
+        public int getLevelHeight(int level) {
+            return heights[level];
+        }
+
+        public ByteBuffer getLevel(int level) {
+            return MemoryUtil.memSlice(data, offsets[level], getRowCount(level) * getRowBytes(level));
+        }
+
+        public int getSizeBytes() {
+            return data.limit();
+        }
+    }
+
+    // A texture whose levels are being copied, in the order they were queued
+    public class Upload {
+
+        private final Texture texture;
+        private MipChain mipChain;
+        private int level;
+        private int row;
+
+        private Upload(Texture texture, MipChain mipChain) {
+            this.texture = texture;
+            this.mipChain = mipChain;
+        }
+
+        // Copies rows into the ring until its region for this frame is full, true once every level has been copied
+        private boolean copyRows() {
+            while (level < mipChain.getLevelCount()) {
+                int rowBytes = mipChain.getRowBytes(level);
+                int rows = Math.min(mipChain.getRowCount(level) - row, ring.getRegionRemaining() / rowBytes);
+                if (rows == 0) {
+                    return false;
+                }
+
+                ByteBuffer allocation = ring.allocate(rows * rowBytes);
+                long source = MemoryUtil.memAddress0(mipChain.data) + mipChain.offsets[level] + (long) row * rowBytes;
+                MemoryUtil.memCopy(source, MemoryUtil.memAddress(allocation), (long) rows * rowBytes);
+                if (mipChain.isCompressed()) {
+                    int y = row * 4;
+                    int height = Math.min(mipChain.heights[level] - y, rows * 4);
+                    ring.uploadCompressedTexture(allocation, texture.getID(), level, y, mipChain.widths[level], height, mipChain.format);
+                } else {
+                    ring.uploadTexture(allocation, texture.getID(), level, row, mipChain.widths[level], rows);
+                }
+                ring.release(allocation);
+
+                row += rows;
+                if (row == mipChain.getRowCount(level)) {
+                    level++;
+                    row = 0;
+                }
+            }
+            return true;
+        }
+
+        // Copies the remaining levels straight away, for when the texture is needed before the uploader gets to it
+        public void finish() {
+            if (mipChain == null) {
+                return;
+            }
+
+            queue.remove(this);
+            copyLevels(texture, mipChain, level, row);
+            complete();
+        }
+
+        // Stops the upload of a texture that's being deleted
+        public void cancel() {
+            if (mipChain == null) {
+                return;
+            }
+
+            queue.remove(this);
+            mipChain.free();
+            mipChain = null;
+        }
+
+        private void complete() {
+            mipChain.free();
+            mipChain = null;
+            texture.generateHandle();
+            completedUploads++;
+        }
+
+        public Texture getTexture() {
+            return texture;
+        }
+
+        // The texture has its bindless handle once this is true
+        public boolean isComplete() {
+            return mipChain == null && texture.getHandle() != 0;
+        }
+    }
+
+    private final UploadRing ring;
+    private final Queue<Upload> queue = new ArrayDeque<>();
+    private long completedUploads;
+
+    public TextureUploader(int bytesPerFrame) {
+        ring = new UploadRing(bytesPerFrame);
+    }
+
+    // Loads the cooked file of a texture if there's an up to date one, and decodes the image otherwise. Cooked files
+    // aren't flipped, so flipped loads always decode the image
+    // Safe to call from any thread
+    public static MipChain decode(String fileName, boolean flip, int internalFormat) throws Exception {
+        return decode(fileName, flip, internalFormat, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    // Only the levels no larger than maxSize, for textures whose larger levels are streamed in later
+    public static MipChain decode(String fileName, boolean flip, int internalFormat, int maxSize) throws Exception {
+        return decode(fileName, flip, internalFormat, 0, Integer.MAX_VALUE, maxSize);
+    }
+
+    // Levels from firstLevel up to endLevel (exclusive), for streaming them into a texture with the levels below
+    // Only the requested levels are read from a cooked file, while the image has to be decoded whole
+    public static MipChain decode(String fileName, boolean flip, int internalFormat, int firstLevel, int endLevel) throws Exception {
+        return decode(fileName, flip, internalFormat, firstLevel, endLevel, Integer.MAX_VALUE);
+    }
+
+    private static MipChain decode(String fileName, boolean flip, int internalFormat, int firstLevel, int endLevel, int maxSize) throws Exception {
+        if (!flip && TextureCooker.isCooked(fileName, internalFormat)) {
+            Path cookedPath = TextureCooker.getCookedPath(fileName, internalFormat);
+            try {
+                DdsFile ddsFile = DdsFile.read(cookedPath);
+                int end = Math.min(endLevel, ddsFile.levelCount());
+                int first = Math.min(Math.max(firstLevel, getFirstLevel(ddsFile.width(), ddsFile.height(), maxSize)), end - 1);
+
+                long offset = 0;
+                for (int level = 0; level < first; level++) {
+                    offset += ddsFile.getLevelSize(level);
+                }
+                MipChain mipChain = new MipChain(fileName, ddsFile.format(), DdsFile.getBlockBytes(ddsFile.format()),
+                    Math.max(1, ddsFile.width() >> first), Math.max(1, ddsFile.height() >> first), end - first, first);
+                MemoryUtil.memCopy(MemoryUtil.memAddress(ddsFile.data()) + offset, MemoryUtil.memAddress(mipChain.data), mipChain.getSizeBytes());
+                return mipChain;
+            } catch (IOException e) {
+                System.out.println("Failed to load cooked texture " + cookedPath + ", using the source image: " + e.getMessage());
+            }
+        }
+
+        MipChain image = decodeImage(fileName, flip, isSrgb(internalFormat));
+        int end = Math.min(endLevel, image.getLevelCount());
+        int first = Math.min(Math.max(firstLevel, getFirstLevel(image.getWidth(), image.getHeight(), maxSize)), end - 1);
+        if (first == 0 && end == image.getLevelCount()) {
+            return image;
+        }
+
+        MipChain mipChain = new MipChain(fileName, 0, 0, image.widths[first], image.heights[first], end - first, first);
+        MemoryUtil.memCopy(MemoryUtil.memAddress(image.data) + image.offsets[first], MemoryUtil.memAddress(mipChain.data), mipChain.getSizeBytes());
+        image.free();
+        return mipChain;
+    }
+
+    // Largest level whose sides are no larger than maxSize
+    public static int getFirstLevel(int width, int height, int maxSize) {
+        int level = 0;
+        while (Math.max(width >> level, height >> level) > maxSize) {
+            level++;
+        }
+        return level;
+    }
+
+    // Decodes an image into 8-bit RGBA with a full mip chain. Flipping is set for the calling thread only
+    public static MipChain decodeImage(String fileName, boolean flip, boolean srgb) throws Exception {
+        stbi_set_flip_vertically_on_load_thread(flip ? 1 : 0);
+
+        MipChain mipChain;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer w = stack.mallocInt(1);
+            IntBuffer h = stack.mallocInt(1);
+            IntBuffer channels = stack.mallocInt(1);
+
+            ByteBuffer pixels = stbi_load(fileName, w, h, channels, 4);
+            if (pixels == null) {
+                throw new Exception("Image file [" + fileName + "] not loaded: " + stbi_failure_reason());
+            }
+
+            int width = w.get(0);
+            int height = h.get(0);
+            int levels = 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+            mipChain = new MipChain(fileName, 0, 0, width, height, levels, 0);
+            MemoryUtil.memCopy(MemoryUtil.memAddress(pixels), MemoryUtil.memAddress(mipChain.data), pixels.remaining());
+            stbi_image_free(pixels);
+        }
+
+        for (int level = 1; level < mipChain.getLevelCount(); level++) {
+            downsample(mipChain.data, mipChain.offsets[level - 1], mipChain.widths[level - 1], mipChain.heights[level - 1],
+                mipChain.offsets[level], mipChain.widths[level], mipChain.heights[level], srgb);
+        }
+
+        return mipChain;
+    }
+
+    // Creates and uploads a texture straight away, for loads that can't wait for an uploader. Frees the mip chain
+    public static Texture uploadNow(MipChain mipChain, int internalFormat) {
+        Texture texture = createTexture(mipChain, internalFormat);
+        copyLevels(texture, mipChain, 0, 0);
+        mipChain.free();
+        texture.generateHandle();
+        return texture;
+    }
+
+    private static Texture createTexture(MipChain mipChain, int internalFormat) {
+        int format = mipChain.isCompressed() ? mipChain.format : getSizedFormat(internalFormat);
+        Texture texture = new Texture(mipChain.getPath(), mipChain.getWidth(), mipChain.getHeight(), mipChain.getLevelCount(), format);
+        texture.setFirstLevel(mipChain.getFirstLevel());
+        return texture;
+    }
+
+    // Copies levels from client memory, starting at a row of a level
+    private static void copyLevels(Texture texture, MipChain mipChain, int level, int row) {
+        for (; level < mipChain.getLevelCount(); level++, row = 0) {
+            int rowBytes = mipChain.getRowBytes(level);
+            long source = MemoryUtil.memAddress0(mipChain.data) + mipChain.offsets[level] + (long) row * rowBytes;
+            ByteBuffer data = MemoryUtil.memByteBuffer(source, (mipChain.getRowCount(level) - row) * rowBytes);
+            if (mipChain.isCompressed()) {
+                int y = row * 4;
+                glCompressedTextureSubImage2D(texture.getID(), level, 0, y, mipChain.widths[level], mipChain.heights[level] - y, mipChain.format, data);
+            } else {
+                glTextureSubImage2D(texture.getID(), level, 0, row, mipChain.widths[level], mipChain.heights[level] - row, GL_RGBA, GL_UNSIGNED_BYTE, data);
+            }
+        }
+    }
+
+    // 2x2 box filter, the last row or column is repeated for odd sizes
+    private static void downsample(ByteBuffer data, int source, int sourceWidth, int sourceHeight, int dest, int width, int height, boolean srgb) {
+        for (int y = 0; y < height; y++) {
+            int row0 = source + Math.min(2 * y, sourceHeight - 1) * sourceWidth * 4;
+            int row1 = source + Math.min(2 * y + 1, sourceHeight - 1) * sourceWidth * 4;
+            for (int x = 0; x < width; x++) {
+                int column0 = Math.min(2 * x, sourceWidth - 1) * 4;
+                int column1 = Math.min(2 * x + 1, sourceWidth - 1) * 4;
+                int out = dest + (y * width + x) * 4;
+
+                for (int c = 0; c < 4; c++) {
+                    int p00 = data.get(row0 + column0 + c) & 0xFF;
+                    int p01 = data.get(row0 + column1 + c) & 0xFF;
+                    int p10 = data.get(row1 + column0 + c) & 0xFF;
+                    int p11 = data.get(row1 + column1 + c) & 0xFF;
+
+                    if (srgb && c < 3) {
+                        float linear = (SRGB_TO_LINEAR[p00] + SRGB_TO_LINEAR[p01] + SRGB_TO_LINEAR[p10] + SRGB_TO_LINEAR[p11]) * 0.25f;
+                        data.put(out + c, LINEAR_TO_SRGB[(int) (linear * (LINEAR_TO_SRGB_SIZE - 1) + 0.5f)]);
+                    } else {
+                        data.put(out + c, (byte) ((p00 + p01 + p10 + p11 + 2) >> 2));
+                    }
+                }
+            }
+        }
+    }
+
+    // Takes over the mip chain and returns the upload of a new texture with storage for it
+    public Upload upload(MipChain mipChain, int internalFormat) {
+        return upload(createTexture(mipChain, internalFormat), mipChain);
+    }
+
+    // Takes over the mip chain and copies it into the largest levels of a texture, which needs storage for them and
+    // no bindless handle yet
+    public Upload upload(Texture texture, MipChain mipChain) {
+        Upload upload = new Upload(texture, mipChain);
+        queue.add(upload);
+        return upload;
+    }
+
+    // Called once per frame, before anything that waits for textures
+    public void update() {
+        Upload upload;
+        while ((upload = queue.peek()) != null) {
+            if (!upload.copyRows()) {
+                return;
+            }
+
+            queue.poll();
+            upload.complete();
+        }
+    }
+
+    // Called once the frame's commands have been submitted
+    public void nextFrame() {
+        ring.nextFrame();
+    }
+
+    public void cleanup() {
+        for (Upload upload : queue) {
+            upload.mipChain.free();
+        }
+        queue.clear();
+        ring.cleanup();
+        POOL.clear();
+    }
+
+    public static boolean isSrgb(int internalFormat) {
+        return internalFormat == GL_SRGB_ALPHA || internalFormat == GL_SRGB8_ALPHA8;
+    }
+
+    // glTextureStorage2D only takes sized formats
+    private static int getSizedFormat(int internalFormat) {
+        return switch (internalFormat) {
+            case GL_SRGB_ALPHA, GL_SRGB8_ALPHA8 -> GL_SRGB8_ALPHA8;
+            case GL_RG, GL_RG8 -> GL_RG8;
+            case GL_RED, GL_R8 -> GL_R8;
+            default -> GL_RGBA8;
+        };
+    }
+
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    public long getCompletedUploads() {
+        return completedUploads;
+    }
+
+    public long getLastFrameBytesUploaded() {
+        return ring.getLastFrameBytesUploaded();
+    }
+
+    public long getTotalBytesUploaded() {
+        return ring.getTotalBytesUploaded();
+    }
+}
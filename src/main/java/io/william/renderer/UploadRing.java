@@ -0,0 +1,205 @@
+package io.william.renderer;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.lwjgl.opengl.GL11.GL_RGBA;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_BYTE;
+import static org.lwjgl.opengl.GL15.glBindBuffer;
+import static org.lwjgl.opengl.GL15.glDeleteBuffers;
+import static org.lwjgl.opengl.GL15.glGenBuffers;
+import static org.lwjgl.opengl.GL30.GL_MAP_WRITE_BIT;
+import static org.lwjgl.opengl.GL30.glMapBufferRange;
+import static org.lwjgl.opengl.GL21.GL_PIXEL_UNPACK_BUFFER;
+import static org.lwjgl.opengl.GL31.GL_COPY_READ_BUFFER;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL43.GL_BUFFER;
+import static org.lwjgl.opengl.GL43.glObjectLabel;
+import static org.lwjgl.opengl.GL44.*;
+import static org.lwjgl.opengl.GL45.glCopyNamedBufferSubData;
+import static org.lwjgl.opengl.GL45.glCompressedTextureSubImage2D;
+import static org.lwjgl.opengl.GL45.glTextureSubImage2D;
+import static org.lwjgl.opengl.GL45.nglNamedBufferSubData;
+
+// Persistently mapped staging buffer for per-frame uploads, split into one region per frame in flight
+// Data is written straight into mapped memory and then copied into the destination buffer on the GPU,
+// with a fence per region so that a region is only overwritten once the GPU has finished reading it
+public class UploadRing {
+
+    private static final int FRAMES_IN_FLIGHT = 3;
+    private static final int ALIGNMENT = 16;
+
+    private final int buffer;
+    private final int regionSize;
+    private final long mappedAddress;
+    private final ByteBuffer mapped;
+
+    private final long[] fences = new long[FRAMES_IN_FLIGHT];
+    private int region = 0;
+    private int regionOffset = 0;
+
+    // Counters
+    private long frameBytesUploaded;
+    private long frameFenceWaitNanos;
+    private long lastFrameBytesUploaded;
+    private long lastFrameFenceWaitNanos;
+    private long totalBytesUploaded;
+    private long totalFenceWaitNanos;
+    private long fallbackUploads;
+
+    public UploadRing(int regionSize) {
+        this.regionSize = regionSize;
+
+        long size = (long) regionSize * FRAMES_IN_FLIGHT;
+        int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+
+        buffer = glGenBuffers();
+        glBindBuffer(GL_COPY_READ_BUFFER, buffer);
+        glObjectLabel(GL_BUFFER, buffer, "UploadRing");
+        glBufferStorage(GL_COPY_READ_BUFFER, size, flags);
+        mapped = glMapBufferRange(GL_COPY_READ_BUFFER, 0, size, flags);
+        glBindBuffer(GL_COPY_READ_BUFFER, 0);
+
+        if (mapped == null) {
+            throw new RuntimeException("Failed to map upload ring buffer");
+        }
+        mappedAddress = MemoryUtil.memAddress(mapped);
+    }
+
+    // Returns space for size bytes of upload data, which must be passed to upload and then release
+    public ByteBuffer allocate(int size) {
+        int alignedOffset = (regionOffset + ALIGNMENT - 1) & -ALIGNMENT;
+        if (alignedOffset + size > regionSize) {
+            // Region is full (or the upload is larger than a region), so fall back to a temporary buffer
+            fallbackUploads++;
+            return MemoryUtil.memAlloc(size);
+        }
+
+        regionOffset = alignedOffset + size;
+        return MemoryUtil.memByteBuffer(mappedAddress + (long) region * regionSize + alignedOffset, size).order(ByteOrder.nativeOrder());
+    }
+
+    // Copies size bytes starting at offset within an allocation into the target buffer
+    public void upload(ByteBuffer allocation, int offset, int size, int targetBuffer, long targetOffset) {
+        long address = MemoryUtil.memAddress0(allocation) + offset;
+        if (isMapped(allocation)) {
+            glCopyNamedBufferSubData(buffer, targetBuffer, address - mappedAddress, targetOffset, size);
+        } else {
+            nglNamedBufferSubData(targetBuffer, targetOffset, size, address);
+        }
+
+        frameBytesUploaded += size;
+        totalBytesUploaded += size;
+    }
+
+    // Copies rows of 8-bit RGBA pixels at the start of an allocation into a texture level, with the ring bound as the
+    // pixel unpack buffer so the driver reads them straight from mapped memory
+    public void uploadTexture(ByteBuffer allocation, int texture, int level, int y, int width, int height) {
+        if (isMapped(allocation)) {
+            glBindBuffer(GL_PIXEL_UNPACK_BUFFER, buffer);
+            glTextureSubImage2D(texture, level, 0, y, width, height, GL_RGBA, GL_UNSIGNED_BYTE, MemoryUtil.memAddress0(allocation) - mappedAddress);
+            glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+        } else {
+            glTextureSubImage2D(texture, level, 0, y, width, height, GL_RGBA, GL_UNSIGNED_BYTE, allocation);
+        }
+
+        long size = (long) width * height * 4;
+        frameBytesUploaded += size;
+        totalBytesUploaded += size;
+    }
+
+    // Same for compressed blocks, the whole allocation is the level's data for the rectangle
+    public void uploadCompressedTexture(ByteBuffer allocation, int texture, int level, int y, int width, int height, int format) {
+        int size = allocation.remaining();
+        if (isMapped(allocation)) {
+            glBindBuffer(GL_PIXEL_UNPACK_BUFFER, buffer);
+            glCompressedTextureSubImage2D(texture, level, 0, y, width, height, format, size, MemoryUtil.memAddress0(allocation) - mappedAddress);
+            glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+        } else {
+            glCompressedTextureSubImage2D(texture, level, 0, y, width, height, format, allocation);
+        }
+
+        frameBytesUploaded += size;
+        totalBytesUploaded += size;
+    }
+
+    public void release(ByteBuffer allocation) {
+        if (!isMapped(allocation)) {
+            MemoryUtil.memFree(allocation);
+        }
+    }
+
+    // Called once the frame's commands have been submitted
+    public void nextFrame() {
+        if (fences[region] != 0) {
+            glDeleteSync(fences[region]);
+        }
+        fences[region] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+
+        region = (region + 1) % FRAMES_IN_FLIGHT;
+        regionOffset = 0;
+
+        // Wait until the GPU has finished with the region written FRAMES_IN_FLIGHT frames ago
+        if (fences[region] != 0) {
+            long start = System.nanoTime();
+            int result = glClientWaitSync(fences[region], 0, 0);
+            while (result == GL_TIMEOUT_EXPIRED) {
+                result = glClientWaitSync(fences[region], GL_SYNC_FLUSH_COMMANDS_BIT, 1_000_000);
+            }
+            long waited = System.nanoTime() - start;
+
+            frameFenceWaitNanos += waited;
+            totalFenceWaitNanos += waited;
+
+            glDeleteSync(fences[region]);
+            fences[region] = 0;
+        }
+
+        lastFrameBytesUploaded = frameBytesUploaded;
+        lastFrameFenceWaitNanos = frameFenceWaitNanos;
+        frameBytesUploaded = 0;
+        frameFenceWaitNanos = 0;
+    }
+
+    public void cleanup() {
+        for (int i = 0; i < FRAMES_IN_FLIGHT; i++) {
+            if (fences[i] != 0) {
+                glDeleteSync(fences[i]);
+                fences[i] = 0;
+            }
+        }
+        glDeleteBuffers(buffer);
+    }
+
+    // Bytes that can still be allocated from the current region without falling back to a temporary buffer
+    public int getRegionRemaining() {
+        return Math.max(0, regionSize - ((regionOffset + ALIGNMENT - 1) & -ALIGNMENT));
+    }
+
+    private boolean isMapped(ByteBuffer allocation) {
+        long address = MemoryUtil.memAddress0(allocation);
+        return address >= mappedAddress && address < mappedAddress + (long) regionSize * FRAMES_IN_FLIGHT;
+    }
+
+    public long getLastFrameBytesUploaded() {
+        return lastFrameBytesUploaded;
+    }
+
+    public long getLastFrameFenceWaitNanos() {
+        return lastFrameFenceWaitNanos;
+    }
+
+    public long getTotalBytesUploaded() {
+        return totalBytesUploaded;
+    }
+
+    public long getTotalFenceWaitNanos() {
+        return totalFenceWaitNanos;
+    }
+
+    public long getFallbackUploads() {
+        return fallbackUploads;
+    }
+}
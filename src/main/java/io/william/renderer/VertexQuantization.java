@@ -0,0 +1,86 @@
+package io.william.renderer;
+
+// Encoding of SceneMesh's quantized vertex format, 16 bytes per vertex:
+//  - position: 3 x unsigned 16-bit, normalized to the mesh's bounds, and 2 bytes of padding
+//  - normal: 2 x signed 16-bit, octahedral encoding of the unit vector
+//  - texture coordinates: 2 x unsigned 16-bit, normalized to the mesh's texture coordinate bounds
+// The vertex attributes are read as normalized integers, so the shaders get values in [0, 1] (or [-1, 1] for the
+// normal) and map them back with each mesh's offset and scale (see MasterRenderer's MeshQuantizationBuffer)
+// The decode methods mirror the shaders, for checking the round trip error on the CPU
+public class VertexQuantization {
+
+    public static final int VERTEX_SIZE = 8 * Short.BYTES;
+
+    private static final int UNORM16_MAX = 65535;
+    private static final int SNORM16_MAX = 32767;
+
+    // value in [offset, offset + scale] to [0, 65535]
+    public static short quantizeUnorm16(float value, float offset, float scale) {
+        if (scale <= 0) {
+            return 0;
+        }
+        float normalized = Math.max(0.0f, Math.min(1.0f, (value - offset) / scale));
+        return (short) Math.round(normalized * UNORM16_MAX);
+    }
+
+    public static float dequantizeUnorm16(short value, float offset, float scale) {
+        return offset + (value & 0xffff) / (float) UNORM16_MAX * scale;
+    }
+
+    // Writes the octahedral encoding of a unit vector into dest[0..1], as signed 16-bit values
+    public static void encodeOctahedral(float x, float y, float z, short[] dest) {
+        float length = Math.abs(x) + Math.abs(y) + Math.abs(z);
+        if (length == 0) {
+            dest[0] = 0;
+            dest[1] = 0;
+            return;
+        }
+
+        float u = x / length;
+        float v = y / length;
+
+        // The lower hemisphere is folded over the diagonals
+        if (z < 0) {
+            float foldedU = (1.0f - Math.abs(v)) * (u >= 0 ? 1.0f : -1.0f);
+            float foldedV = (1.0f - Math.abs(u)) * (v >= 0 ? 1.0f : -1.0f);
+            u = foldedU;
+            v = foldedV;
+        }
+
+        // Rounding to the nearest value isn't always the closest direction once decoded, so all 4 neighbours are tried
+        float scaledU = Math.max(-1.0f, Math.min(1.0f, u)) * SNORM16_MAX;
+        float scaledV = Math.max(-1.0f, Math.min(1.0f, v)) * SNORM16_MAX;
+        float[] decoded = new float[3];
+        float bestDot = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < 4; i++) {
+            short candidateU = (short) ((i & 1) == 0 ? Math.floor(scaledU) : Math.ceil(scaledU));
+            short candidateV = (short) ((i & 2) == 0 ? Math.floor(scaledV) : Math.ceil(scaledV));
+            decodeOctahedral(candidateU, candidateV, decoded);
+
+            float dot = x * decoded[0] + y * decoded[1] + z * decoded[2];
+            if (dot > bestDot) {
+                bestDot = dot;
+                dest[0] = candidateU;
+                dest[1] = candidateV;
+            }
+        }
+    }
+
+    // Writes the unit vector encoded by encodeOctahedral into dest[0..2], the same way as the shaders
+    public static void decodeOctahedral(short encodedU, short encodedV, float[] dest) {
+        float u = Math.max(encodedU / (float) SNORM16_MAX, -1.0f);
+        float v = Math.max(encodedV / (float) SNORM16_MAX, -1.0f);
+
+        float x = u;
+        float y = v;
+        float z = 1.0f - Math.abs(u) - Math.abs(v);
+        float t = Math.max(-z, 0.0f);
+        x += x >= 0 ? -t : t;
+        y += y >= 0 ? -t : t;
+
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        dest[0] = x / length;
+        dest[1] = y / length;
+        dest[2] = z / length;
+    }
+}
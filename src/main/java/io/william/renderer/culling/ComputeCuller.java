@@ -0,0 +1,332 @@
+package io.william.renderer.culling;
+
+import io.william.renderer.MeshData;
+import io.william.renderer.ShaderProgram;
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+import org.joml.Vector4f;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import static org.lwjgl.opengl.GL11.GL_TEXTURE_2D;
+import static org.lwjgl.opengl.GL11.glBindTexture;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.glBindBufferBase;
+import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
+import static org.lwjgl.opengl.GL42.GL_COMMAND_BARRIER_BIT;
+import static org.lwjgl.opengl.GL42.glMemoryBarrier;
+import static org.lwjgl.opengl.GL43.*;
+import static org.lwjgl.opengl.GL46.GL_PARAMETER_BUFFER;
+
+// Frustum culling on the GPU, in three dispatches:
+//  - reset: expands each draw command into a state per LOD with no instances and clears the draw count
+//  - cull: tests each instance, picks a LOD for the visible ones and appends them to the range of that LOD of their
+//    command in the visible instance list
+//  - compact: appends every command and LOD with visible instances to the compacted command list and counts them
+// The compacted commands and the draw count are drawn with glMultiDrawElementsIndirectCount, so nothing is read back
+//
+// With occlusion culling the cull pass also tests instances against a depth pyramid of last frame's depth, and
+// flags the ones it hides. After the visible instances are drawn, cullOccluded builds a pyramid of that depth and
+// runs the three passes again over the flagged instances, appending the ones that have become visible after each
+// command's first phase instances, into a second command list and draw count
+// ComputeCullerReference runs the same passes on the CPU
+public class ComputeCuller {
+
+    private static final int WORKGROUP_SIZE = 64;
+    private static final int DRAW_COMMAND_SIZE = 5 * 4;
+    private static final int COMMAND_LOD_SIZE = 4 * 4;    // first index, count, error, padding
+    private static final int MAX_LODS = MeshData.MAX_LODS;
+
+    private static final int PHASE_FRUSTUM = 0;
+    private static final int PHASE_FIRST = 1;
+    private static final int PHASE_SECOND = 2;
+
+    private final ShaderProgram resetShader;
+    private final ShaderProgram cullShader;
+    private final ShaderProgram compactShader;
+
+    private final int commandBoundsBuffer;
+    private final int commandLodBuffer;
+    private final int commandStateBuffer;
+    private final int compactedIndirectBuffer;
+    private final int drawCountBuffer;
+    private int commandCapacity;
+
+    // Second occlusion culling phase
+    private final DepthPyramid depthPyramid;
+    private final int occludedCommandStateBuffer;
+    private final int occludedIndirectBuffer;
+    private final int occludedDrawCountBuffer;
+    private final int occludedInstanceBuffer;
+    private long occludedInstanceBufferCapacity;
+    private boolean occlusionCulling = true;
+
+    // State of the last cull, for cullOccluded
+    private boolean occlusionTested;
+    private int visibleInstanceBuffer;
+    private int commandCount;
+    private int instanceCount;
+
+    private final Vector4f plane = new Vector4f();
+    private final Vector3f cameraPosition = new Vector3f();
+    private final Matrix4f pyramidViewProjection = new Matrix4f();
+
+    public ComputeCuller() throws Exception {
+        resetShader = new ShaderProgram("Cull Reset");
+        resetShader.createComputeShader("src/main/resources/shaders/culling/reset.comp");
+        resetShader.link();
+        resetShader.createUniform("commandCount");
+        resetShader.createUniform("appendToSource");
+
+        cullShader = new ShaderProgram("Cull");
+        cullShader.createComputeShader("src/main/resources/shaders/culling/cull.comp");
+        cullShader.link();
+        for (int i = 0; i < Frustum.PLANES; i++) {
+            cullShader.createUniform("frustumPlanes[" + i + "]");
+        }
+        cullShader.createUniform("instanceCount");
+        cullShader.createUniform("phase");
+        cullShader.createUniform("pyramidViewProjection");
+        cullShader.createUniform("depthWidth");
+        cullShader.createUniform("depthHeight");
+        cullShader.createUniform("pyramidLevels");
+        cullShader.createUniform("cameraPosition");
+        cullShader.createUniform("lodThreshold");
+
+        compactShader = new ShaderProgram("Cull Compact");
+        compactShader.createComputeShader("src/main/resources/shaders/culling/compact.comp");
+        compactShader.link();
+        compactShader.createUniform("commandCount");
+
+        commandBoundsBuffer = createBuffer(GL_SHADER_STORAGE_BUFFER, "CommandBoundsBuffer");
+        commandLodBuffer = createBuffer(GL_SHADER_STORAGE_BUFFER, "CommandLodBuffer");
+        commandStateBuffer = createBuffer(GL_SHADER_STORAGE_BUFFER, "CommandStateBuffer");
+        compactedIndirectBuffer = createBuffer(GL_DRAW_INDIRECT_BUFFER, "CompactedIndirectBuffer");
+        drawCountBuffer = createBuffer(GL_PARAMETER_BUFFER, "DrawCountBuffer");
+
+        glBindBuffer(GL_PARAMETER_BUFFER, drawCountBuffer);
+        glBufferData(GL_PARAMETER_BUFFER, Integer.BYTES, GL_DYNAMIC_DRAW);
+        glBindBuffer(GL_PARAMETER_BUFFER, 0);
+
+        depthPyramid = new DepthPyramid();
+        occludedCommandStateBuffer = createBuffer(GL_SHADER_STORAGE_BUFFER, "OccludedCommandStateBuffer");
+        occludedIndirectBuffer = createBuffer(GL_DRAW_INDIRECT_BUFFER, "OccludedIndirectBuffer");
+        occludedDrawCountBuffer = createBuffer(GL_PARAMETER_BUFFER, "OccludedDrawCountBuffer");
+        occludedInstanceBuffer = createBuffer(GL_SHADER_STORAGE_BUFFER, "OccludedInstanceBuffer");
+
+        glBindBuffer(GL_PARAMETER_BUFFER, occludedDrawCountBuffer);
+        glBufferData(GL_PARAMETER_BUFFER, Integer.BYTES, GL_DYNAMIC_DRAW);
+        glBindBuffer(GL_PARAMETER_BUFFER, 0);
+    }
+
+    // Uploads the model space bounding sphere of each command and the index range and error of each of its LODs,
+    // in the same order as the draw commands (see FrustumCuller.getLods and getLodErrors)
+    public void updateBounds(float[] spheres, int[] lods, float[] lodErrors, int commandCount) {
+        if (commandCount > commandCapacity) {
+            commandCapacity = Math.max(commandCount + commandCount / 2, 64);
+            long stateSize = (long) commandCapacity * MAX_LODS * DRAW_COMMAND_SIZE;
+
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, commandStateBuffer);
+            glBufferData(GL_SHADER_STORAGE_BUFFER, stateSize, GL_DYNAMIC_COPY);
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, compactedIndirectBuffer);
+            glBufferData(GL_SHADER_STORAGE_BUFFER, stateSize, GL_DYNAMIC_COPY);
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, occludedCommandStateBuffer);
+            glBufferData(GL_SHADER_STORAGE_BUFFER, stateSize, GL_DYNAMIC_COPY);
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, occludedIndirectBuffer);
+            glBufferData(GL_SHADER_STORAGE_BUFFER, stateSize, GL_DYNAMIC_COPY);
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, commandBoundsBuffer);
+            glBufferData(GL_SHADER_STORAGE_BUFFER, (long) commandCapacity * 4 * Float.BYTES, GL_STATIC_DRAW);
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, commandLodBuffer);
+            glBufferData(GL_SHADER_STORAGE_BUFFER, (long) commandCapacity * MAX_LODS * COMMAND_LOD_SIZE, GL_STATIC_DRAW);
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        }
+
+        FloatBuffer buffer = MemoryUtil.memAllocFloat(commandCount * 4);
+        buffer.put(spheres, 0, commandCount * 4).flip();
+
+        ByteBuffer lodBuffer = MemoryUtil.memAlloc(commandCount * MAX_LODS * COMMAND_LOD_SIZE);
+        for (int i = 0; i < commandCount * MAX_LODS; i++) {
+            lodBuffer.putInt(lods[i * 2]);
+            lodBuffer.putInt(lods[i * 2 + 1]);
+            lodBuffer.putFloat(lodErrors[i]);
+            lodBuffer.putInt(0);
+        }
+        lodBuffer.flip();
+
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, commandBoundsBuffer);
+        glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, buffer);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, commandLodBuffer);
+        glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, lodBuffer);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+
+        MemoryUtil.memFree(buffer);
+        MemoryUtil.memFree(lodBuffer);
+    }
+
+    // Expects ModelMeshInstanceBuffer and EntityTransformBuffer to be bound at 0 and 3, and writes the visible
+    // instances into visibleInstanceBuffer, which needs room for MeshData.MAX_LODS times every instance
+    // Instances hidden by the depth pyramid's last build are left for cullOccluded when occlusion culling is on
+    // lodThreshold: the largest LOD error allowed per unit of distance from the camera, 0 to always draw full detail
+    // The compacted command list can hold up to MeshData.MAX_LODS commands per draw command
+    public void cull(Frustum frustum, Vector3fc cameraPosition, float lodThreshold, int indirectBuffer, int visibleInstanceBuffer, int commandCount, int instanceCount) {
+        this.visibleInstanceBuffer = visibleInstanceBuffer;
+        this.commandCount = commandCount;
+        this.instanceCount = instanceCount;
+        occlusionTested = occlusionCulling && depthPyramid.isBuilt();
+
+        if (occlusionTested && (long) instanceCount * Integer.BYTES > occludedInstanceBufferCapacity) {
+            occludedInstanceBufferCapacity = Math.max((long) instanceCount * Integer.BYTES * 3 / 2, 4096);
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, occludedInstanceBuffer);
+            glBufferData(GL_SHADER_STORAGE_BUFFER, occludedInstanceBufferCapacity, GL_DYNAMIC_COPY);
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        }
+
+        float[] planes = frustum.getPlanes();
+        cullShader.bind();
+        for (int i = 0; i < Frustum.PLANES; i++) {
+            cullShader.setUniform("frustumPlanes[" + i + "]", plane.set(planes[i * 4], planes[i * 4 + 1], planes[i * 4 + 2], planes[i * 4 + 3]));
+        }
+        cullShader.setUniform("cameraPosition", this.cameraPosition.set(cameraPosition));
+        cullShader.setUniform("lodThreshold", lodThreshold);
+
+        runPasses(indirectBuffer, false, commandStateBuffer, drawCountBuffer, compactedIndirectBuffer, occlusionTested ? PHASE_FIRST : PHASE_FRUSTUM);
+    }
+
+    // Second phase of occlusion culling, after the instances found by cull have been drawn into depthTexture
+    // Returns false if cull didn't test occlusion, in which case there is nothing more to draw
+    public boolean cullOccluded(int depthTexture, int width, int height, Matrix4fc viewProjection) {
+        if (!occlusionTested) {
+            return false;
+        }
+
+        depthPyramid.build(depthTexture, width, height, viewProjection);
+        runPasses(commandStateBuffer, true, occludedCommandStateBuffer, occludedDrawCountBuffer, occludedIndirectBuffer, PHASE_SECOND);
+        return true;
+    }
+
+    // Builds the depth pyramid that the next frame's first phase tests against
+    public void buildDepthPyramid(int depthTexture, int width, int height, Matrix4fc viewProjection) {
+        if (occlusionCulling) {
+            depthPyramid.build(depthTexture, width, height, viewProjection);
+        }
+    }
+
+    private void runPasses(int sourceCommandBuffer, boolean appendToSource, int stateBuffer, int countBuffer, int compactedBuffer, int phase) {
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 4, visibleInstanceBuffer);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 5, sourceCommandBuffer);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 6, stateBuffer);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 7, commandBoundsBuffer);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 8, countBuffer);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 9, compactedBuffer);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 11, commandLodBuffer);
+        if (phase != PHASE_FRUSTUM) {
+            glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 10, occludedInstanceBuffer);
+            glActiveTexture(GL_TEXTURE0 + DepthPyramid.TEXTURE_UNIT);
+            glBindTexture(GL_TEXTURE_2D, depthPyramid.getTexture());
+            glActiveTexture(GL_TEXTURE0);
+        }
+
+        // Reset
+        resetShader.bind();
+        resetShader.setUniform("commandCount", commandCount);
+        resetShader.setUniform("appendToSource", appendToSource);
+        glDispatchCompute(Math.max(1, groups(commandCount * MAX_LODS)), 1, 1);
+        glMemoryBarrier(GL_SHADER_STORAGE_BARRIER_BIT);
+
+        // Cull
+        cullShader.bind();
+        cullShader.setUniform("instanceCount", instanceCount);
+        cullShader.setUniform("phase", phase);
+        if (phase != PHASE_FRUSTUM) {
+            cullShader.setUniform("pyramidViewProjection", pyramidViewProjection.set(depthPyramid.getViewProjection()));
+            cullShader.setUniform("depthWidth", depthPyramid.getDepthWidth());
+            cullShader.setUniform("depthHeight", depthPyramid.getDepthHeight());
+            cullShader.setUniform("pyramidLevels", depthPyramid.getLevels());
+        }
+        if (instanceCount > 0) {
+            glDispatchCompute(groups(instanceCount), 1, 1);
+        }
+        glMemoryBarrier(GL_SHADER_STORAGE_BARRIER_BIT);
+
+        // Compact
+        compactShader.bind();
+        compactShader.setUniform("commandCount", commandCount);
+        if (commandCount > 0) {
+            glDispatchCompute(groups(commandCount * MAX_LODS), 1, 1);
+        }
+        glMemoryBarrier(GL_COMMAND_BARRIER_BIT | GL_SHADER_STORAGE_BARRIER_BIT);
+
+        compactShader.unbind();
+
+        if (phase != PHASE_FRUSTUM) {
+            glActiveTexture(GL_TEXTURE0 + DepthPyramid.TEXTURE_UNIT);
+            glBindTexture(GL_TEXTURE_2D, 0);
+            glActiveTexture(GL_TEXTURE0);
+        }
+    }
+
+    public void cleanup() {
+        resetShader.cleanup();
+        cullShader.cleanup();
+        compactShader.cleanup();
+        glDeleteBuffers(commandBoundsBuffer);
+        glDeleteBuffers(commandLodBuffer);
+        glDeleteBuffers(commandStateBuffer);
+        glDeleteBuffers(compactedIndirectBuffer);
+        glDeleteBuffers(drawCountBuffer);
+        depthPyramid.cleanup();
+        glDeleteBuffers(occludedCommandStateBuffer);
+        glDeleteBuffers(occludedIndirectBuffer);
+        glDeleteBuffers(occludedDrawCountBuffer);
+        glDeleteBuffers(occludedInstanceBuffer);
+    }
+
+    private static int groups(int count) {
+        return (count + WORKGROUP_SIZE - 1) / WORKGROUP_SIZE;
+    }
+
+    private static int createBuffer(int target, String label) {
+        int buffer = glGenBuffers();
+        glBindBuffer(target, buffer);
+        glObjectLabel(GL_BUFFER, buffer, label);
+        glBindBuffer(target, 0);
+        return buffer;
+    }
+
+    public int getCompactedIndirectBuffer() {
+        return compactedIndirectBuffer;
+    }
+
+    public int getDrawCountBuffer() {
+        return drawCountBuffer;
+    }
+
+    public int getOccludedIndirectBuffer() {
+        return occludedIndirectBuffer;
+    }
+
+    public int getOccludedDrawCountBuffer() {
+        return occludedDrawCountBuffer;
+    }
+
+    public DepthPyramid getDepthPyramid() {
+        return depthPyramid;
+    }
+
+    public boolean isOcclusionCulling() {
+        return occlusionCulling;
+    }
+
+    public void setOcclusionCulling(boolean occlusionCulling) {
+        this.occlusionCulling = occlusionCulling;
+        if (!occlusionCulling) {
+            depthPyramid.invalidate();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package io.william.renderer.culling;
+
+import io.william.renderer.MeshData;
+import org.joml.Matrix4fc;
+import org.joml.Vector3fc;
+
+// CPU version of the culling compute shaders, running the same reset, cull and compact passes serially so that
+// their output can be checked without a GPU. Atomic adds become plain increments, so instances and commands come
+// out in order here, while on the GPU their order within each range is arbitrary
+// Draw commands are expanded into one state per LOD, like FrustumCuller, with LODs chosen the same way
+// Also mirrors depth_pyramid.comp and the occlusion test, working on depth values in [0, 1] stored row by row
+public class ComputeCullerReference {
+
+    private static final int COMMAND_SIZE = 5;
+    private static final int MAX_LODS = MeshData.MAX_LODS;
+
+    // commands: count, instance count, first index, base vertex, base instance per command
+    // spheres: model space bounding sphere (x, y, z, radius) per command
+    // lods, lodErrors: first index and count, and error per command and LOD, as from FrustumCuller
+    // cameraPosition, lodThreshold: as for ComputeCuller.cull
+    // instanceCommands, instanceTransforms: command and transform index per model mesh instance
+    // previousTransforms, currentTransforms: world matrices per transform index
+    // commandState: per command and LOD scratch space, in the same layout as commands
+    // visibleInstances: indexed by the base instance of each command and LOD, so it needs room for MAX_LODS times
+    // every instance
+    // compactedCommands: commands and LODs with at least one visible instance
+    // Returns the draw count
+    public static int cull(Frustum frustum, int[] commands, float[] spheres, int[] lods, float[] lodErrors, int commandCount,
+                           Vector3fc cameraPosition, float lodThreshold,
+                           int[] instanceCommands, int[] instanceTransforms, int instanceCount,
+                           Matrix4fc[] previousTransforms, Matrix4fc[] currentTransforms,
+                           int[] commandState, int[] visibleInstances, int[] compactedCommands) {
+        return cull(frustum, commands, spheres, lods, lodErrors, commandCount, cameraPosition, lodThreshold,
+            instanceCommands, instanceTransforms, instanceCount, previousTransforms, currentTransforms,
+            null, 0, 0, null, null, commandState, visibleInstances, compactedCommands);
+    }
+
+    // First occlusion culling phase, or frustum culling alone if depthPyramid is null
+    // depthPyramid: levels from buildDepthPyramid, built from depth drawn with pyramidViewProjection
+    // occludedInstances: set to 1 for instances inside the frustum that the depth pyramid hides, 0 otherwise
+    public static int cull(Frustum frustum, int[] commands, float[] spheres, int[] lods, float[] lodErrors, int commandCount,
+                           Vector3fc cameraPosition, float lodThreshold,
+                           int[] instanceCommands, int[] instanceTransforms, int instanceCount,
+                           Matrix4fc[] previousTransforms, Matrix4fc[] currentTransforms,
+                           float[][] depthPyramid, int depthWidth, int depthHeight, Matrix4fc pyramidViewProjection, int[] occludedInstances,
+                           int[] commandState, int[] visibleInstances, int[] compactedCommands) {
+        // Reset
+        reset(commands, lods, commandCount, false, commandState);
+
+        // Cull
+        float[] current = new float[4];
+        float[] previous = new float[4];
+        for (int instance = 0; instance < instanceCount; instance++) {
+            int command = instanceCommands[instance];
+            int transform = instanceTransforms[instance];
+            worldSphere(currentTransforms[transform], spheres, command, current);
+            worldSphere(previousTransforms[transform], spheres, command, previous);
+
+            // Test where the instance is and where it was, as it is drawn somewhere in between while interpolating
+            boolean visible = frustum.testSphere(current[0], current[1], current[2], current[3])
+                || frustum.testSphere(previous[0], previous[1], previous[2], previous[3]);
+
+            if (depthPyramid != null) {
+                boolean occluded = visible
+                    && isOccluded(depthPyramid, depthWidth, depthHeight, pyramidViewProjection, current[0], current[1], current[2], current[3])
+                    && isOccluded(depthPyramid, depthWidth, depthHeight, pyramidViewProjection, previous[0], previous[1], previous[2], previous[3]);
+                occludedInstances[instance] = occluded ? 1 : 0;
+                visible = visible && !occluded;
+            }
+
+            if (visible) {
+                int lod = selectLod(currentTransforms[transform], lodErrors, command, current, cameraPosition, lodThreshold);
+                append(commandState, command * MAX_LODS + lod, instance, visibleInstances);
+            }
+        }
+
+        // Compact
+        return compact(commandState, commandCount, compactedCommands);
+    }
+
+    // Second occlusion culling phase: re-tests the instances the first phase flagged against a depth pyramid of
+    // the depth drawn by it, appending the visible ones after each command's first phase instances
+    // commandState: the first phase's state, left unchanged
+    // occludedCommandState: second phase scratch space, in the same layout as commands
+    // Returns the second phase's draw count
+    public static int cullOccluded(int[] commandState, float[] spheres, float[] lodErrors, int commandCount,
+                                   Vector3fc cameraPosition, float lodThreshold,
+                                   int[] instanceCommands, int[] instanceTransforms, int instanceCount,
+                                   Matrix4fc[] previousTransforms, Matrix4fc[] currentTransforms, int[] occludedInstances,
+                                   float[][] depthPyramid, int depthWidth, int depthHeight, Matrix4fc viewProjection,
+                                   int[] occludedCommandState, int[] visibleInstances, int[] compactedCommands) {
+        // Reset
+        reset(commandState, null, commandCount, true, occludedCommandState);
+
+        // Cull
+        float[] current = new float[4];
+        float[] previous = new float[4];
+        for (int instance = 0; instance < instanceCount; instance++) {
+            if (occludedInstances[instance] == 0) {
+                continue;
+            }
+
+            int command = instanceCommands[instance];
+            int transform = instanceTransforms[instance];
+            worldSphere(currentTransforms[transform], spheres, command, current);
+            worldSphere(previousTransforms[transform], spheres, command, previous);
+
+            if (!isOccluded(depthPyramid, depthWidth, depthHeight, viewProjection, current[0], current[1], current[2], current[3])
+                || !isOccluded(depthPyramid, depthWidth, depthHeight, viewProjection, previous[0], previous[1], previous[2], previous[3])) {
+                int lod = selectLod(currentTransforms[transform], lodErrors, command, current, cameraPosition, lodThreshold);
+                append(occludedCommandState, command * MAX_LODS + lod, instance, visibleInstances);
+            }
+        }
+
+        // Compact
+        return compact(occludedCommandState, commandCount, compactedCommands);
+    }
+
+    // Returns the levels of the depth pyramid for a width x height depth buffer, each one row by row
+    public static float[][] buildDepthPyramid(float[] depth, int width, int height) {
+        int levels = DepthPyramid.levelCount(width, height);
+        float[][] pyramid = new float[levels][];
+
+        float[] source = depth;
+        int sourceWidth = width;
+        int sourceHeight = height;
+        for (int level = 0; level < levels; level++) {
+            int levelWidth = DepthPyramid.levelSize(width, level);
+            int levelHeight = DepthPyramid.levelSize(height, level);
+            float[] destination = new float[levelWidth * levelHeight];
+
+            for (int y = 0; y < levelHeight; y++) {
+                // The last texel along an odd axis also covers the extra row or column
+                int footprintY = y == levelHeight - 1 && (sourceHeight & 1) != 0 ? 3 : 2;
+                for (int x = 0; x < levelWidth; x++) {
+                    int footprintX = x == levelWidth - 1 && (sourceWidth & 1) != 0 ? 3 : 2;
+
+                    float max = 0.0f;
+                    for (int j = 0; j < footprintY; j++) {
+                        int sy = Math.min(y * 2 + j, sourceHeight - 1);
+                        for (int i = 0; i < footprintX; i++) {
+                            int sx = Math.min(x * 2 + i, sourceWidth - 1);
+                            max = Math.max(max, source[sy * sourceWidth + sx]);
+                        }
+                    }
+                    destination[y * levelWidth + x] = max;
+                }
+            }
+
+            pyramid[level] = destination;
+            source = destination;
+            sourceWidth = levelWidth;
+            sourceHeight = levelHeight;
+        }
+
+        return pyramid;
+    }
+
+    // True if the world space sphere's box projects behind the farthest depth of every pyramid texel it covers
+    public static boolean isOccluded(float[][] depthPyramid, int depthWidth, int depthHeight, Matrix4fc viewProjection,
+                                     float x, float y, float z, float radius) {
+        float minU = 1.0f, minV = 1.0f;
+        float maxU = 0.0f, maxV = 0.0f;
+        float minDepth = 1.0f;
+        for (int i = 0; i < 8; i++) {
+            float cornerX = x + ((i & 1) != 0 ? radius : -radius);
+            float cornerY = y + ((i & 2) != 0 ? radius : -radius);
+            float cornerZ = z + ((i & 4) != 0 ? radius : -radius);
+
+            float clipX = viewProjection.m00() * cornerX + viewProjection.m10() * cornerY + viewProjection.m20() * cornerZ + viewProjection.m30();
+            float clipY = viewProjection.m01() * cornerX + viewProjection.m11() * cornerY + viewProjection.m21() * cornerZ + viewProjection.m31();
+            float clipZ = viewProjection.m02() * cornerX + viewProjection.m12() * cornerY + viewProjection.m22() * cornerZ + viewProjection.m32();
+            float clipW = viewProjection.m03() * cornerX + viewProjection.m13() * cornerY + viewProjection.m23() * cornerZ + viewProjection.m33();
+
+            // Boxes crossing the near plane can't be projected
+            if (clipZ < -clipW) {
+                return false;
+            }
+
+            float u = clipX / clipW * 0.5f + 0.5f;
+            float v = clipY / clipW * 0.5f + 0.5f;
+            minU = Math.min(minU, u);
+            minV = Math.min(minV, v);
+            maxU = Math.max(maxU, u);
+            maxV = Math.max(maxV, v);
+            minDepth = Math.min(minDepth, clipZ / clipW * 0.5f + 0.5f);
+        }
+
+        int minX = clamp((int) Math.floor(minU * depthWidth), depthWidth - 1);
+        int minY = clamp((int) Math.floor(minV * depthHeight), depthHeight - 1);
+        int maxX = clamp((int) Math.floor(maxU * depthWidth), depthWidth - 1);
+        int maxY = clamp((int) Math.floor(maxV * depthHeight), depthHeight - 1);
+
+        // Lowest level where the rectangle covers at most 2x2 texels, each covering 2^(level + 1) pixels
+        int extent = Math.max(maxX - minX, maxY - minY) + 1;
+        int level = Math.min(31 - Integer.numberOfLeadingZeros(extent - 1), depthPyramid.length - 1);
+        level = Math.max(level, 0);
+
+        int levelWidth = DepthPyramid.levelSize(depthWidth, level);
+        int levelHeight = DepthPyramid.levelSize(depthHeight, level);
+        int ax = Math.min(minX >> (level + 1), levelWidth - 1);
+        int ay = Math.min(minY >> (level + 1), levelHeight - 1);
+        int bx = Math.min(maxX >> (level + 1), levelWidth - 1);
+        int by = Math.min(maxY >> (level + 1), levelHeight - 1);
+
+        float[] texels = depthPyramid[level];
+        float maxDepth = Math.max(
+            Math.max(texels[ay * levelWidth + ax], texels[ay * levelWidth + bx]),
+            Math.max(texels[by * levelWidth + ax], texels[by * levelWidth + bx])
+        );
+
+        return minDepth > maxDepth;
+    }
+
+    // source: the draw commands, or the previous phase's state when appending to it
+    private static void reset(int[] source, int[] lods, int commandCount, boolean appendToSource, int[] commandState) {
+        for (int state = 0; state < commandCount * MAX_LODS; state++) {
+            int s = state * COMMAND_SIZE;
+            if (appendToSource) {
+                System.arraycopy(source, s, commandState, s, COMMAND_SIZE);
+                commandState[s + 4] += commandState[s + 1];
+            } else {
+                int c = state / MAX_LODS * COMMAND_SIZE;
+                int lod = state % MAX_LODS;
+                commandState[s] = lods[state * 2 + 1];
+                commandState[s + 2] = lods[state * 2];
+                commandState[s + 3] = source[c + 3];
+                commandState[s + 4] = source[c + 4] * MAX_LODS + lod * source[c + 1];
+            }
+            commandState[s + 1] = 0;
+        }
+    }
+
+    private static int selectLod(Matrix4fc m, float[] lodErrors, int command, float[] sphere, Vector3fc cameraPosition, float lodThreshold) {
+        float x = sphere[0] - cameraPosition.x();
+        float y = sphere[1] - cameraPosition.y();
+        float z = sphere[2] - cameraPosition.z();
+        float distance = Math.max((float) Math.sqrt(x * x + y * y + z * z) - sphere[3], 0.0f);
+        return FrustumCuller.selectLod(lodErrors, command, Frustum.maxScale(m), distance, lodThreshold);
+    }
+
+    private static void append(int[] commandState, int state, int instance, int[] visibleInstances) {
+        int slot = commandState[state * COMMAND_SIZE + 1]++;
+        visibleInstances[commandState[state * COMMAND_SIZE + 4] + slot] = instance;
+    }
+
+    private static int compact(int[] commandState, int commandCount, int[] compactedCommands) {
+        int drawCount = 0;
+        for (int state = 0; state < commandCount * MAX_LODS; state++) {
+            if (commandState[state * COMMAND_SIZE + 1] > 0) {
+                System.arraycopy(commandState, state * COMMAND_SIZE, compactedCommands, drawCount * COMMAND_SIZE, COMMAND_SIZE);
+                drawCount++;
+            }
+        }
+        return drawCount;
+    }
+
+    // Same transform as Frustum.testSphere, scaling the radius by the largest axis scale
+    private static void worldSphere(Matrix4fc m, float[] spheres, int command, float[] dest) {
+        float x = spheres[command * 4];
+        float y = spheres[command * 4 + 1];
+        float z = spheres[command * 4 + 2];
+
+        dest[0] = m.m00() * x + m.m10() * y + m.m20() * z + m.m30();
+        dest[1] = m.m01() * x + m.m11() * y + m.m21() * z + m.m31();
+        dest[2] = m.m02() * x + m.m12() * y + m.m22() * z + m.m32();
+        dest[3] = spheres[command * 4 + 3] * Frustum.maxScale(m);
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(value, max));
+    }
+}
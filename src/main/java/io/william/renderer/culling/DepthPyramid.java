@@ -0,0 +1,143 @@
+package io.william.renderer.culling;
+
+import io.william.renderer.ShaderProgram;
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL15.GL_READ_ONLY;
+import static org.lwjgl.opengl.GL15.GL_WRITE_ONLY;
+import static org.lwjgl.opengl.GL30.GL_R32F;
+import static org.lwjgl.opengl.GL42.*;
+import static org.lwjgl.opengl.GL43.*;
+
+// Hierarchical depth buffer: a mip chain where each texel holds the farthest depth of the pixels under it, so that
+// one to four texel fetches tell whether a screen rectangle is hidden. Level 0 is half the depth buffer's resolution
+// and each level halves the one below, rounding down like any mip chain, with odd rows and columns folded into
+// the last texel
+// Also keeps the view-projection matrix of the depth it was built from, which occlusion tests have to project with
+public class DepthPyramid {
+
+    // Texture unit for the depth pyramid and its source, above the units the scene shaders use
+    public static final int TEXTURE_UNIT = 15;
+
+    private static final int WORKGROUP_SIZE = 8;
+
+    private final ShaderProgram shader;
+    private int texture;
+    private int depthWidth;
+    private int depthHeight;
+    private int levels;
+    private boolean built;
+
+    private final Matrix4f viewProjection = new Matrix4f();
+
+    public DepthPyramid() throws Exception {
+        shader = new ShaderProgram("Depth Pyramid");
+        shader.createComputeShader("src/main/resources/shaders/culling/depth_pyramid.comp");
+        shader.link();
+        shader.createUniform("sourceLevel");
+    }
+
+    public void build(int depthTexture, int width, int height, Matrix4fc viewProjection) {
+        if (width != depthWidth || height != depthHeight) {
+            createTexture(width, height);
+        }
+
+        shader.bind();
+        glActiveTexture(GL_TEXTURE0 + TEXTURE_UNIT);
+
+        for (int level = 0; level < levels; level++) {
+            // Level 0 reduces the depth buffer itself
+            glBindTexture(GL_TEXTURE_2D, level == 0 ? depthTexture : texture);
+            shader.setUniform("sourceLevel", level == 0 ? 0 : level - 1);
+            glBindImageTexture(0, texture, level, false, 0, GL_WRITE_ONLY, GL_R32F);
+
+            glDispatchCompute(groups(levelSize(width, level)), groups(levelSize(height, level)), 1);
+            glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT | GL_TEXTURE_FETCH_BARRIER_BIT);
+        }
+
+        glBindImageTexture(0, 0, 0, false, 0, GL_READ_ONLY, GL_R32F);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        glActiveTexture(GL_TEXTURE0);
+        shader.unbind();
+
+        this.viewProjection.set(viewProjection);
+        built = true;
+    }
+
+    // Size of a level along an axis that is size pixels long in the depth buffer
+    // Pixel p falls in texel min(p >> (level + 1), levelSize - 1)
+    public static int levelSize(int size, int level) {
+        return Math.max(1, size >> (level + 1));
+    }
+
+    public static int levelCount(int width, int height) {
+        int size = Math.max(levelSize(width, 0), levelSize(height, 0));
+        return 32 - Integer.numberOfLeadingZeros(size);
+    }
+
+    public void cleanup() {
+        shader.cleanup();
+        if (texture != 0) {
+            glDeleteTextures(texture);
+        }
+    }
+
+    private void createTexture(int width, int height) {
+        if (texture != 0) {
+            glDeleteTextures(texture);
+        }
+
+        depthWidth = width;
+        depthHeight = height;
+        levels = levelCount(width, height);
+
+        texture = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glObjectLabel(GL_TEXTURE, texture, "DepthPyramid");
+        glTexStorage2D(GL_TEXTURE_2D, levels, GL_R32F, levelSize(width, 0), levelSize(height, 0));
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST_MIPMAP_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        built = false;
+    }
+
+    private static int groups(int count) {
+        return (count + WORKGROUP_SIZE - 1) / WORKGROUP_SIZE;
+    }
+
+    public int getTexture() {
+        return texture;
+    }
+
+    public int getDepthWidth() {
+        return depthWidth;
+    }
+
+    public int getDepthHeight() {
+        return depthHeight;
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    // Makes occlusion tests wait for the next build, e.g. after the pyramid has stopped being kept up to date
+    public void invalidate() {
+        built = false;
+    }
+
+    public boolean isBuilt() {
+        return built;
+    }
+
+    public Matrix4fc getViewProjection() {
+        return viewProjection;
+    }
+}
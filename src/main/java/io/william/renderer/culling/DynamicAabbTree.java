@@ -0,0 +1,603 @@
+package io.william.renderer.culling;
+
+import java.util.Arrays;
+
+// Bounding volume hierarchy of axis-aligned boxes that can be changed one leaf at a time
+// Leaves store fattened boxes so that small moves don't touch the tree, and moves that escape them refit the
+// leaf's ancestors. Refitting slowly makes the tree worse, so it is rebuilt with a binned SAH once it has degraded
+// Proxies (leaf node indices) stay valid across rebuilds. Queries reuse a shared stack and aren't thread-safe
+public class DynamicAabbTree<T> {
+
+    @FunctionalInterface
+    public interface Visitor<T> {
+        void visit(T value);
+    }
+
+    @FunctionalInterface
+    public interface RayVisitor<T> {
+        // Called for each leaf box the ray hits, returning the new maximum distance of the ray
+        float visit(T value, float distance);
+    }
+
+    public static final int NULL = -1;
+
+    private static final float FAT_MARGIN = 0.1f;  // fraction of the box size added on each side
+    private static final float MIN_FAT_MARGIN = 0.01f;
+    private static final float REBUILD_COST_RATIO = 1.5f;
+    private static final int BINS = 12;
+
+    private int root = NULL;
+    private int capacity;
+    private int nodeCount;
+    private int leafCount;
+    private int freeList = NULL;
+
+    // Per node, with children set to NULL for leaves and parent doubling as the next free node
+    private float[] bounds;  // min x, y, z, max x, y, z
+    private int[] parents;
+    private int[] lefts;
+    private int[] rights;
+    private int[] heights;
+    private Object[] values;
+
+    private int updatesSinceRebuild;
+    private float costAfterRebuild;
+
+    private int[] stack = new int[64];
+    private int[] leaves = new int[0];
+    private final int[] binCounts = new int[BINS];
+    private final float[] binBounds = new float[BINS * 6];
+
+    public DynamicAabbTree() {
+        allocateNodes(16);
+    }
+
+    // Returns the proxy of the new leaf
+    public int insert(T value, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        int leaf = allocateNode();
+        setFatBounds(leaf, minX, minY, minZ, maxX, maxY, maxZ);
+        values[leaf] = value;
+        heights[leaf] = 0;
+        leafCount++;
+
+        insertLeaf(leaf);
+        return leaf;
+    }
+
+    public void remove(int proxy) {
+        removeLeaf(proxy);
+        values[proxy] = null;
+        freeNode(proxy);
+        leafCount--;
+    }
+
+    // Returns true if the box escaped the leaf's fattened box, in which case the leaf and its ancestors are refitted
+    public boolean update(int proxy, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        int b = proxy * 6;
+        if (bounds[b] <= minX && bounds[b + 1] <= minY && bounds[b + 2] <= minZ &&
+                bounds[b + 3] >= maxX && bounds[b + 4] >= maxY && bounds[b + 5] >= maxZ) {
+            return false;
+        }
+
+        setFatBounds(proxy, minX, minY, minZ, maxX, maxY, maxZ);
+        refit(parents[proxy]);
+        updatesSinceRebuild++;
+        return true;
+    }
+
+    // Rebuilds the tree once enough leaves have been refitted and its cost has grown past the cost after the last rebuild
+    public boolean rebuildIfDegraded() {
+        if (updatesSinceRebuild < Math.max(leafCount / 4, 64)) {
+            return false;
+        }
+        updatesSinceRebuild = 0;
+
+        if (getCost() <= costAfterRebuild * REBUILD_COST_RATIO) {
+            return false;
+        }
+        rebuild();
+        return true;
+    }
+
+    // Top-down rebuild of the internal nodes over the existing leaves, splitting each range where the binned surface area heuristic is lowest
+    public void rebuild() {
+        if (leaves.length < leafCount) {
+            leaves = new int[leafCount];
+        }
+
+        // Collect the leaves and free every internal node
+        int count = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (heights[i] == 0 && values[i] != null) {
+                leaves[count++] = i;
+            } else if (heights[i] > 0) {
+                freeNode(i);
+            }
+        }
+
+        root = count == 0 ? NULL : build(0, count);
+        if (root != NULL) {
+            parents[root] = NULL;
+        }
+
+        updatesSinceRebuild = 0;
+        costAfterRebuild = getCost();
+    }
+
+    public void clear() {
+        root = NULL;
+        nodeCount = 0;
+        leafCount = 0;
+        updatesSinceRebuild = 0;
+        costAfterRebuild = 0;
+        Arrays.fill(values, null);
+        Arrays.fill(heights, -1);
+        freeList = NULL;
+        for (int i = capacity - 1; i >= 0; i--) {
+            parents[i] = freeList;
+            freeList = i;
+        }
+    }
+
+    public void queryAabb(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, Visitor<T> visitor) {
+        int top = push(0, root);
+        while (top > 0) {
+            int node = stack[--top];
+            int b = node * 6;
+            if (bounds[b] > maxX || bounds[b + 1] > maxY || bounds[b + 2] > maxZ ||
+                    bounds[b + 3] < minX || bounds[b + 4] < minY || bounds[b + 5] < minZ) {
+                continue;
+            }
+            top = visitOrPush(node, top, visitor);
+        }
+    }
+
+    public void querySphere(float x, float y, float z, float radius, Visitor<T> visitor) {
+        float radiusSquared = radius * radius;
+        int top = push(0, root);
+        while (top > 0) {
+            int node = stack[--top];
+            int b = node * 6;
+
+            // Squared distance from the centre to the closest point of the box
+            float dx = Math.max(Math.max(bounds[b] - x, 0), x - bounds[b + 3]);
+            float dy = Math.max(Math.max(bounds[b + 1] - y, 0), y - bounds[b + 4]);
+            float dz = Math.max(Math.max(bounds[b + 2] - z, 0), z - bounds[b + 5]);
+            if (dx * dx + dy * dy + dz * dz > radiusSquared) {
+                continue;
+            }
+            top = visitOrPush(node, top, visitor);
+        }
+    }
+
+    public void queryFrustum(Frustum frustum, Visitor<T> visitor) {
+        int top = push(0, root);
+        while (top > 0) {
+            int node = stack[--top];
+            int b = node * 6;
+            if (!frustum.testAab(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3], bounds[b + 4], bounds[b + 5])) {
+                continue;
+            }
+            top = visitOrPush(node, top, visitor);
+        }
+    }
+
+    // Visits the leaves whose boxes the ray hits within maxDistance, in no particular order
+    // The visitor can shorten the ray, e.g. to the closest hit so far, to skip boxes further away
+    public void raycast(float originX, float originY, float originZ, float directionX, float directionY, float directionZ, float maxDistance, RayVisitor<T> visitor) {
+        float inverseX = 1.0f / directionX;
+        float inverseY = 1.0f / directionY;
+        float inverseZ = 1.0f / directionZ;
+
+        int top = push(0, root);
+        while (top > 0) {
+            int node = stack[--top];
+            int b = node * 6;
+
+            // Slab test
+            float t1 = (bounds[b] - originX) * inverseX;
+            float t2 = (bounds[b + 3] - originX) * inverseX;
+            float tMin = Math.min(t1, t2);
+            float tMax = Math.max(t1, t2);
+            t1 = (bounds[b + 1] - originY) * inverseY;
+            t2 = (bounds[b + 4] - originY) * inverseY;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+            t1 = (bounds[b + 2] - originZ) * inverseZ;
+            t2 = (bounds[b + 5] - originZ) * inverseZ;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+
+            if (tMax < Math.max(tMin, 0) || tMin > maxDistance) {
+                continue;
+            }
+
+            if (lefts[node] == NULL) {
+                @SuppressWarnings("unchecked")
+                T value = (T) values[node];
+                maxDistance = Math.min(maxDistance, visitor.visit(value, Math.max(tMin, 0)));
+            } else {
+                top = push(top, lefts[node]);
+                top = push(top, rights[node]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public T getValue(int proxy) {
+        return (T) values[proxy];
+    }
+
+    // Fattened box of a node (min x, y, z, max x, y, z at index node * 6)
+    public float[] getBounds() {
+        return bounds;
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getHeight() {
+        return root == NULL ? 0 : heights[root];
+    }
+
+    // Sum of the surface areas of the internal nodes, which is proportional to the expected cost of a query
+    public float getCost() {
+        float cost = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (heights[i] > 0) {
+                cost += surfaceArea(i);
+            }
+        }
+        return cost;
+    }
+
+    private int visitOrPush(int node, int top, Visitor<T> visitor) {
+        if (lefts[node] == NULL) {
+            @SuppressWarnings("unchecked")
+            T value = (T) values[node];
+            visitor.visit(value);
+            return top;
+        }
+        top = push(top, lefts[node]);
+        return push(top, rights[node]);
+    }
+
+    private int push(int top, int node) {
+        if (node == NULL) {
+            return top;
+        }
+        if (top == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[top] = node;
+        return top + 1;
+    }
+
+    private void insertLeaf(int leaf) {
+        if (root == NULL) {
+            root = leaf;
+            parents[leaf] = NULL;
+            return;
+        }
+
+        // Walk down towards the sibling that increases the total surface area the least
+        int l = leaf * 6;
+        int index = root;
+        while (lefts[index] != NULL) {
+            int left = lefts[index];
+            int right = rights[index];
+
+            float area = surfaceArea(index);
+            float combinedArea = unionArea(index, l);
+
+            // Cost of making the leaf a sibling of this node, and the cost pushed down to either child
+            float cost = 2.0f * combinedArea;
+            float inheritanceCost = 2.0f * (combinedArea - area);
+            float leftCost = unionArea(left, l) + inheritanceCost - (lefts[left] == NULL ? 0 : surfaceArea(left));
+            float rightCost = unionArea(right, l) + inheritanceCost - (lefts[right] == NULL ? 0 : surfaceArea(right));
+
+            if (cost < leftCost && cost < rightCost) {
+                break;
+            }
+            index = leftCost < rightCost ? left : right;
+        }
+
+        int sibling = index;
+        int oldParent = parents[sibling];
+        int newParent = allocateNode();
+        parents[newParent] = oldParent;
+        values[newParent] = null;
+        lefts[newParent] = sibling;
+        rights[newParent] = leaf;
+        parents[sibling] = newParent;
+        parents[leaf] = newParent;
+
+        if (oldParent == NULL) {
+            root = newParent;
+        } else if (lefts[oldParent] == sibling) {
+            lefts[oldParent] = newParent;
+        } else {
+            rights[oldParent] = newParent;
+        }
+
+        refit(newParent);
+    }
+
+    private void removeLeaf(int leaf) {
+        if (leaf == root) {
+            root = NULL;
+            return;
+        }
+
+        int parent = parents[leaf];
+        int grandParent = parents[parent];
+        int sibling = lefts[parent] == leaf ? rights[parent] : lefts[parent];
+
+        // Replace the parent with the sibling
+        if (grandParent == NULL) {
+            root = sibling;
+            parents[sibling] = NULL;
+        } else {
+            if (lefts[grandParent] == parent) {
+                lefts[grandParent] = sibling;
+            } else {
+                rights[grandParent] = sibling;
+            }
+            parents[sibling] = grandParent;
+        }
+        freeNode(parent);
+
+        refit(grandParent);
+    }
+
+    // Recalculates the boxes and heights of a node and its ancestors
+    private void refit(int node) {
+        while (node != NULL) {
+            int left = lefts[node];
+            int right = rights[node];
+            setUnion(node, left, right);
+            heights[node] = 1 + Math.max(heights[left], heights[right]);
+            node = parents[node];
+        }
+    }
+
+    private int build(int start, int end) {
+        if (end - start == 1) {
+            return leaves[start];
+        }
+
+        // Bounds of the leaf centroids
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for (int i = start; i < end; i++) {
+            int b = leaves[i] * 6;
+            float x = bounds[b] + bounds[b + 3];
+            float y = bounds[b + 1] + bounds[b + 4];
+            float z = bounds[b + 2] + bounds[b + 5];
+            minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+            minZ = Math.min(minZ, z); maxZ = Math.max(maxZ, z);
+        }
+
+        // Split along the axis where the centroids are most spread out
+        int axis = 0;
+        float axisMin = minX;
+        float extent = maxX - minX;
+        if (maxY - minY > extent) {
+            axis = 1;
+            axisMin = minY;
+            extent = maxY - minY;
+        }
+        if (maxZ - minZ > extent) {
+            axis = 2;
+            axisMin = minZ;
+            extent = maxZ - minZ;
+        }
+
+        int mid = start + (end - start) / 2;
+        if (extent > 0) {
+            int split = findSplit(start, end, axis, axisMin, extent);
+            if (split > 0) {
+                mid = partition(start, end, axis, axisMin, extent, split);
+            }
+        }
+        if (mid == start || mid == end) {
+            mid = start + (end - start) / 2;
+        }
+
+        int left = build(start, mid);
+        int right = build(mid, end);
+
+        int node = allocateNode();
+        values[node] = null;
+        lefts[node] = left;
+        rights[node] = right;
+        parents[left] = node;
+        parents[right] = node;
+        setUnion(node, left, right);
+        heights[node] = 1 + Math.max(heights[left], heights[right]);
+        return node;
+    }
+
+    // Returns the first bin of the right half of the cheapest split, or 0 if there is none
+    private int findSplit(int start, int end, int axis, float axisMin, float extent) {
+        Arrays.fill(binCounts, 0);
+        for (int i = 0; i < BINS; i++) {
+            resetBounds(binBounds, i * 6);
+        }
+
+        for (int i = start; i < end; i++) {
+            int b = leaves[i] * 6;
+            int bin = bin(b, axis, axisMin, extent);
+            binCounts[bin]++;
+            growBounds(binBounds, bin * 6, bounds, b);
+        }
+
+        // Sweep the splits between bins, with the right side accumulated from the last bin
+        float bestCost = Float.POSITIVE_INFINITY;
+        int bestSplit = 0;
+        for (int split = 1; split < BINS; split++) {
+            float leftMinX = Float.POSITIVE_INFINITY, leftMinY = Float.POSITIVE_INFINITY, leftMinZ = Float.POSITIVE_INFINITY;
+            float leftMaxX = Float.NEGATIVE_INFINITY, leftMaxY = Float.NEGATIVE_INFINITY, leftMaxZ = Float.NEGATIVE_INFINITY;
+            int leftCount = 0;
+            for (int i = 0; i < split; i++) {
+                if (binCounts[i] == 0) continue;
+                int b = i * 6;
+                leftMinX = Math.min(leftMinX, binBounds[b]); leftMaxX = Math.max(leftMaxX, binBounds[b + 3]);
+                leftMinY = Math.min(leftMinY, binBounds[b + 1]); leftMaxY = Math.max(leftMaxY, binBounds[b + 4]);
+                leftMinZ = Math.min(leftMinZ, binBounds[b + 2]); leftMaxZ = Math.max(leftMaxZ, binBounds[b + 5]);
+                leftCount += binCounts[i];
+            }
+
+            float rightMinX = Float.POSITIVE_INFINITY, rightMinY = Float.POSITIVE_INFINITY, rightMinZ = Float.POSITIVE_INFINITY;
+            float rightMaxX = Float.NEGATIVE_INFINITY, rightMaxY = Float.NEGATIVE_INFINITY, rightMaxZ = Float.NEGATIVE_INFINITY;
+            int rightCount = 0;
+            for (int i = split; i < BINS; i++) {
+                if (binCounts[i] == 0) continue;
+                int b = i * 6;
+                rightMinX = Math.min(rightMinX, binBounds[b]); rightMaxX = Math.max(rightMaxX, binBounds[b + 3]);
+                rightMinY = Math.min(rightMinY, binBounds[b + 1]); rightMaxY = Math.max(rightMaxY, binBounds[b + 4]);
+                rightMinZ = Math.min(rightMinZ, binBounds[b + 2]); rightMaxZ = Math.max(rightMaxZ, binBounds[b + 5]);
+                rightCount += binCounts[i];
+            }
+
+            if (leftCount == 0 || rightCount == 0) {
+                continue;
+            }
+
+            float cost = leftCount * surfaceArea(leftMaxX - leftMinX, leftMaxY - leftMinY, leftMaxZ - leftMinZ)
+                + rightCount * surfaceArea(rightMaxX - rightMinX, rightMaxY - rightMinY, rightMaxZ - rightMinZ);
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestSplit = split;
+            }
+        }
+        return bestSplit;
+    }
+
+    // Moves the leaves in bins below split to the front of the range, returning the index of the first one that isn't
+    private int partition(int start, int end, int axis, float axisMin, float extent, int split) {
+        int i = start;
+        int j = end - 1;
+        while (i <= j) {
+            if (bin(leaves[i] * 6, axis, axisMin, extent) < split) {
+                i++;
+            } else {
+                int temp = leaves[i];
+                leaves[i] = leaves[j];
+                leaves[j] = temp;
+                j--;
+            }
+        }
+        return i;
+    }
+
+    private int bin(int b, int axis, float axisMin, float extent) {
+        float centroid = bounds[b + axis] + bounds[b + 3 + axis];
+        return Math.min(BINS - 1, (int) (BINS * (centroid - axisMin) / extent));
+    }
+
+    private void setFatBounds(int node, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        float marginX = (maxX - minX) * FAT_MARGIN + MIN_FAT_MARGIN;
+        float marginY = (maxY - minY) * FAT_MARGIN + MIN_FAT_MARGIN;
+        float marginZ = (maxZ - minZ) * FAT_MARGIN + MIN_FAT_MARGIN;
+
+        int b = node * 6;
+        bounds[b] = minX - marginX;
+        bounds[b + 1] = minY - marginY;
+        bounds[b + 2] = minZ - marginZ;
+        bounds[b + 3] = maxX + marginX;
+        bounds[b + 4] = maxY + marginY;
+        bounds[b + 5] = maxZ + marginZ;
+    }
+
+    private void setUnion(int node, int a, int b) {
+        int n = node * 6;
+        int i = a * 6;
+        int j = b * 6;
+        bounds[n] = Math.min(bounds[i], bounds[j]);
+        bounds[n + 1] = Math.min(bounds[i + 1], bounds[j + 1]);
+        bounds[n + 2] = Math.min(bounds[i + 2], bounds[j + 2]);
+        bounds[n + 3] = Math.max(bounds[i + 3], bounds[j + 3]);
+        bounds[n + 4] = Math.max(bounds[i + 4], bounds[j + 4]);
+        bounds[n + 5] = Math.max(bounds[i + 5], bounds[j + 5]);
+    }
+
+    private float surfaceArea(int node) {
+        int b = node * 6;
+        return surfaceArea(bounds[b + 3] - bounds[b], bounds[b + 4] - bounds[b + 1], bounds[b + 5] - bounds[b + 2]);
+    }
+
+    private float unionArea(int node, int l) {
+        int b = node * 6;
+        return surfaceArea(
+            Math.max(bounds[b + 3], bounds[l + 3]) - Math.min(bounds[b], bounds[l]),
+            Math.max(bounds[b + 4], bounds[l + 4]) - Math.min(bounds[b + 1], bounds[l + 1]),
+            Math.max(bounds[b + 5], bounds[l + 5]) - Math.min(bounds[b + 2], bounds[l + 2])
+        );
+    }
+
+    private static float surfaceArea(float x, float y, float z) {
+        return 2.0f * (x * y + y * z + z * x);
+    }
+
+    private static void resetBounds(float[] array, int b) {
+        array[b] = array[b + 1] = array[b + 2] = Float.POSITIVE_INFINITY;
+        array[b + 3] = array[b + 4] = array[b + 5] = Float.NEGATIVE_INFINITY;
+    }
+
+    private static void growBounds(float[] array, int b, float[] source, int s) {
+        array[b] = Math.min(array[b], source[s]);
+        array[b + 1] = Math.min(array[b + 1], source[s + 1]);
+        array[b + 2] = Math.min(array[b + 2], source[s + 2]);
+        array[b + 3] = Math.max(array[b + 3], source[s + 3]);
+        array[b + 4] = Math.max(array[b + 4], source[s + 4]);
+        array[b + 5] = Math.max(array[b + 5], source[s + 5]);
+    }
+
+    private int allocateNode() {
+        if (freeList == NULL) {
+            allocateNodes(capacity * 2);
+        }
+
+        int node = freeList;
+        freeList = parents[node];
+        parents[node] = NULL;
+        lefts[node] = NULL;
+        rights[node] = NULL;
+        heights[node] = 0;
+        nodeCount++;
+        return node;
+    }
+
+    private void freeNode(int node) {
+        parents[node] = freeList;
+        heights[node] = -1;
+        freeList = node;
+        nodeCount--;
+    }
+
+    private void allocateNodes(int newCapacity) {
+        int oldCapacity = capacity;
+        capacity = newCapacity;
+
+        bounds = bounds == null ? new float[newCapacity * 6] : Arrays.copyOf(bounds, newCapacity * 6);
+        parents = parents == null ? new int[newCapacity] : Arrays.copyOf(parents, newCapacity);
+        lefts = lefts == null ? new int[newCapacity] : Arrays.copyOf(lefts, newCapacity);
+        rights = rights == null ? new int[newCapacity] : Arrays.copyOf(rights, newCapacity);
+        heights = heights == null ? new int[newCapacity] : Arrays.copyOf(heights, newCapacity);
+        values = values == null ? new Object[newCapacity] : Arrays.copyOf(values, newCapacity);
+
+        // Link the new nodes into the free list, lowest index first
+        for (int i = newCapacity - 1; i >= oldCapacity; i--) {
+            parents[i] = freeList;
+            heights[i] = -1;
+            freeList = i;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package io.william.renderer.culling;
+
+import org.joml.Matrix4fc;
+
+// Six normalized planes (a, b, c, d) extracted from a view-projection matrix, with their normals pointing inwards
+// Order: left, right, bottom, top, near, far
+public class Frustum {
+
+    public static final int PLANES = 6;
+
+    private final float[] planes = new float[PLANES * 4];
+
+    public Frustum set(Matrix4fc m) {
+        // Gribb-Hartmann: each plane is the fourth row of the matrix plus or minus one of the other rows
+        setPlane(0, m.m03() + m.m00(), m.m13() + m.m10(), m.m23() + m.m20(), m.m33() + m.m30());
+        setPlane(1, m.m03() - m.m00(), m.m13() - m.m10(), m.m23() - m.m20(), m.m33() - m.m30());
+        setPlane(2, m.m03() + m.m01(), m.m13() + m.m11(), m.m23() + m.m21(), m.m33() + m.m31());
+        setPlane(3, m.m03() - m.m01(), m.m13() - m.m11(), m.m23() - m.m21(), m.m33() - m.m31());
+        setPlane(4, m.m03() + m.m02(), m.m13() + m.m12(), m.m23() + m.m22(), m.m33() + m.m32());
+        setPlane(5, m.m03() - m.m02(), m.m13() - m.m12(), m.m23() - m.m22(), m.m33() - m.m32());
+        return this;
+    }
+
+    // False only if the sphere is entirely outside one of the planes
+    public boolean testSphere(float x, float y, float z, float radius) {
+        for (int i = 0; i < PLANES * 4; i += 4) {
+            if (planes[i] * x + planes[i + 1] * y + planes[i + 2] * z + planes[i + 3] < -radius) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Tests a model space sphere transformed by a model matrix, scaling the radius by the largest axis scale
+    // so that non-uniform scaling stays conservative
+    public boolean testSphere(Matrix4fc m, float x, float y, float z, float radius) {
+        float worldX = m.m00() * x + m.m10() * y + m.m20() * z + m.m30();
+        float worldY = m.m01() * x + m.m11() * y + m.m21() * z + m.m31();
+        float worldZ = m.m02() * x + m.m12() * y + m.m22() * z + m.m32();
+
+        return testSphere(worldX, worldY, worldZ, radius * maxScale(m));
+    }
+
+    // Largest scale of a model matrix along its axes
+    public static float maxScale(Matrix4fc m) {
+        float scaleX = m.m00() * m.m00() + m.m01() * m.m01() + m.m02() * m.m02();
+        float scaleY = m.m10() * m.m10() + m.m11() * m.m11() + m.m12() * m.m12();
+        float scaleZ = m.m20() * m.m20() + m.m21() * m.m21() + m.m22() * m.m22();
+        return (float) Math.sqrt(Math.max(scaleX, Math.max(scaleY, scaleZ)));
+    }
+
+    // False only if the box is entirely outside one of the planes
+    public boolean testAab(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        for (int i = 0; i < PLANES * 4; i += 4) {
+            // Corner furthest along the plane normal
+            float x = planes[i] >= 0 ? maxX : minX;
+            float y = planes[i + 1] >= 0 ? maxY : minY;
+            float z = planes[i + 2] >= 0 ? maxZ : minZ;
+            if (planes[i] * x + planes[i + 1] * y + planes[i + 2] * z + planes[i + 3] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public float[] getPlanes() {
+        return planes;
+    }
+
+    private void setPlane(int index, float a, float b, float c, float d) {
+        float length = (float) Math.sqrt(a * a + b * b + c * c);
+        planes[index * 4] = a / length;
+        planes[index * 4 + 1] = b / length;
+        planes[index * 4 + 2] = c / length;
+        planes[index * 4 + 3] = d / length;
+    }
+}
@@ -0,0 +1,327 @@
+package io.william.renderer.culling;
+
+import io.william.renderer.Entity;
+import io.william.renderer.MeshData;
+import io.william.renderer.Model;
+import io.william.renderer.Scene;
+import io.william.renderer.SceneMesh;
+import io.william.util.JobSystem;
+import org.joml.Matrix4fc;
+import org.joml.Vector3fc;
+
+import java.util.List;
+
+// Tests every model mesh instance's bounding sphere against the camera frustum and builds a compacted list of
+// visible instances, along with a copy of the draw commands whose instance count and base instance index into it
+// The scene's entity tree is queried first, so only instances of entities whose bounds touch the frustum are tested
+// Each visible instance also picks a level of detail from its distance to the camera, and the visible instances of
+// a command are grouped by LOD, with one culled command per LOD that has any
+// The per-instance data is only rebuilt when the scene's draw commands change, so culling itself doesn't allocate
+public class FrustumCuller {
+
+    private static final int COMMAND_SIZE = 5;
+    private static final int MIN_CHUNK_SIZE = 1024;
+    private static final int MAX_LODS = MeshData.MAX_LODS;
+
+    private final JobSystem jobSystem;
+    private final Frustum frustum;
+    private final JobSystem.RangeJob cullJob;
+    private final DynamicAabbTree.Visitor<Entity> entityVisitor;
+
+    private DynamicAabbTree<Entity> entityTree;
+    // Per transform index: the last cull in which the entity's bounds touched the frustum
+    private int[] entityFrames = new int[0];
+    private int frame;
+
+    private int commandCount;
+    private int instanceCount;
+
+    // Per command: count, instance count, first index, base vertex, base instance
+    private int[] commands = new int[0];
+    // Per command: bounding sphere in model space (x, y, z, radius)
+    private float[] spheres = new float[0];
+    // Per command and LOD: first index and count, and error in model space (infinite for LODs the mesh doesn't have)
+    private int[] lods = new int[0];
+    private float[] lodErrors = new float[0];
+
+    // Per model mesh instance
+    private int[] instanceCommands = new int[0];
+    private Entity[] instanceEntities = new Entity[0];
+    // LOD of each visible instance, -1 for culled ones
+    private int[] instanceLods = new int[0];
+
+    private float cameraX, cameraY, cameraZ;
+    private float lodThreshold;
+    private final int[] lodCounts = new int[MAX_LODS];
+    private final int[] lodOffsets = new int[MAX_LODS];
+
+    // Results
+    private int[] culledCommands = new int[0];
+    private int culledCommandCount;
+    private int[] visibleInstances = new int[0];
+    private int visibleInstanceCount;
+
+    public FrustumCuller(JobSystem jobSystem) {
+        this.jobSystem = jobSystem;
+        this.frustum = new Frustum();
+        this.cullJob = this::cullInstances;
+        this.entityVisitor = this::markEntity;
+    }
+
+    // Rebuilds the per-command and per-instance data, with the scene's models in order
+    public void rebuild(Scene scene) {
+        rebuild(scene, scene.getModels());
+    }
+
+    // Rebuilds the per-command and per-instance data, in the order of models, which must match MasterRenderer's
+    // indirect buffer. Models without entities are skipped
+    public void rebuild(Scene scene, List<Model> models) {
+        entityTree = scene.getEntityTree();
+
+        commandCount = 0;
+        instanceCount = 0;
+        for (Model model : models) {
+            int entities = model.getEntities().size();
+            if (entities > 0) {
+                commandCount += model.getMeshDrawDatas().size();
+                instanceCount += model.getMeshDrawDatas().size() * entities;
+            }
+        }
+
+        if (commands.length < commandCount * COMMAND_SIZE) {
+            commands = new int[commandCount * COMMAND_SIZE];
+            culledCommands = new int[commandCount * MAX_LODS * COMMAND_SIZE];
+            spheres = new float[commandCount * 4];
+            lods = new int[commandCount * MAX_LODS * 2];
+            lodErrors = new float[commandCount * MAX_LODS];
+        }
+        if (instanceLods.length < instanceCount) {
+            instanceCommands = new int[instanceCount];
+            instanceEntities = new Entity[instanceCount];
+            instanceLods = new int[instanceCount];
+            visibleInstances = new int[instanceCount];
+        }
+
+        int command = 0;
+        int baseInstance = 0;
+        for (Model model : models) {
+            List<Entity> entities = model.getEntities();
+            if (entities.isEmpty()) {
+                continue;
+            }
+
+            List<SceneMesh.MeshDrawData> meshDrawDatas = model.getMeshDrawDatas();
+            for (int i = 0; i < meshDrawDatas.size(); i++) {
+                SceneMesh.MeshDrawData meshDrawData = meshDrawDatas.get(i);
+                MeshData meshData = model.getMeshDatas().get(i);
+
+                commands[command * COMMAND_SIZE] = meshDrawData.vertices();
+                commands[command * COMMAND_SIZE + 1] = entities.size();
+                commands[command * COMMAND_SIZE + 2] = meshDrawData.firstIndex();
+                commands[command * COMMAND_SIZE + 3] = meshDrawData.offset();
+                commands[command * COMMAND_SIZE + 4] = baseInstance;
+
+                spheres[command * 4] = meshData.getBoundingSphereCenter().x;
+                spheres[command * 4 + 1] = meshData.getBoundingSphereCenter().y;
+                spheres[command * 4 + 2] = meshData.getBoundingSphereCenter().z;
+                spheres[command * 4 + 3] = meshData.getBoundingSphereRadius();
+
+                List<SceneMesh.Lod> meshLods = meshDrawData.lods();
+                for (int lod = 0; lod < MAX_LODS; lod++) {
+                    int l = command * MAX_LODS + lod;
+                    if (lod < meshLods.size()) {
+                        lods[l * 2] = meshLods.get(lod).firstIndex();
+                        lods[l * 2 + 1] = meshLods.get(lod).count();
+                        lodErrors[l] = meshLods.get(lod).error();
+                    } else {
+                        lods[l * 2] = 0;
+                        lods[l * 2 + 1] = 0;
+                        lodErrors[l] = Float.POSITIVE_INFINITY;
+                    }
+                }
+
+                for (int j = 0; j < entities.size(); j++) {
+                    instanceCommands[baseInstance + j] = command;
+                    instanceEntities[baseInstance + j] = entities.get(j);
+                }
+
+                baseInstance += entities.size();
+                command++;
+            }
+        }
+
+        int transformCount = 0;
+        for (int i = 0; i < instanceCount; i++) {
+            transformCount = Math.max(transformCount, instanceEntities[i].getTransformIndex() + 1);
+        }
+        if (entityFrames.length < transformCount) {
+            entityFrames = new int[transformCount];
+            frame = 0;
+        }
+
+        // Drop references to entities that are no longer drawn
+        for (int i = instanceCount; i < instanceEntities.length && instanceEntities[i] != null; i++) {
+            instanceEntities[i] = null;
+        }
+
+        // Until the first cull everything is visible at full detail
+        System.arraycopy(commands, 0, culledCommands, 0, commandCount * COMMAND_SIZE);
+        culledCommandCount = commandCount;
+        for (int i = 0; i < instanceCount; i++) {
+            visibleInstances[i] = i;
+        }
+        visibleInstanceCount = instanceCount;
+    }
+
+    // lodThreshold: the largest LOD error allowed per unit of distance from the camera, 0 to always draw full detail
+    public void cull(Matrix4fc viewProjection, Vector3fc cameraPosition, float lodThreshold) {
+        frustum.set(viewProjection);
+        cameraX = cameraPosition.x();
+        cameraY = cameraPosition.y();
+        cameraZ = cameraPosition.z();
+        this.lodThreshold = lodThreshold;
+
+        frame++;
+        entityTree.queryFrustum(frustum, entityVisitor);
+
+        jobSystem.parallelFor(instanceCount, MIN_CHUNK_SIZE, cullJob);
+
+        // Compact the visible instances of each command, grouped by LOD, so that base instances follow each other
+        int offset = 0;
+        culledCommandCount = 0;
+        for (int command = 0; command < commandCount; command++) {
+            int c = command * COMMAND_SIZE;
+            int baseInstance = commands[c + 4];
+            int end = baseInstance + commands[c + 1];
+
+            for (int lod = 0; lod < MAX_LODS; lod++) {
+                lodCounts[lod] = 0;
+            }
+            for (int i = baseInstance; i < end; i++) {
+                if (instanceLods[i] >= 0) {
+                    lodCounts[instanceLods[i]]++;
+                }
+            }
+            for (int lod = 0; lod < MAX_LODS; lod++) {
+                lodOffsets[lod] = offset;
+                offset += lodCounts[lod];
+            }
+            for (int i = baseInstance; i < end; i++) {
+                if (instanceLods[i] >= 0) {
+                    visibleInstances[lodOffsets[instanceLods[i]]++] = i;
+                }
+            }
+
+            for (int lod = 0; lod < MAX_LODS; lod++) {
+                if (lodCounts[lod] == 0) {
+                    continue;
+                }
+
+                int l = command * MAX_LODS + lod;
+                int culled = culledCommandCount * COMMAND_SIZE;
+                culledCommands[culled] = lods[l * 2 + 1];
+                culledCommands[culled + 1] = lodCounts[lod];
+                culledCommands[culled + 2] = lods[l * 2];
+                culledCommands[culled + 3] = commands[c + 3];
+                culledCommands[culled + 4] = lodOffsets[lod] - lodCounts[lod];
+                culledCommandCount++;
+            }
+        }
+        visibleInstanceCount = offset;
+    }
+
+    // Coarsest LOD of a command whose error, scaled into world space, is at most lodThreshold times the distance
+    // from the camera to the instance's bounds. LOD errors only grow, and missing LODs have an infinite error
+    public static int selectLod(float[] lodErrors, int command, float scale, float distance, float lodThreshold) {
+        int selected = 0;
+        for (int lod = 1; lod < MAX_LODS; lod++) {
+            if (lodErrors[command * MAX_LODS + lod] * scale <= distance * lodThreshold) {
+                selected = lod;
+            }
+        }
+        return selected;
+    }
+
+    private void cullInstances(int start, int end) {
+        for (int i = start; i < end; i++) {
+            int s = instanceCommands[i] * 4;
+            Entity entity = instanceEntities[i];
+
+            int transformIndex = entity.getTransformIndex();
+            if (transformIndex < 0 || entityFrames[transformIndex] != frame) {
+                instanceLods[i] = -1;
+                continue;
+            }
+
+            // Test where the instance is and where it was, as it is drawn somewhere in between while interpolating
+            Matrix4fc m = entity.getWorldMatrix();
+            boolean visible = frustum.testSphere(m, spheres[s], spheres[s + 1], spheres[s + 2], spheres[s + 3])
+                || frustum.testSphere(entity.getPreviousWorldMatrix(), spheres[s], spheres[s + 1], spheres[s + 2], spheres[s + 3]);
+            if (!visible) {
+                instanceLods[i] = -1;
+                continue;
+            }
+
+            float x = m.m00() * spheres[s] + m.m10() * spheres[s + 1] + m.m20() * spheres[s + 2] + m.m30() - cameraX;
+            float y = m.m01() * spheres[s] + m.m11() * spheres[s + 1] + m.m21() * spheres[s + 2] + m.m31() - cameraY;
+            float z = m.m02() * spheres[s] + m.m12() * spheres[s + 1] + m.m22() * spheres[s + 2] + m.m32() - cameraZ;
+            float scale = Frustum.maxScale(m);
+            float distance = Math.max((float) Math.sqrt(x * x + y * y + z * z) - spheres[s + 3] * scale, 0.0f);
+            instanceLods[i] = selectLod(lodErrors, instanceCommands[i], scale, distance, lodThreshold);
+        }
+    }
+
+    private void markEntity(Entity entity) {
+        int transformIndex = entity.getTransformIndex();
+        if (transformIndex >= 0 && transformIndex < entityFrames.length) {
+            entityFrames[transformIndex] = frame;
+        }
+    }
+
+    public Frustum getFrustum() {
+        return frustum;
+    }
+
+    // Model space bounding sphere of each command (x, y, z, radius)
+    public float[] getSpheres() {
+        return spheres;
+    }
+
+    // Per command and LOD: first index and count
+    public int[] getLods() {
+        return lods;
+    }
+
+    // Per command and LOD: error in model space units
+    public float[] getLodErrors() {
+        return lodErrors;
+    }
+
+    public int[] getCommands() {
+        return commands;
+    }
+
+    public int getCommandCount() {
+        return commandCount;
+    }
+
+    public int getInstanceCount() {
+        return instanceCount;
+    }
+
+    public int[] getCulledCommands() {
+        return culledCommands;
+    }
+
+    public int getCulledCommandCount() {
+        return culledCommandCount;
+    }
+
+    public int[] getVisibleInstances() {
+        return visibleInstances;
+    }
+
+    public int getVisibleInstanceCount() {
+        return visibleInstanceCount;
+    }
+}
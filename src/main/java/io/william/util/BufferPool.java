@@ -0,0 +1,68 @@
+package io.william.util;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Thread-safe pool of off-heap buffers, so that short-lived large buffers (e.g. decoded images) are reused instead
+// of going through malloc and free each time
+// Buffers are rounded up to a power of two and at most maxPooledBytes are kept, anything over that is freed
+public class BufferPool {
+
+    private final long maxPooledBytes;
+    private final Map<Integer, Queue<ByteBuffer>> pools = new ConcurrentHashMap<>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    public BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    // Returns a buffer with a limit of size bytes, which must be given back with release
+    public ByteBuffer allocate(int size) {
+        int capacity = capacity(size);
+        Queue<ByteBuffer> pool = pools.get(capacity);
+        ByteBuffer buffer = pool != null ? pool.poll() : null;
+        if (buffer != null) {
+            pooledBytes.addAndGet(-capacity);
+        } else {
+            buffer = MemoryUtil.memAlloc(capacity);
+        }
+
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            MemoryUtil.memFree(buffer);
+            return;
+        }
+
+        pools.computeIfAbsent(capacity, key -> new ConcurrentLinkedQueue<>()).add(buffer);
+    }
+
+    public void clear() {
+        for (Queue<ByteBuffer> pool : pools.values()) {
+            ByteBuffer buffer;
+            while ((buffer = pool.poll()) != null) {
+                pooledBytes.addAndGet(-buffer.capacity());
+                MemoryUtil.memFree(buffer);
+            }
+        }
+    }
+
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    private static int capacity(int size) {
+        return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+    }
+}
@@ -0,0 +1,138 @@
+package io.william.util;
+
+import java.util.Arrays;
+
+// First-fit sub-allocator over a range of [0, capacity) units
+// Free blocks are kept sorted by offset so that freed blocks can be merged with their neighbours
+public class FreeListAllocator {
+
+    private int capacity;
+    private int[] freeOffsets = new int[16];
+    private int[] freeSizes = new int[16];
+    private int freeBlocks;
+    private int freeSize;
+
+    public FreeListAllocator(int capacity) {
+        reset(capacity, 0);
+    }
+
+    // Returns the offset of a block of size units, or -1 if no free block is large enough
+    public int allocate(int size) {
+        if (size <= 0) {
+            return size == 0 ? 0 : -1;
+        }
+
+        for (int i = 0; i < freeBlocks; i++) {
+            if (freeSizes[i] >= size) {
+                int offset = freeOffsets[i];
+                if (freeSizes[i] == size) {
+                    removeBlock(i);
+                } else {
+                    freeOffsets[i] += size;
+                    freeSizes[i] -= size;
+                }
+                freeSize -= size;
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    public void free(int offset, int size) {
+        if (size <= 0) {
+            return;
+        }
+
+        // Index of the first free block after the freed one
+        int index = Arrays.binarySearch(freeOffsets, 0, freeBlocks, offset);
+        if (index >= 0) {
+            throw new IllegalStateException("Block at " + offset + " is already free");
+        }
+        index = -index - 1;
+
+        boolean mergePrevious = index > 0 && freeOffsets[index - 1] + freeSizes[index - 1] == offset;
+        boolean mergeNext = index < freeBlocks && offset + size == freeOffsets[index];
+
+        if (mergePrevious && mergeNext) {
+            freeSizes[index - 1] += size + freeSizes[index];
+            removeBlock(index);
+        } else if (mergePrevious) {
+            freeSizes[index - 1] += size;
+        } else if (mergeNext) {
+            freeOffsets[index] = offset;
+            freeSizes[index] += size;
+        } else {
+            insertBlock(index, offset, size);
+        }
+        freeSize += size;
+    }
+
+    // Extends the range, adding the new space to the end of the free list
+    public void grow(int newCapacity) {
+        if (newCapacity <= capacity) {
+            return;
+        }
+
+        int added = newCapacity - capacity;
+        if (freeBlocks > 0 && freeOffsets[freeBlocks - 1] + freeSizes[freeBlocks - 1] == capacity) {
+            freeSizes[freeBlocks - 1] += added;
+        } else {
+            insertBlock(freeBlocks, capacity, added);
+        }
+        freeSize += added;
+        capacity = newCapacity;
+    }
+
+    // Marks [0, used) as allocated and the rest as free, e.g. after compacting every block to the start
+    public void reset(int capacity, int used) {
+        this.capacity = capacity;
+        freeBlocks = 0;
+        freeSize = 0;
+        if (used < capacity) {
+            insertBlock(0, used, capacity - used);
+            freeSize = capacity - used;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getFreeSize() {
+        return freeSize;
+    }
+
+    public int getUsedSize() {
+        return capacity - freeSize;
+    }
+
+    public int getLargestFreeBlock() {
+        int largest = 0;
+        for (int i = 0; i < freeBlocks; i++) {
+            largest = Math.max(largest, freeSizes[i]);
+        }
+        return largest;
+    }
+
+    public int getFreeBlockCount() {
+        return freeBlocks;
+    }
+
+    private void insertBlock(int index, int offset, int size) {
+        if (freeBlocks == freeOffsets.length) {
+            freeOffsets = Arrays.copyOf(freeOffsets, freeBlocks * 2);
+            freeSizes = Arrays.copyOf(freeSizes, freeBlocks * 2);
+        }
+        System.arraycopy(freeOffsets, index, freeOffsets, index + 1, freeBlocks - index);
+        System.arraycopy(freeSizes, index, freeSizes, index + 1, freeBlocks - index);
+        freeOffsets[index] = offset;
+        freeSizes[index] = size;
+        freeBlocks++;
+    }
+
+    private void removeBlock(int index) {
+        System.arraycopy(freeOffsets, index + 1, freeOffsets, index, freeBlocks - index - 1);
+        System.arraycopy(freeSizes, index + 1, freeSizes, index, freeBlocks - index - 1);
+        freeBlocks--;
+    }
+}
@@ -0,0 +1,145 @@
+package io.william.util;
+
+import java.util.Arrays;
+
+// Open-addressing hash map from int keys to objects, using linear probing and backward-shift deletion
+// so that no boxing or tombstones are needed
+public class IntObjectMap<V> {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    public IntObjectMap() {
+        this(16);
+    }
+
+    public IntObjectMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int slot = find(key);
+        return slot == -1 ? null : (V) values[slot];
+    }
+
+    public boolean containsKey(int key) {
+        return find(key) != -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not supported");
+        }
+
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+
+        if (size > (mask + 1) * LOAD_FACTOR) {
+            resize((mask + 1) << 1);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int slot = find(key);
+        if (slot == -1) {
+            return null;
+        }
+
+        V previous = (V) values[slot];
+        values[slot] = null;
+        size--;
+
+        // Shift back any following entries whose probe sequence passes through the freed slot
+        int free = slot;
+        slot = (slot + 1) & mask;
+        while (values[slot] != null) {
+            int home = hash(keys[slot]) & mask;
+            if (((slot - home) & mask) >= ((slot - free) & mask)) {
+                keys[free] = keys[slot];
+                values[free] = values[slot];
+                values[slot] = null;
+                free = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        return previous;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private int find(int key) {
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(int key) {
+        // Murmur3 finalizer, so that sequential IDs spread across the table
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,86 @@
+package io.william.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+// Splits index ranges into chunks and runs them on a work-stealing pool
+// The number of threads can be set with -Dsim.threads, where 1 runs every job on the calling thread
+public class JobSystem {
+
+    @FunctionalInterface
+    public interface RangeJob {
+        void run(int start, int end);
+    }
+
+    private final int threads;
+    private final ForkJoinPool pool;
+
+    public JobSystem(int threads) {
+        this.threads = Math.max(1, threads);
+        this.pool = this.threads > 1 ? new ForkJoinPool(this.threads) : null;
+    }
+
+    public static JobSystem fromSystemProperties() {
+        return new JobSystem(Integer.getInteger("sim.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    // Runs job over [0, count), with each chunk covering at least minChunkSize indices
+    public void parallelFor(int count, int minChunkSize, RangeJob job) {
+        if (count <= 0) {
+            return;
+        }
+
+        if (pool == null || count <= minChunkSize) {
+            job.run(0, count);
+            return;
+        }
+
+        // Roughly four chunks per thread so that stealing can even out uneven work
+        int chunkSize = Math.max(minChunkSize, (count + threads * 4 - 1) / (threads * 4));
+        pool.invoke(new RangeTask(job, 0, count, chunkSize));
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class RangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RangeJob job;
+        private final int start;
+        private final int end;
+        private final int chunkSize;
+
+        RangeTask(RangeJob job, int start, int end, int chunkSize) {
+            this.job = job;
+            this.start = start;
+            this.end = end;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= chunkSize) {
+                job.run(start, end);
+                return;
+            }
+
+            int mid = (start + end) >>> 1;
+            invokeAll(new RangeTask(job, start, mid, chunkSize), new RangeTask(job, mid, end, chunkSize));
+        }
+    }
+}
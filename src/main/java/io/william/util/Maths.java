@@ -21,6 +21,14 @@ public class Maths {
             scale(scale);
     }
 
+    public static Matrix4f calculateModelMatrix(Vector3f position, Vector3f rotation, float scale, Matrix4f dest) {
+        return dest.translation(position).
+            rotateX((float) Math.toRadians(rotation.x)).
+            rotateY((float) Math.toRadians(rotation.y)).
+            rotateZ((float) Math.toRadians(rotation.z)).
+            scale(scale);
+    }
+
     public static float clamp(float val, float min, float max) {
         return Math.max(min, Math.min(max, val));
     }
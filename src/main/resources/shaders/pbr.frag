@@ -123,7 +123,10 @@ uniform sampler2D directionalShadowMap;
 uniform float farPlane;
 
 vec3 getNormalFromMap(GPUMaterial material) {
-    vec3 tangentNormal = texture(material.normal, TexCoords).rgb * 2.0 - 1.0;
+    // Only x and y are stored (BC5 or RG8 for model textures), z is always facing out of the surface
+    vec3 tangentNormal;
+    tangentNormal.xy = texture(material.normal, TexCoords).rg * 2.0 - 1.0;
+    tangentNormal.z = sqrt(max(1.0 - dot(tangentNormal.xy, tangentNormal.xy), 0.0));
 
     vec3 Q1 = dFdx(WorldPos);
     vec3 Q2 = dFdy(WorldPos);
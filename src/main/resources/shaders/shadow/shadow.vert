@@ -5,19 +5,96 @@ layout (location = 0) in vec3 aPos;
 uniform mat4 lightSpaceMatrix;
 
 struct ModelMeshInstance {
-    mat4 World;
+    uint transformIndex;
     uint materialID;
-    uint _pad0;
-    uint _pad1;
-    uint _pad2;
+    float emissionStrength;
+    uint CommandIndex;
 };
 
 layout (binding = 0, std430) buffer ModelMeshInstanceBuffer {
     ModelMeshInstance Instances[];
 } modelMeshInstanceBuffer;
 
+struct EntityTransform {
+    mat4 Previous;
+    mat4 Current;
+};
+
+layout (binding = 3, std430) buffer EntityTransformBuffer {
+    EntityTransform Transforms[];
+} entityTransformBuffer;
+
+// How to decode the scene mesh's vertices, per draw command
+struct MeshQuantization {
+    vec4 PositionOffset;
+    vec4 PositionScale;
+    vec4 TexCoordTransform;
+};
+
+layout (binding = 12, std430) readonly buffer MeshQuantizationBuffer {
+    MeshQuantization Meshes[];
+} meshQuantizationBuffer;
+
+layout (binding = 1, std140) uniform FrameData {
+    float interpolationFactor;
+};
+
+// Interpolates the translation, rotation and scale of the world matrices separately, like pbr.vert
+vec4 toQuaternion(mat3 m) {
+    float trace = m[0][0] + m[1][1] + m[2][2];
+    if (trace > 0.0) {
+        float s = sqrt(trace + 1.0) * 2.0;
+        return vec4(m[1][2] - m[2][1], m[2][0] - m[0][2], m[0][1] - m[1][0], 0.25 * s * s) / s;
+    } else if (m[0][0] > m[1][1] && m[0][0] > m[2][2]) {
+        float s = sqrt(1.0 + m[0][0] - m[1][1] - m[2][2]) * 2.0;
+        return vec4(0.25 * s * s, m[1][0] + m[0][1], m[2][0] + m[0][2], m[1][2] - m[2][1]) / s;
+    } else if (m[1][1] > m[2][2]) {
+        float s = sqrt(1.0 + m[1][1] - m[0][0] - m[2][2]) * 2.0;
+        return vec4(m[1][0] + m[0][1], 0.25 * s * s, m[2][1] + m[1][2], m[2][0] - m[0][2]) / s;
+    } else {
+        float s = sqrt(1.0 + m[2][2] - m[0][0] - m[1][1]) * 2.0;
+        return vec4(m[2][0] + m[0][2], m[2][1] + m[1][2], 0.25 * s * s, m[0][1] - m[1][0]) / s;
+    }
+}
+
+mat3 toMatrix(vec4 q) {
+    vec3 q2 = q.xyz * 2.0;
+    float xx = q.x * q2.x, yy = q.y * q2.y, zz = q.z * q2.z;
+    float xy = q.x * q2.y, xz = q.x * q2.z, yz = q.y * q2.z;
+    float wx = q.w * q2.x, wy = q.w * q2.y, wz = q.w * q2.z;
+    return mat3(
+        1.0 - yy - zz, xy + wz, xz - wy,
+        xy - wz, 1.0 - xx - zz, yz + wx,
+        xz + wy, yz - wx, 1.0 - xx - yy
+    );
+}
+
+// Negative if the matrix mirrors, so that dividing by it leaves a rotation
+float uniformScale(mat4 world) {
+    float scale = length(world[0].xyz);
+    return determinant(mat3(world)) < 0.0 ? -scale : scale;
+}
+
+mat4 interpolatedWorld(uint transformIndex) {
+    EntityTransform transform = entityTransformBuffer.Transforms[transformIndex];
+    float previousScale = uniformScale(transform.Previous);
+    float currentScale = uniformScale(transform.Current);
+    vec4 previousRotation = previousScale != 0.0 ? toQuaternion(mat3(transform.Previous) / previousScale) : vec4(0.0, 0.0, 0.0, 1.0);
+    vec4 currentRotation = currentScale != 0.0 ? toQuaternion(mat3(transform.Current) / currentScale) : vec4(0.0, 0.0, 0.0, 1.0);
+    // q and -q are the same rotation, take the one on the shorter arc
+    if (dot(previousRotation, currentRotation) < 0.0) {
+        currentRotation = -currentRotation;
+    }
+
+    mat4 world = mat4(toMatrix(normalize(mix(previousRotation, currentRotation, interpolationFactor))) * mix(previousScale, currentScale, interpolationFactor));
+    world[3] = vec4(mix(transform.Previous[3].xyz, transform.Current[3].xyz, interpolationFactor), 1.0);
+    return world;
+}
+
 void main() {
     ModelMeshInstance modelMeshInstance = modelMeshInstanceBuffer.Instances[gl_BaseInstance + gl_InstanceID];
-    vec3 worldPos = (modelMeshInstance.World * vec4(aPos, 1.0)).xyz;
+    MeshQuantization quantization = meshQuantizationBuffer.Meshes[modelMeshInstance.CommandIndex];
+    vec3 position = quantization.PositionOffset.xyz + aPos * quantization.PositionScale.xyz;
+    vec3 worldPos = (interpolatedWorld(modelMeshInstance.transformIndex) * vec4(position, 1.0)).xyz;
     gl_Position = lightSpaceMatrix * vec4(worldPos, 1.0);
 }